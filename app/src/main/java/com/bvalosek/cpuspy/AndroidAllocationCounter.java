@@ -0,0 +1,38 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import android.os.Debug;
+
+/**
+ * AllocationCounter backed by ART's runtime statistics. ART only counts the
+ * bytes allocated by the whole process, so what it reports for a refresh is
+ * every allocation of the process during the refresh window, the UI thread
+ * and the GC included, and the instrumentation labels it that way
+ */
+public class AndroidAllocationCounter implements MonitorInstrumentation.AllocationCounter {
+
+    private static final String BytesAllocatedStat = "art.gc.bytes-allocated";
+
+    public long getAllocatedBytes() {
+        String value = Debug.getRuntimeStat(BytesAllocatedStat);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public boolean isThreadLocal() {
+        return false;
+    }
+}
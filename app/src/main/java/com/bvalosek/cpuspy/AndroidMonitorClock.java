@@ -0,0 +1,25 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import android.os.SystemClock;
+
+/**
+ * MonitorClock backed by android.os.SystemClock
+ */
+public class AndroidMonitorClock implements MonitorClock {
+
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+}
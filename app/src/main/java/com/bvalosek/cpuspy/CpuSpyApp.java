@@ -9,28 +9,120 @@
 package com.bvalosek.cpuspy;
 
 import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 public class CpuSpyApp extends Application {
+    private static final String LOG_TAG = "CpuSpy";
 
     /**
-     * The long-living object used to monitor the system frequency states
+     * The long-living object used to monitor the system frequency states,
+     * null until the background startup has discovered the cores
      */
-    private volatile CpuTimeInStateMonitor timeInStateMonitor = new CpuTimeInStateMonitor();
+    private volatile CpuTimeInStateMonitor timeInStateMonitor = null;
 
-    private String kernelVersion = "";
+    /**
+     * Background sampler keeping the last hour of one second deltas
+     */
+    private volatile CpuTimeInStateSampler timeInStateSampler = null;
+
+    private static final long SamplerIntervalMillis = 1000;
+    private static final int SamplerCapacity = 60 * 60;
+
+    /**
+     * Bounds of the adaptive sampling interval and the share of one core the
+     * background sampling may take
+     */
+    private static final long SamplerMinIntervalMillis = 250;
+    private static final long SamplerMaxIntervalMillis = 8000;
+    private static final double SamplerCpuBudgetPercent = 1.0;
+
+    /**
+     * Persistent log of the samples and baselines, null if it could not be opened
+     */
+    private volatile TimeInStateHistoryStore historyStore = null;
+
+    private static final String HistoryDirectoryName = "history";
+    private static final int HistorySegmentSize = 1024 * 1024;
+    private static final int HistoryMaxSegments = 8;
+
+    /**
+     * User supplied per-OPP power table in the app's files directory, used
+     * instead of the kernel's energy model when present
+     */
+    private static final String EnergyTableFileName = "energy_model.txt";
 
     /**
-     * On application start, load the saved offsets and stash the
-     * current kernel version string
+     * Memory-mapped file in the app's files directory the monitor publishes
+     * every snapshot into, for widgets and the app's other processes to map
+     * read-only, see SharedSnapshotLayout
+     */
+    public static final String SharedSnapshotFileName = "snapshot.shm";
+
+    /**
+     * Optional OpenMetrics endpoint for lab scrapers, null while stopped
+     */
+    private MetricsServer metricsServer = null;
+
+    public static final int MetricsServerPort = 9464;
+
+    private static final String KernelVersionPath = "/proc/version";
+
+    private volatile String kernelVersion = "";
+
+    /**
+     * Callbacks waiting for the startup to finish, null once it has
+     */
+    private List<Runnable> readyCallbacks = new ArrayList<>();
+
+    private Handler mainHandler;
+
+    /**
+     * On application start, discover the cores, load the saved offsets and
+     * stash the current kernel version string on a background thread, so
+     * none of the filesystem work delays the first frame
      */
     @Override
     public void onCreate() {
         super.onCreate();
-        updateKernelVersion();
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        Thread startup = new Thread(new Runnable() {
+            public void run() {
+                startUp();
+            }
+        }, "CpuSpyStartup");
+        startup.start();
+    }
+
+    /**
+     * Run callback on the UI thread once the monitor and the kernel version
+     * are available, right away if they already are. Must be called on the
+     * UI thread
+     */
+    public void whenReady(Runnable callback) {
+        if (this.readyCallbacks == null) {
+            callback.run();
+        } else {
+            this.readyCallbacks.add(callback);
+        }
+    }
+
+    /**
+     * @return true once the callbacks passed to whenReady have run, so the
+     * monitor, the kernel version and whatever they set up are available.
+     * Must be called on the UI thread
+     */
+    public boolean isReady() {
+        return this.readyCallbacks == null;
     }
 
     /**
@@ -41,28 +133,202 @@ public class CpuSpyApp extends Application {
     }
 
     /**
-     * @return the internal CpuTimeInStateMonitor object
+     * @return the internal CpuTimeInStateMonitor object, null until ready
      */
     public CpuTimeInStateMonitor getCpuStateMonitor() {
         return this.timeInStateMonitor;
     }
 
+    /**
+     * @return the background sampler of the monitor, null until ready
+     */
+    public CpuTimeInStateSampler getCpuStateSampler() {
+        return this.timeInStateSampler;
+    }
+
+    /**
+     * Reset the timers of all cores and save the new baselines on the
+     * monitor's sampling thread, then hand the resulting snapshot or the
+     * error to listener on the UI thread
+     */
+    public void resetTimers(final CpuTimeInStateMonitor.SnapshotListener listener) {
+        final CpuTimeInStateMonitor monitor = this.timeInStateMonitor;
+        monitor.execute(new Runnable() {
+            public void run() {
+                try {
+                    monitor.resetAllCpuIgnoredTimeInStates();
+                } catch (final CpuTimeInStateMonitor.CpuStateMonitorException e) {
+                    mainHandler.post(new Runnable() {
+                        public void run() {
+                            listener.onError(e);
+                        }
+                    });
+                    return;
+                }
+                saveBaselines();
+                postSnapshot(listener, monitor.getSnapshot());
+            }
+        });
+    }
+
+    /**
+     * Go back to the timers since boot and save that there are no baselines
+     * on the monitor's sampling thread, then hand the resulting snapshot to
+     * listener on the UI thread
+     */
+    public void restoreTimers(final CpuTimeInStateMonitor.SnapshotListener listener) {
+        final CpuTimeInStateMonitor monitor = this.timeInStateMonitor;
+        monitor.execute(new Runnable() {
+            public void run() {
+                monitor.removeAllCpuIgnoredTimeInState();
+                saveBaselines();
+                postSnapshot(listener, monitor.getSnapshot());
+            }
+        });
+    }
+
+    private void postSnapshot(final CpuTimeInStateMonitor.SnapshotListener listener,
+                              final CpuTimeInStateSnapshot snapshot) {
+        this.mainHandler.post(new Runnable() {
+            public void run() {
+                listener.onSnapshot(snapshot);
+            }
+        });
+    }
+
+    /**
+     * Serve the monitor's snapshots on localhost:MetricsServerPort/metrics.
+     * The background sampler keeps them fresh
+     */
+    public synchronized void startMetricsServer() throws IOException {
+        if (this.metricsServer == null) {
+            MetricsServer server = new MetricsServer(this.timeInStateMonitor,
+                    InetAddress.getLoopbackAddress(), MetricsServerPort);
+            server.start();
+            this.metricsServer = server;
+        }
+    }
+
+    public synchronized void stopMetricsServer() {
+        if (this.metricsServer != null) {
+            this.metricsServer.stop();
+            this.metricsServer = null;
+        }
+    }
+
+    public synchronized boolean isMetricsServerRunning() {
+        return this.metricsServer != null;
+    }
+
+    /**
+     * Everything the app needs before it can show data, run off the UI thread
+     */
+    private void startUp() {
+        updateKernelVersion();
+
+        CpuTimeInStateMonitor monitor = new CpuTimeInStateMonitor(
+                new File(CpuTimeInStateMonitor.DefaultSysfsCpuRoot), new AndroidMonitorClock());
+        monitor.getInstrumentation().setAllocationCounter(new AndroidAllocationCounter());
+        CpuTimeInStateSampler sampler = new CpuTimeInStateSampler(
+                monitor, SamplerIntervalMillis, SamplerCapacity);
+        sampler.setGovernor(new SamplingGovernor(
+                SamplerMinIntervalMillis, SamplerMaxIntervalMillis, SamplerCpuBudgetPercent));
+        openHistoryStore(monitor, sampler);
+        sampler.setEnergyEstimator(new EnergyEstimator(loadEnergyModel(monitor), monitor.getTopology()));
+        openSharedSnapshot(monitor);
+        sampler.start();
+
+        this.timeInStateSampler = sampler;
+        this.timeInStateMonitor = monitor;
+
+        this.mainHandler.post(new Runnable() {
+            public void run() {
+                List<Runnable> callbacks = readyCallbacks;
+                readyCallbacks = null;
+                for (Runnable callback : callbacks) {
+                    callback.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Open the history store, restore the baselines it holds and have the
+     * sampler append to it
+     */
+    private void openHistoryStore(CpuTimeInStateMonitor monitor, CpuTimeInStateSampler sampler) {
+        try {
+            TimeInStateHistoryStore store = new TimeInStateHistoryStore(
+                    new File(getFilesDir(), HistoryDirectoryName),
+                    HistorySegmentSize, HistoryMaxSegments);
+            if (store.getBaselines() != null) {
+                monitor.restoreBaselines(store.getBaselineFrequencies(), store.getBaselines(),
+                        store.getIdleBaselineTimes(), store.getIdleBaselineUsages(),
+                        store.getBaselineBootId());
+            }
+            this.historyStore = store;
+            sampler.setHistoryStore(store);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot open history store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Have the monitor publish its snapshots into the shared snapshot file
+     */
+    private void openSharedSnapshot(CpuTimeInStateMonitor monitor) {
+        try {
+            monitor.setSharedSnapshotWriter(SharedSnapshotWriter.create(
+                    new File(getFilesDir(), SharedSnapshotFileName), monitor.getCpuCount(),
+                    SharedSnapshotLayout.DefaultMaxStates, SharedSnapshotLayout.DefaultMaxIdleStates));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot map shared snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the user's power table if there is a readable one, otherwise the
+     * kernel's energy model or relative costs from the core capacities
+     */
+    private EnergyModel loadEnergyModel(CpuTimeInStateMonitor monitor) {
+        File table = new File(getFilesDir(), EnergyTableFileName);
+        if (table.exists()) {
+            try {
+                return EnergyModel.fromTable(monitor.getTopology(), table);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Cannot read energy table: " + e.getMessage());
+            }
+        }
+        return EnergyModel.load(monitor.getTopology(), monitor.getSysfsCpuRoot(),
+                new File(EnergyModel.DefaultEnergyModelRoot));
+    }
+
+    private void saveBaselines() {
+        TimeInStateHistoryStore store = this.historyStore;
+        if (store == null) {
+            return;
+        }
+        try {
+            store.appendBaselines(this.timeInStateMonitor.getSnapshot(),
+                    this.timeInStateMonitor.getTopology(), this.timeInStateMonitor.getBootId());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot save baselines: " + e.getMessage());
+        }
+    }
+
     /**
      * Try to read the kernel version string from the proc fileystem
      */
     public void updateKernelVersion() {
         try {
-            Process p = Runtime.getRuntime().exec("uname -a");
-            InputStream programOutput;
-            if (p.waitFor() == 0) {
-                programOutput = p.getInputStream();
-            } else {
-                programOutput = p.getErrorStream();
+            BufferedReader versionReader = new BufferedReader(new FileReader(KernelVersionPath));
+            try {
+                String version = versionReader.readLine();
+                this.kernelVersion = version == null ? "" : version;
+            } finally {
+                versionReader.close();
             }
-            BufferedReader programOutputReader = new BufferedReader(new InputStreamReader(programOutput));
-            this.kernelVersion = programOutputReader.readLine();
-            programOutputReader.close();
-        } catch (Exception ex) {
+        } catch (IOException ex) {
             this.kernelVersion = "ERROR: " + ex.getMessage();
         }
     }
@@ -0,0 +1,116 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy.ui;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.bvalosek.cpuspy.CpuSpyApp;
+import com.bvalosek.cpuspy.CpuTimeInStateMonitor;
+import com.bvalosek.cpuspy.CpuTimeInStateMonitor.CpuStateMonitorException;
+import com.bvalosek.cpuspy.CpuTimeInStateSnapshot;
+import com.bvalosek.cpuspy.R;
+
+import java.util.concurrent.Executor;
+
+/**
+ * HeatmapActivity shows every core at once in a HeatmapView, refreshed
+ * several times a second while it is in the foreground
+ */
+public class HeatmapActivity extends Activity {
+    private static final String LOG_TAG = "CpuSpy";
+
+    /**
+     * Live refresh rate of the heatmap, fast enough to follow the scheduler
+     * moving work between cores
+     */
+    private static final long RefreshIntervalMillis = 250;
+
+    private CpuSpyApp app = null;
+    private HeatmapView uiHeatmap = null;
+
+    private CpuTimeInStateMonitor.Subscription subscription = null;
+
+    private boolean resumed = false;
+
+    /**
+     * Delivers the monitor's snapshots on the UI thread
+     */
+    private final Executor uiExecutor = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    private final CpuTimeInStateMonitor.SnapshotListener snapshotListener =
+            new CpuTimeInStateMonitor.SnapshotListener() {
+                public void onSnapshot(CpuTimeInStateSnapshot snapshot) {
+                    uiHeatmap.update(app.getCpuStateMonitor().getSnapshot());
+                }
+
+                public void onError(CpuStateMonitorException error) {
+                    Log.e(LOG_TAG, "Problem getting CPU states: " + error.toString());
+                }
+            };
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.heatmap_layout);
+        this.app = (CpuSpyApp) getApplicationContext();
+        this.uiHeatmap = findViewById(R.id.ui_heatmap);
+
+        this.app.whenReady(new Runnable() {
+            public void run() {
+                if (!isDestroyed()) {
+                    onAppReady();
+                }
+            }
+        });
+    }
+
+    private void onAppReady() {
+        this.uiHeatmap.setTopology(this.app.getCpuStateMonitor().getTopology());
+        if (this.resumed) {
+            subscribe();
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        this.resumed = true;
+        if (this.app.isReady()) {
+            subscribe();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        this.resumed = false;
+        if (this.subscription != null) {
+            this.subscription.cancel();
+            this.subscription = null;
+        }
+    }
+
+    private void subscribe() {
+        if (this.subscription == null) {
+            this.subscription = this.app.getCpuStateMonitor().subscribe(
+                    this.snapshotListener, RefreshIntervalMillis, this.uiExecutor);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy.ui;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.bvalosek.cpuspy.CpuTimeInStateSnapshot;
+import com.bvalosek.cpuspy.CpuTopology;
+
+import java.util.Locale;
+
+/**
+ * HeatmapView draws every core as one stacked bar of what it did between the
+ * two latest snapshots: a segment per frequency of its cluster, colored from
+ * blue at the lowest to red at the highest and as wide as the share of the
+ * interval the core was running at it, followed by a gray segment for the
+ * time it was idle. Clusters are separated by a gap.
+ * <p>
+ * The frequencies come from the cluster's time_in_state, shared by all of its
+ * cores, and the idle time from each core's own cpuidle counters, so cores of
+ * one cluster differ in how busy they were but not in their frequency mix.
+ * Without cpuidle counters the estimated deep sleep is drawn as idle instead.
+ * <p>
+ * update works out the pixel edges and colors of every segment up front, so
+ * onDraw only fills rectangles and allocates nothing, and only the rows whose
+ * edges moved by at least a pixel are invalidated
+ */
+public class HeatmapView extends View {
+
+    private static final int IdleColor = 0xff303030;
+    private static final int LabelColor = 0xffcccccc;
+    private static final float RowHeightDp = 22;
+    private static final float RowGapDp = 3;
+    private static final float ClusterGapDp = 12;
+    private static final float LabelWidthDp = 48;
+    private static final float LabelTextSizeDp = 13;
+
+    /**
+     * Hue of the lowest and the highest frequency of a cluster
+     */
+    private static final float LowHue = 240;
+    private static final float HighHue = 0;
+
+    private final Paint barPaint = new Paint();
+    private final Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float density;
+    private final float[] hsv = {0, 0.85f, 0.95f};
+
+    private CpuTopology topology = null;
+    private CpuTimeInStateSnapshot previous = null;
+
+    /**
+     * Per core: the frequency row the colors were picked for, the segment
+     * shares of the latest interval (lowest frequency first, idle last) and
+     * their colors, and the right edge in pixels of every segment
+     */
+    private int[][] coloredRows = new int[0][];
+    private float[][] shares = new float[0][];
+    private int[][] colors = new int[0][];
+    private float[][] rights = new float[0][];
+    private int[] segmentCounts = new int[0];
+    private float[] rowTops = new float[0];
+    private char[][] labels = new char[0][];
+    private final float rowHeight;
+    private float barLeft = 0;
+    private float barRight = 0;
+
+    public HeatmapView(Context context) {
+        this(context, null);
+    }
+
+    public HeatmapView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        this.density = getResources().getDisplayMetrics().density;
+        this.rowHeight = RowHeightDp * this.density;
+        this.labelPaint.setColor(LabelColor);
+        this.labelPaint.setTextSize(LabelTextSizeDp * this.density);
+    }
+
+    /**
+     * Lay out one row per core of topology, forgetting any data shown so far
+     */
+    public void setTopology(CpuTopology topology) {
+        this.topology = topology;
+        this.previous = null;
+        int cpuCount = topology.getCpuCount();
+        this.coloredRows = new int[cpuCount][];
+        this.shares = new float[cpuCount][0];
+        this.colors = new int[cpuCount][0];
+        this.rights = new float[cpuCount][0];
+        this.segmentCounts = new int[cpuCount];
+        this.rowTops = new float[cpuCount];
+        this.labels = new char[cpuCount][];
+        for (int cpuIndex = 0; cpuIndex < cpuCount; cpuIndex++) {
+            this.labels[cpuIndex] = String.format(Locale.getDefault(), "cpu%d", cpuIndex).toCharArray();
+        }
+        layoutRows();
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Show the interval between the previous snapshot and snapshot. Cores
+     * whose counters changed epoch keep showing their last interval
+     */
+    public void update(CpuTimeInStateSnapshot snapshot) {
+        CpuTimeInStateSnapshot last = this.previous;
+        if (this.topology == null || snapshot == last) {
+            return;
+        }
+        this.previous = snapshot;
+        if (last == null || snapshot.getTimestamp() <= last.getTimestamp()) {
+            return;
+        }
+        int cpuCount = Math.min(snapshot.getCpuCount(), this.shares.length);
+        for (int cpuIndex = 0; cpuIndex < cpuCount; cpuIndex++) {
+            if (snapshot.getEpoch(cpuIndex) != last.getEpoch(cpuIndex)
+                    || snapshot.getStateCount(cpuIndex) != last.getStateCount(cpuIndex)) {
+                continue;
+            }
+            if (computeShares(snapshot, last, cpuIndex) && computeRights(cpuIndex)) {
+                float top = this.rowTops[cpuIndex];
+                invalidate((int) this.barLeft, (int) top,
+                        (int) Math.ceil(this.barRight), (int) Math.ceil(top + this.rowHeight));
+            }
+        }
+    }
+
+    /**
+     * Work out the segment shares of cpuIndex from the two snapshots
+     *
+     * @return false if the core spent no time at all between them
+     */
+    private boolean computeShares(CpuTimeInStateSnapshot snapshot, CpuTimeInStateSnapshot last, int cpuIndex) {
+        int stateCount = snapshot.getStateCount(cpuIndex);
+        long elapsed = 0;
+        long active = 0;
+        for (int i = 0; i < stateCount; i++) {
+            long delta = Math.max(0, snapshot.getRawDuration(cpuIndex, i) - last.getRawDuration(cpuIndex, i));
+            elapsed += delta;
+            if (snapshot.getFrequency(cpuIndex, i) != 0) {
+                active += delta;
+            }
+        }
+        if (elapsed <= 0) {
+            return false;
+        }
+
+        float busy = (float) active / elapsed;
+        int idleStateCount = snapshot.getIdleStateCount(cpuIndex);
+        if (idleStateCount > 0 && idleStateCount == last.getIdleStateCount(cpuIndex)) {
+            long idleMicros = 0;
+            for (int i = 0; i < idleStateCount; i++) {
+                idleMicros += Math.max(0, snapshot.getIdleTime(cpuIndex, i) - last.getIdleTime(cpuIndex, i));
+            }
+            busy = Math.max(0, Math.min(1, 1 - idleMicros / (elapsed * 10000f)));
+        }
+
+        ensureSegments(snapshot, cpuIndex, stateCount);
+        float[] shares = this.shares[cpuIndex];
+        int segment = 0;
+        // rows are sorted descending, the bar starts at the lowest frequency
+        for (int i = stateCount - 1; i >= 0; i--) {
+            if (snapshot.getFrequency(cpuIndex, i) == 0) {
+                continue;
+            }
+            long delta = Math.max(0, snapshot.getRawDuration(cpuIndex, i) - last.getRawDuration(cpuIndex, i));
+            shares[segment++] = active > 0 ? busy * delta / active : 0;
+        }
+        shares[segment] = 1 - busy;
+        return true;
+    }
+
+    /**
+     * Size the segment arrays of cpuIndex for its frequency row and pick
+     * their colors, only when the row is not the one they were made for
+     */
+    private void ensureSegments(CpuTimeInStateSnapshot snapshot, int cpuIndex, int stateCount) {
+        if (sameRow(snapshot, cpuIndex, this.coloredRows[cpuIndex])) {
+            return;
+        }
+        int[] row = new int[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            row[i] = snapshot.getFrequency(cpuIndex, i);
+        }
+        int frequencyCount = 0;
+        for (int frequency : row) {
+            if (frequency != 0) {
+                frequencyCount++;
+            }
+        }
+        int[] colors = new int[frequencyCount + 1];
+        for (int i = 0; i < frequencyCount; i++) {
+            float position = frequencyCount > 1 ? (float) i / (frequencyCount - 1) : 1;
+            this.hsv[0] = LowHue + (HighHue - LowHue) * position;
+            colors[i] = Color.HSVToColor(this.hsv);
+        }
+        colors[frequencyCount] = IdleColor;
+        this.coloredRows[cpuIndex] = row;
+        this.colors[cpuIndex] = colors;
+        this.shares[cpuIndex] = new float[frequencyCount + 1];
+        this.rights[cpuIndex] = new float[frequencyCount + 1];
+        this.segmentCounts[cpuIndex] = 0;
+    }
+
+    private static boolean sameRow(CpuTimeInStateSnapshot snapshot, int cpuIndex, int[] row) {
+        if (row == null || row.length != snapshot.getStateCount(cpuIndex)) {
+            return false;
+        }
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] != snapshot.getFrequency(cpuIndex, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Turn the shares of cpuIndex into pixel edges
+     *
+     * @return true if any edge moved by at least a pixel
+     */
+    private boolean computeRights(int cpuIndex) {
+        float[] shares = this.shares[cpuIndex];
+        float[] rights = this.rights[cpuIndex];
+        boolean moved = this.segmentCounts[cpuIndex] != shares.length;
+        float width = this.barRight - this.barLeft;
+        float cumulative = 0;
+        for (int i = 0; i < shares.length; i++) {
+            cumulative += shares[i];
+            float right = this.barLeft + Math.min(1, cumulative) * width;
+            if (Math.abs(right - rights[i]) >= 1) {
+                moved = true;
+            }
+            rights[i] = right;
+        }
+        this.segmentCounts[cpuIndex] = shares.length;
+        return moved;
+    }
+
+    private void layoutRows() {
+        float top = getPaddingTop();
+        int lastPolicy = -1;
+        for (int cpuIndex = 0; cpuIndex < this.rowTops.length; cpuIndex++) {
+            int policy = this.topology.getPolicyOfCpu(cpuIndex);
+            if (cpuIndex > 0) {
+                top += (policy != lastPolicy ? ClusterGapDp : RowGapDp) * this.density;
+            }
+            this.rowTops[cpuIndex] = top;
+            top += this.rowHeight;
+            lastPolicy = policy;
+        }
+        this.barLeft = getPaddingLeft() + LabelWidthDp * this.density;
+        this.barRight = Math.max(this.barLeft, getWidth() - getPaddingRight());
+        for (int cpuIndex = 0; cpuIndex < this.rights.length; cpuIndex++) {
+            computeRights(cpuIndex);
+        }
+    }
+
+    private float contentHeight() {
+        int cpuCount = this.rowTops.length;
+        if (cpuCount == 0) {
+            return 0;
+        }
+        return this.rowTops[cpuCount - 1] + this.rowHeight - getPaddingTop();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int height = (int) Math.ceil(contentHeight()) + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(MeasureSpec.getSize(widthMeasureSpec), resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        if (this.topology != null) {
+            layoutRows();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        float textOffset = (this.rowHeight - this.labelPaint.ascent() - this.labelPaint.descent()) / 2;
+        for (int cpuIndex = 0; cpuIndex < this.rowTops.length; cpuIndex++) {
+            float top = this.rowTops[cpuIndex];
+            float bottom = top + this.rowHeight;
+            char[] label = this.labels[cpuIndex];
+            canvas.drawText(label, 0, label.length, getPaddingLeft(), top + textOffset, this.labelPaint);
+
+            int segmentCount = this.segmentCounts[cpuIndex];
+            if (segmentCount == 0) {
+                // nothing measured yet
+                this.barPaint.setColor(IdleColor);
+                canvas.drawRect(this.barLeft, top, this.barRight, bottom, this.barPaint);
+                continue;
+            }
+            float[] rights = this.rights[cpuIndex];
+            int[] colors = this.colors[cpuIndex];
+            float left = this.barLeft;
+            for (int i = 0; i < segmentCount; i++) {
+                if (rights[i] > left) {
+                    this.barPaint.setColor(colors[i]);
+                    canvas.drawRect(left, top, rights[i], bottom, this.barPaint);
+                    left = rights[i];
+                }
+            }
+        }
+    }
+}
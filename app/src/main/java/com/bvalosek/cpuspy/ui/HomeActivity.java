@@ -9,32 +9,42 @@
 package com.bvalosek.cpuspy.ui;
 
 import android.app.Activity;
-import android.os.AsyncTask;
+import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.LinearLayout;
-import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.bvalosek.cpuspy.CpuSpyApp;
 import com.bvalosek.cpuspy.CpuTimeInStateMonitor;
 import com.bvalosek.cpuspy.CpuTimeInStateMonitor.CpuStateMonitorException;
-import com.bvalosek.cpuspy.CpuTimeInStateMonitor.CpuTimeInState;
+import com.bvalosek.cpuspy.CpuTimeInStateSnapshot;
+import com.bvalosek.cpuspy.CpuTopology;
+import com.bvalosek.cpuspy.EnergyEstimator;
+import com.bvalosek.cpuspy.FrequencyStatistics;
+import com.bvalosek.cpuspy.MonitorInstrumentation;
+import com.bvalosek.cpuspy.SamplingGovernor;
 import com.bvalosek.cpuspy.R;
 
-import java.lang.ref.WeakReference;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 public class HomeActivity extends Activity implements AdapterView.OnItemSelectedListener {
     private static final String LOG_TAG = "CpuSpy";
@@ -52,13 +62,71 @@ public class HomeActivity extends Activity implements AdapterView.OnItemSelected
     private TextView uiHeaderTotalStateTime = null;
     private TextView uiStatesWarning = null;
     private TextView uiKernelString = null;
+    private TextView uiHeaderIdleStates = null;
+    private LinearLayout uiIdleStatesView = null;
+    private TextView uiFrequencyStatistics = null;
+    private TextView uiDebugOverlay = null;
 
     /**
-     * Indicate that we're updating the data in the background
+     * What the state table shows, and its row views keyed by frequency
      */
-    private boolean updatingInProgress = false;
+    private final TimeInStateViewModel viewModel = new TimeInStateViewModel();
+    private final SparseArray<StateRowHolder> stateRows = new SparseArray<>();
+    private final List<StateRowHolder> idleRows = new ArrayList<>();
 
-    private final String updateInProgressIndicator = "updatingInProgress";
+    /**
+     * Per core, per cluster and device wide figures, null until the app is ready
+     */
+    private FrequencyStatistics statistics = null;
+    private final StringBuilder statisticsText = new StringBuilder();
+
+    /**
+     * Whether the "All cores" entry, after the cores, is selected
+     */
+    private boolean allCoresSelected = false;
+
+    /**
+     * Whether the monitor's own costs are shown above the states
+     */
+    private boolean debugOverlayShown = false;
+    private final StringBuilder debugText = new StringBuilder();
+
+    /**
+     * Live refresh rate of the state table while the activity is visible
+     */
+    private static final long RefreshIntervalMillis = 1000;
+
+    private CpuTimeInStateMonitor.Subscription subscription = null;
+
+    private boolean resumed = false;
+
+    /**
+     * Whether the first real data has been shown and reported as fully drawn
+     */
+    private boolean fullyDrawn = false;
+
+    /**
+     * Delivers the monitor's snapshots on the UI thread
+     */
+    private final Executor uiExecutor = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    private final CpuTimeInStateMonitor.SnapshotListener snapshotListener =
+            new CpuTimeInStateMonitor.SnapshotListener() {
+                public void onSnapshot(CpuTimeInStateSnapshot snapshot) {
+                    updateView();
+                }
+
+                public void onError(CpuStateMonitorException error) {
+                    logError(String.format(Locale.getDefault(),
+                            "Problem getting CPU states: %s", error.toString()));
+                }
+            };
 
     /**
      * Initialize the Activity
@@ -71,42 +139,70 @@ public class HomeActivity extends Activity implements AdapterView.OnItemSelected
         this.app = (CpuSpyApp) getApplicationContext();
         populateView();
 
+        setTitle(getResources().getText(R.string.app_name) + " v" + getResources().getText(R.string.version_name));
 
+        // the layout shows placeholders until the app has discovered the cores
+        this.app.whenReady(new Runnable() {
+            public void run() {
+                if (!isDestroyed()) {
+                    onAppReady();
+                }
+            }
+        });
+    }
+
+    /**
+     * Fill in the core selector and start the live updates once the monitor exists
+     */
+    private void onAppReady() {
         List<String> cpuList = new ArrayList<>();
         for (int i = 0; i < this.app.getCpuStateMonitor().getCpuCount(); i++) {
             cpuList.add(String.format(Locale.getDefault(), "Core %d", i));
         }
+        cpuList.add(getString(R.string.all_cores));
+        this.statistics = new FrequencyStatistics(this.app.getCpuStateMonitor().getTopology());
         ArrayAdapter<String> adapter =
                 new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, cpuList);
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         this.uiCpuSelector.setAdapter(adapter);
         this.uiCpuSelector.setOnItemSelectedListener(this);
+        uiKernelString.setText(app.getKernelVersion());
 
-        setTitle(getResources().getText(R.string.app_name) + " v" + getResources().getText(R.string.version_name));
-
-        if (savedInstanceState != null) {
-            this.updatingInProgress =
-                    savedInstanceState.getBoolean(this.updateInProgressIndicator);
+        if (this.resumed) {
+            subscribe();
         }
     }
 
     /**
-     * When the activity is about to change orientation
+     * Subscribe to live updates while the activity is in the foreground
      */
     @Override
-    public void onSaveInstanceState(Bundle outState) {
-        super.onSaveInstanceState(outState);
-        outState.putBoolean(this.updateInProgressIndicator, updatingInProgress);
+    public void onResume() {
+        super.onResume();
+        this.resumed = true;
+        if (this.app.isReady()) {
+            subscribe();
+        }
     }
 
-
     /**
-     * Update the view when the application regains focus
+     * Stop the live updates when the activity leaves the foreground
      */
     @Override
-    public void onResume() {
-        super.onResume();
-        refreshData();
+    public void onPause() {
+        super.onPause();
+        this.resumed = false;
+        if (this.subscription != null) {
+            this.subscription.cancel();
+            this.subscription = null;
+        }
+    }
+
+    private void subscribe() {
+        if (this.subscription == null) {
+            this.subscription = this.app.getCpuStateMonitor().subscribe(
+                    this.snapshotListener, RefreshIntervalMillis, this.uiExecutor);
+        }
     }
 
     /**
@@ -121,13 +217,21 @@ public class HomeActivity extends Activity implements AdapterView.OnItemSelected
         uiHeaderTotalStateTime = findViewById(R.id.ui_header_total_state_time);
         uiStatesWarning = findViewById(R.id.ui_states_warning);
         uiTotalStateTime = findViewById(R.id.ui_total_state_time);
+        uiHeaderIdleStates = findViewById(R.id.ui_header_idle_states);
+        uiIdleStatesView = findViewById(R.id.ui_idle_states_view);
+        uiFrequencyStatistics = findViewById(R.id.ui_frequency_statistics);
+        uiDebugOverlay = findViewById(R.id.ui_debug_overlay);
     }
 
     /**
      * Handle cpu selector dropdown
      */
     public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-        this.app.getCpuStateMonitor().setCurrentCpu((int) id);
+        CpuTimeInStateMonitor monitor = this.app.getCpuStateMonitor();
+        this.allCoresSelected = position >= monitor.getCpuCount();
+        if (!this.allCoresSelected) {
+            monitor.setCurrentCpu(position);
+        }
         updateView();
     }
 
@@ -145,25 +249,43 @@ public class HomeActivity extends Activity implements AdapterView.OnItemSelected
         return true;
     }
 
+    /**
+     * Reflect whether the metrics server runs in its menu item
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.menu_metrics_server).setChecked(this.app.isMetricsServerRunning());
+        menu.findItem(R.id.menu_debug_overlay).setChecked(this.debugOverlayShown);
+        return true;
+    }
+
     /**
      * Handle menu item selected
      */
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        if (!this.app.isReady()) {
+            return true;
+        }
         switch (item.getItemId()) {
             case R.id.menu_refresh:
                 refreshData();
                 break;
             case R.id.menu_reset:
-                try {
-                    this.app.getCpuStateMonitor().resetAllCpuIgnoredTimeInStates();
-                } catch (CpuStateMonitorException e) {
-                    logError(e.toString());
-                }
-                updateView();
+                this.app.resetTimers(this.snapshotListener);
                 break;
             case R.id.menu_restore:
-                this.app.getCpuStateMonitor().removeAllCpuIgnoredTimeInState();
+                this.app.restoreTimers(this.snapshotListener);
+                break;
+            case R.id.menu_heatmap:
+                startActivity(new Intent(this, HeatmapActivity.class));
+                break;
+            case R.id.menu_metrics_server:
+                toggleMetricsServer();
+                break;
+            case R.id.menu_debug_overlay:
+                this.debugOverlayShown = !this.debugOverlayShown;
+                uiDebugOverlay.setVisibility(this.debugOverlayShown ? View.VISIBLE : View.GONE);
                 updateView();
                 break;
         }
@@ -172,77 +294,189 @@ public class HomeActivity extends Activity implements AdapterView.OnItemSelected
     }
 
     /**
-     * Generate and update all UI elements
+     * Update all UI elements from the latest snapshot. Row views are kept per
+     * frequency and only rebound when their values change, so a refresh does
+     * not inflate or remove anything unless the set of used states changed
      */
     public void updateView() {
+        long start = System.nanoTime();
         CpuTimeInStateMonitor timeInStateMonitor = this.app.getCpuStateMonitor();
-        uiStatesView.removeAllViews();
-        List<String> extraStates = new ArrayList<>();
-        for (CpuTimeInState timeInState : timeInStateMonitor.getCurrentCpuTimeInState()) {
-            if (timeInState.duration > 0) {
-                generateStateRow(timeInState, uiStatesView);
-                continue;
+        TimeInStateViewModel model = this.viewModel;
+        CpuTimeInStateSnapshot snapshot = timeInStateMonitor.getSnapshot();
+        this.statistics.update(snapshot);
+        if (this.allCoresSelected) {
+            model.updateAllCores(this.statistics);
+        } else {
+            model.update(snapshot, timeInStateMonitor.getCurrentCpu());
+        }
+        updateStatisticsText(timeInStateMonitor.getTopology(), timeInStateMonitor.getCurrentCpu());
+
+        int rowCount = model.getRowCount();
+        for (int row = 0; row < rowCount; row++) {
+            StateRowHolder holder = this.stateRows.get(model.getFrequency(row));
+            if (holder == null) {
+                holder = new StateRowHolder(LayoutInflater.from(app).inflate(
+                        R.layout.state_row, uiStatesView, false));
+                this.stateRows.put(model.getFrequency(row), holder);
             }
-
-            if (timeInState.frequency == 0) {
-                extraStates.add("Deep Sleep");
-            } else {
-                extraStates.add(timeInState.frequency / 1000 + " MHz");
+            if (uiStatesView.getChildAt(row) != holder.row) {
+                if (holder.row.getParent() != null) {
+                    uiStatesView.removeView(holder.row);
+                }
+                uiStatesView.addView(holder.row, row);
             }
+            holder.bind(model.getFrequency(row), model.getDuration(row), model.getPercentage(row));
         }
-
-        if (timeInStateMonitor.getCurrentCpuTimeInState().size() == 0) {
-            uiStatesWarning.setVisibility(View.VISIBLE);
-            uiHeaderTotalStateTime.setVisibility(View.GONE);
-            uiTotalStateTime.setVisibility(View.GONE);
-            uiStatesView.setVisibility(View.GONE);
+        if (uiStatesView.getChildCount() > rowCount) {
+            uiStatesView.removeViews(rowCount, uiStatesView.getChildCount() - rowCount);
         }
+        updateIdleRows(model);
 
-        long totalTime = timeInStateMonitor.getCurrentCpuTotalStateTime() / 100;
-        uiTotalStateTime.setText(secondsToDuration(totalTime));
-
-        if (extraStates.size() > 0) {
-            int n = 0;
-            StringBuilder additionStatesBuilder = new StringBuilder();
+        boolean hasStates = model.getStateCount() > 0;
+        uiStatesWarning.setVisibility(hasStates ? View.GONE : View.VISIBLE);
+        uiHeaderTotalStateTime.setVisibility(hasStates ? View.VISIBLE : View.GONE);
+        uiTotalStateTime.setVisibility(hasStates ? View.VISIBLE : View.GONE);
+        uiStatesView.setVisibility(hasStates ? View.VISIBLE : View.GONE);
 
-            for (String s : extraStates) {
-                if (n++ > 0)
-                    additionStatesBuilder.append(", ");
-                additionStatesBuilder.append(s);
-            }
+        uiTotalStateTime.setText(secondsToDuration(model.getTotalDuration() / 100));
 
+        if (model.getUnusedStates().length() > 0) {
             uiAdditionalStates.setVisibility(View.VISIBLE);
             uiHeaderAdditionalStates.setVisibility(View.VISIBLE);
-            uiAdditionalStates.setText(additionStatesBuilder.toString());
+            uiAdditionalStates.setText(model.getUnusedStates().toString());
         } else {
             uiAdditionalStates.setVisibility(View.GONE);
             uiHeaderAdditionalStates.setVisibility(View.GONE);
         }
 
-        uiKernelString.setText(app.getKernelVersion());
+        if (!this.fullyDrawn && hasStates) {
+            this.fullyDrawn = true;
+            reportFullyDrawn();
+            Log.i(LOG_TAG, "Fully drawn " + (SystemClock.elapsedRealtime()
+                    - Process.getStartElapsedRealtime()) + " ms after process start");
+        }
+
+        MonitorInstrumentation instrumentation = timeInStateMonitor.getInstrumentation();
+        instrumentation.record(MonitorInstrumentation.UpdateView, start);
+        if (this.debugOverlayShown) {
+            updateDebugOverlay(instrumentation);
+        }
     }
 
     /**
-     * Attempt to update the time-in-state info
+     * Show the latency of every stage of the monitor and of updateView, the
+     * sampling governor's last decision, and how much CPU the whole app used
+     * since it started
      */
-    public void refreshData() {
-        if (!updatingInProgress) {
-            new RefreshStateDataTask(this).execute((Void) null);
+    private void updateDebugOverlay(MonitorInstrumentation instrumentation) {
+        StringBuilder text = this.debugText;
+        text.setLength(0);
+        instrumentation.appendSummary(text);
+        SamplingGovernor governor = this.app.getCpuStateSampler().getGovernor();
+        if (governor != null) {
+            text.append(String.format(Locale.getDefault(),
+                    "governor: %d ms (%s), change %.2f, overhead %.3f%%, %d decisions\n",
+                    governor.getIntervalMillis(), SamplingGovernor.getReasonName(governor.getReason()),
+                    governor.getChangeScore(), governor.getOverheadPercent(), governor.getDecisionCount()));
+        }
+        long cpuTimeMillis = instrumentation.readProcessCpuTimeMillis();
+        if (cpuTimeMillis >= 0) {
+            long wallMillis = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+            text.append("process cpu time: ").append(cpuTimeMillis).append(" ms");
+            if (wallMillis > 0) {
+                text.append(String.format(Locale.getDefault(), " (%.2f%% of wall time)",
+                        100.0 * cpuTimeMillis / wallMillis));
+            }
+        }
+        uiDebugOverlay.setText(text);
+    }
+
+    /**
+     * Show the figures of the selected core, or of the device and each
+     * cluster when all cores are selected
+     */
+    private void updateStatisticsText(CpuTopology topology, int cpuIndex) {
+        StringBuilder text = this.statisticsText;
+        text.setLength(0);
+        EnergyEstimator energy = this.app.getCpuStateSampler().getEnergyEstimator();
+        if (!this.allCoresSelected) {
+            text.append(TimeInStateViewModel.statisticsLabel(this.statistics,
+                    this.statistics.getCpuScope(cpuIndex)));
+            appendEnergy(text, energy, energy == null ? 0 : energy.getCpuScope(cpuIndex));
+        } else {
+            text.append(getString(R.string.all_cores)).append(": ").append(TimeInStateViewModel
+                    .statisticsLabel(this.statistics, this.statistics.getDeviceScope()));
+            appendEnergy(text, energy, energy == null ? 0 : energy.getDeviceScope());
+            for (int policyIndex = 0; policyIndex < topology.getPolicyCount(); policyIndex++) {
+                int[] cpus = topology.getPolicyCpus(policyIndex);
+                text.append('\n').append(String.format(Locale.getDefault(), "Cores %d-%d: ",
+                        cpus[0], cpus[cpus.length - 1])).append(TimeInStateViewModel
+                        .statisticsLabel(this.statistics, this.statistics.getClusterScope(policyIndex)));
+                appendEnergy(text, energy, energy == null ? 0 : energy.getClusterScope(policyIndex));
+            }
+        }
+        uiFrequencyStatistics.setText(text);
+    }
+
+    private static void appendEnergy(StringBuilder text, EnergyEstimator energy, int scope) {
+        String label = energy == null ? null : TimeInStateViewModel.energyLabel(energy, scope);
+        if (label != null) {
+            text.append(", ").append(label);
+        }
+    }
+
+    /**
+     * Show the idle states of the core, one row each in cpuidle order
+     */
+    private void updateIdleRows(TimeInStateViewModel model) {
+        int idleRowCount = model.getIdleRowCount();
+        while (this.idleRows.size() < idleRowCount) {
+            StateRowHolder holder = new StateRowHolder(LayoutInflater.from(app).inflate(
+                    R.layout.state_row, uiIdleStatesView, false));
+            this.idleRows.add(holder);
+            uiIdleStatesView.addView(holder.row);
+        }
+        for (int row = 0; row < this.idleRows.size(); row++) {
+            StateRowHolder holder = this.idleRows.get(row);
+            if (row >= idleRowCount) {
+                holder.row.setVisibility(View.GONE);
+                continue;
+            }
+            holder.row.setVisibility(View.VISIBLE);
+            holder.bindIdle(model.getIdleName(row), model.getIdleUsage(row), model.isIdleDisabled(row),
+                    model.getIdleDuration(row), model.getIdlePercentage(row));
         }
+        uiHeaderIdleStates.setVisibility(idleRowCount > 0 ? View.VISIBLE : View.GONE);
+        uiIdleStatesView.setVisibility(idleRowCount > 0 ? View.VISIBLE : View.GONE);
     }
 
-    public void flagUpdatingInProgress(boolean inProgress) {
-        updatingInProgress = inProgress;
+    private void toggleMetricsServer() {
+        if (this.app.isMetricsServerRunning()) {
+            this.app.stopMetricsServer();
+            return;
+        }
+        try {
+            this.app.startMetricsServer();
+            Toast.makeText(this, getString(R.string.metrics_server_started, CpuSpyApp.MetricsServerPort),
+                    Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            logError(e.toString());
+            Toast.makeText(this, getString(R.string.metrics_server_failed, e.getMessage()),
+                    Toast.LENGTH_LONG).show();
+        }
     }
 
-    public CpuSpyApp getApp() {
-        return this.app;
+    /**
+     * Ask for an immediate refresh instead of waiting for the next live one
+     */
+    public void refreshData() {
+        this.app.getCpuStateMonitor().requestRefresh();
     }
 
     /**
      * @return A nicely formatted String representing tSec seconds
      */
-    private static String secondsToDuration(long tSec) {
+    static String secondsToDuration(long tSec) {
         long h = (long) Math.floor((float) tSec / (60 * 60));
         long m = (long) Math.floor(((float) tSec - h * 60 * 60) / 60);
         long s = tSec % 60;
@@ -258,91 +492,6 @@ public class HomeActivity extends Activity implements AdapterView.OnItemSelected
         return duration.toString();
     }
 
-    /**
-     * Generate a View that corresponds to a CPU freq state row as specified
-     * by the state parameter
-     */
-    private void generateStateRow(CpuTimeInState state, ViewGroup parent) {
-        LayoutInflater inf = LayoutInflater.from(app);
-        LinearLayout theRow = (LinearLayout) inf.inflate(
-                R.layout.state_row, parent, false);
-
-        CpuTimeInStateMonitor monitor = app.getCpuStateMonitor();
-        float percentageValue = (float) state.duration * 100 /
-                monitor.getCurrentCpuTotalStateTime();
-        String statePercentage = (int) percentageValue + "%";
-
-        String stateFrequency;
-        if (state.frequency == 0) {
-            stateFrequency = "Deep Sleep";
-        } else {
-            stateFrequency = state.frequency / 1000 + " MHz";
-        }
-
-        String stateDuration = secondsToDuration(state.duration / 100);
-
-        TextView frequency = theRow.findViewById(R.id.ui_freq_text);
-        TextView duration = theRow.findViewById(R.id.ui_duration_text);
-        TextView percentage = theRow.findViewById(R.id.ui_percentage_text);
-        ProgressBar illustrator = theRow.findViewById(R.id.ui_bar);
-
-        frequency.setText(stateFrequency);
-        percentage.setText(statePercentage);
-        duration.setText(stateDuration);
-        illustrator.setProgress((int) percentageValue);
-
-        parent.addView(theRow);
-    }
-
-    /**
-     * Asynchronously update the state data outside of the UI thread
-     */
-    protected static class RefreshStateDataTask extends AsyncTask<Void, Void, Void> {
-
-        private static WeakReference<HomeActivity> activityRef;
-
-        RefreshStateDataTask(HomeActivity context) {
-            activityRef = new WeakReference<>(context);
-        }
-
-        /**
-         * Stuff to do on a separate thread
-         */
-        @Override
-        protected Void doInBackground(Void... v) {
-            CpuTimeInStateMonitor timeInState
-                    = activityRef.get().getApp().getCpuStateMonitor();
-            try {
-                timeInState.updateAllCpuTimeInState();
-            } catch (CpuStateMonitorException exception) {
-                activityRef.get().logError(String.format(
-                        Locale.getDefault(),
-                        "Problem getting CPU states: %s",
-                        exception.toString())
-                );
-            }
-
-            return null;
-        }
-
-        /**
-         * Executed on the UI thread right before starting the task
-         */
-        @Override
-        protected void onPreExecute() {
-            activityRef.get().flagUpdatingInProgress(true);
-        }
-
-        /**
-         * Executed on UI thread after task
-         */
-        @Override
-        protected void onPostExecute(Void v) {
-            activityRef.get().flagUpdatingInProgress(false);
-            activityRef.get().updateView();
-        }
-    }
-
     /**
      * Logging wrapper
      */
@@ -0,0 +1,80 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy.ui;
+
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import com.bvalosek.cpuspy.R;
+
+/**
+ * StateRowHolder keeps the views of one inflated state_row together with the
+ * values they currently show, so a row is only rebound when its values change
+ */
+class StateRowHolder {
+
+    final View row;
+    private final TextView frequency;
+    private final TextView duration;
+    private final TextView percentage;
+    private final ProgressBar illustrator;
+
+    private int boundFrequency = -1;
+    private String boundName = null;
+    private long boundUsage = -1;
+    private boolean boundDisabled = false;
+    private long boundDuration = Long.MIN_VALUE;
+    private int boundPercentage = -1;
+
+    StateRowHolder(View row) {
+        this.row = row;
+        this.frequency = row.findViewById(R.id.ui_freq_text);
+        this.duration = row.findViewById(R.id.ui_duration_text);
+        this.percentage = row.findViewById(R.id.ui_percentage_text);
+        this.illustrator = row.findViewById(R.id.ui_bar);
+    }
+
+    /**
+     * Show the given state, touching only the views whose value changed
+     */
+    void bind(int stateFrequency, long stateDuration, int statePercentage) {
+        if (stateFrequency != this.boundFrequency) {
+            this.frequency.setText(TimeInStateViewModel.frequencyLabel(stateFrequency));
+            this.boundFrequency = stateFrequency;
+        }
+        bindValues(stateDuration, statePercentage);
+    }
+
+    /**
+     * Show the given idle state, labelled with its name and entry count
+     */
+    void bindIdle(String name, long usage, boolean disabled, long stateDuration, int statePercentage) {
+        if (!name.equals(this.boundName) || usage != this.boundUsage || disabled != this.boundDisabled) {
+            this.frequency.setText(name + ", " + usage + " entries" + (disabled ? " (disabled)" : ""));
+            this.boundName = name;
+            this.boundUsage = usage;
+            this.boundDisabled = disabled;
+        }
+        bindValues(stateDuration, statePercentage);
+    }
+
+    private void bindValues(long stateDuration, int statePercentage) {
+        // durations are shown in whole seconds
+        if (stateDuration / 100 != this.boundDuration / 100) {
+            this.duration.setText(HomeActivity.secondsToDuration(stateDuration / 100));
+        }
+        this.boundDuration = stateDuration;
+        if (statePercentage != this.boundPercentage) {
+            this.percentage.setText(statePercentage + "%");
+            this.illustrator.setProgress(statePercentage);
+            this.boundPercentage = statePercentage;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy.ui;
+
+import com.bvalosek.cpuspy.CpuTimeInStateSnapshot;
+import com.bvalosek.cpuspy.EnergyEstimator;
+import com.bvalosek.cpuspy.FrequencyStatistics;
+
+import java.util.Locale;
+
+/**
+ * TimeInStateViewModel is what the state table of one core, or of all cores
+ * together, shows: the used states with their duration and percentage, the
+ * total time, the unused states and the idle states with their share of the
+ * total time. It is computed in a single walk over a snapshot, with the total
+ * computed once, and reuses its arrays from one update to the next
+ */
+class TimeInStateViewModel {
+
+    private int[] frequencies = new int[32];
+    private long[] durations = new long[32];
+    private int[] percentages = new int[32];
+    private int rowCount = 0;
+
+    private int stateCount = 0;
+    private long totalDuration = 0;
+    private final StringBuilder unusedStates = new StringBuilder();
+
+    private String[] idleNames = new String[8];
+    private long[] idleDurations = new long[8];
+    private long[] idleUsages = new long[8];
+    private int[] idlePercentages = new int[8];
+    private boolean[] idleDisabled = new boolean[8];
+    private int idleRowCount = 0;
+
+    /**
+     * Recompute the model for cpuIndex of snapshot
+     */
+    void update(CpuTimeInStateSnapshot snapshot, int cpuIndex) {
+        this.stateCount = snapshot.getStateCount(cpuIndex);
+        this.totalDuration = snapshot.getTotalDuration(cpuIndex);
+        this.rowCount = 0;
+        this.unusedStates.setLength(0);
+        ensureCapacity(this.stateCount);
+
+        for (int i = 0; i < this.stateCount; i++) {
+            addState(snapshot.getFrequency(cpuIndex, i), snapshot.getDuration(cpuIndex, i));
+        }
+
+        this.idleRowCount = snapshot.getIdleStateCount(cpuIndex);
+        ensureIdleCapacity(this.idleRowCount);
+        for (int i = 0; i < this.idleRowCount; i++) {
+            // idle times are in microseconds, durations in 10ms units
+            long duration = snapshot.getIdleTime(cpuIndex, i) / 10000;
+            this.idleNames[i] = snapshot.getIdleStateName(cpuIndex, i);
+            this.idleDurations[i] = duration;
+            this.idleUsages[i] = snapshot.getIdleUsage(cpuIndex, i);
+            this.idleDisabled[i] = snapshot.isIdleStateDisabled(cpuIndex, i);
+            this.idlePercentages[i] = this.totalDuration > 0
+                    ? (int) (duration * 100 / this.totalDuration) : 0;
+        }
+    }
+
+    /**
+     * Recompute the model for all cores together from the merged histogram
+     * of statistics, which must have been updated first. Idle states are per
+     * core and not shown
+     */
+    void updateAllCores(FrequencyStatistics statistics) {
+        this.stateCount = statistics.getDeviceStateCount();
+        this.totalDuration = 0;
+        for (int i = 0; i < this.stateCount; i++) {
+            this.totalDuration += statistics.getDeviceDuration(i);
+        }
+        this.rowCount = 0;
+        this.unusedStates.setLength(0);
+        ensureCapacity(this.stateCount);
+
+        for (int i = 0; i < this.stateCount; i++) {
+            addState(statistics.getDeviceFrequency(i), statistics.getDeviceDuration(i));
+        }
+        this.idleRowCount = 0;
+    }
+
+    /**
+     * Add a state as a row if it has a duration, or to the unused states.
+     * The total must already be known
+     */
+    private void addState(int frequency, long duration) {
+        if (duration > 0) {
+            this.frequencies[this.rowCount] = frequency;
+            this.durations[this.rowCount] = duration;
+            this.percentages[this.rowCount] = this.totalDuration > 0
+                    ? (int) (duration * 100 / this.totalDuration) : 0;
+            this.rowCount++;
+            return;
+        }
+
+        if (this.unusedStates.length() > 0) {
+            this.unusedStates.append(", ");
+        }
+        this.unusedStates.append(frequencyLabel(frequency));
+    }
+
+    /**
+     * @return number of states of the core, used or not
+     */
+    int getStateCount() {
+        return this.stateCount;
+    }
+
+    /**
+     * @return number of states with a duration, each shown as a row
+     */
+    int getRowCount() {
+        return this.rowCount;
+    }
+
+    /**
+     * @return frequency of row, which also identifies the row across updates
+     */
+    int getFrequency(int row) {
+        return this.frequencies[row];
+    }
+
+    long getDuration(int row) {
+        return this.durations[row];
+    }
+
+    int getPercentage(int row) {
+        return this.percentages[row];
+    }
+
+    long getTotalDuration() {
+        return this.totalDuration;
+    }
+
+    /**
+     * @return comma separated labels of the states without any duration
+     */
+    CharSequence getUnusedStates() {
+        return this.unusedStates;
+    }
+
+    /**
+     * @return number of cpuidle states of the core, each shown as an idle row
+     */
+    int getIdleRowCount() {
+        return this.idleRowCount;
+    }
+
+    String getIdleName(int row) {
+        return this.idleNames[row];
+    }
+
+    /**
+     * @return time spent in the idle state of row, in 10ms units
+     */
+    long getIdleDuration(int row) {
+        return this.idleDurations[row];
+    }
+
+    long getIdleUsage(int row) {
+        return this.idleUsages[row];
+    }
+
+    /**
+     * @return share of the total state time spent in the idle state of row
+     */
+    int getIdlePercentage(int row) {
+        return this.idlePercentages[row];
+    }
+
+    boolean isIdleDisabled(int row) {
+        return this.idleDisabled[row];
+    }
+
+    /**
+     * @return the label shown for a frequency in kHz, 0 being deep sleep
+     */
+    static String frequencyLabel(int frequency) {
+        if (frequency == 0) {
+            return "Deep Sleep";
+        }
+        return frequency / 1000 + " MHz";
+    }
+
+    /**
+     * @return one line summing up scope of statistics, like
+     * "mean 1200 MHz, p50/p90/p99 1100/1800/2000 MHz, 12% at max"
+     */
+    static String statisticsLabel(FrequencyStatistics statistics, int scope) {
+        if (statistics.getActiveDuration(scope) <= 0) {
+            return "no active time";
+        }
+        return String.format(Locale.getDefault(), "mean %d MHz, p50/p90/p99 %d/%d/%d MHz, %d%% at max",
+                Math.round(statistics.getMeanFrequency(scope) / 1000),
+                statistics.getP50Frequency(scope) / 1000,
+                statistics.getP90Frequency(scope) / 1000,
+                statistics.getP99Frequency(scope) / 1000,
+                Math.round(statistics.getMaxShare(scope) * 100));
+    }
+
+    /**
+     * @return the energy estimate of scope so far and its mean power over the
+     * latest interval, or null before the estimator has priced an interval
+     */
+    static String energyLabel(EnergyEstimator estimator, int scope) {
+        if (estimator.getIntervalMillis() <= 0 && estimator.getTotalEnergy(scope) == 0) {
+            return null;
+        }
+        if (!estimator.getModel().isAbsolute()) {
+            // a second at full capacity is 1024 units
+            return String.format(Locale.getDefault(), "energy %.0f units, %.0f units/s now",
+                    estimator.getTotalEnergy(scope), estimator.getIntervalPower(scope));
+        }
+        return String.format(Locale.getDefault(), "energy %.1f J, %.0f mW now",
+                estimator.getTotalEnergy(scope) / 1000, estimator.getIntervalPower(scope));
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.frequencies.length) {
+            this.frequencies = new int[capacity];
+            this.durations = new long[capacity];
+            this.percentages = new int[capacity];
+        }
+    }
+
+    private void ensureIdleCapacity(int capacity) {
+        if (capacity > this.idleNames.length) {
+            this.idleNames = new String[capacity];
+            this.idleDurations = new long[capacity];
+            this.idleUsages = new long[capacity];
+            this.idlePercentages = new int[capacity];
+            this.idleDisabled = new boolean[capacity];
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The monitor apart from its refresh, over the same device shapes as
+ * MonitorRefreshBenchmark: discovering the cores, constructing a monitor,
+ * and the two getters the UI calls after every refresh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitorBenchmark {
+
+    private static final int IdleStateCount = 3;
+
+    /**
+     * Clusters times cores per cluster
+     */
+    @Param({"1x2", "2x4", "3x4", "8x16"})
+    public String shape;
+
+    /**
+     * Frequencies of every cluster's table
+     */
+    @Param({"20"})
+    public int stateCount;
+
+    private FakeSysfs sysfs;
+    private CpuTimeInStateMonitor monitor;
+
+    @Setup
+    public void setUp() throws IOException, CpuTimeInStateMonitor.CpuStateMonitorException {
+        String[] clusters = this.shape.split("x");
+        this.sysfs = FakeSysfs.create(Files.createTempDirectory("cpuspy-bench").toFile(),
+                Integer.parseInt(clusters[0]), Integer.parseInt(clusters[1]), this.stateCount, IdleStateCount);
+        this.sysfs.advance(1234567);
+        this.monitor = new CpuTimeInStateMonitor(this.sysfs.getRoot(), new ManualMonitorClock(10000));
+        this.monitor.updateAllCpuTimeInState();
+        // the getters read the last core, the one furthest into the snapshot
+        this.monitor.setCurrentCpu(this.sysfs.getCpuCount() - 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.monitor.close();
+        this.sysfs.delete();
+    }
+
+    @Benchmark
+    public CpuTopology discover() {
+        return CpuTopology.discover(this.sysfs.getRoot());
+    }
+
+    /**
+     * Construction includes discovery and reading the boot id; the monitor is
+     * closed again so no handles pile up
+     */
+    @Benchmark
+    public CpuTimeInStateMonitor construct() {
+        CpuTimeInStateMonitor monitor = new CpuTimeInStateMonitor(this.sysfs.getRoot(), new ManualMonitorClock(10000));
+        monitor.close();
+        return monitor;
+    }
+
+    @Benchmark
+    public List<CpuTimeInStateMonitor.CpuTimeInState> getCurrentCpuTimeInState() {
+        return this.monitor.getCurrentCpuTimeInState();
+    }
+
+    @Benchmark
+    public long getCurrentCpuTotalStateTime() {
+        return this.monitor.getCurrentCpuTotalStateTime();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One whole refresh of the monitor over fake sysfs trees shaped like devices
+ * from a dual core up to 128 cores: every time_in_state file and cpuidle
+ * counter read, the snapshot built and published, optionally into a shared
+ * region
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitorRefreshBenchmark {
+
+    private static final int IdleStateCount = 3;
+
+    /**
+     * Clusters times cores per cluster
+     */
+    @Param({"1x2", "2x4", "3x4", "8x16"})
+    public String shape;
+
+    /**
+     * Frequencies of every cluster's table
+     */
+    @Param({"20"})
+    public int stateCount;
+
+    /**
+     * Also write every snapshot into a SharedSnapshotWriter region
+     */
+    @Param({"false", "true"})
+    public boolean shared;
+
+    private FakeSysfs sysfs;
+    private CpuTimeInStateMonitor monitor;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] clusters = this.shape.split("x");
+        this.sysfs = FakeSysfs.create(Files.createTempDirectory("cpuspy-bench").toFile(),
+                Integer.parseInt(clusters[0]), Integer.parseInt(clusters[1]), this.stateCount, IdleStateCount);
+        this.sysfs.advance(1234567);
+        this.monitor = new CpuTimeInStateMonitor(this.sysfs.getRoot(), new ManualMonitorClock(10000));
+        if (this.shared) {
+            int cpuCount = this.sysfs.getCpuCount();
+            ByteBuffer region = ByteBuffer.allocateDirect(
+                    SharedSnapshotLayout.regionSize(cpuCount, this.stateCount, IdleStateCount));
+            this.monitor.setSharedSnapshotWriter(
+                    new SharedSnapshotWriter(region, cpuCount, this.stateCount, IdleStateCount));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.monitor.close();
+        this.sysfs.delete();
+    }
+
+    @Benchmark
+    public CpuTimeInStateSnapshot refresh() throws CpuTimeInStateMonitor.CpuStateMonitorException {
+        this.monitor.updateAllCpuTimeInState();
+        return this.monitor.getSnapshot();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and parsing one time_in_state file: the line by line parse of
+ * Strings the monitor started out with, against TimeInStateParser on the
+ * same bytes, and a fresh open, read and close of the file against a
+ * positional re-read of the handle SysfsFile keeps open
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeInStateParseBenchmark {
+
+    /**
+     * Frequencies of the table, from a small core to a big one
+     */
+    @Param({"8", "32"})
+    public int stateCount;
+
+    private FakeSysfs sysfs;
+    private byte[] content;
+    private ByteBuffer contentBuffer;
+    private SysfsFile file;
+    private final TimeInStateBuffer states = new TimeInStateBuffer();
+
+    @Setup
+    public void setUp() throws IOException {
+        this.sysfs = FakeSysfs.create(Files.createTempDirectory("cpuspy-bench").toFile(), 1, 1, this.stateCount, 0);
+        this.sysfs.advance(1234567);
+        this.content = Files.readAllBytes(this.sysfs.timeInStateFile(0).toPath());
+        this.contentBuffer = ByteBuffer.wrap(this.content);
+        this.file = new SysfsFile(this.sysfs.timeInStateFile(0).getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.file.close();
+        this.sysfs.delete();
+    }
+
+    @Benchmark
+    public List<CpuTimeInStateMonitor.CpuTimeInState> parseLines() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(this.content)));
+        List<CpuTimeInStateMonitor.CpuTimeInState> states = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] column = line.split(" ");
+            states.add(new CpuTimeInStateMonitor.CpuTimeInState(Integer.parseInt(column[0]),
+                    Long.parseLong(column[1])));
+        }
+        Collections.sort(states, Collections.reverseOrder());
+        return states;
+    }
+
+    @Benchmark
+    public TimeInStateBuffer parse() {
+        TimeInStateParser.parse(this.contentBuffer, this.states);
+        this.states.sortByFrequencyDescending();
+        return this.states;
+    }
+
+    @Benchmark
+    public TimeInStateBuffer openReadClose() throws IOException {
+        FileInputStream in = new FileInputStream(this.file.getPath());
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            while (channel.read(buffer) > 0) {
+                if (!buffer.hasRemaining()) {
+                    break;
+                }
+            }
+            buffer.flip();
+            TimeInStateParser.parse(buffer, this.states);
+        } finally {
+            in.close();
+        }
+        this.states.sortByFrequencyDescending();
+        return this.states;
+    }
+
+    @Benchmark
+    public TimeInStateBuffer readOpenFile() throws IOException {
+        TimeInStateParser.parse(this.file.read(), this.states);
+        this.states.sortByFrequencyDescending();
+        return this.states;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * CpuFrequencyTracer samples the instantaneous scaling_cur_freq and
+ * scaling_max_freq of every policy and the temperature of every thermal zone
+ * at up to MaxRateHz, catching the short boosts and thermal caps that the
+ * 10ms time_in_state counters average away. The files are kept open as
+ * SysfsFiles, so a sample is one positional read per file and allocates
+ * nothing.
+ * <p>
+ * Samples go into a ring of preallocated records written by the tracer's
+ * thread alone and published with a single volatile write, so readers drain
+ * it through their own Cursor without ever blocking the tracer. A reader
+ * that falls more than the ring's capacity behind loses the oldest samples,
+ * and counts them.
+ * <p>
+ * Whenever a policy's scaling_max_freq drops below its cpuinfo_max_freq the
+ * tracer opens a ThrottlingEpisode, which ends at the first sample without
+ * the cap, so latency spikes can be matched against thermal caps
+ */
+public class CpuFrequencyTracer {
+
+    public static final String DefaultThermalRoot = "/sys/class/thermal";
+    public static final int MaxRateHz = 100;
+
+    private static final String CurFrequencyFileName = "scaling_cur_freq";
+    private static final String MaxFrequencyFileName = "scaling_max_freq";
+    private static final String HardwareMaxFrequencyFileName = "cpuinfo_max_freq";
+    private static final String ZoneDirectoryPrefix = "thermal_zone";
+
+    /**
+     * Number of episodes kept, the oldest ended ones are dropped first
+     */
+    private static final int MaxEpisodes = 64;
+
+    /**
+     * Receives the samples drained through a Cursor
+     */
+    public interface SampleHandler {
+        /**
+         * Called once per sample; the arrays belong to the cursor and are
+         * reused for the next sample
+         *
+         * @param curFrequencies scaling_cur_freq of every policy in kHz, 0 if unreadable
+         * @param maxFrequencies scaling_max_freq of every policy in kHz, 0 if unreadable
+         * @param temperatures   temperature of every thermal zone in millidegrees
+         *                       Celsius, Integer.MIN_VALUE if unreadable
+         */
+        void onSample(long timestampMillis, int[] curFrequencies, int[] maxFrequencies, int[] temperatures);
+    }
+
+    /**
+     * Position of one reader in the ring. Each reader needs its own, and a
+     * cursor must only be drained by one thread at a time
+     */
+    public static final class Cursor {
+        private long next;
+        private long droppedCount = 0;
+        private final int[] curFrequencies;
+        private final int[] maxFrequencies;
+        private final int[] temperatures;
+
+        private Cursor(long next, int policyCount, int zoneCount) {
+            this.next = next;
+            this.curFrequencies = new int[policyCount];
+            this.maxFrequencies = new int[policyCount];
+            this.temperatures = new int[zoneCount];
+        }
+
+        /**
+         * @return number of samples overwritten before this cursor got to them
+         */
+        public long getDroppedCount() {
+            return this.droppedCount;
+        }
+    }
+
+    private final MonitorClock clock;
+    private final int policyCount;
+    private final int zoneCount;
+
+    private final SysfsFile[] curFrequencyFiles;
+    private final SysfsFile[] maxFrequencyFiles;
+    private final SysfsFile[] temperatureFiles;
+    private final int[] hardwareMaxFrequencies;
+    private final String[] zoneTypes;
+
+    /**
+     * The ring: per record the timestamp, the current and maximum frequency
+     * of every policy and the temperature of every zone. Only the tracer
+     * thread writes it, head is the number of records ever published. It has
+     * one slot more than the capacity, the one the next sample is written to,
+     * so a reader capacity samples behind still reads whole records
+     */
+    private final int recordWidth;
+    private final int capacity;
+    private final int slotCount;
+    private final long[] ring;
+    private volatile long head = 0;
+
+    /**
+     * Only touched by the tracer thread
+     */
+    private final ThrottlingEpisode[] ongoingEpisodes;
+
+    private volatile ThrottlingEpisode[] episodes = new ThrottlingEpisode[0];
+
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    /**
+     * @param topology    the policies to trace, normally the one of the CpuTimeInStateMonitor
+     * @param thermalRoot directory of the thermal zones, normally DefaultThermalRoot
+     * @param clock       source of the sample timestamps
+     * @param capacity    number of samples the ring holds for readers
+     */
+    public CpuFrequencyTracer(CpuTopology topology, File thermalRoot, MonitorClock clock, int capacity) {
+        this.clock = clock;
+        this.policyCount = topology.getPolicyCount();
+        this.curFrequencyFiles = new SysfsFile[this.policyCount];
+        this.maxFrequencyFiles = new SysfsFile[this.policyCount];
+        this.hardwareMaxFrequencies = new int[this.policyCount];
+        for (int i = 0; i < this.policyCount; i++) {
+            String policyPath = topology.getPolicyPath(i);
+            this.curFrequencyFiles[i] = new SysfsFile(new File(policyPath, CurFrequencyFileName).getPath());
+            this.maxFrequencyFiles[i] = new SysfsFile(new File(policyPath, MaxFrequencyFileName).getPath());
+            SysfsFile hardwareMax = new SysfsFile(new File(policyPath, HardwareMaxFrequencyFileName).getPath());
+            this.hardwareMaxFrequencies[i] = (int) readNumber(hardwareMax, 0);
+            hardwareMax.close();
+        }
+
+        List<File> zones = listZones(thermalRoot);
+        this.zoneCount = zones.size();
+        this.temperatureFiles = new SysfsFile[this.zoneCount];
+        this.zoneTypes = new String[this.zoneCount];
+        for (int i = 0; i < this.zoneCount; i++) {
+            this.temperatureFiles[i] = new SysfsFile(new File(zones.get(i), "temp").getPath());
+            this.zoneTypes[i] = readType(zones.get(i));
+        }
+
+        this.recordWidth = 1 + 2 * this.policyCount + this.zoneCount;
+        this.capacity = Math.max(1, capacity);
+        this.slotCount = this.capacity + 1;
+        this.ring = new long[this.recordWidth * this.slotCount];
+        this.ongoingEpisodes = new ThrottlingEpisode[this.policyCount];
+    }
+
+    public int getPolicyCount() {
+        return this.policyCount;
+    }
+
+    public int getZoneCount() {
+        return this.zoneCount;
+    }
+
+    /**
+     * @return the type of thermal zone zoneIndex, like "cpu-0-0-usr"
+     */
+    public String getZoneType(int zoneIndex) {
+        return this.zoneTypes[zoneIndex];
+    }
+
+    /**
+     * @return cpuinfo_max_freq of policyIndex in kHz, 0 if it could not be read
+     */
+    public int getHardwareMaxFrequency(int policyIndex) {
+        return this.hardwareMaxFrequencies[policyIndex];
+    }
+
+    /**
+     * Start sampling rateHz times a second on a daemon thread, does nothing
+     * if already started
+     */
+    public synchronized void start(int rateHz) {
+        if (this.thread != null) {
+            return;
+        }
+        final long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, Math.min(rateHz, MaxRateHz));
+        this.running = true;
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                // fixed rate rather than fixed delay, so the samples do not drift
+                long nextSampleAt = System.nanoTime();
+                while (running) {
+                    sample();
+                    nextSampleAt += periodNanos;
+                    long sleepNanos = nextSampleAt - System.nanoTime();
+                    if (sleepNanos > 0) {
+                        LockSupport.parkNanos(sleepNanos);
+                    } else {
+                        // fell behind, do not try to catch up with a burst of samples
+                        nextSampleAt = System.nanoTime();
+                    }
+                }
+            }
+        }, "CpuFrequencyTracer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stop sampling and wait for the thread to finish its last sample,
+     * keeping the ring and the episodes
+     */
+    public void stop() {
+        Thread stopped;
+        synchronized (this) {
+            stopped = this.thread;
+            this.thread = null;
+            this.running = false;
+        }
+        if (stopped != null) {
+            LockSupport.unpark(stopped);
+            try {
+                stopped.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return this.thread != null;
+    }
+
+    /**
+     * Close the files kept open between samples, the tracer must be stopped
+     */
+    public void close() {
+        for (int i = 0; i < this.policyCount; i++) {
+            this.curFrequencyFiles[i].close();
+            this.maxFrequencyFiles[i].close();
+        }
+        for (SysfsFile file : this.temperatureFiles) {
+            file.close();
+        }
+    }
+
+    /**
+     * @return a cursor that drains the samples published from now on
+     */
+    public Cursor newCursor() {
+        return new Cursor(this.head, this.policyCount, this.zoneCount);
+    }
+
+    /**
+     * Hand every sample published since the cursor's last drain to handler,
+     * oldest first, without blocking the tracer
+     *
+     * @return the number of samples handed over
+     */
+    public int drain(Cursor cursor, SampleHandler handler) {
+        long published = this.head;
+        long next = cursor.next;
+        if (published - next > this.capacity) {
+            cursor.droppedCount += published - this.capacity - next;
+            next = published - this.capacity;
+        }
+        int count = 0;
+        for (; next < published; next++) {
+            int base = (int) (next % this.slotCount) * this.recordWidth;
+            long timestamp = this.ring[base];
+            int index = base + 1;
+            for (int i = 0; i < this.policyCount; i++) {
+                cursor.curFrequencies[i] = (int) this.ring[index++];
+                cursor.maxFrequencies[i] = (int) this.ring[index++];
+            }
+            for (int i = 0; i < this.zoneCount; i++) {
+                cursor.temperatures[i] = (int) this.ring[index++];
+            }
+            // the tracer may have lapped us while copying, then the record is torn;
+            // a volatile read alone would let the copy above float past it
+            SharedSnapshotLayout.fullFence();
+            if (this.head - next > this.capacity) {
+                cursor.droppedCount++;
+                continue;
+            }
+            handler.onSample(timestamp, cursor.curFrequencies, cursor.maxFrequencies, cursor.temperatures);
+            count++;
+        }
+        cursor.next = next;
+        return count;
+    }
+
+    /**
+     * @return the latest episodes, oldest first, ongoing ones included
+     */
+    public ThrottlingEpisode[] getEpisodes() {
+        return this.episodes.clone();
+    }
+
+    /**
+     * Read every file once, publish the record and update the episodes. Only
+     * called by the tracer thread
+     */
+    void sample() {
+        long sequence = this.head;
+        int base = (int) (sequence % this.slotCount) * this.recordWidth;
+        long timestamp = this.clock.elapsedRealtime();
+        this.ring[base] = timestamp;
+
+        int hottest = Integer.MIN_VALUE;
+        int index = base + 1 + 2 * this.policyCount;
+        for (int i = 0; i < this.zoneCount; i++) {
+            int temperature = (int) readNumber(this.temperatureFiles[i], Integer.MIN_VALUE);
+            this.ring[index++] = temperature;
+            hottest = Math.max(hottest, temperature);
+        }
+
+        index = base + 1;
+        for (int i = 0; i < this.policyCount; i++) {
+            this.ring[index++] = readNumber(this.curFrequencyFiles[i], 0);
+            int maxFrequency = (int) readNumber(this.maxFrequencyFiles[i], 0);
+            this.ring[index++] = maxFrequency;
+            trackThrottling(i, timestamp, maxFrequency, hottest);
+        }
+        this.head = sequence + 1;
+    }
+
+    private void trackThrottling(int policyIndex, long timestamp, int maxFrequency, int temperature) {
+        int hardwareMax = this.hardwareMaxFrequencies[policyIndex];
+        // an unreadable cap means the policy is offline, which ends an episode as well
+        boolean throttled = hardwareMax > 0 && maxFrequency > 0 && maxFrequency < hardwareMax;
+        ThrottlingEpisode ongoing = this.ongoingEpisodes[policyIndex];
+        if (ongoing == null) {
+            if (throttled) {
+                ThrottlingEpisode episode = new ThrottlingEpisode(policyIndex, timestamp, -1,
+                        hardwareMax, maxFrequency, temperature);
+                this.ongoingEpisodes[policyIndex] = episode;
+                publishEpisode(null, episode);
+            }
+        } else if (!throttled) {
+            this.ongoingEpisodes[policyIndex] = null;
+            publishEpisode(ongoing, ongoing.ended(timestamp));
+        } else if (maxFrequency < ongoing.getLowestMaxFrequency()
+                || temperature > ongoing.getPeakTemperature()) {
+            ThrottlingEpisode deepened = ongoing.deepened(maxFrequency, temperature);
+            this.ongoingEpisodes[policyIndex] = deepened;
+            publishEpisode(ongoing, deepened);
+        }
+    }
+
+    /**
+     * Replace previous with episode in a copy of the published episodes, or
+     * append it if previous is null. Episodes change rarely, so copying the
+     * array keeps the readers lock-free at no real cost
+     */
+    private void publishEpisode(ThrottlingEpisode previous, ThrottlingEpisode episode) {
+        ThrottlingEpisode[] current = this.episodes;
+        if (previous != null) {
+            for (int i = current.length - 1; i >= 0; i--) {
+                if (current[i] == previous) {
+                    ThrottlingEpisode[] updated = current.clone();
+                    updated[i] = episode;
+                    this.episodes = updated;
+                    return;
+                }
+            }
+        }
+        ThrottlingEpisode[] updated;
+        if (current.length < MaxEpisodes) {
+            updated = Arrays.copyOf(current, current.length + 1);
+        } else {
+            // drop the oldest ended episode, ongoing ones stay until they end
+            int drop = 0;
+            while (drop < current.length - 1 && current[drop].isOngoing()) {
+                drop++;
+            }
+            updated = new ThrottlingEpisode[current.length];
+            System.arraycopy(current, 0, updated, 0, drop);
+            System.arraycopy(current, drop + 1, updated, drop, current.length - drop - 1);
+        }
+        updated[updated.length - 1] = episode;
+        this.episodes = updated;
+    }
+
+    /**
+     * @return the signed decimal number in file, or fallback if it cannot be read
+     */
+    private static long readNumber(SysfsFile file, long fallback) {
+        try {
+            ByteBuffer content = file.read();
+            if (!content.hasRemaining()) {
+                return fallback;
+            }
+            if (content.get(content.position()) == '-') {
+                content.position(content.position() + 1);
+                return -TimeInStateParser.parseNumber(content);
+            }
+            return TimeInStateParser.parseNumber(content);
+        } catch (IOException e) {
+            return fallback;
+        }
+    }
+
+    private static List<File> listZones(File thermalRoot) {
+        List<File> zones = new ArrayList<>();
+        String[] names = thermalRoot.list();
+        if (names == null) {
+            return zones;
+        }
+        int[] numbers = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(ZoneDirectoryPrefix)) {
+                try {
+                    int number = Integer.parseInt(name.substring(ZoneDirectoryPrefix.length()));
+                    numbers[count++] = number;
+                } catch (NumberFormatException e) {
+                    // not a zone
+                }
+            }
+        }
+        Arrays.sort(numbers, 0, count);
+        for (int i = 0; i < count; i++) {
+            zones.add(new File(thermalRoot, ZoneDirectoryPrefix + numbers[i]));
+        }
+        return zones;
+    }
+
+    private static String readType(File zoneDirectory) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(new File(zoneDirectory, "type")));
+            try {
+                String type = reader.readLine();
+                return type == null ? zoneDirectory.getName() : type.trim();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return zoneDirectory.getName();
+        }
+    }
+}
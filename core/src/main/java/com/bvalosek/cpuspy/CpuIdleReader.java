@@ -0,0 +1,180 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CpuIdleReader reads the cpuidle counters of every core, found under
+ * cpuN/cpuidle/stateX/{name,time,usage,disable}. The states and their names
+ * are discovered once, and the time, usage and disable files of every state
+ * are kept open, so a refresh is one batched pass of positional reads over
+ * all cores without any directory listing or opening.
+ * <p>
+ * Unlike time_in_state, which cpufreq keeps per policy, cpuidle counts per
+ * core, so every core gets its own rows
+ */
+public class CpuIdleReader {
+
+    private final String[][] names;
+    private final SysfsFile[][] timeFiles;
+    private final SysfsFile[][] usageFiles;
+    private final SysfsFile[][] disableFiles;
+
+    /**
+     * Discover the idle states of cores 0 to cpuCount - 1 under cpuRoot
+     */
+    public CpuIdleReader(File cpuRoot, int cpuCount) {
+        this.names = new String[cpuCount][];
+        this.timeFiles = new SysfsFile[cpuCount][];
+        this.usageFiles = new SysfsFile[cpuCount][];
+        this.disableFiles = new SysfsFile[cpuCount][];
+
+        for (int cpuIndex = 0; cpuIndex < cpuCount; cpuIndex++) {
+            List<File> stateDirectories = listStates(new File(cpuRoot, "cpu" + cpuIndex + "/cpuidle"));
+            int stateCount = stateDirectories.size();
+            this.names[cpuIndex] = new String[stateCount];
+            this.timeFiles[cpuIndex] = new SysfsFile[stateCount];
+            this.usageFiles[cpuIndex] = new SysfsFile[stateCount];
+            this.disableFiles[cpuIndex] = new SysfsFile[stateCount];
+            for (int i = 0; i < stateCount; i++) {
+                File stateDirectory = stateDirectories.get(i);
+                this.names[cpuIndex][i] = readName(stateDirectory);
+                this.timeFiles[cpuIndex][i] = new SysfsFile(new File(stateDirectory, "time").getPath());
+                this.usageFiles[cpuIndex][i] = new SysfsFile(new File(stateDirectory, "usage").getPath());
+                this.disableFiles[cpuIndex][i] = new SysfsFile(new File(stateDirectory, "disable").getPath());
+            }
+        }
+    }
+
+    /**
+     * @return true if any core has idle states to read
+     */
+    public boolean isAvailable() {
+        for (String[] coreNames : this.names) {
+            if (coreNames.length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the counters of every state of every core. A core whose files
+     * cannot be read, because it is offline, keeps its counters of previous,
+     * or comes back without states if previous has none
+     */
+    CpuIdleStates read(CpuIdleStates previous) {
+        int cpuCount = this.names.length;
+        long[][] times = new long[cpuCount][];
+        long[][] usages = new long[cpuCount][];
+        boolean[][] disabled = new boolean[cpuCount][];
+        for (int cpuIndex = 0; cpuIndex < cpuCount; cpuIndex++) {
+            int stateCount = this.names[cpuIndex].length;
+            times[cpuIndex] = new long[stateCount];
+            usages[cpuIndex] = new long[stateCount];
+            disabled[cpuIndex] = new boolean[stateCount];
+            try {
+                for (int i = 0; i < stateCount; i++) {
+                    times[cpuIndex][i] = TimeInStateParser.parseNumber(this.timeFiles[cpuIndex][i].read());
+                    usages[cpuIndex][i] = TimeInStateParser.parseNumber(this.usageFiles[cpuIndex][i].read());
+                    disabled[cpuIndex][i] = TimeInStateParser.parseNumber(this.disableFiles[cpuIndex][i].read()) != 0;
+                }
+            } catch (IOException e) {
+                if (previous.getStateCount(cpuIndex) == stateCount) {
+                    times[cpuIndex] = previous.timeRow(cpuIndex);
+                    usages[cpuIndex] = previous.usageRow(cpuIndex);
+                    disabled[cpuIndex] = previous.disabledRow(cpuIndex);
+                } else {
+                    times[cpuIndex] = new long[0];
+                    usages[cpuIndex] = new long[0];
+                    disabled[cpuIndex] = new boolean[0];
+                }
+            }
+        }
+        return new CpuIdleStates(this.names, times, usages, disabled);
+    }
+
+    /**
+     * @return counters of every core taken from the rows of times and usages,
+     * such as a baseline saved by an earlier run. A core whose rows are
+     * missing or do not match its states gets no states
+     */
+    CpuIdleStates of(long[][] times, long[][] usages) {
+        int cpuCount = this.names.length;
+        long[][] coreTimes = new long[cpuCount][];
+        long[][] coreUsages = new long[cpuCount][];
+        boolean[][] disabled = new boolean[cpuCount][];
+        for (int cpuIndex = 0; cpuIndex < cpuCount; cpuIndex++) {
+            int stateCount = this.names[cpuIndex].length;
+            if (cpuIndex < times.length && cpuIndex < usages.length
+                    && times[cpuIndex] != null && times[cpuIndex].length == stateCount
+                    && usages[cpuIndex] != null && usages[cpuIndex].length == stateCount) {
+                coreTimes[cpuIndex] = times[cpuIndex];
+                coreUsages[cpuIndex] = usages[cpuIndex];
+                disabled[cpuIndex] = new boolean[stateCount];
+            } else {
+                coreTimes[cpuIndex] = new long[0];
+                coreUsages[cpuIndex] = new long[0];
+                disabled[cpuIndex] = new boolean[0];
+            }
+        }
+        return new CpuIdleStates(this.names, coreTimes, coreUsages, disabled);
+    }
+
+    /**
+     * Close the files kept open between refreshes
+     */
+    public void close() {
+        for (int cpuIndex = 0; cpuIndex < this.names.length; cpuIndex++) {
+            for (int i = 0; i < this.names[cpuIndex].length; i++) {
+                this.timeFiles[cpuIndex][i].close();
+                this.usageFiles[cpuIndex][i].close();
+                this.disableFiles[cpuIndex][i].close();
+            }
+        }
+    }
+
+    /**
+     * @return the stateX directories of cpuidleDirectory ordered by X
+     */
+    private static List<File> listStates(File cpuidleDirectory) {
+        List<File> states = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            File state = new File(cpuidleDirectory, "state" + i);
+            if (!state.isDirectory()) {
+                break;
+            }
+            states.add(state);
+        }
+        return states;
+    }
+
+    private static String readName(File stateDirectory) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(new File(stateDirectory, "name")));
+            try {
+                String name = reader.readLine();
+                if (name != null && name.trim().length() > 0) {
+                    return name.trim();
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // fall back to the directory name
+        }
+        return stateDirectory.getName();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+/**
+ * CpuIdleStates is an immutable view of the cpuidle counters of every core at
+ * one refresh: for each idle state its name, the time spent in it in
+ * microseconds, the number of times it was entered and whether it is
+ * disabled. A core whose counters could not be read has no states
+ */
+final class CpuIdleStates {
+
+    private static final long[] NoCounters = new long[0];
+    private static final boolean[] NoFlags = new boolean[0];
+
+    private final String[][] names;
+    private final long[][] times;
+    private final long[][] usages;
+    private final boolean[][] disabled;
+
+    /**
+     * @param names    state names of every core, shared between refreshes
+     * @param times    time row of every core, empty if it could not be read
+     * @param usages   entry count row of every core, aligned with its times
+     * @param disabled disable flag row of every core, aligned with its times
+     */
+    CpuIdleStates(String[][] names, long[][] times, long[][] usages, boolean[][] disabled) {
+        this.names = names;
+        this.times = times;
+        this.usages = usages;
+        this.disabled = disabled;
+    }
+
+    /**
+     * @return counters of cpuCount cores without any idle states
+     */
+    static CpuIdleStates empty(int cpuCount) {
+        String[][] names = new String[cpuCount][];
+        long[][] times = new long[cpuCount][];
+        long[][] usages = new long[cpuCount][];
+        boolean[][] disabled = new boolean[cpuCount][];
+        for (int i = 0; i < cpuCount; i++) {
+            names[i] = new String[0];
+            times[i] = NoCounters;
+            usages[i] = NoCounters;
+            disabled[i] = NoFlags;
+        }
+        return new CpuIdleStates(names, times, usages, disabled);
+    }
+
+    int getCpuCount() {
+        return this.times.length;
+    }
+
+    /**
+     * @return number of idle states read for cpuIndex, or 0 if there is no such core
+     */
+    int getStateCount(int cpuIndex) {
+        if (cpuIndex < 0 || cpuIndex >= this.times.length) {
+            return 0;
+        }
+        return this.times[cpuIndex].length;
+    }
+
+    long[] timeRow(int cpuIndex) {
+        return this.times[cpuIndex];
+    }
+
+    long[] usageRow(int cpuIndex) {
+        return this.usages[cpuIndex];
+    }
+
+    boolean[] disabledRow(int cpuIndex) {
+        return this.disabled[cpuIndex];
+    }
+
+    String getName(int cpuIndex, int stateIndex) {
+        return this.names[cpuIndex][stateIndex];
+    }
+
+    long getTime(int cpuIndex, int stateIndex) {
+        return this.times[cpuIndex][stateIndex];
+    }
+
+    long getUsage(int cpuIndex, int stateIndex) {
+        return this.usages[cpuIndex][stateIndex];
+    }
+
+    boolean isDisabled(int cpuIndex, int stateIndex) {
+        return this.disabled[cpuIndex][stateIndex];
+    }
+}
@@ -0,0 +1,168 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+/**
+ * CpuTimeInStateCheckpoint is a named, immutable copy of the counters of
+ * every core at one refresh, such as "benchmark start", that later
+ * checkpoints or the current state can be compared against without reading
+ * sysfs again. Each core keeps the frequency and duration rows of the
+ * snapshot it was taken from, so taking one costs a few references per core
+ * and comparing two costs one subtraction per state.
+ * <p>
+ * Every core also keeps the epoch of its counters. The monitor starts a new
+ * epoch whenever a policy's frequency table changes or its counters go
+ * backwards, as they do after a reboot or when hotplug resets cpufreq
+ * stats, and only checkpoints of the same epoch can be compared
+ */
+public final class CpuTimeInStateCheckpoint {
+
+    /**
+     * Epoch of a core without counters, which matches no other
+     */
+    static final int NoEpoch = -1;
+
+    private final String name;
+    private final long timestamp;
+    private final int[][] frequencies;
+    private final long[][] durations;
+    private final int[] epochs;
+    private final CpuIdleStates idle;
+
+    CpuTimeInStateCheckpoint(String name, long timestamp, int[][] frequencies, long[][] durations,
+                             int[] epochs, CpuIdleStates idle) {
+        this.name = name;
+        this.timestamp = timestamp;
+        this.frequencies = frequencies;
+        this.durations = durations;
+        this.epochs = epochs;
+        this.idle = idle;
+    }
+
+    /**
+     * @return a checkpoint of the raw counters of snapshot, its baselines left out
+     */
+    public static CpuTimeInStateCheckpoint of(String name, CpuTimeInStateSnapshot snapshot) {
+        int cpuCount = snapshot.getCpuCount();
+        int[][] frequencies = new int[cpuCount][];
+        long[][] durations = new long[cpuCount][];
+        int[] epochs = new int[cpuCount];
+        for (int cpuIndex = 0; cpuIndex < cpuCount; cpuIndex++) {
+            frequencies[cpuIndex] = snapshot.frequencyRow(cpuIndex);
+            durations[cpuIndex] = snapshot.durationRow(cpuIndex);
+            epochs[cpuIndex] = snapshot.getEpoch(cpuIndex);
+        }
+        return new CpuTimeInStateCheckpoint(name, snapshot.getTimestamp(), frequencies, durations,
+                epochs, snapshot.idleStates());
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return elapsedRealtime in milliseconds at which the counters were read
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public int getCpuCount() {
+        return this.frequencies.length;
+    }
+
+    /**
+     * @return number of states of cpuIndex, or 0 if there is no such core
+     */
+    public int getStateCount(int cpuIndex) {
+        if (cpuIndex < 0 || cpuIndex >= this.frequencies.length || this.frequencies[cpuIndex] == null) {
+            return 0;
+        }
+        return this.frequencies[cpuIndex].length;
+    }
+
+    /**
+     * @return frequency in kHz of state stateIndex of cpuIndex, 0 for deep sleep
+     */
+    public int getFrequency(int cpuIndex, int stateIndex) {
+        return this.frequencies[cpuIndex][stateIndex];
+    }
+
+    /**
+     * @return duration of state stateIndex of cpuIndex since boot, in 10ms units
+     */
+    public long getRawDuration(int cpuIndex, int stateIndex) {
+        return this.durations[cpuIndex][stateIndex];
+    }
+
+    /**
+     * @return epoch of the counters of cpuIndex
+     */
+    public int getEpoch(int cpuIndex) {
+        return this.epochs[cpuIndex];
+    }
+
+    /**
+     * @return true if the counters of cpuIndex in this and earlier belong to
+     * the same epoch, and so have the same states and can be subtracted
+     */
+    public boolean isComparable(CpuTimeInStateCheckpoint earlier, int cpuIndex) {
+        return cpuIndex >= 0 && cpuIndex < this.epochs.length && cpuIndex < earlier.epochs.length
+                && this.epochs[cpuIndex] != NoEpoch
+                && this.epochs[cpuIndex] == earlier.epochs[cpuIndex]
+                && getStateCount(cpuIndex) == earlier.getStateCount(cpuIndex);
+    }
+
+    /**
+     * Store the time cpuIndex spent in each state between earlier and this
+     * in out, aligned with the frequency row
+     *
+     * @return the number of states stored, or -1 if the two are not comparable
+     */
+    public int getDurationsSince(CpuTimeInStateCheckpoint earlier, int cpuIndex, long[] out) {
+        if (!isComparable(earlier, cpuIndex)) {
+            return -1;
+        }
+        long[] now = this.durations[cpuIndex];
+        long[] then = earlier.durations[cpuIndex];
+        for (int i = 0; i < now.length; i++) {
+            out[i] = now[i] - then[i];
+        }
+        return now.length;
+    }
+
+    /**
+     * @return time cpuIndex spent in all states between earlier and this,
+     * deep sleep included, or -1 if the two are not comparable
+     */
+    public long getTotalDurationSince(CpuTimeInStateCheckpoint earlier, int cpuIndex) {
+        if (!isComparable(earlier, cpuIndex)) {
+            return -1;
+        }
+        long[] now = this.durations[cpuIndex];
+        long[] then = earlier.durations[cpuIndex];
+        long total = 0;
+        for (int i = 0; i < now.length; i++) {
+            total += now[i] - then[i];
+        }
+        return total;
+    }
+
+    int[] frequencyRow(int cpuIndex) {
+        return this.frequencies[cpuIndex];
+    }
+
+    long[] durationRow(int cpuIndex) {
+        return this.durations[cpuIndex];
+    }
+
+    CpuIdleStates idleStates() {
+        return this.idle;
+    }
+}
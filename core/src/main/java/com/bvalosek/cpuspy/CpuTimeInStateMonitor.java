@@ -0,0 +1,686 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * CpuTimeInStateMonitor is a class responsible for querying the system and getting
+ * the time-in-state information, as well as allowing the user to set/reset
+ * a baseline to "restart" the state timers.
+ * <p>
+ * Every refresh builds a new immutable CpuTimeInStateSnapshot and publishes
+ * it with a single volatile write, so readers on other threads never lock and
+ * never see a partly refreshed core. Consumers can either refresh and read
+ * the snapshot themselves or subscribe to have fresh snapshots pushed to them
+ * at their own rate, sharing the reads of the other subscribers.
+ * <p>
+ * Besides the baseline subtracted from every snapshot, which the UI resets
+ * and restores, any number of named checkpoints can be marked and compared
+ * with each other or with a later snapshot. Both only apply while the
+ * counters stay in the epoch they were taken in.
+ * <p>
+ * Apart from /proc/self/stat for its own CPU time and the boot id, the
+ * monitor only touches the filesystem below sysfsCpuRoot and only reads time
+ * through its MonitorClock, so it runs unchanged against a fake sysfs tree on
+ * a plain JVM
+ */
+public class CpuTimeInStateMonitor {
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    /**
+     * @param sysfsCpuRoot directory to read the cpu and cpufreq entries from,
+     *                     normally DefaultSysfsCpuRoot
+     * @param clock        source of the realtime and uptime clocks
+     */
+    public CpuTimeInStateMonitor(File sysfsCpuRoot, MonitorClock clock) {
+        this(sysfsCpuRoot, clock, DefaultBootIdPath);
+    }
+
+    /**
+     * @param bootIdPath file holding the id of the current boot, normally
+     *                   DefaultBootIdPath
+     */
+    public CpuTimeInStateMonitor(File sysfsCpuRoot, MonitorClock clock, String bootIdPath) {
+        this.sysfsCpuRoot = sysfsCpuRoot;
+        this.clock = clock;
+        this.bootId = readBootId(bootIdPath);
+
+        this.topology = CpuTopology.discover(sysfsCpuRoot);
+        this.cpuCount = this.topology.getCpuCount();
+        this.allPolicyTimeInStates = new TimeInStateBuffer[this.topology.getPolicyCount()];
+        this.allPolicyTimeInStateFiles = new SysfsFile[this.topology.getPolicyCount()];
+        for (int i = 0; i < this.allPolicyTimeInStates.length; i++) {
+            this.allPolicyTimeInStates[i] = new TimeInStateBuffer();
+            this.allPolicyTimeInStateFiles[i] = new SysfsFile(this.topology.getPolicyTimeInStatePath(i));
+        }
+        this.idleReader = new CpuIdleReader(sysfsCpuRoot, this.cpuCount);
+        this.instrumentation = new MonitorInstrumentation(MonitorInstrumentation.DefaultProcSelfStatPath);
+        this.snapshot = CpuTimeInStateSnapshot.empty(this.cpuCount);
+    }
+
+    public static final String DefaultSysfsCpuRoot = "/sys/devices/system/cpu";
+
+    /**
+     * Random id the kernel picks at every boot
+     */
+    public static final String DefaultBootIdPath = "/proc/sys/kernel/random/boot_id";
+
+    private final File sysfsCpuRoot;
+
+    private final MonitorClock clock;
+
+    public File getSysfsCpuRoot() {
+        return sysfsCpuRoot;
+    }
+
+    /**
+     * Id of the boot the monitor runs in, or null if it could not be read
+     */
+    private final String bootId;
+
+    /**
+     * @return the id of the current boot, to store along with baselines and
+     * hand back to restoreBaselines, or null if it could not be read
+     */
+    public String getBootId() {
+        return bootId;
+    }
+
+    public Integer getCpuCount() {
+        return cpuCount;
+    }
+
+    private Integer cpuCount;
+
+    private volatile int currentCpu = 0;
+
+    public int getCurrentCpu() {
+        return currentCpu;
+    }
+
+    public void setCurrentCpu(int currentCpu) {
+        this.currentCpu = currentCpu;
+    }
+
+    /**
+     * Mapping of the cores to the cpufreq policies whose files are actually read
+     */
+    private CpuTopology topology;
+
+    public CpuTopology getTopology() {
+        return topology;
+    }
+
+    /**
+     * The time_in_state file of every policy, kept open between refreshes
+     */
+    private final SysfsFile[] allPolicyTimeInStateFiles;
+
+    /**
+     * One parse buffer per policy, only touched while holding updateLock
+     */
+    private final TimeInStateBuffer[] allPolicyTimeInStates;
+
+    /**
+     * The cpuidle counters of every core, read along with the time_in_state
+     */
+    private final CpuIdleReader idleReader;
+
+    /**
+     * Serializes the writers of snapshot; readers never take it
+     */
+    private final Object updateLock = new Object();
+
+    private volatile CpuTimeInStateSnapshot snapshot;
+
+    /**
+     * Counters subtracted from every snapshot, only written while holding
+     * updateLock, or null for durations since boot
+     */
+    private CpuTimeInStateCheckpoint baseline = null;
+
+    /**
+     * Named checkpoints in the order they were marked, guarded by itself
+     */
+    private final Map<String, CpuTimeInStateCheckpoint> checkpoints = new LinkedHashMap<>();
+
+    /**
+     * Cost of the refreshes so far, only written while holding updateLock
+     */
+    private volatile long refreshCount = 0;
+    private volatile long refreshFailureCount = 0;
+    private volatile long refreshNanos = 0;
+
+    /**
+     * Latency of every stage of a refresh, recorded while holding updateLock
+     */
+    private final MonitorInstrumentation instrumentation;
+
+    /**
+     * Region every new snapshot is also written into, or null
+     */
+    private volatile SharedSnapshotWriter sharedWriter = null;
+
+    /**
+     * Also write every new snapshot into writer's shared region, starting with
+     * the latest one, or stop doing so if writer is null
+     */
+    public void setSharedSnapshotWriter(SharedSnapshotWriter writer) {
+        synchronized (this.updateLock) {
+            this.sharedWriter = writer;
+            if (writer != null) {
+                writer.publish(this.snapshot);
+            }
+        }
+    }
+
+    public SharedSnapshotWriter getSharedSnapshotWriter() {
+        return this.sharedWriter;
+    }
+
+    /**
+     * Make snapshot the latest one, only called while holding updateLock
+     */
+    private void publish(CpuTimeInStateSnapshot snapshot) {
+        this.snapshot = snapshot;
+        SharedSnapshotWriter writer = this.sharedWriter;
+        if (writer != null) {
+            writer.publish(snapshot);
+        }
+    }
+
+    /**
+     * @return the most recently published snapshot of all cores
+     */
+    public CpuTimeInStateSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    private final SnapshotDispatcher dispatcher = new SnapshotDispatcher(this);
+
+    /**
+     * Receives the snapshots of a subscription
+     */
+    public interface SnapshotListener {
+        /**
+         * Called on the subscription's executor with the latest snapshot.
+         * Snapshots published while a previous one was still waiting for the
+         * executor replace it, so only the newest is delivered
+         */
+        void onSnapshot(CpuTimeInStateSnapshot snapshot);
+
+        /**
+         * Called on the subscription's executor when a refresh failed
+         */
+        void onError(CpuStateMonitorException error);
+    }
+
+    /**
+     * Handle of a subscription, cancel it to stop receiving snapshots
+     */
+    public interface Subscription {
+        long getIntervalMillis();
+
+        void cancel();
+    }
+
+    /**
+     * Have a fresh snapshot delivered to listener every intervalMillis,
+     * starting right away. All subscriptions share one sampling thread and
+     * one sysfs read per refresh, and the thread is stopped once the last
+     * subscription is cancelled
+     *
+     * @param deliveryExecutor where listener is called, for example the UI thread
+     */
+    public Subscription subscribe(SnapshotListener listener, long intervalMillis,
+                                  Executor deliveryExecutor) {
+        return this.dispatcher.subscribe(listener, intervalMillis, deliveryExecutor);
+    }
+
+    /**
+     * Like subscribe, but with the interval chosen by governor after every
+     * refresh, starting at its current interval
+     */
+    public Subscription subscribe(SnapshotListener listener, SamplingGovernor governor,
+                                  Executor deliveryExecutor) {
+        return this.dispatcher.subscribe(listener, governor, deliveryExecutor);
+    }
+
+    /**
+     * Refresh as soon as possible and deliver the result to every
+     * subscription, whether it is due or not. Does nothing without subscribers
+     */
+    public void requestRefresh() {
+        this.dispatcher.requestRefresh();
+    }
+
+    /**
+     * Run task on the thread that refreshes for the subscribers, after the
+     * refresh in progress, so work such as resetting the baselines stays off
+     * the caller's thread and is serialized with the refreshes
+     */
+    public void execute(Runnable task) {
+        this.dispatcher.execute(task);
+    }
+
+    public class CpuStateMonitorException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        CpuStateMonitorException(String s) {
+            super(s);
+        }
+    }
+
+    public static class CpuTimeInState implements Comparable<CpuTimeInState> {
+        CpuTimeInState(Integer frequency, long duration) {
+            this.frequency = frequency;
+            this.duration = duration;
+        }
+
+        public Integer frequency;
+        public long duration;
+
+        public int compareTo(CpuTimeInState state) {
+            return this.frequency.compareTo(state.frequency);
+        }
+    }
+
+    /**
+     * @return List of CpuTimeInState of the current core with its baseline applied
+     */
+    public List<CpuTimeInState> getCurrentCpuTimeInState() {
+        CpuTimeInStateSnapshot snapshot = this.snapshot;
+        int cpuIndex = this.currentCpu;
+        int stateCount = snapshot.getStateCount(cpuIndex);
+        List<CpuTimeInState> states = new ArrayList<>(stateCount);
+        for (int i = 0; i < stateCount; i++) {
+            states.add(new CpuTimeInState(snapshot.getFrequency(cpuIndex, i),
+                    snapshot.getDuration(cpuIndex, i)));
+        }
+        return states;
+    }
+
+    /**
+     * @return Sum of all state durations of the current core including deep
+     * sleep, accounting for its baseline
+     */
+    public long getCurrentCpuTotalStateTime() {
+        return this.snapshot.getTotalDuration(this.currentCpu);
+    }
+
+    /**
+     * Refresh the states and then use the current durations as the baseline of
+     * every core, effectively "zeroing out" the timers
+     */
+    public void resetAllCpuIgnoredTimeInStates() throws CpuStateMonitorException {
+        synchronized (this.updateLock) {
+            CpuTimeInStateSnapshot current = readSnapshot(this.snapshot);
+            long[][] baselines = new long[this.cpuCount][];
+            for (int i = 0; i < this.cpuCount; i++) {
+                baselines[i] = current.durationRow(i);
+            }
+            this.baseline = CpuTimeInStateCheckpoint.of(null, current);
+            publish(current.withBaselines(baselines, current.idleStates()));
+        }
+    }
+
+    /**
+     * Drop the baseline of every core, going back to durations since boot
+     */
+    public void removeAllCpuIgnoredTimeInState() {
+        synchronized (this.updateLock) {
+            this.baseline = null;
+            publish(this.snapshot.withBaselines(new long[this.cpuCount][], null));
+        }
+    }
+
+    /**
+     * Keep the counters of the latest snapshot under name, replacing any
+     * checkpoint of that name. Refresh first to mark the current state
+     *
+     * @return the new checkpoint
+     */
+    public CpuTimeInStateCheckpoint mark(String name) {
+        CpuTimeInStateCheckpoint checkpoint = CpuTimeInStateCheckpoint.of(name, this.snapshot);
+        synchronized (this.checkpoints) {
+            this.checkpoints.remove(name);
+            this.checkpoints.put(name, checkpoint);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @return the checkpoint marked as name, or null if there is none
+     */
+    public CpuTimeInStateCheckpoint getCheckpoint(String name) {
+        synchronized (this.checkpoints) {
+            return this.checkpoints.get(name);
+        }
+    }
+
+    /**
+     * @return names of the checkpoints in the order they were marked
+     */
+    public List<String> getCheckpointNames() {
+        synchronized (this.checkpoints) {
+            return new ArrayList<>(this.checkpoints.keySet());
+        }
+    }
+
+    public void removeCheckpoint(String name) {
+        synchronized (this.checkpoints) {
+            this.checkpoints.remove(name);
+        }
+    }
+
+    /**
+     * Close the time_in_state and cpuidle files kept open between refreshes.
+     * A later refresh opens them again
+     */
+    public void close() {
+        synchronized (this.updateLock) {
+            for (SysfsFile file : this.allPolicyTimeInStateFiles) {
+                file.close();
+            }
+            this.idleReader.close();
+        }
+        this.instrumentation.close();
+    }
+
+    /**
+     * Apply baselines saved by an earlier run, one row per policy aligned with
+     * policyFrequencies, and the cpuidle baselines, one time and one usage row
+     * per core. Nothing is restored if bootId is not null and differs from
+     * getBootId(), since the device rebooted and its counters restarted.
+     * A policy whose frequency table differs from the one already read, or
+     * whose counters are already below the saved baseline because they were
+     * reset since, is left without a baseline; so is an idle state whose
+     * counters are below its saved baseline
+     *
+     * @param idleTimes  microseconds in every idle state of every core at the
+     *                   baseline, or null to keep the current idle baseline
+     * @param idleUsages entries into every idle state of every core, aligned
+     *                   with idleTimes
+     * @param bootId     getBootId() of the run that saved the baselines, or null if unknown
+     */
+    public void restoreBaselines(int[][] policyFrequencies, long[][] policyBaselines,
+                                 long[][] idleTimes, long[][] idleUsages, String bootId) {
+        synchronized (this.updateLock) {
+            if (policyFrequencies.length != this.topology.getPolicyCount()
+                    || policyBaselines.length != policyFrequencies.length) {
+                return;
+            }
+            if (bootId != null && this.bootId != null && !bootId.equals(this.bootId)) {
+                return;
+            }
+            CpuTimeInStateSnapshot current = this.snapshot;
+            CpuTimeInStateCheckpoint previousBaseline = this.baseline;
+            int[][] frequencies = new int[this.cpuCount][];
+            long[][] durations = new long[this.cpuCount][];
+            long[][] baselines = new long[this.cpuCount][];
+            int[][] baselineFrequencies = new int[this.cpuCount][];
+            long[][] baselineDurations = new long[this.cpuCount][];
+            int[] baselineEpochs = new int[this.cpuCount];
+            for (int cpuIndex = 0; cpuIndex < this.cpuCount; cpuIndex++) {
+                int policyIndex = this.topology.getPolicyOfCpu(cpuIndex);
+                frequencies[cpuIndex] = current.frequencyRow(cpuIndex);
+                durations[cpuIndex] = current.durationRow(cpuIndex);
+                baselines[cpuIndex] = current.baselineRow(cpuIndex);
+                if (previousBaseline != null) {
+                    baselineFrequencies[cpuIndex] = previousBaseline.frequencyRow(cpuIndex);
+                    baselineDurations[cpuIndex] = previousBaseline.durationRow(cpuIndex);
+                    baselineEpochs[cpuIndex] = previousBaseline.getEpoch(cpuIndex);
+                } else {
+                    baselineEpochs[cpuIndex] = CpuTimeInStateCheckpoint.NoEpoch;
+                }
+
+                long[] baseline = policyBaselines[policyIndex];
+                if (baseline == null || baseline.length != policyFrequencies[policyIndex].length) {
+                    continue;
+                }
+                if (current.getStateCount(cpuIndex) == 0) {
+                    // nothing read yet, show the baseline itself until the first refresh
+                    frequencies[cpuIndex] = policyFrequencies[policyIndex];
+                    durations[cpuIndex] = baseline;
+                } else if (!Arrays.equals(frequencies[cpuIndex], policyFrequencies[policyIndex])
+                        || !notBelow(durations[cpuIndex], baseline)) {
+                    continue;
+                }
+                baselines[cpuIndex] = baseline;
+                baselineFrequencies[cpuIndex] = frequencies[cpuIndex];
+                baselineDurations[cpuIndex] = baseline;
+                baselineEpochs[cpuIndex] = current.getEpoch(cpuIndex);
+            }
+            CpuIdleStates idleBaseline = idleTimes != null && idleUsages != null
+                    ? this.idleReader.of(idleTimes, idleUsages) : current.idleBaseline();
+            this.baseline = new CpuTimeInStateCheckpoint(null, current.getTimestamp(),
+                    baselineFrequencies, baselineDurations, baselineEpochs, idleBaseline);
+            publish(new CpuTimeInStateSnapshot(current.getTimestamp(), frequencies, durations,
+                    baselines, current.epochs(), current.idleStates(), idleBaseline));
+        }
+    }
+
+    /**
+     * Read the time_in_state of every policy, which contains both a frequency
+     * and a duration (time spent in that state), and publish it as a new
+     * snapshot. Each policy's file is read once and shared by its cores.
+     * The cpuidle counters of every core are read in the same pass
+     */
+    public void updateAllCpuTimeInState() throws CpuStateMonitorException {
+        synchronized (this.updateLock) {
+            long start = System.nanoTime();
+            long allocationMark = this.instrumentation.markAllocations();
+            try {
+                publish(readSnapshot(this.snapshot));
+            } catch (CpuStateMonitorException e) {
+                this.refreshFailureCount++;
+                throw e;
+            } finally {
+                this.refreshCount++;
+                this.refreshNanos += System.nanoTime() - start;
+                this.instrumentation.record(MonitorInstrumentation.Refresh, start);
+                this.instrumentation.recordRefreshAllocations(allocationMark);
+            }
+        }
+    }
+
+    /**
+     * @return number of refreshes since the monitor was created, failed ones included
+     */
+    public long getRefreshCount() {
+        return this.refreshCount;
+    }
+
+    /**
+     * @return number of refreshes that could not read any policy
+     */
+    public long getRefreshFailureCount() {
+        return this.refreshFailureCount;
+    }
+
+    /**
+     * @return time spent in refreshes since the monitor was created, in nanoseconds
+     */
+    public long getRefreshNanos() {
+        return this.refreshNanos;
+    }
+
+    /**
+     * @return the monitor's own latency histograms, allocation counts and CPU time
+     */
+    public MonitorInstrumentation getInstrumentation() {
+        return this.instrumentation;
+    }
+
+    /**
+     * @return number of live subscriptions
+     */
+    public int getSubscriberCount() {
+        return this.dispatcher.getSubscriberCount();
+    }
+
+    /**
+     * Parse every policy into its buffer and build a snapshot from them. A
+     * policy whose frequency table changed or whose counters went backwards
+     * since previous, which means they were reset underneath us, starts a new
+     * epoch, and the baseline only applies to cores still in its epoch. A
+     * policy whose file cannot be read, because its cores are offline for a
+     * moment, keeps its rows and epoch from previous so a brief hotplug does
+     * not throw away baselines, checkpoints and sampler history; the refresh
+     * only fails if no policy could be read at all
+     */
+    private CpuTimeInStateSnapshot readSnapshot(CpuTimeInStateSnapshot previous)
+            throws CpuStateMonitorException {
+        MonitorInstrumentation instrumentation = this.instrumentation;
+        long now = this.clock.elapsedRealtime();
+        // without cpuidle counters, estimate deep sleep from the time spent suspended
+        boolean estimateDeepSleep = !this.idleReader.isAvailable();
+        long sleepTime = (now - this.clock.uptimeMillis()) / 10;
+
+        int policyCount = this.allPolicyTimeInStates.length;
+        int[][] policyFrequencies = new int[policyCount][];
+        long[][] policyDurations = new long[policyCount][];
+        int[] policyEpochs = new int[policyCount];
+        int readCount = 0;
+        String lastErrorPath = null;
+
+        for (int policyIndex = 0; policyIndex < policyCount; policyIndex++) {
+            TimeInStateBuffer timeInStates = this.allPolicyTimeInStates[policyIndex];
+            SysfsFile timeInStateFile = this.allPolicyTimeInStateFiles[policyIndex];
+            int firstCpu = this.topology.getPolicyFirstCpu(policyIndex);
+            int[] previousFrequencies = previous.frequencyRow(firstCpu);
+            long[] previousDurations = previous.durationRow(firstCpu);
+            policyEpochs[policyIndex] = previous.getEpoch(firstCpu);
+            try {
+                long start = System.nanoTime();
+                if (!timeInStateFile.isOpen()) {
+                    timeInStateFile.open();
+                    start = instrumentation.record(MonitorInstrumentation.SysfsOpen, start);
+                }
+                ByteBuffer content = timeInStateFile.read();
+                start = instrumentation.record(MonitorInstrumentation.SysfsRead, start);
+                TimeInStateParser.parse(content, timeInStates);
+                if (estimateDeepSleep) {
+                    timeInStates.add(0, sleepTime);
+                }
+                timeInStates.sortByFrequencyDescending();
+                instrumentation.record(MonitorInstrumentation.Parse, start);
+                readCount++;
+            } catch (IOException e) {
+                // the policy's cores are offline for now, keep their last counters and epoch
+                policyFrequencies[policyIndex] = previousFrequencies;
+                policyDurations[policyIndex] = previousDurations;
+                lastErrorPath = timeInStateFile.getPath();
+                continue;
+            }
+
+            int stateCount = timeInStates.size();
+            int[] frequencies = previousFrequencies;
+            if (!sameFrequencies(previousFrequencies, timeInStates)) {
+                frequencies = new int[stateCount];
+                for (int i = 0; i < stateCount; i++) {
+                    frequencies[i] = timeInStates.frequencyAt(i);
+                }
+            }
+            long[] durations = new long[stateCount];
+            for (int i = 0; i < stateCount; i++) {
+                durations[i] = timeInStates.durationAt(i);
+            }
+            policyFrequencies[policyIndex] = frequencies;
+            policyDurations[policyIndex] = durations;
+
+            // counters going backwards were reset underneath us, as when the
+            // kernel tears the policy's stats down on hotplug
+            if (frequencies != previousFrequencies || !notBelow(durations, previousDurations)) {
+                policyEpochs[policyIndex]++;
+            }
+        }
+
+        if (readCount == 0) {
+            throw new CpuStateMonitorException("Problem reading \"" + lastErrorPath + "\" file");
+        }
+
+        long start = System.nanoTime();
+        CpuIdleStates idleStates = this.idleReader.read(previous.idleStates());
+        start = instrumentation.record(MonitorInstrumentation.IdleRead, start);
+
+        int[][] frequencies = new int[this.cpuCount][];
+        long[][] durations = new long[this.cpuCount][];
+        long[][] baselines = new long[this.cpuCount][];
+        int[] epochs = new int[this.cpuCount];
+        CpuTimeInStateCheckpoint baseline = this.baseline;
+        for (int cpuIndex = 0; cpuIndex < this.cpuCount; cpuIndex++) {
+            int policyIndex = this.topology.getPolicyOfCpu(cpuIndex);
+            frequencies[cpuIndex] = policyFrequencies[policyIndex];
+            durations[cpuIndex] = policyDurations[policyIndex];
+            epochs[cpuIndex] = policyEpochs[policyIndex];
+
+            // the baseline only applies within the epoch it was taken in
+            if (baseline != null && baseline.getEpoch(cpuIndex) == epochs[cpuIndex]
+                    && baseline.getStateCount(cpuIndex) == frequencies[cpuIndex].length) {
+                baselines[cpuIndex] = baseline.durationRow(cpuIndex);
+            }
+        }
+
+        CpuTimeInStateSnapshot snapshot = new CpuTimeInStateSnapshot(now, frequencies, durations,
+                baselines, epochs, idleStates, baseline == null ? null : baseline.idleStates());
+        instrumentation.record(MonitorInstrumentation.Delta, start);
+        return snapshot;
+    }
+
+    /**
+     * @return the trimmed content of path, or null if it cannot be read
+     */
+    private static String readBootId(String path) {
+        SysfsFile file = new SysfsFile(path);
+        try {
+            ByteBuffer content = file.read();
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            String bootId = new String(bytes, Ascii).trim();
+            return bootId.length() > 0 ? bootId : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static boolean sameFrequencies(int[] frequencies, TimeInStateBuffer timeInStates) {
+        if (frequencies.length != timeInStates.size()) {
+            return false;
+        }
+        for (int i = 0; i < frequencies.length; i++) {
+            if (frequencies[i] != timeInStates.frequencyAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean notBelow(long[] durations, long[] baseline) {
+        for (int i = 0; i < durations.length; i++) {
+            if (durations[i] < baseline[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
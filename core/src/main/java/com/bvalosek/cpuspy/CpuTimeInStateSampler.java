@@ -0,0 +1,451 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * CpuTimeInStateSampler subscribes to a CpuTimeInStateMonitor at a fixed
+ * interval and keeps the per-interval duration deltas of every policy in a fixed
+ * capacity ring buffer, so residency over a recent window can be answered from
+ * memory without touching sysfs again.
+ * <p>
+ * Deltas are stored once per cpufreq policy rather than once per core, since
+ * all cores of a policy share their counters. A change of any policy's
+ * frequency table, such as after hotplug, clears the ring.
+ * <p>
+ * Every sample is also rolled up into per-minute and per-hour tiers as it
+ * arrives. A range query takes whole hours from the hour tier, the minutes
+ * before the oldest of those from the minute tier and only the remainder
+ * from the raw ring, so even a day long window sums a few hundred slots.
+ * Where neither the raw ring nor a finer tier still reaches back to the
+ * start of the window, the bucket of the coarsest tier holding that start is
+ * added whole, widening the window by less than one bucket: a minute past
+ * the raw ring, an hour past the minute tier. The time returned as covered
+ * includes the widening. The results of recent queries are kept in a small
+ * LRU cache until the next sample arrives
+ */
+public class CpuTimeInStateSampler {
+
+    private static final int MinuteTierCapacity = 3 * 60;
+    private static final int HourTierCapacity = 7 * 24;
+    private static final int RangeCacheCapacity = 32;
+
+    private final CpuTimeInStateMonitor monitor;
+    private final long intervalMillis;
+    private final int capacity;
+
+    private CpuTimeInStateMonitor.Subscription subscription = null;
+
+    /**
+     * Picks the interval after every sample instead of intervalMillis, if set
+     */
+    private SamplingGovernor governor = null;
+
+    /**
+     * Runs the listener straight on the monitor's sampling thread
+     */
+    private static final Executor DirectExecutor = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final CpuTimeInStateMonitor.SnapshotListener listener =
+            new CpuTimeInStateMonitor.SnapshotListener() {
+                public void onSnapshot(CpuTimeInStateSnapshot snapshot) {
+                    sample(snapshot);
+                }
+
+                public void onError(CpuTimeInStateMonitor.CpuStateMonitorException error) {
+                    // skipped, the next sample covers this interval
+                }
+            };
+
+    /**
+     * Layout of one ring slot: the frequency row of every policy at the time
+     * the ring was last cleared and the offset of its deltas within a slot
+     */
+    private int[][] policyFrequencies = new int[0][];
+    private int[] policyOffsets = new int[0];
+    private int slotWidth = 0;
+
+    /**
+     * The ring itself: slotWidth deltas per slot, plus the elapsedRealtime at
+     * the end of each slot's interval and the length of that interval
+     */
+    private int[] deltas = new int[0];
+    private final long[] timestamps;
+    private final long[] lengths;
+    private int head = 0;
+    private int count = 0;
+
+    /**
+     * Rollups of the ring, coarsest first
+     */
+    private final TimeInStateRollup[] tiers = {
+            new TimeInStateRollup(60 * 60 * 1000, HourTierCapacity),
+            new TimeInStateRollup(60 * 1000, MinuteTierCapacity)
+    };
+
+    /**
+     * Bumped by every sample and layout change, cached ranges of an older
+     * generation are stale
+     */
+    private long generation = 0;
+    private final long[] covered = new long[1];
+
+    private final Map<RangeKey, CachedRange> rangeCache =
+            new LinkedHashMap<RangeKey, CachedRange>(RangeCacheCapacity, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<RangeKey, CachedRange> eldest) {
+                    return size() > RangeCacheCapacity;
+                }
+            };
+
+    private CpuTimeInStateSnapshot previous = null;
+
+    /**
+     * Optional persistent log every sample is also appended to
+     */
+    private volatile TimeInStateHistoryStore historyStore = null;
+
+    /**
+     * Optional energy estimate every sample is also priced into
+     */
+    private volatile EnergyEstimator energyEstimator = null;
+
+    /**
+     * @param intervalMillis time between two samples
+     * @param capacity       number of intervals kept, so the longest window
+     *                       that can be answered is capacity * intervalMillis
+     */
+    public CpuTimeInStateSampler(CpuTimeInStateMonitor monitor, long intervalMillis, int capacity) {
+        this.monitor = monitor;
+        this.intervalMillis = intervalMillis;
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.lengths = new long[capacity];
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Let governor adapt the interval from the next start on, or go back to
+     * intervalMillis if governor is null. Intervals vary with a governor, so
+     * the ring then spans capacity samples rather than a fixed time
+     */
+    public synchronized void setGovernor(SamplingGovernor governor) {
+        this.governor = governor;
+    }
+
+    public synchronized SamplingGovernor getGovernor() {
+        return this.governor;
+    }
+
+    /**
+     * Also append every sample to store, or stop doing so if store is null
+     */
+    public void setHistoryStore(TimeInStateHistoryStore store) {
+        this.historyStore = store;
+    }
+
+    /**
+     * Also price every sample into estimator, or stop doing so if estimator is null
+     */
+    public void setEnergyEstimator(EnergyEstimator estimator) {
+        this.energyEstimator = estimator;
+    }
+
+    public EnergyEstimator getEnergyEstimator() {
+        return this.energyEstimator;
+    }
+
+    /**
+     * Start sampling, does nothing if already started
+     */
+    public synchronized void start() {
+        if (this.subscription == null) {
+            this.subscription = this.governor != null
+                    ? this.monitor.subscribe(this.listener, this.governor, DirectExecutor)
+                    : this.monitor.subscribe(this.listener, this.intervalMillis, DirectExecutor);
+        }
+    }
+
+    /**
+     * Stop sampling, keeping the samples gathered so far
+     */
+    public synchronized void stop() {
+        if (this.subscription != null) {
+            this.subscription.cancel();
+            this.subscription = null;
+        }
+    }
+
+    /**
+     * Record the deltas of a freshly read snapshot, price it into the energy
+     * estimator and append it to the history store, if any
+     */
+    private void sample(CpuTimeInStateSnapshot snapshot) {
+        record(snapshot);
+
+        EnergyEstimator estimator = this.energyEstimator;
+        if (estimator != null) {
+            estimator.update(snapshot);
+        }
+
+        TimeInStateHistoryStore store = this.historyStore;
+        if (store != null) {
+            try {
+                store.appendSample(System.currentTimeMillis(), snapshot, this.monitor.getTopology());
+            } catch (IOException e) {
+                // the in-memory ring still has the sample, try the store again next time
+            }
+        }
+    }
+
+    /**
+     * Append the deltas between the last recorded snapshot and current
+     */
+    public synchronized void record(CpuTimeInStateSnapshot current) {
+        CpuTopology topology = this.monitor.getTopology();
+        if (this.previous == null || !sameLayout(current, topology)) {
+            resetLayout(current, topology);
+            this.previous = current;
+            return;
+        }
+
+        int slot = this.head;
+        int base = slot * this.slotWidth;
+        for (int policyIndex = 0; policyIndex < this.policyOffsets.length; policyIndex++) {
+            int cpuIndex = topology.getPolicyFirstCpu(policyIndex);
+            int offset = base + this.policyOffsets[policyIndex];
+            int stateCount = current.getStateCount(cpuIndex);
+            for (int i = 0; i < stateCount; i++) {
+                long delta = current.getRawDuration(cpuIndex, i) - this.previous.getRawDuration(cpuIndex, i);
+                this.deltas[offset + i] = delta > 0 ? (int) Math.min(delta, Integer.MAX_VALUE) : 0;
+            }
+        }
+        this.timestamps[slot] = current.getTimestamp();
+        this.lengths[slot] = current.getTimestamp() - this.previous.getTimestamp();
+        for (TimeInStateRollup tier : this.tiers) {
+            tier.add(this.timestamps[slot], this.lengths[slot], this.deltas, base);
+        }
+        this.generation++;
+        this.head = (slot + 1) % this.capacity;
+        if (this.count < this.capacity) {
+            this.count++;
+        }
+        this.previous = current;
+    }
+
+    /**
+     * @return number of intervals currently held
+     */
+    public synchronized int getSampleCount() {
+        return this.count;
+    }
+
+    /**
+     * @return the frequencies that getResidency reports for cpuIndex, or an
+     * empty array if nothing has been sampled for it yet
+     */
+    public synchronized int[] getFrequencies(int cpuIndex) {
+        int[] frequencies = policyFrequenciesOf(cpuIndex);
+        return frequencies == null ? new int[0] : frequencies.clone();
+    }
+
+    /**
+     * Sum the durations of every state of cpuIndex over the intervals that
+     * ended within windowMillis of the latest sample. Whole hours and minutes
+     * of the window are read from the rollups, and repeating a query before
+     * the next sample is answered from the cache. Windows longer than the raw
+     * ring start at the minute, and windows longer than the minute tier at
+     * the hour, before the cutoff; beyond the hour tier they are cut short
+     *
+     * @param residency receives one duration in 10ms units per entry of
+     *                  getFrequencies(cpuIndex), must be at least that long
+     * @return the time actually covered by the summed intervals, in milliseconds
+     */
+    public synchronized long getResidency(int cpuIndex, long windowMillis, long[] residency) {
+        int[] frequencies = policyFrequenciesOf(cpuIndex);
+        if (frequencies == null) {
+            return 0;
+        }
+        int stateCount = frequencies.length;
+        Arrays.fill(residency, 0, stateCount, 0);
+        if (this.count == 0) {
+            return 0;
+        }
+
+        RangeKey key = new RangeKey(cpuIndex, windowMillis);
+        CachedRange cached = this.rangeCache.get(key);
+        if (cached != null && cached.generation == this.generation) {
+            System.arraycopy(cached.residency, 0, residency, 0, stateCount);
+            return cached.covered;
+        }
+
+        int offset = this.policyOffsets[this.monitor.getTopology().getPolicyOfCpu(cpuIndex)];
+        int newest = (this.head - 1 + this.capacity) % this.capacity;
+        long cutoff = this.timestamps[newest] - windowMillis;
+        this.covered[0] = 0;
+
+        // each tier covers the part of the window older than what the coarser
+        // ones covered, and the whole bucket at the cutoff if nothing finer reaches it
+        long end = Long.MAX_VALUE;
+        for (int t = 0; t < this.tiers.length; t++) {
+            long finerReach = rawReach();
+            for (int f = t + 1; f < this.tiers.length; f++) {
+                finerReach = Math.min(finerReach, this.tiers[f].getReach());
+            }
+            end = this.tiers[t].sum(cutoff, end, finerReach > cutoff, offset, stateCount,
+                    residency, this.covered);
+        }
+        for (int n = newestBefore(end); n < this.count; n++) {
+            int slot = (newest - n + this.capacity) % this.capacity;
+            if (this.timestamps[slot] <= cutoff) {
+                break;
+            }
+            int base = slot * this.slotWidth + offset;
+            for (int i = 0; i < stateCount; i++) {
+                residency[i] += this.deltas[base + i];
+            }
+            this.covered[0] += this.lengths[slot];
+        }
+
+        if (cached == null || cached.residency.length < stateCount) {
+            cached = new CachedRange(new long[stateCount]);
+            this.rangeCache.put(key, cached);
+        }
+        System.arraycopy(residency, 0, cached.residency, 0, stateCount);
+        cached.covered = this.covered[0];
+        cached.generation = this.generation;
+        return cached.covered;
+    }
+
+    /**
+     * @return start of the oldest interval held, after which the ring has every
+     * sample, or Long.MIN_VALUE if no slot was overwritten since the last reset
+     */
+    private long rawReach() {
+        if (this.count < this.capacity) {
+            return Long.MIN_VALUE;
+        }
+        return this.timestamps[this.head] - this.lengths[this.head];
+    }
+
+    /**
+     * @return how many slots back from the newest the first one that ended
+     * before endMillis is, or count if there is none. The slots are in time
+     * order, so this is a binary search
+     */
+    private int newestBefore(long endMillis) {
+        int newest = (this.head - 1 + this.capacity) % this.capacity;
+        int low = 0;
+        int high = this.count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int slot = (newest - middle + this.capacity) % this.capacity;
+            if (this.timestamps[slot] < endMillis) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    private int[] policyFrequenciesOf(int cpuIndex) {
+        CpuTopology topology = this.monitor.getTopology();
+        if (cpuIndex < 0 || cpuIndex >= topology.getCpuCount()) {
+            return null;
+        }
+        int policyIndex = topology.getPolicyOfCpu(cpuIndex);
+        return policyIndex < this.policyFrequencies.length ? this.policyFrequencies[policyIndex] : null;
+    }
+
+    private boolean sameLayout(CpuTimeInStateSnapshot current, CpuTopology topology) {
+        if (this.policyFrequencies.length != topology.getPolicyCount()) {
+            return false;
+        }
+        for (int policyIndex = 0; policyIndex < this.policyFrequencies.length; policyIndex++) {
+            if (current.frequencyRow(topology.getPolicyFirstCpu(policyIndex))
+                    != this.policyFrequencies[policyIndex]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Size the ring after the frequency tables of current and drop all samples
+     */
+    private void resetLayout(CpuTimeInStateSnapshot current, CpuTopology topology) {
+        int policyCount = topology.getPolicyCount();
+        this.policyFrequencies = new int[policyCount][];
+        this.policyOffsets = new int[policyCount];
+        int width = 0;
+        for (int policyIndex = 0; policyIndex < policyCount; policyIndex++) {
+            this.policyFrequencies[policyIndex] = current.frequencyRow(topology.getPolicyFirstCpu(policyIndex));
+            this.policyOffsets[policyIndex] = width;
+            width += this.policyFrequencies[policyIndex].length;
+        }
+        if (width != this.slotWidth) {
+            this.slotWidth = width;
+            this.deltas = new int[width * this.capacity];
+        }
+        this.head = 0;
+        this.count = 0;
+        for (TimeInStateRollup tier : this.tiers) {
+            tier.reset(width);
+        }
+        this.rangeCache.clear();
+        this.generation++;
+    }
+
+    private static final class RangeKey {
+        final int cpuIndex;
+        final long windowMillis;
+
+        RangeKey(int cpuIndex, long windowMillis) {
+            this.cpuIndex = cpuIndex;
+            this.windowMillis = windowMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RangeKey)) {
+                return false;
+            }
+            RangeKey other = (RangeKey) o;
+            return this.cpuIndex == other.cpuIndex && this.windowMillis == other.windowMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.cpuIndex + (int) (this.windowMillis ^ (this.windowMillis >>> 32));
+        }
+    }
+
+    private static final class CachedRange {
+        final long[] residency;
+        long covered;
+        long generation;
+
+        CachedRange(long[] residency) {
+            this.residency = residency;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+/**
+ * CpuTimeInStateSnapshot is an immutable view of the time-in-state of every
+ * core at one refresh. Each core has a row of frequencies (sorted descending,
+ * deep sleep last as frequency 0), a row of durations in 10ms units and an
+ * optional row of baseline durations that are subtracted from the totals.
+ * Deep sleep is only estimated when the kernel has no cpuidle counters;
+ * otherwise each core also has its idle states, whose times are part of the
+ * time spent at the frequencies rather than added to it.
+ * <p>
+ * The counters of every core belong to an epoch, which the monitor advances
+ * whenever they were reset underneath it; see CpuTimeInStateCheckpoint.
+ * <p>
+ * Rows are shared between the cores of one cpufreq policy and between
+ * successive snapshots when nothing changed, and must never be written to
+ * once a snapshot has been built
+ */
+public final class CpuTimeInStateSnapshot {
+
+    private static final int[] NoFrequencies = new int[0];
+    private static final long[] NoDurations = new long[0];
+
+    private final long timestamp;
+    private final int[][] frequencies;
+    private final long[][] durations;
+    private final long[][] baselines;
+    private final int[] epochs;
+    private final CpuIdleStates idle;
+    private final CpuIdleStates idleBaseline;
+
+    /**
+     * @param timestamp   elapsedRealtime at which the durations were read
+     * @param frequencies frequency row of every core
+     * @param durations   duration row of every core, aligned with its frequencies
+     * @param baselines   baseline row of every core, aligned with its
+     *                    frequencies, or null entries for cores without one
+     * @param epochs      epoch of the counters of every core
+     * @param idle         cpuidle counters read at the same time
+     * @param idleBaseline cpuidle counters subtracted from idle, or null
+     */
+    CpuTimeInStateSnapshot(long timestamp, int[][] frequencies, long[][] durations,
+                           long[][] baselines, int[] epochs, CpuIdleStates idle,
+                           CpuIdleStates idleBaseline) {
+        this.timestamp = timestamp;
+        this.frequencies = frequencies;
+        this.durations = durations;
+        this.baselines = baselines;
+        this.epochs = epochs;
+        this.idle = idle;
+        this.idleBaseline = idleBaseline;
+    }
+
+    /**
+     * @return a snapshot of cpuCount cores without any states
+     */
+    static CpuTimeInStateSnapshot empty(int cpuCount) {
+        int[][] frequencies = new int[cpuCount][];
+        long[][] durations = new long[cpuCount][];
+        for (int i = 0; i < cpuCount; i++) {
+            frequencies[i] = NoFrequencies;
+            durations[i] = NoDurations;
+        }
+        return new CpuTimeInStateSnapshot(0, frequencies, durations, new long[cpuCount][],
+                new int[cpuCount], CpuIdleStates.empty(cpuCount), null);
+    }
+
+    /**
+     * @return elapsedRealtime in milliseconds at which this snapshot was read
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public int getCpuCount() {
+        return this.frequencies.length;
+    }
+
+    /**
+     * @return number of states of cpuIndex, or 0 if there is no such core
+     */
+    public int getStateCount(int cpuIndex) {
+        if (cpuIndex < 0 || cpuIndex >= this.frequencies.length) {
+            return 0;
+        }
+        return this.frequencies[cpuIndex].length;
+    }
+
+    /**
+     * @return frequency in kHz of state stateIndex of cpuIndex, 0 for deep sleep
+     */
+    public int getFrequency(int cpuIndex, int stateIndex) {
+        return this.frequencies[cpuIndex][stateIndex];
+    }
+
+    /**
+     * @return duration of state stateIndex of cpuIndex since boot
+     */
+    public long getRawDuration(int cpuIndex, int stateIndex) {
+        return this.durations[cpuIndex][stateIndex];
+    }
+
+    /**
+     * @return baseline of state stateIndex of cpuIndex, 0 if the core has none
+     */
+    public long getBaseline(int cpuIndex, int stateIndex) {
+        long[] baseline = this.baselines[cpuIndex];
+        return baseline == null ? 0 : baseline[stateIndex];
+    }
+
+    /**
+     * @return duration of state stateIndex of cpuIndex since its baseline
+     */
+    public long getDuration(int cpuIndex, int stateIndex) {
+        return getRawDuration(cpuIndex, stateIndex) - getBaseline(cpuIndex, stateIndex);
+    }
+
+    /**
+     * @return sum of all state durations of cpuIndex since its baseline,
+     * including deep sleep, or 0 if there is no such core
+     */
+    public long getTotalDuration(int cpuIndex) {
+        int stateCount = getStateCount(cpuIndex);
+        if (stateCount == 0) {
+            return 0;
+        }
+        long[] duration = this.durations[cpuIndex];
+        long[] baseline = this.baselines[cpuIndex];
+        long total = 0;
+        for (int i = 0; i < stateCount; i++) {
+            total += duration[i];
+            if (baseline != null) {
+                total -= baseline[i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return true if cpuIndex has a baseline subtracted from its durations
+     */
+    public boolean hasBaseline(int cpuIndex) {
+        return this.baselines[cpuIndex] != null;
+    }
+
+    /**
+     * @return epoch of the counters of cpuIndex, which changes whenever they
+     * were reset or the core's frequency table changed
+     */
+    public int getEpoch(int cpuIndex) {
+        return this.epochs[cpuIndex];
+    }
+
+    /**
+     * @return number of cpuidle states of cpuIndex, 0 if it has none or there
+     * is no such core
+     */
+    public int getIdleStateCount(int cpuIndex) {
+        return this.idle.getStateCount(cpuIndex);
+    }
+
+    /**
+     * @return the name of idle state stateIndex of cpuIndex, like "WFI"
+     */
+    public String getIdleStateName(int cpuIndex, int stateIndex) {
+        return this.idle.getName(cpuIndex, stateIndex);
+    }
+
+    /**
+     * @return microseconds spent in idle state stateIndex of cpuIndex since
+     * the baseline, or since boot if the state has none
+     */
+    public long getIdleTime(int cpuIndex, int stateIndex) {
+        long time = this.idle.getTime(cpuIndex, stateIndex);
+        if (hasIdleBaseline(cpuIndex, stateIndex)) {
+            time -= this.idleBaseline.getTime(cpuIndex, stateIndex);
+        }
+        return time;
+    }
+
+    /**
+     * @return number of entries into idle state stateIndex of cpuIndex since
+     * the baseline, or since boot if the state has none
+     */
+    public long getIdleUsage(int cpuIndex, int stateIndex) {
+        long usage = this.idle.getUsage(cpuIndex, stateIndex);
+        if (hasIdleBaseline(cpuIndex, stateIndex)) {
+            usage -= this.idleBaseline.getUsage(cpuIndex, stateIndex);
+        }
+        return usage;
+    }
+
+    public boolean isIdleStateDisabled(int cpuIndex, int stateIndex) {
+        return this.idle.isDisabled(cpuIndex, stateIndex);
+    }
+
+    /**
+     * A baseline only applies while the core has the same states and its
+     * counters have not gone backwards since
+     */
+    private boolean hasIdleBaseline(int cpuIndex, int stateIndex) {
+        CpuIdleStates baseline = this.idleBaseline;
+        return baseline != null
+                && baseline.getStateCount(cpuIndex) == this.idle.getStateCount(cpuIndex)
+                && baseline.getTime(cpuIndex, stateIndex) <= this.idle.getTime(cpuIndex, stateIndex)
+                && baseline.getUsage(cpuIndex, stateIndex) <= this.idle.getUsage(cpuIndex, stateIndex);
+    }
+
+    int[] frequencyRow(int cpuIndex) {
+        return this.frequencies[cpuIndex];
+    }
+
+    long[] durationRow(int cpuIndex) {
+        return this.durations[cpuIndex];
+    }
+
+    long[] baselineRow(int cpuIndex) {
+        return this.baselines[cpuIndex];
+    }
+
+    int[] epochs() {
+        return this.epochs;
+    }
+
+    CpuIdleStates idleStates() {
+        return this.idle;
+    }
+
+    CpuIdleStates idleBaseline() {
+        return this.idleBaseline;
+    }
+
+    /**
+     * @return a snapshot with the same counters and the given baselines
+     */
+    CpuTimeInStateSnapshot withBaselines(long[][] baselines, CpuIdleStates idleBaseline) {
+        return new CpuTimeInStateSnapshot(this.timestamp, this.frequencies, this.durations,
+                baselines, this.epochs, this.idle, idleBaseline);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * CpuTopology groups the cores into cpufreq policies. Every core of a policy
+ * exposes the same time_in_state statistics, so the monitor only has to read
+ * and parse one file per policy and can share the result with its cores
+ */
+public class CpuTopology {
+
+    private static final String PolicyParentDirectoryName = "cpufreq";
+    private static final String PolicyDirectoryPrefix = "policy";
+    private static final String CoreDirectoryFormatterString = "cpu%d/cpufreq";
+    private static final String TimeInStateFileName = "stats/time_in_state";
+    private static final String TimeInStateFormatterString = "cpu%d/cpufreq/stats/time_in_state";
+
+    private final int cpuCount;
+    private final int[] policyOfCpu;
+    private final int[][] policyCpus;
+    private final String[] policyTimeInStatePaths;
+
+    private CpuTopology(int cpuCount, int[] policyOfCpu, int[][] policyCpus,
+                        String[] policyTimeInStatePaths) {
+        this.cpuCount = cpuCount;
+        this.policyOfCpu = policyOfCpu;
+        this.policyCpus = policyCpus;
+        this.policyTimeInStatePaths = policyTimeInStatePaths;
+    }
+
+    /**
+     * @return number of cores covered by this topology
+     */
+    public int getCpuCount() {
+        return this.cpuCount;
+    }
+
+    /**
+     * @return number of distinct cpufreq policies
+     */
+    public int getPolicyCount() {
+        return this.policyCpus.length;
+    }
+
+    /**
+     * @return the policy index cpuIndex belongs to
+     */
+    public int getPolicyOfCpu(int cpuIndex) {
+        return this.policyOfCpu[cpuIndex];
+    }
+
+    /**
+     * @return the cores sharing policyIndex, in ascending order
+     */
+    public int[] getPolicyCpus(int policyIndex) {
+        return this.policyCpus[policyIndex].clone();
+    }
+
+    /**
+     * @return the lowest numbered core of policyIndex
+     */
+    public int getPolicyFirstCpu(int policyIndex) {
+        return this.policyCpus[policyIndex][0];
+    }
+
+    /**
+     * @return path of the time_in_state file to read for policyIndex
+     */
+    public String getPolicyTimeInStatePath(int policyIndex) {
+        return this.policyTimeInStatePaths[policyIndex];
+    }
+
+    /**
+     * @return path of the cpufreq directory of policyIndex, holding its
+     * scaling_* and cpuinfo_* files
+     */
+    public String getPolicyPath(int policyIndex) {
+        return new File(getPolicyStatsPath(policyIndex)).getParent();
+    }
+
+    /**
+     * @return path of the stats directory of policyIndex, holding its
+     * time_in_state, trans_table and total_trans files
+     */
+    public String getPolicyStatsPath(int policyIndex) {
+        return new File(this.policyTimeInStatePaths[policyIndex]).getParent();
+    }
+
+    /**
+     * Discover the cores and policies under cpuRoot (normally
+     * /sys/devices/system/cpu). The core count comes from a single read of
+     * the possible file; only if that cannot be read are the cores probed one
+     * by one for a time_in_state file
+     */
+    public static CpuTopology discover(File cpuRoot) {
+        int[] possible = readCpuList(new File(cpuRoot, "possible"));
+        int cpuCount = 0;
+        if (possible != null && possible.length > 0) {
+            for (int cpu : possible) {
+                cpuCount = Math.max(cpuCount, cpu + 1);
+            }
+        } else {
+            while (new File(cpuRoot, String.format(Locale.US, TimeInStateFormatterString, cpuCount)).exists()) {
+                cpuCount++;
+            }
+        }
+        return discover(cpuRoot, cpuCount);
+    }
+
+    /**
+     * Group cpuCount cores under cpuRoot into policies. The cpufreq/policyN
+     * directories are preferred; older kernels fall back to the related_cpus
+     * or affected_cpus file of every online core, and any other core is
+     * treated as its own policy
+     */
+    public static CpuTopology discover(File cpuRoot, int cpuCount) {
+        int[] policyOfCpu = new int[cpuCount];
+        Arrays.fill(policyOfCpu, -1);
+        List<int[]> policyCpus = new ArrayList<>();
+        List<String> policyPaths = new ArrayList<>();
+
+        for (int policy : listPolicies(new File(cpuRoot, PolicyParentDirectoryName))) {
+            File policyDirectory = new File(cpuRoot,
+                    PolicyParentDirectoryName + "/" + PolicyDirectoryPrefix + policy);
+            addPolicy(readRelatedCpus(policyDirectory, policy),
+                    new File(policyDirectory, TimeInStateFileName).getPath(),
+                    policyOfCpu, policyCpus, policyPaths);
+        }
+
+        int[] online = readCpuList(new File(cpuRoot, "online"));
+        boolean[] isOnline = new boolean[cpuCount];
+        if (online == null) {
+            Arrays.fill(isOnline, true);
+        } else {
+            for (int cpu : online) {
+                if (cpu >= 0 && cpu < cpuCount) {
+                    isOnline[cpu] = true;
+                }
+            }
+        }
+
+        for (int cpu = 0; cpu < cpuCount; cpu++) {
+            if (policyOfCpu[cpu] >= 0) {
+                continue;
+            }
+            File coreDirectory = new File(cpuRoot,
+                    String.format(Locale.US, CoreDirectoryFormatterString, cpu));
+            addPolicy(isOnline[cpu] ? readRelatedCpus(coreDirectory, cpu) : new int[]{cpu},
+                    new File(coreDirectory, TimeInStateFileName).getPath(),
+                    policyOfCpu, policyCpus, policyPaths);
+        }
+
+        return new CpuTopology(cpuCount, policyOfCpu,
+                policyCpus.toArray(new int[policyCpus.size()][]),
+                policyPaths.toArray(new String[policyPaths.size()]));
+    }
+
+    /**
+     * @return the numbers of the policyN directories in cpufreqDirectory, in
+     * ascending order, read with a single directory listing
+     */
+    private static int[] listPolicies(File cpufreqDirectory) {
+        String[] names = cpufreqDirectory.list();
+        if (names == null) {
+            return new int[0];
+        }
+        int[] policies = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith(PolicyDirectoryPrefix)) {
+                continue;
+            }
+            try {
+                policies[count] = Integer.parseInt(name.substring(PolicyDirectoryPrefix.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // not a policy directory
+            }
+        }
+        policies = Arrays.copyOf(policies, count);
+        Arrays.sort(policies);
+        return policies;
+    }
+
+    /**
+     * Register a policy for the not yet assigned cores among cpus
+     */
+    private static void addPolicy(int[] cpus, String timeInStatePath, int[] policyOfCpu,
+                                  List<int[]> policyCpus, List<String> policyPaths) {
+        int policyIndex = policyCpus.size();
+        int[] members = new int[cpus.length];
+        int memberCount = 0;
+        for (int cpu : cpus) {
+            if (cpu >= 0 && cpu < policyOfCpu.length && policyOfCpu[cpu] < 0) {
+                policyOfCpu[cpu] = policyIndex;
+                members[memberCount++] = cpu;
+            }
+        }
+        if (memberCount == 0) {
+            return;
+        }
+        policyCpus.add(Arrays.copyOf(members, memberCount));
+        policyPaths.add(timeInStatePath);
+    }
+
+    /**
+     * @return the cores listed in related_cpus, or affected_cpus, of a cpufreq
+     * directory, or just fallbackCpu if neither can be read
+     */
+    private static int[] readRelatedCpus(File cpufreqDirectory, int fallbackCpu) {
+        for (String name : new String[]{"related_cpus", "affected_cpus"}) {
+            int[] cpus = readCpuList(new File(cpufreqDirectory, name));
+            if (cpus != null && cpus.length > 0) {
+                return cpus;
+            }
+        }
+        return new int[]{fallbackCpu};
+    }
+
+    /**
+     * @return the cores listed in a sysfs cpu list file, or null if it cannot be read
+     */
+    static int[] readCpuList(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = reader.readLine();
+                return line == null ? new int[0] : parseCpuList(line);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse a cpu list in either of the kernel's formats, "0 1 2 3" as used
+     * by related_cpus or "0-3,6" as used by possible and online
+     */
+    static int[] parseCpuList(String list) {
+        int[] cpus = new int[8];
+        int count = 0;
+        for (String token : list.trim().split("[\\s,]+")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            int dash = token.indexOf('-');
+            int first;
+            int last;
+            try {
+                first = Integer.parseInt(dash < 0 ? token : token.substring(0, dash));
+                last = dash < 0 ? first : Integer.parseInt(token.substring(dash + 1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            for (int cpu = first; cpu <= last; cpu++) {
+                if (count == cpus.length) {
+                    cpus = Arrays.copyOf(cpus, count * 2);
+                }
+                cpus[count++] = cpu;
+            }
+        }
+        return Arrays.copyOf(cpus, count);
+    }
+}
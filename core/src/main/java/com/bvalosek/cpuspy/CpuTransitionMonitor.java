@@ -0,0 +1,118 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * CpuTransitionMonitor reads the trans_table and total_trans files of every
+ * cpufreq policy, which count how often the policy switched from one
+ * frequency to another. A governor bouncing between two operating points
+ * shows up here while its residency looks unremarkable. The files are kept
+ * open between refreshes and each policy has its own parser, so a refresh
+ * only allocates the matrices of the new snapshot
+ */
+public class CpuTransitionMonitor {
+
+    private static final String TransTableFileName = "trans_table";
+    private static final String TotalTransFileName = "total_trans";
+
+    private final CpuTopology topology;
+    private final MonitorClock clock;
+
+    private final SysfsFile[] transTableFiles;
+    private final SysfsFile[] totalTransFiles;
+    private final TransitionTableParser[] parsers;
+
+    private volatile CpuTransitionSnapshot snapshot;
+
+    /**
+     * @param topology the policies to read, normally the one of the CpuTimeInStateMonitor
+     * @param clock    source of the snapshot timestamps
+     */
+    public CpuTransitionMonitor(CpuTopology topology, MonitorClock clock) {
+        this.topology = topology;
+        this.clock = clock;
+
+        int policyCount = topology.getPolicyCount();
+        this.transTableFiles = new SysfsFile[policyCount];
+        this.totalTransFiles = new SysfsFile[policyCount];
+        this.parsers = new TransitionTableParser[policyCount];
+        int[][] frequencies = new int[policyCount][];
+        long[][] counts = new long[policyCount][];
+        for (int i = 0; i < policyCount; i++) {
+            String statsPath = topology.getPolicyStatsPath(i);
+            this.transTableFiles[i] = new SysfsFile(new File(statsPath, TransTableFileName).getPath());
+            this.totalTransFiles[i] = new SysfsFile(new File(statsPath, TotalTransFileName).getPath());
+            this.parsers[i] = new TransitionTableParser();
+            frequencies[i] = new int[0];
+            counts[i] = new long[0];
+        }
+        this.snapshot = new CpuTransitionSnapshot(0, 0, frequencies, counts, new long[policyCount]);
+    }
+
+    public CpuTopology getTopology() {
+        return this.topology;
+    }
+
+    /**
+     * @return the most recently read transition counts, since the stats of
+     * each policy were last reset
+     */
+    public CpuTransitionSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Read the transitions of every policy and publish them as a new snapshot.
+     * A policy whose files cannot be read, because its cores are offline or
+     * the kernel has no transition stats, comes back without states
+     *
+     * @return the new snapshot, take its since() the previous one for a delta
+     */
+    public synchronized CpuTransitionSnapshot update() {
+        long now = this.clock.elapsedRealtime();
+        int policyCount = this.parsers.length;
+        int[][] frequencies = new int[policyCount][];
+        long[][] counts = new long[policyCount][];
+        long[] totals = new long[policyCount];
+
+        for (int policyIndex = 0; policyIndex < policyCount; policyIndex++) {
+            TransitionTableParser parser = this.parsers[policyIndex];
+            try {
+                if (!parser.parse(this.transTableFiles[policyIndex].read())) {
+                    throw new IOException("No transition table");
+                }
+                totals[policyIndex] = TimeInStateParser.parseNumber(this.totalTransFiles[policyIndex].read());
+            } catch (IOException e) {
+                frequencies[policyIndex] = new int[0];
+                counts[policyIndex] = new long[0];
+                continue;
+            }
+            // the parser keeps the same frequency row until the table changes
+            frequencies[policyIndex] = parser.getFrequencies();
+            counts[policyIndex] = parser.getCounts().clone();
+        }
+
+        CpuTransitionSnapshot current = new CpuTransitionSnapshot(now, now, frequencies, counts, totals);
+        this.snapshot = current;
+        return current;
+    }
+
+    /**
+     * Close the files kept open between refreshes
+     */
+    public synchronized void close() {
+        for (int i = 0; i < this.parsers.length; i++) {
+            this.transTableFiles[i].close();
+            this.totalTransFiles[i].close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+/**
+ * CpuTransitionSnapshot is an immutable view of the frequency transitions of
+ * every cpufreq policy, either counted since the policy's stats were last
+ * reset or over the interval between two snapshots. Each policy has a dense
+ * square matrix whose indexes follow its frequencies sorted descending, the
+ * same order as the time-in-state rows, and the total from total_trans.
+ * <p>
+ * Rows are shared between successive snapshots when nothing changed, and
+ * must never be written to once a snapshot has been built
+ */
+public final class CpuTransitionSnapshot {
+
+    private final long timestamp;
+    private final long intervalMillis;
+    private final int[][] frequencies;
+    private final long[][] counts;
+    private final long[] totals;
+
+    /**
+     * @param timestamp      elapsedRealtime at which the counts were read
+     * @param intervalMillis time the counts were gathered over
+     * @param frequencies    descending frequencies of every policy
+     * @param counts         row major transition matrix of every policy
+     * @param totals         total number of transitions of every policy
+     */
+    CpuTransitionSnapshot(long timestamp, long intervalMillis, int[][] frequencies,
+                          long[][] counts, long[] totals) {
+        this.timestamp = timestamp;
+        this.intervalMillis = intervalMillis;
+        this.frequencies = frequencies;
+        this.counts = counts;
+        this.totals = totals;
+    }
+
+    /**
+     * @return elapsedRealtime in milliseconds at which this snapshot was read
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * @return time the counts were gathered over, the time since boot for a
+     * snapshot that is not a delta
+     */
+    public long getIntervalMillis() {
+        return this.intervalMillis;
+    }
+
+    public int getPolicyCount() {
+        return this.frequencies.length;
+    }
+
+    /**
+     * @return number of frequencies of policyIndex, 0 if its table could not be read
+     */
+    public int getStateCount(int policyIndex) {
+        return this.frequencies[policyIndex].length;
+    }
+
+    /**
+     * @return frequency in kHz of stateIndex of policyIndex
+     */
+    public int getFrequency(int policyIndex, int stateIndex) {
+        return this.frequencies[policyIndex][stateIndex];
+    }
+
+    /**
+     * @return the index of frequency in policyIndex, or -1 if it has no such state
+     */
+    public int indexOf(int policyIndex, int frequency) {
+        int[] row = this.frequencies[policyIndex];
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] == frequency) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of transitions of policyIndex from state from to state to
+     */
+    public long getCount(int policyIndex, int from, int to) {
+        return this.counts[policyIndex][from * this.frequencies[policyIndex].length + to];
+    }
+
+    /**
+     * @return number of transitions of policyIndex as counted by total_trans
+     */
+    public long getTotalTransitions(int policyIndex) {
+        return this.totals[policyIndex];
+    }
+
+    /**
+     * @return transitions per second of policyIndex over the interval
+     */
+    public double getTransitionsPerSecond(int policyIndex) {
+        if (this.intervalMillis <= 0) {
+            return 0;
+        }
+        return this.totals[policyIndex] * 1000.0 / this.intervalMillis;
+    }
+
+    /**
+     * Find the most frequent transitions of policyIndex, keeping the
+     * from.length hottest. Costs one pass over the matrix
+     *
+     * @param from        receives the state each transition left, hottest first
+     * @param to          receives the state each transition entered
+     * @param transitions receives the number of times each happened
+     * @return the number of entries filled in, transitions that never
+     * happened are left out
+     */
+    public int getHottestTransitions(int policyIndex, int[] from, int[] to, long[] transitions) {
+        int limit = from.length;
+        if (limit == 0) {
+            return 0;
+        }
+        int stateCount = this.frequencies[policyIndex].length;
+        long[] matrix = this.counts[policyIndex];
+        int count = 0;
+        for (int cell = 0; cell < matrix.length; cell++) {
+            long value = matrix[cell];
+            if (value <= 0 || (count == limit && value <= transitions[count - 1])) {
+                continue;
+            }
+
+            // insert into the sorted top list, dropping its last entry if full
+            int index = count < limit ? count++ : count - 1;
+            while (index > 0 && transitions[index - 1] < value) {
+                from[index] = from[index - 1];
+                to[index] = to[index - 1];
+                transitions[index] = transitions[index - 1];
+                index--;
+            }
+            from[index] = cell / stateCount;
+            to[index] = cell % stateCount;
+            transitions[index] = value;
+        }
+        return count;
+    }
+
+    /**
+     * @return the transitions that happened between earlier and this
+     * snapshot. A policy whose frequencies changed or whose counters went
+     * backwards, because its stats were reset by hotplug, keeps its counts
+     * since that reset
+     */
+    public CpuTransitionSnapshot since(CpuTransitionSnapshot earlier) {
+        int policyCount = this.frequencies.length;
+        long[][] deltas = new long[policyCount][];
+        long[] totalDeltas = new long[policyCount];
+        for (int policyIndex = 0; policyIndex < policyCount; policyIndex++) {
+            long[] later = this.counts[policyIndex];
+            long[] before = policyIndex < earlier.counts.length ? earlier.counts[policyIndex] : null;
+            long totalDelta = before == null ? -1 : this.totals[policyIndex] - earlier.totals[policyIndex];
+            if (before == null || this.frequencies[policyIndex] != earlier.frequencies[policyIndex]
+                    || totalDelta < 0 || !notBelow(later, before)) {
+                deltas[policyIndex] = later;
+                totalDeltas[policyIndex] = this.totals[policyIndex];
+                continue;
+            }
+            long[] delta = new long[later.length];
+            for (int i = 0; i < later.length; i++) {
+                delta[i] = later[i] - before[i];
+            }
+            deltas[policyIndex] = delta;
+            totalDeltas[policyIndex] = totalDelta;
+        }
+        return new CpuTransitionSnapshot(this.timestamp, this.timestamp - earlier.timestamp,
+                this.frequencies, deltas, totalDeltas);
+    }
+
+    private static boolean notBelow(long[] values, long[] baseline) {
+        if (values.length != baseline.length) {
+            return false;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] < baseline[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.util.Arrays;
+
+/**
+ * EnergyEstimator turns the time-in-state of successive snapshots into an
+ * estimate of the energy every core, every cluster (cpufreq policy) and the
+ * whole device used, by pricing the time spent at each frequency with an
+ * EnergyModel. Every update only prices what changed since the previous
+ * snapshot and adds it to running totals, which are never recomputed.
+ * <p>
+ * time_in_state counts the time a policy spent at a frequency whether its
+ * cores were running or not, so when the kernel has cpuidle counters each
+ * core's share of the interval spent idle is taken off its estimate. Without
+ * them every core is priced as if busy the whole time, an upper bound. A core
+ * whose counters changed epoch adds nothing for that interval.
+ * <p>
+ * Scopes are numbered as in FrequencyStatistics: the cores first, then the
+ * clusters, then the device. Energies are in millijoules, or in relative
+ * units when the model is not absolute
+ */
+public class EnergyEstimator {
+
+    /**
+     * Millijoules of one 10ms time-in-state unit at one milliwatt
+     */
+    private static final double MillijoulesPerUnitMilliwatt = 0.01;
+
+    private final EnergyModel model;
+    private final CpuTopology topology;
+
+    private final double[] totalEnergies;
+    private final double[] intervalEnergies;
+    private long intervalMillis = 0;
+    private long updateCount = 0;
+    private CpuTimeInStateSnapshot previous = null;
+
+    /**
+     * Per core power of every state, aligned with the frequency row it was
+     * priced for; only repriced when a core's row changes
+     */
+    private final int[][] pricedRows;
+    private final double[][] stateCosts;
+
+    public EnergyEstimator(EnergyModel model, CpuTopology topology) {
+        this.model = model;
+        this.topology = topology;
+        int scopeCount = topology.getCpuCount() + topology.getPolicyCount() + 1;
+        this.totalEnergies = new double[scopeCount];
+        this.intervalEnergies = new double[scopeCount];
+        this.pricedRows = new int[topology.getCpuCount()][];
+        this.stateCosts = new double[topology.getCpuCount()][];
+    }
+
+    public EnergyModel getModel() {
+        return this.model;
+    }
+
+    public int getCpuScope(int cpuIndex) {
+        return cpuIndex;
+    }
+
+    public int getClusterScope(int policyIndex) {
+        return this.topology.getCpuCount() + policyIndex;
+    }
+
+    public int getDeviceScope() {
+        return this.topology.getCpuCount() + this.topology.getPolicyCount();
+    }
+
+    /**
+     * @return energy of scope summed over every update since the first one
+     * or the last reset
+     */
+    public synchronized double getTotalEnergy(int scope) {
+        return this.totalEnergies[scope];
+    }
+
+    /**
+     * @return energy of scope between the two latest snapshots
+     */
+    public synchronized double getIntervalEnergy(int scope) {
+        return this.intervalEnergies[scope];
+    }
+
+    /**
+     * @return milliseconds between the two latest snapshots, 0 before the second one
+     */
+    public synchronized long getIntervalMillis() {
+        return this.intervalMillis;
+    }
+
+    /**
+     * @return mean power of scope between the two latest snapshots, in
+     * milliwatts or relative units, 0 before the second one
+     */
+    public synchronized double getIntervalPower(int scope) {
+        return this.intervalMillis > 0 ? this.intervalEnergies[scope] * 1000 / this.intervalMillis : 0;
+    }
+
+    /**
+     * @return number of snapshots priced, the first one included
+     */
+    public synchronized long getUpdateCount() {
+        return this.updateCount;
+    }
+
+    /**
+     * Zero every total, the next update still prices the time since the
+     * latest snapshot
+     */
+    public synchronized void reset() {
+        Arrays.fill(this.totalEnergies, 0);
+        Arrays.fill(this.intervalEnergies, 0);
+    }
+
+    /**
+     * Price the time since the previous snapshot and add it to the totals.
+     * Snapshots older than the previous one are ignored
+     */
+    public synchronized void update(CpuTimeInStateSnapshot snapshot) {
+        CpuTimeInStateSnapshot last = this.previous;
+        if (last != null && snapshot.getTimestamp() < last.getTimestamp()) {
+            return;
+        }
+        this.previous = snapshot;
+        this.updateCount++;
+        Arrays.fill(this.intervalEnergies, 0);
+        if (last == null) {
+            this.intervalMillis = 0;
+            return;
+        }
+        this.intervalMillis = snapshot.getTimestamp() - last.getTimestamp();
+
+        int cpuCount = Math.min(Math.min(snapshot.getCpuCount(), last.getCpuCount()),
+                this.topology.getCpuCount());
+        CpuIdleStates idle = snapshot.idleStates();
+        CpuIdleStates lastIdle = last.idleStates();
+        int deviceScope = getDeviceScope();
+        for (int cpuIndex = 0; cpuIndex < cpuCount; cpuIndex++) {
+            int[] frequencies = snapshot.frequencyRow(cpuIndex);
+            if (snapshot.getEpoch(cpuIndex) != last.getEpoch(cpuIndex)
+                    || frequencies != last.frequencyRow(cpuIndex)) {
+                continue;
+            }
+            int policyIndex = this.topology.getPolicyOfCpu(cpuIndex);
+            double[] costs = costsOf(cpuIndex, policyIndex, frequencies);
+            long[] durations = snapshot.durationRow(cpuIndex);
+            long[] lastDurations = last.durationRow(cpuIndex);
+
+            long elapsed = 0;
+            double priced = 0;
+            for (int i = 0; i < frequencies.length; i++) {
+                long delta = durations[i] - lastDurations[i];
+                if (delta <= 0) {
+                    continue;
+                }
+                if (frequencies[i] != 0) {
+                    elapsed += delta;
+                }
+                priced += delta * costs[i];
+            }
+            if (priced == 0) {
+                continue;
+            }
+
+            double energy = priced * MillijoulesPerUnitMilliwatt * busyShare(idle, lastIdle, cpuIndex, elapsed);
+            this.intervalEnergies[getCpuScope(cpuIndex)] += energy;
+            this.intervalEnergies[getClusterScope(policyIndex)] += energy;
+            this.intervalEnergies[deviceScope] += energy;
+        }
+        for (int scope = 0; scope < this.totalEnergies.length; scope++) {
+            this.totalEnergies[scope] += this.intervalEnergies[scope];
+        }
+    }
+
+    /**
+     * @return the power of every state of frequencies, priced again only if
+     * cpuIndex has a different row than last time
+     */
+    private double[] costsOf(int cpuIndex, int policyIndex, int[] frequencies) {
+        if (this.pricedRows[cpuIndex] != frequencies) {
+            double[] costs = new double[frequencies.length];
+            for (int i = 0; i < frequencies.length; i++) {
+                costs[i] = this.model.getPower(policyIndex, frequencies[i]);
+            }
+            this.pricedRows[cpuIndex] = frequencies;
+            this.stateCosts[cpuIndex] = costs;
+        }
+        return this.stateCosts[cpuIndex];
+    }
+
+    /**
+     * @return share of elapsed 10ms units cpuIndex was not in any cpuidle
+     * state, 1 if it has no idle counters or they changed shape
+     */
+    private static double busyShare(CpuIdleStates idle, CpuIdleStates lastIdle, int cpuIndex, long elapsed) {
+        int stateCount = idle.getStateCount(cpuIndex);
+        if (stateCount == 0 || stateCount != lastIdle.getStateCount(cpuIndex) || elapsed <= 0) {
+            return 1;
+        }
+        long idleMicros = 0;
+        for (int i = 0; i < stateCount; i++) {
+            idleMicros += Math.max(0, idle.getTime(cpuIndex, i) - lastIdle.getTime(cpuIndex, i));
+        }
+        double share = 1 - idleMicros / (elapsed * 10000.0);
+        return Math.max(0, Math.min(1, share));
+    }
+}
@@ -0,0 +1,361 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * EnergyModel holds the power one busy core of every cpufreq policy draws at
+ * each of its operating points (OPPs), in milliwatts. It comes from one of
+ * three sources, in order of trust:
+ * <ul>
+ * <li>a table supplied by the user, such as one transcribed from the
+ * device's power_profile.xml</li>
+ * <li>the kernel's energy model under debugfs, one ps:FREQ directory with a
+ * frequency and a power file per performance state</li>
+ * <li>the cpu_capacity of every policy's first core, scaled by the cube of
+ * the frequency over cpuinfo_max_freq; these costs are relative units rather
+ * than milliwatts and only good for comparing cores and intervals</li>
+ * </ul>
+ * Frequencies between two OPPs of a table are interpolated linearly,
+ * frequencies outside it take the cost of the nearest OPP and deep sleep
+ * costs nothing
+ */
+public final class EnergyModel {
+
+    public static final String DefaultEnergyModelRoot = "/sys/kernel/debug/energy_model";
+
+    /**
+     * Battery voltage assumed for tables given in milliamps, as power_profile.xml is
+     */
+    public static final double DefaultVoltage = 3.8;
+
+    /**
+     * Full scale of cpu_capacity, the capacity of the biggest core
+     */
+    private static final int CapacityScale = 1024;
+
+    /**
+     * Kernels since 5.19 report energy model power in microwatts. No single
+     * core draws more than this many milliwatts, so a table with a larger
+     * power must be in microwatts
+     */
+    private static final long MaxPlausibleMilliwatts = 100000;
+
+    public enum Source {
+        Table, Kernel, Capacity
+    }
+
+    private final Source source;
+
+    /**
+     * Per policy OPPs, frequencies in kHz ascending, powers aligned with them
+     */
+    private final int[][] frequencies;
+    private final double[][] powers;
+
+    private EnergyModel(Source source, int[][] frequencies, double[][] powers) {
+        this.source = source;
+        this.frequencies = frequencies;
+        this.powers = powers;
+    }
+
+    public Source getSource() {
+        return this.source;
+    }
+
+    /**
+     * @return false if the costs are relative units derived from
+     * cpu_capacity rather than milliwatts
+     */
+    public boolean isAbsolute() {
+        return this.source != Source.Capacity;
+    }
+
+    public int getPolicyCount() {
+        return this.frequencies.length;
+    }
+
+    /**
+     * @return number of OPPs of policyIndex, 0 if the model knows nothing about it
+     */
+    public int getOppCount(int policyIndex) {
+        return this.frequencies[policyIndex].length;
+    }
+
+    /**
+     * @return frequency in kHz of OPP oppIndex of policyIndex, ascending
+     */
+    public int getOppFrequency(int policyIndex, int oppIndex) {
+        return this.frequencies[policyIndex][oppIndex];
+    }
+
+    /**
+     * @return power in milliwatts of one busy core of policyIndex at frequency
+     * kHz, interpolated between OPPs, 0 for deep sleep or a policy without OPPs
+     */
+    public double getPower(int policyIndex, int frequency) {
+        if (frequency <= 0 || policyIndex < 0 || policyIndex >= this.frequencies.length) {
+            return 0;
+        }
+        int[] row = this.frequencies[policyIndex];
+        double[] power = this.powers[policyIndex];
+        if (row.length == 0) {
+            return 0;
+        }
+        if (this.source == Source.Capacity) {
+            double ratio = row[0] > 0 ? (double) frequency / row[0] : 1;
+            return power[0] * ratio * ratio * ratio;
+        }
+        int index = Arrays.binarySearch(row, frequency);
+        if (index >= 0) {
+            return power[index];
+        }
+        int above = -index - 1;
+        if (above == 0) {
+            return power[0];
+        }
+        if (above == row.length) {
+            return power[row.length - 1];
+        }
+        int below = above - 1;
+        double fraction = (double) (frequency - row[below]) / (row[above] - row[below]);
+        return power[below] + fraction * (power[above] - power[below]);
+    }
+
+    /**
+     * Parse a user supplied table, one OPP per line as "policyN FREQ_KHZ
+     * POWER" or "cpuN FREQ_KHZ POWER" for the policy of core N, where power
+     * is milliwatts with an optional "mW" suffix or milliamps with an "mA"
+     * suffix. A "voltage VOLTS" line sets the voltage milliamps are converted
+     * at, DefaultVoltage otherwise. Blank lines and lines starting with #
+     * are skipped
+     *
+     * @throws IOException if the table cannot be read or a line is malformed
+     */
+    public static EnergyModel fromTable(CpuTopology topology, Reader table) throws IOException {
+        int policyCount = topology.getPolicyCount();
+        List<List<double[]>> points = new ArrayList<>();
+        for (int i = 0; i < policyCount; i++) {
+            points.add(new ArrayList<double[]>());
+        }
+        double voltage = DefaultVoltage;
+        BufferedReader reader = new BufferedReader(table);
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields.length == 2 && fields[0].equals("voltage")) {
+                    voltage = Double.parseDouble(fields[1]);
+                    continue;
+                }
+                if (fields.length != 3) {
+                    throw new IOException("line " + lineNumber + ": expected scope, frequency and power");
+                }
+                int policyIndex = parseScope(topology, fields[0]);
+                if (policyIndex < 0) {
+                    throw new IOException("line " + lineNumber + ": no such policy or core " + fields[0]);
+                }
+                int frequency = Integer.parseInt(fields[1]);
+                String value = fields[2].toLowerCase(Locale.US);
+                double power;
+                if (value.endsWith("ma")) {
+                    power = Double.parseDouble(value.substring(0, value.length() - 2)) * voltage;
+                } else if (value.endsWith("mw")) {
+                    power = Double.parseDouble(value.substring(0, value.length() - 2));
+                } else {
+                    power = Double.parseDouble(value);
+                }
+                points.get(policyIndex).add(new double[]{frequency, power});
+            } catch (NumberFormatException e) {
+                throw new IOException("line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        int[][] frequencies = new int[policyCount][];
+        double[][] powers = new double[policyCount][];
+        for (int i = 0; i < policyCount; i++) {
+            toRows(points.get(i), frequencies, powers, i, 1);
+        }
+        return new EnergyModel(Source.Table, frequencies, powers);
+    }
+
+    /**
+     * Read a user supplied table from file, see fromTable(CpuTopology, Reader)
+     */
+    public static EnergyModel fromTable(CpuTopology topology, File file) throws IOException {
+        Reader reader = new FileReader(file);
+        try {
+            return fromTable(topology, reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the kernel's energy model, normally under DefaultEnergyModelRoot,
+     * where every performance domain is a directory named after its first core
+     *
+     * @return the model, or null if no policy has one, as when debugfs is not
+     * mounted or not readable
+     */
+    public static EnergyModel fromKernel(CpuTopology topology, File energyModelRoot) {
+        int policyCount = topology.getPolicyCount();
+        int[][] frequencies = new int[policyCount][];
+        double[][] powers = new double[policyCount][];
+        List<List<double[]>> points = new ArrayList<>();
+        long maxPower = 0;
+        boolean found = false;
+        for (int policyIndex = 0; policyIndex < policyCount; policyIndex++) {
+            List<double[]> domain = new ArrayList<>();
+            File[] states = new File(energyModelRoot,
+                    "cpu" + topology.getPolicyFirstCpu(policyIndex)).listFiles();
+            if (states != null) {
+                for (File state : states) {
+                    if (!state.getName().startsWith("ps:")) {
+                        continue;
+                    }
+                    long frequency = readLong(new File(state, "frequency"));
+                    long power = readLong(new File(state, "power"));
+                    if (frequency > 0 && power >= 0) {
+                        domain.add(new double[]{frequency, power});
+                        maxPower = Math.max(maxPower, power);
+                    }
+                }
+            }
+            found |= !domain.isEmpty();
+            points.add(domain);
+        }
+        if (!found) {
+            return null;
+        }
+        double scale = maxPower > MaxPlausibleMilliwatts ? 0.001 : 1;
+        for (int i = 0; i < policyCount; i++) {
+            toRows(points.get(i), frequencies, powers, i, scale);
+        }
+        return new EnergyModel(Source.Kernel, frequencies, powers);
+    }
+
+    /**
+     * Derive relative costs from the cpu_capacity of every policy's first
+     * core under cpuRoot, taking dynamic power to grow with the cube of the
+     * frequency up to the policy's cpuinfo_max_freq. A core without
+     * cpu_capacity, as on kernels without energy aware scheduling, is taken
+     * to be of full capacity; a policy without cpuinfo_max_freq costs the
+     * same at every frequency
+     */
+    public static EnergyModel fromCapacity(CpuTopology topology, File cpuRoot) {
+        int policyCount = topology.getPolicyCount();
+        int[][] frequencies = new int[policyCount][];
+        double[][] powers = new double[policyCount][];
+        for (int policyIndex = 0; policyIndex < policyCount; policyIndex++) {
+            long capacity = readLong(new File(cpuRoot,
+                    "cpu" + topology.getPolicyFirstCpu(policyIndex) + "/cpu_capacity"));
+            long maxFrequency = readLong(new File(topology.getPolicyPath(policyIndex), "cpuinfo_max_freq"));
+            // the single OPP is the top of the cubic curve
+            frequencies[policyIndex] = new int[]{(int) Math.max(0, maxFrequency)};
+            powers[policyIndex] = new double[]{capacity > 0 ? capacity : CapacityScale};
+        }
+        return new EnergyModel(Source.Capacity, frequencies, powers);
+    }
+
+    /**
+     * @return the kernel's energy model if readable, relative costs from
+     * cpu_capacity otherwise
+     */
+    public static EnergyModel load(CpuTopology topology, File cpuRoot, File energyModelRoot) {
+        EnergyModel model = fromKernel(topology, energyModelRoot);
+        return model != null ? model : fromCapacity(topology, cpuRoot);
+    }
+
+    /**
+     * @return policy index named by scope, "policyN" or "cpuN", or -1
+     */
+    private static int parseScope(CpuTopology topology, String scope) {
+        try {
+            if (scope.startsWith("policy")) {
+                int policy = Integer.parseInt(scope.substring("policy".length()));
+                // policies are named after their first core
+                for (int i = 0; i < topology.getPolicyCount(); i++) {
+                    if (topology.getPolicyFirstCpu(i) == policy) {
+                        return i;
+                    }
+                }
+            } else if (scope.startsWith("cpu")) {
+                int cpu = Integer.parseInt(scope.substring("cpu".length()));
+                if (cpu >= 0 && cpu < topology.getCpuCount()) {
+                    return topology.getPolicyOfCpu(cpu);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // not a scope
+        }
+        return -1;
+    }
+
+    /**
+     * Sort points by frequency into row policyIndex of frequencies and
+     * powers, the last point of a repeated frequency winning
+     */
+    private static void toRows(List<double[]> points, int[][] frequencies, double[][] powers,
+                               int policyIndex, double scale) {
+        double[][] sorted = points.toArray(new double[points.size()][]);
+        Arrays.sort(sorted, new Comparator<double[]>() {
+            public int compare(double[] a, double[] b) {
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        int[] frequencyRow = new int[sorted.length];
+        double[] powerRow = new double[sorted.length];
+        int count = 0;
+        for (double[] point : sorted) {
+            if (count > 0 && frequencyRow[count - 1] == (int) point[0]) {
+                count--;
+            }
+            frequencyRow[count] = (int) point[0];
+            powerRow[count] = point[1] * scale;
+            count++;
+        }
+        frequencies[policyIndex] = Arrays.copyOf(frequencyRow, count);
+        powers[policyIndex] = Arrays.copyOf(powerRow, count);
+    }
+
+    /**
+     * @return the number in file, or -1 if it cannot be read
+     */
+    private static long readLong(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = reader.readLine();
+                return line == null ? -1 : Long.parseLong(line.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
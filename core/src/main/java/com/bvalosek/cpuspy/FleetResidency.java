@@ -0,0 +1,123 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * FleetResidency holds the time_in_state captures of many devices, grouped
+ * by SoC and then by core, as one FrequencyDistribution per core. Two results
+ * merge by merging their distributions, which is how the partial results of
+ * TimeInStateBatchAnalyzer are combined
+ */
+public final class FleetResidency {
+
+    public static final String UnknownSoc = "unknown";
+
+    private final Map<String, Soc> socs = new TreeMap<>();
+    private long failedCaptureCount = 0;
+
+    private static final class Soc {
+        long captureCount = 0;
+        FrequencyDistribution[] cores = new FrequencyDistribution[0];
+
+        FrequencyDistribution core(int cpuIndex) {
+            if (cpuIndex >= this.cores.length) {
+                this.cores = Arrays.copyOf(this.cores, cpuIndex + 1);
+            }
+            if (this.cores[cpuIndex] == null) {
+                this.cores[cpuIndex] = new FrequencyDistribution();
+            }
+            return this.cores[cpuIndex];
+        }
+    }
+
+    /**
+     * @return the SoCs seen, sorted by name
+     */
+    public Set<String> getSocs() {
+        return this.socs.keySet();
+    }
+
+    /**
+     * @return number of captures of soc, 0 if it was never seen
+     */
+    public long getCaptureCount(String soc) {
+        Soc entry = this.socs.get(soc);
+        return entry == null ? 0 : entry.captureCount;
+    }
+
+    /**
+     * @return one more than the highest core index seen on soc
+     */
+    public int getCoreCount(String soc) {
+        Soc entry = this.socs.get(soc);
+        return entry == null ? 0 : entry.cores.length;
+    }
+
+    /**
+     * @return the distribution of cpuIndex on soc, or null if no capture of
+     * soc had that core
+     */
+    public FrequencyDistribution getDistribution(String soc, int cpuIndex) {
+        Soc entry = this.socs.get(soc);
+        return entry == null || cpuIndex >= entry.cores.length ? null : entry.cores[cpuIndex];
+    }
+
+    /**
+     * @return number of captures that could not be read or held no time_in_state
+     */
+    public long getFailedCaptureCount() {
+        return this.failedCaptureCount;
+    }
+
+    /**
+     * Count one more capture of soc, whose cores are then added with add
+     */
+    void addCapture(String soc) {
+        soc(soc).captureCount++;
+    }
+
+    void add(String soc, int cpuIndex, TimeInStateBuffer states) {
+        soc(soc).core(cpuIndex).add(states);
+    }
+
+    void addFailedCapture() {
+        this.failedCaptureCount++;
+    }
+
+    /**
+     * Add every capture of other
+     */
+    public void merge(FleetResidency other) {
+        for (Map.Entry<String, Soc> entry : other.socs.entrySet()) {
+            Soc into = soc(entry.getKey());
+            Soc from = entry.getValue();
+            into.captureCount += from.captureCount;
+            for (int cpuIndex = 0; cpuIndex < from.cores.length; cpuIndex++) {
+                if (from.cores[cpuIndex] != null) {
+                    into.core(cpuIndex).merge(from.cores[cpuIndex]);
+                }
+            }
+        }
+        this.failedCaptureCount += other.failedCaptureCount;
+    }
+
+    private Soc soc(String name) {
+        Soc entry = this.socs.get(name);
+        if (entry == null) {
+            entry = new Soc();
+            this.socs.put(name, entry);
+        }
+        return entry;
+    }
+}
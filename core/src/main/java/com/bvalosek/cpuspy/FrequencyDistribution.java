@@ -0,0 +1,199 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.util.Arrays;
+
+/**
+ * FrequencyDistribution accumulates the time_in_state of one core over many
+ * devices: the time spent at every frequency summed over all of them, and how
+ * many devices had their own 50th, 90th and 99th percentile frequency at each
+ * frequency. Everything lives in parallel primitive arrays sorted by
+ * ascending frequency, and two distributions merge by adding them up, so
+ * partial results built on separate threads combine in any order.
+ * <p>
+ * The pooled residency weighs every device by the time its counters cover,
+ * the percentiles across devices weigh every device equally
+ */
+public final class FrequencyDistribution {
+
+    private static final int InitialCapacity = 16;
+    private static final int[] DevicePercentiles = {50, 90, 99};
+
+    private int[] frequencies = new int[InitialCapacity];
+    private long[] durations = new long[InitialCapacity];
+
+    /**
+     * Per device percentile, the number of devices whose percentile was at
+     * each frequency
+     */
+    private long[][] deviceCounts = new long[DevicePercentiles.length][InitialCapacity];
+    private int size = 0;
+    private long deviceCount = 0;
+
+    /**
+     * @return number of distinct frequencies seen
+     */
+    public int getStateCount() {
+        return this.size;
+    }
+
+    /**
+     * @return frequency in kHz of stateIndex, ascending
+     */
+    public int getFrequency(int stateIndex) {
+        return this.frequencies[stateIndex];
+    }
+
+    /**
+     * @return time in 10ms units all devices together spent at stateIndex
+     */
+    public long getDuration(int stateIndex) {
+        return this.durations[stateIndex];
+    }
+
+    /**
+     * @return time in 10ms units all devices together spent at any frequency
+     */
+    public long getTotalDuration() {
+        long total = 0;
+        for (int i = 0; i < this.size; i++) {
+            total += this.durations[i];
+        }
+        return total;
+    }
+
+    public long getDeviceCount() {
+        return this.deviceCount;
+    }
+
+    /**
+     * @return the lowest frequency at or below which percent of the pooled
+     * time was spent, 0 if there is none
+     */
+    public int getPercentileFrequency(int percent) {
+        return percentile(this.durations, percent);
+    }
+
+    /**
+     * @param devicePercentile 50, 90 or 99, the percentile taken of every device
+     * @param percent          the percentile taken across devices
+     * @return the lowest frequency at or below which percent of the devices
+     * had their devicePercentile frequency, 0 if there is none
+     */
+    public int getDevicePercentileFrequency(int devicePercentile, int percent) {
+        for (int i = 0; i < DevicePercentiles.length; i++) {
+            if (DevicePercentiles[i] == devicePercentile) {
+                return percentile(this.deviceCounts[i], percent);
+            }
+        }
+        throw new IllegalArgumentException("devicePercentile must be 50, 90 or 99");
+    }
+
+    /**
+     * Add the states of one device's core, sorting states in the process
+     */
+    public void add(TimeInStateBuffer states) {
+        states.sortByFrequencyDescending();
+        long total = 0;
+        for (int i = 0; i < states.size(); i++) {
+            total += states.durationAt(i);
+            // indexOf may grow the arrays, so it has to run before they are read
+            int index = indexOf(states.frequencyAt(i));
+            this.durations[index] += states.durationAt(i);
+        }
+        this.deviceCount++;
+        if (total <= 0) {
+            return;
+        }
+        for (int p = 0; p < DevicePercentiles.length; p++) {
+            long target = (total * DevicePercentiles[p] + 99) / 100;
+            long cumulative = 0;
+            for (int i = states.size() - 1; i >= 0; i--) {
+                cumulative += states.durationAt(i);
+                if (cumulative >= target) {
+                    int index = indexOf(states.frequencyAt(i));
+                    this.deviceCounts[p][index]++;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add every device of other
+     */
+    public void merge(FrequencyDistribution other) {
+        for (int j = 0; j < other.size; j++) {
+            int i = indexOf(other.frequencies[j]);
+            this.durations[i] += other.durations[j];
+            for (int p = 0; p < DevicePercentiles.length; p++) {
+                this.deviceCounts[p][i] += other.deviceCounts[p][j];
+            }
+        }
+        this.deviceCount += other.deviceCount;
+    }
+
+    private int percentile(long[] weights, int percent) {
+        long total = 0;
+        for (int i = 0; i < this.size; i++) {
+            total += weights[i];
+        }
+        if (total <= 0) {
+            return 0;
+        }
+        long target = (total * percent + 99) / 100;
+        long cumulative = 0;
+        for (int i = 0; i < this.size; i++) {
+            cumulative += weights[i];
+            if (cumulative >= target) {
+                return this.frequencies[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return index of frequency, inserting a state without time if it is new
+     */
+    private int indexOf(int frequency) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.frequencies[middle] < frequency) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low < this.size && this.frequencies[low] == frequency) {
+            return low;
+        }
+        if (this.size == this.frequencies.length) {
+            int capacity = this.size * 2;
+            this.frequencies = Arrays.copyOf(this.frequencies, capacity);
+            this.durations = Arrays.copyOf(this.durations, capacity);
+            for (int p = 0; p < DevicePercentiles.length; p++) {
+                this.deviceCounts[p] = Arrays.copyOf(this.deviceCounts[p], capacity);
+            }
+        }
+        int tail = this.size - low;
+        System.arraycopy(this.frequencies, low, this.frequencies, low + 1, tail);
+        System.arraycopy(this.durations, low, this.durations, low + 1, tail);
+        for (int p = 0; p < DevicePercentiles.length; p++) {
+            System.arraycopy(this.deviceCounts[p], low, this.deviceCounts[p], low + 1, tail);
+            this.deviceCounts[p][low] = 0;
+        }
+        this.frequencies[low] = frequency;
+        this.durations[low] = 0;
+        this.size++;
+        return low;
+    }
+}
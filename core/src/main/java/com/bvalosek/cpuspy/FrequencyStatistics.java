@@ -0,0 +1,312 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.util.Arrays;
+
+/**
+ * FrequencyStatistics summarizes a snapshot per core, per cluster (cpufreq
+ * policy) and for the whole device: the time-weighted mean frequency, the
+ * 50th, 90th and 99th percentile frequency and the share of time spent at the
+ * highest frequency. Deep sleep is not a frequency and is left out of all of
+ * them, though it is kept in the merged device histogram.
+ * <p>
+ * Every scope is computed in one walk over the snapshot's states, and all
+ * results live in arrays allocated up front and reused by the next update.
+ * Cluster and device figures weigh every core's time equally, so a cluster of
+ * four cores at a frequency counts four times as much as a single core
+ */
+public class FrequencyStatistics {
+
+    private final CpuTopology topology;
+
+    /**
+     * One entry per scope: the cores first, then the clusters, then the device
+     */
+    private final double[] meanFrequencies;
+    private final int[] p50Frequencies;
+    private final int[] p90Frequencies;
+    private final int[] p99Frequencies;
+    private final double[] maxShares;
+    private final long[] activeDurations;
+
+    /**
+     * Per cluster state durations summed over its cores, aligned with the
+     * frequency row of its first core
+     */
+    private long[][] clusterDurations;
+    private final long[] clusterMaxDurations;
+
+    /**
+     * The durations of the core being walked, aligned with its frequency row
+     */
+    private long[] coreDurations = new long[32];
+
+    /**
+     * Device histogram, every distinct frequency once, sorted descending
+     */
+    private int[] deviceFrequencies = new int[64];
+    private long[] deviceDurations = new long[64];
+    private int deviceStateCount = 0;
+    private long deviceMaxDuration = 0;
+
+    public FrequencyStatistics(CpuTopology topology) {
+        this.topology = topology;
+        int scopeCount = topology.getCpuCount() + topology.getPolicyCount() + 1;
+        this.meanFrequencies = new double[scopeCount];
+        this.p50Frequencies = new int[scopeCount];
+        this.p90Frequencies = new int[scopeCount];
+        this.p99Frequencies = new int[scopeCount];
+        this.maxShares = new double[scopeCount];
+        this.activeDurations = new long[scopeCount];
+        this.clusterDurations = new long[topology.getPolicyCount()][];
+        this.clusterMaxDurations = new long[topology.getPolicyCount()];
+        for (int i = 0; i < this.clusterDurations.length; i++) {
+            this.clusterDurations[i] = new long[32];
+        }
+    }
+
+    /**
+     * @return the scope of a single core
+     */
+    public int getCpuScope(int cpuIndex) {
+        return cpuIndex;
+    }
+
+    /**
+     * @return the scope of the cores of one cpufreq policy
+     */
+    public int getClusterScope(int policyIndex) {
+        return this.topology.getCpuCount() + policyIndex;
+    }
+
+    /**
+     * @return the scope of every core
+     */
+    public int getDeviceScope() {
+        return this.topology.getCpuCount() + this.topology.getPolicyCount();
+    }
+
+    /**
+     * @return time-weighted mean frequency in kHz, 0 if the scope has no active time
+     */
+    public double getMeanFrequency(int scope) {
+        return this.meanFrequencies[scope];
+    }
+
+    /**
+     * @return the lowest frequency in kHz at or below which half the active time was spent
+     */
+    public int getP50Frequency(int scope) {
+        return this.p50Frequencies[scope];
+    }
+
+    public int getP90Frequency(int scope) {
+        return this.p90Frequencies[scope];
+    }
+
+    public int getP99Frequency(int scope) {
+        return this.p99Frequencies[scope];
+    }
+
+    /**
+     * @return share of the active time spent at the highest frequency of each
+     * core, between 0 and 1
+     */
+    public double getMaxShare(int scope) {
+        return this.maxShares[scope];
+    }
+
+    /**
+     * @return time in 10ms units spent at any frequency, deep sleep left out
+     */
+    public long getActiveDuration(int scope) {
+        return this.activeDurations[scope];
+    }
+
+    /**
+     * @return number of distinct frequencies of all cores, deep sleep included
+     */
+    public int getDeviceStateCount() {
+        return this.deviceStateCount;
+    }
+
+    /**
+     * @return frequency in kHz of stateIndex of the device histogram, descending
+     */
+    public int getDeviceFrequency(int stateIndex) {
+        return this.deviceFrequencies[stateIndex];
+    }
+
+    /**
+     * @return time in 10ms units all cores together spent at stateIndex
+     */
+    public long getDeviceDuration(int stateIndex) {
+        return this.deviceDurations[stateIndex];
+    }
+
+    /**
+     * Recompute every scope from snapshot, with its baselines applied
+     */
+    public void update(CpuTimeInStateSnapshot snapshot) {
+        int cpuCount = Math.min(snapshot.getCpuCount(), this.topology.getCpuCount());
+        int policyCount = this.topology.getPolicyCount();
+        for (int policyIndex = 0; policyIndex < policyCount; policyIndex++) {
+            int stateCount = snapshot.getStateCount(this.topology.getPolicyFirstCpu(policyIndex));
+            if (this.clusterDurations[policyIndex].length < stateCount) {
+                this.clusterDurations[policyIndex] = new long[stateCount];
+            }
+            Arrays.fill(this.clusterDurations[policyIndex], 0);
+            this.clusterMaxDurations[policyIndex] = 0;
+        }
+        this.deviceStateCount = 0;
+        this.deviceMaxDuration = 0;
+
+        // the single walk: every core's states feed its own, its cluster's and the device's figures
+        for (int cpuIndex = 0; cpuIndex < cpuCount; cpuIndex++) {
+            int policyIndex = this.topology.getPolicyOfCpu(cpuIndex);
+            int firstCpu = this.topology.getPolicyFirstCpu(policyIndex);
+            boolean alignedWithCluster = sameFrequencies(snapshot, cpuIndex, firstCpu);
+            long[] cluster = this.clusterDurations[policyIndex];
+            int stateCount = snapshot.getStateCount(cpuIndex);
+            if (this.coreDurations.length < stateCount) {
+                this.coreDurations = new long[stateCount];
+            }
+
+            long active = 0;
+            double weighted = 0;
+            long atMax = 0;
+            int maxFrequency = 0;
+            for (int i = 0; i < stateCount; i++) {
+                int frequency = snapshot.getFrequency(cpuIndex, i);
+                long duration = Math.max(0, snapshot.getDuration(cpuIndex, i));
+                this.coreDurations[i] = duration;
+                addToDevice(frequency, duration);
+                if (alignedWithCluster) {
+                    cluster[i] += duration;
+                }
+                if (frequency == 0) {
+                    continue;
+                }
+                if (maxFrequency == 0) {
+                    // rows are sorted descending, the first real frequency is the highest
+                    maxFrequency = frequency;
+                    atMax = duration;
+                }
+                active += duration;
+                weighted += (double) frequency * duration;
+            }
+            if (alignedWithCluster) {
+                this.clusterMaxDurations[policyIndex] += atMax;
+            }
+            this.deviceMaxDuration += atMax;
+
+            int scope = getCpuScope(cpuIndex);
+            this.activeDurations[scope] = active;
+            this.meanFrequencies[scope] = active > 0 ? weighted / active : 0;
+            this.maxShares[scope] = active > 0 ? (double) atMax / active : 0;
+            int[] frequencies = snapshot.frequencyRow(cpuIndex);
+            this.p50Frequencies[scope] = percentile(frequencies, this.coreDurations, stateCount, active, 50);
+            this.p90Frequencies[scope] = percentile(frequencies, this.coreDurations, stateCount, active, 90);
+            this.p99Frequencies[scope] = percentile(frequencies, this.coreDurations, stateCount, active, 99);
+        }
+
+        for (int policyIndex = 0; policyIndex < policyCount; policyIndex++) {
+            int firstCpu = this.topology.getPolicyFirstCpu(policyIndex);
+            long[] cluster = this.clusterDurations[policyIndex];
+            int stateCount = snapshot.getStateCount(firstCpu);
+            long active = 0;
+            double weighted = 0;
+            for (int i = 0; i < stateCount; i++) {
+                int frequency = snapshot.getFrequency(firstCpu, i);
+                if (frequency != 0) {
+                    active += cluster[i];
+                    weighted += (double) frequency * cluster[i];
+                }
+            }
+            int scope = getClusterScope(policyIndex);
+            this.activeDurations[scope] = active;
+            this.meanFrequencies[scope] = active > 0 ? weighted / active : 0;
+            this.maxShares[scope] = active > 0 ? (double) this.clusterMaxDurations[policyIndex] / active : 0;
+            int[] frequencies = snapshot.frequencyRow(firstCpu);
+            this.p50Frequencies[scope] = percentile(frequencies, cluster, stateCount, active, 50);
+            this.p90Frequencies[scope] = percentile(frequencies, cluster, stateCount, active, 90);
+            this.p99Frequencies[scope] = percentile(frequencies, cluster, stateCount, active, 99);
+        }
+
+        long active = 0;
+        double weighted = 0;
+        for (int i = 0; i < this.deviceStateCount; i++) {
+            if (this.deviceFrequencies[i] != 0) {
+                active += this.deviceDurations[i];
+                weighted += (double) this.deviceFrequencies[i] * this.deviceDurations[i];
+            }
+        }
+        int scope = getDeviceScope();
+        this.activeDurations[scope] = active;
+        this.meanFrequencies[scope] = active > 0 ? weighted / active : 0;
+        this.maxShares[scope] = active > 0 ? (double) this.deviceMaxDuration / active : 0;
+        int count = this.deviceStateCount;
+        this.p50Frequencies[scope] = percentile(this.deviceFrequencies, this.deviceDurations, count, active, 50);
+        this.p90Frequencies[scope] = percentile(this.deviceFrequencies, this.deviceDurations, count, active, 90);
+        this.p99Frequencies[scope] = percentile(this.deviceFrequencies, this.deviceDurations, count, active, 99);
+    }
+
+    /**
+     * Add duration to frequency in the device histogram, keeping it sorted descending
+     */
+    private void addToDevice(int frequency, long duration) {
+        int index = 0;
+        while (index < this.deviceStateCount && this.deviceFrequencies[index] > frequency) {
+            index++;
+        }
+        if (index < this.deviceStateCount && this.deviceFrequencies[index] == frequency) {
+            this.deviceDurations[index] += duration;
+            return;
+        }
+        if (this.deviceStateCount == this.deviceFrequencies.length) {
+            this.deviceFrequencies = Arrays.copyOf(this.deviceFrequencies, this.deviceStateCount * 2);
+            this.deviceDurations = Arrays.copyOf(this.deviceDurations, this.deviceStateCount * 2);
+        }
+        System.arraycopy(this.deviceFrequencies, index, this.deviceFrequencies, index + 1, this.deviceStateCount - index);
+        System.arraycopy(this.deviceDurations, index, this.deviceDurations, index + 1, this.deviceStateCount - index);
+        this.deviceFrequencies[index] = frequency;
+        this.deviceDurations[index] = duration;
+        this.deviceStateCount++;
+    }
+
+    /**
+     * @return the lowest frequency at or below which percent of the active
+     * time was spent, walking the descending states from the bottom
+     */
+    private static int percentile(int[] frequencies, long[] durations, int count, long active, int percent) {
+        if (active <= 0) {
+            return 0;
+        }
+        long target = (active * percent + 99) / 100;
+        long cumulative = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            if (frequencies[i] == 0) {
+                continue;
+            }
+            cumulative += durations[i];
+            if (cumulative >= target) {
+                return frequencies[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return true if cpuIndex has the same frequency row as the first core of its cluster
+     */
+    private static boolean sameFrequencies(CpuTimeInStateSnapshot snapshot, int cpuIndex, int firstCpu) {
+        return snapshot.frequencyRow(cpuIndex) == snapshot.frequencyRow(firstCpu);
+    }
+}
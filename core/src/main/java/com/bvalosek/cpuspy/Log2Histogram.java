@@ -0,0 +1,106 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+/**
+ * Log2Histogram counts non-negative values, such as latencies in nanoseconds
+ * or allocated bytes, in fixed power-of-two buckets: bucket 0 holds 0 and
+ * bucket i holds the values from 2^(i-1) to 2^i - 1. Recording is a few
+ * arithmetic operations on preallocated arrays, cheap enough to leave on in
+ * the sampler's hot path, and percentiles are exact to within a factor of two.
+ * <p>
+ * Only one thread may record into a histogram at a time. Readers on other
+ * threads do not lock and may see a record half applied, which is fine for
+ * figures that are only ever displayed
+ */
+public class Log2Histogram {
+
+    public static final int BucketCount = 64;
+
+    private final long[] counts = new long[BucketCount];
+    private volatile long count = 0;
+    private volatile long sum = 0;
+    private volatile long max = 0;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts[BucketCount - Long.numberOfLeadingZeros(value)]++;
+        this.sum += value;
+        if (value > this.max) {
+            this.max = value;
+        }
+        this.count++;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BucketCount; i++) {
+            this.counts[i] = 0;
+        }
+        this.sum = 0;
+        this.max = 0;
+        this.count = 0;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public long getSum() {
+        return this.sum;
+    }
+
+    public long getMax() {
+        return this.max;
+    }
+
+    /**
+     * @return mean of the recorded values, 0 if there are none
+     */
+    public long getMean() {
+        long count = this.count;
+        return count > 0 ? this.sum / count : 0;
+    }
+
+    /**
+     * @return upper bound of the bucket holding the given percentile, at most
+     * the largest value recorded, or 0 if nothing was recorded
+     */
+    public long getPercentile(int percent) {
+        long count = this.count;
+        if (count == 0) {
+            return 0;
+        }
+        long target = (count * percent + 99) / 100;
+        long cumulative = 0;
+        for (int i = 0; i < BucketCount; i++) {
+            cumulative += this.counts[i];
+            if (cumulative >= target) {
+                return Math.min(getBucketUpperBound(i), this.max);
+            }
+        }
+        return this.max;
+    }
+
+    /**
+     * @return number of values recorded in bucket
+     */
+    public long getBucketCount(int bucket) {
+        return this.counts[bucket];
+    }
+
+    /**
+     * @return the largest value bucket holds
+     */
+    public static long getBucketUpperBound(int bucket) {
+        // 1 << 63 wraps to Long.MIN_VALUE, one less is Long.MAX_VALUE
+        return bucket == 0 ? 0 : (1L << bucket) - 1;
+    }
+}
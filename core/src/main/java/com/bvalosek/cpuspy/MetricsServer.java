@@ -0,0 +1,284 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * MetricsServer is a minimal HTTP server answering GET /metrics with the
+ * monitor's latest snapshot in the OpenMetrics text format: the residency of
+ * every core at every frequency, the time every core spent in each idle state
+ * and the monitor's own refresh counters. It does not refresh the monitor
+ * itself, whoever subscribes to the monitor decides how fresh the data is.
+ * <p>
+ * Connections are served one at a time on a single daemon thread, and every
+ * response is serialized into the same reused byte buffers, so a scrape does
+ * not generate garbage beyond what the socket itself needs. Bind it to the
+ * loopback address and forward the port to reach it from a lab host
+ */
+public class MetricsServer {
+
+    private static final int MaxRequestSize = 8 * 1024;
+    private static final int ReadTimeoutMillis = 5000;
+    private static final String MetricsPath = "/metrics";
+    private static final String ContentType =
+            "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final CpuTimeInStateMonitor monitor;
+    private final InetAddress bindAddress;
+    private final int requestedPort;
+
+    private ServerSocket serverSocket = null;
+    private Thread thread = null;
+
+    /**
+     * Only touched by a server thread holding the lock of request
+     */
+    private final byte[] request = new byte[MaxRequestSize];
+    private final OpenMetricsWriter header = new OpenMetricsWriter();
+    private final OpenMetricsWriter body = new OpenMetricsWriter();
+
+    /**
+     * @param bindAddress address to listen on, normally the loopback address
+     * @param port        port to listen on, 0 for any free one
+     */
+    public MetricsServer(CpuTimeInStateMonitor monitor, InetAddress bindAddress, int port) {
+        this.monitor = monitor;
+        this.bindAddress = bindAddress;
+        this.requestedPort = port;
+    }
+
+    /**
+     * Bind the port and start serving, does nothing if already started
+     */
+    public synchronized void start() throws IOException {
+        if (this.serverSocket != null) {
+            return;
+        }
+        final ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(this.bindAddress, this.requestedPort));
+        this.serverSocket = socket;
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                serve(socket);
+            }
+        }, "MetricsServer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Close the port, a scrape in progress is cut short
+     */
+    public synchronized void stop() {
+        if (this.serverSocket == null) {
+            return;
+        }
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            // closed either way
+        }
+        this.serverSocket = null;
+        this.thread = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return this.serverSocket != null;
+    }
+
+    /**
+     * @return the port actually listened on, or -1 if not running
+     */
+    public synchronized int getPort() {
+        return this.serverSocket == null ? -1 : this.serverSocket.getLocalPort();
+    }
+
+    private void serve(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            Socket connection;
+            try {
+                connection = socket.accept();
+            } catch (IOException e) {
+                // closed by stop
+                return;
+            }
+            try {
+                connection.setSoTimeout(ReadTimeoutMillis);
+                // a thread of a stopped server may still be finishing its last scrape
+                synchronized (this.request) {
+                    handle(connection);
+                }
+            } catch (IOException e) {
+                // the scraper went away, wait for the next one
+            } finally {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // nothing left to release
+                }
+            }
+        }
+    }
+
+    private void handle(Socket connection) throws IOException {
+        int length = readRequestHead(connection.getInputStream());
+        OutputStream out = connection.getOutputStream();
+        if (length < 0) {
+            respond(out, "400 Bad Request", false);
+        } else if (!startsWith(length, "GET ")) {
+            respond(out, "405 Method Not Allowed", false);
+        } else if (!isMetricsPath(length)) {
+            respond(out, "404 Not Found", false);
+        } else {
+            this.body.reset();
+            writeMetrics(this.body, this.monitor.getSnapshot());
+            respond(out, "200 OK", true);
+        }
+    }
+
+    private void respond(OutputStream out, String status, boolean withBody) throws IOException {
+        OpenMetricsWriter head = this.header;
+        head.reset();
+        head.ascii("HTTP/1.1 ").ascii(status).ascii("\r\n");
+        if (withBody) {
+            head.ascii("Content-Type: ").ascii(ContentType).ascii("\r\n");
+        }
+        head.ascii("Content-Length: ").decimal(withBody ? this.body.size() : 0).ascii("\r\n");
+        head.ascii("Connection: close\r\n\r\n");
+        head.writeTo(out);
+        if (withBody) {
+            this.body.writeTo(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read up to the blank line ending the request head
+     *
+     * @return the number of bytes read, or -1 if the head is too large or cut short
+     */
+    private int readRequestHead(InputStream in) throws IOException {
+        int length = 0;
+        while (length < this.request.length) {
+            int count = in.read(this.request, length, this.request.length - length);
+            if (count < 0) {
+                return -1;
+            }
+            length += count;
+            for (int i = Math.max(3, length - count); i < length; i++) {
+                if (this.request[i] == '\n' && this.request[i - 1] == '\r'
+                        && this.request[i - 2] == '\n' && this.request[i - 3] == '\r') {
+                    return length;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int length, String prefix) {
+        if (length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (this.request[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the request target is /metrics, with or without a query
+     */
+    private boolean isMetricsPath(int length) {
+        int start = "GET ".length();
+        int end = start + MetricsPath.length();
+        if (length <= end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (this.request[i] != MetricsPath.charAt(i - start)) {
+                return false;
+            }
+        }
+        return this.request[end] == ' ' || this.request[end] == '?';
+    }
+
+    /**
+     * Serialize snapshot as an OpenMetrics exposition. The counters are the
+     * raw ones since boot, baselines are for display and would make them go
+     * backwards
+     */
+    void writeMetrics(OpenMetricsWriter out, CpuTimeInStateSnapshot snapshot) {
+        out.ascii("# TYPE cpuspy_cpu_frequency_residency_seconds counter\n");
+        out.ascii("# UNIT cpuspy_cpu_frequency_residency_seconds seconds\n");
+        out.ascii("# HELP cpuspy_cpu_frequency_residency_seconds Time each core spent at each frequency.\n");
+        for (int cpuIndex = 0; cpuIndex < snapshot.getCpuCount(); cpuIndex++) {
+            for (int i = 0; i < snapshot.getStateCount(cpuIndex); i++) {
+                out.ascii("cpuspy_cpu_frequency_residency_seconds_total{cpu=\"").decimal(cpuIndex)
+                        .ascii("\",frequency_khz=\"").decimal(snapshot.getFrequency(cpuIndex, i))
+                        .ascii("\"} ").fixed(snapshot.getRawDuration(cpuIndex, i), 2).ascii('\n');
+            }
+        }
+
+        CpuIdleStates idle = snapshot.idleStates();
+        out.ascii("# TYPE cpuspy_cpu_idle_residency_seconds counter\n");
+        out.ascii("# UNIT cpuspy_cpu_idle_residency_seconds seconds\n");
+        out.ascii("# HELP cpuspy_cpu_idle_residency_seconds Time each core spent in each cpuidle state.\n");
+        for (int cpuIndex = 0; cpuIndex < idle.getCpuCount(); cpuIndex++) {
+            for (int i = 0; i < idle.getStateCount(cpuIndex); i++) {
+                writeIdleLabels(out.ascii("cpuspy_cpu_idle_residency_seconds_total"), idle, cpuIndex, i)
+                        .fixed(idle.getTime(cpuIndex, i), 6).ascii('\n');
+            }
+        }
+        out.ascii("# TYPE cpuspy_cpu_idle_entries counter\n");
+        out.ascii("# HELP cpuspy_cpu_idle_entries Number of times each core entered each cpuidle state.\n");
+        for (int cpuIndex = 0; cpuIndex < idle.getCpuCount(); cpuIndex++) {
+            for (int i = 0; i < idle.getStateCount(cpuIndex); i++) {
+                writeIdleLabels(out.ascii("cpuspy_cpu_idle_entries_total"), idle, cpuIndex, i)
+                        .decimal(idle.getUsage(cpuIndex, i)).ascii('\n');
+            }
+        }
+
+        out.ascii("# TYPE cpuspy_monitor_refreshes counter\n");
+        out.ascii("# HELP cpuspy_monitor_refreshes Refreshes of the time-in-state monitor.\n");
+        out.ascii("cpuspy_monitor_refreshes_total ").decimal(this.monitor.getRefreshCount()).ascii('\n');
+        out.ascii("# TYPE cpuspy_monitor_refresh_failures counter\n");
+        out.ascii("# HELP cpuspy_monitor_refresh_failures Refreshes that could not read any policy.\n");
+        out.ascii("cpuspy_monitor_refresh_failures_total ").decimal(this.monitor.getRefreshFailureCount()).ascii('\n');
+        out.ascii("# TYPE cpuspy_monitor_refresh_seconds counter\n");
+        out.ascii("# UNIT cpuspy_monitor_refresh_seconds seconds\n");
+        out.ascii("# HELP cpuspy_monitor_refresh_seconds Time spent refreshing the monitor.\n");
+        out.ascii("cpuspy_monitor_refresh_seconds_total ").fixed(this.monitor.getRefreshNanos(), 9).ascii('\n');
+        out.ascii("# TYPE cpuspy_monitor_subscribers gauge\n");
+        out.ascii("# HELP cpuspy_monitor_subscribers Live subscriptions to the monitor.\n");
+        out.ascii("cpuspy_monitor_subscribers ").decimal(this.monitor.getSubscriberCount()).ascii('\n');
+        out.ascii("# TYPE cpuspy_snapshot_timestamp_seconds gauge\n");
+        out.ascii("# UNIT cpuspy_snapshot_timestamp_seconds seconds\n");
+        out.ascii("# HELP cpuspy_snapshot_timestamp_seconds Time since boot at which the served snapshot was read.\n");
+        out.ascii("cpuspy_snapshot_timestamp_seconds ").fixed(snapshot.getTimestamp(), 3).ascii('\n');
+        out.ascii("# EOF\n");
+    }
+
+    private static OpenMetricsWriter writeIdleLabels(OpenMetricsWriter out, CpuIdleStates idle,
+                                                     int cpuIndex, int stateIndex) {
+        return out.ascii("{cpu=\"").decimal(cpuIndex)
+                .ascii("\",state=\"").decimal(stateIndex)
+                .ascii("\",name=\"").labelValue(idle.getName(cpuIndex, stateIndex))
+                .ascii("\"} ");
+    }
+}
@@ -0,0 +1,27 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+/**
+ * MonitorClock is the source of time for CpuTimeInStateMonitor, so the
+ * monitor does not depend on android.os.SystemClock and can be driven by a
+ * fixed or simulated clock off-device
+ */
+public interface MonitorClock {
+
+    /**
+     * @return milliseconds since boot, including time spent in deep sleep
+     */
+    long elapsedRealtime();
+
+    /**
+     * @return milliseconds since boot, not counting time spent in deep sleep
+     */
+    long uptimeMillis();
+}
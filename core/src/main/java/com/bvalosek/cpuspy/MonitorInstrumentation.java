@@ -0,0 +1,252 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MonitorInstrumentation measures what CpuSpy itself costs, since a monitor
+ * burning CPU changes the residency it reports. Every stage of a refresh,
+ * from opening and reading the sysfs files through parsing to building the
+ * snapshot, records its latency into a Log2Histogram, as may the UI for the
+ * time it spends drawing a snapshot. Where the runtime counts allocations,
+ * the bytes allocated during each refresh are recorded as well: by the
+ * refreshing thread alone where the runtime counts per thread, otherwise by
+ * the whole process over the refresh window. The CPU time of the whole
+ * process is read from /proc/self/stat on demand.
+ * <p>
+ * Stages are timed with System.nanoTime, so an instrumented stage costs two
+ * clock reads and a record on top of its own work
+ */
+public class MonitorInstrumentation {
+
+    public static final int SysfsOpen = 0;
+    public static final int SysfsRead = 1;
+    public static final int Parse = 2;
+    public static final int IdleRead = 3;
+    public static final int Delta = 4;
+    public static final int Refresh = 5;
+    public static final int UpdateView = 6;
+    public static final int StageCount = 7;
+
+    private static final String[] StageNames = {
+            "sysfs open", "sysfs read", "parse", "idle read", "delta", "refresh", "updateView"
+    };
+
+    public static final String DefaultProcSelfStatPath = "/proc/self/stat";
+
+    /**
+     * USER_HZ, the unit of the times in /proc/self/stat, which is 100 on
+     * every Linux and Android build that matters
+     */
+    private static final long ClockTicksPerSecond = 100;
+
+    /**
+     * utime and stime are the 14th and 15th fields of /proc/self/stat, the
+     * fields after the parenthesized command name start at the 3rd
+     */
+    private static final int UtimeField = 14;
+    private static final int FirstFieldAfterCommand = 3;
+
+    /**
+     * Source of allocation counts, which no portable Java API offers
+     */
+    public interface AllocationCounter {
+        /**
+         * @return bytes allocated so far by the calling thread if
+         * isThreadLocal, otherwise by the whole process
+         */
+        long getAllocatedBytes();
+
+        /**
+         * @return true if getAllocatedBytes only counts the calling thread,
+         * false if it counts every thread of the process
+         */
+        boolean isThreadLocal();
+    }
+
+    private final Log2Histogram[] stages = new Log2Histogram[StageCount];
+    private final Log2Histogram refreshAllocations = new Log2Histogram();
+    private volatile AllocationCounter allocationCounter = null;
+
+    private final SysfsFile procSelfStat;
+
+    public MonitorInstrumentation(String procSelfStatPath) {
+        for (int i = 0; i < StageCount; i++) {
+            this.stages[i] = new Log2Histogram();
+        }
+        this.procSelfStat = new SysfsFile(procSelfStatPath);
+    }
+
+    public static String getStageName(int stage) {
+        return StageNames[stage];
+    }
+
+    /**
+     * @return latencies of stage in nanoseconds
+     */
+    public Log2Histogram getStage(int stage) {
+        return this.stages[stage];
+    }
+
+    /**
+     * @return bytes allocated per refresh, by the refreshing thread if
+     * isCountingThreadAllocations, otherwise by the whole process while the
+     * refresh ran; empty without an AllocationCounter
+     */
+    public Log2Histogram getRefreshAllocations() {
+        return this.refreshAllocations;
+    }
+
+    public void setAllocationCounter(AllocationCounter allocationCounter) {
+        this.allocationCounter = allocationCounter;
+    }
+
+    public boolean isCountingAllocations() {
+        return this.allocationCounter != null;
+    }
+
+    /**
+     * @return true if the allocations per refresh are those of the
+     * refreshing thread alone
+     */
+    public boolean isCountingThreadAllocations() {
+        AllocationCounter counter = this.allocationCounter;
+        return counter != null && counter.isThreadLocal();
+    }
+
+    /**
+     * Record the time since startNanos as one run of stage
+     *
+     * @return the current System.nanoTime, the start of the next stage
+     */
+    public long record(int stage, long startNanos) {
+        long now = System.nanoTime();
+        this.stages[stage].record(now - startNanos);
+        return now;
+    }
+
+    /**
+     * @return the allocation count to pass to recordRefreshAllocations, or -1
+     * without an AllocationCounter
+     */
+    long markAllocations() {
+        AllocationCounter counter = this.allocationCounter;
+        return counter == null ? -1 : counter.getAllocatedBytes();
+    }
+
+    void recordRefreshAllocations(long mark) {
+        AllocationCounter counter = this.allocationCounter;
+        if (mark >= 0 && counter != null) {
+            this.refreshAllocations.record(counter.getAllocatedBytes() - mark);
+        }
+    }
+
+    /**
+     * Clear every histogram, to measure from now on
+     */
+    public void reset() {
+        for (Log2Histogram stage : this.stages) {
+            stage.reset();
+        }
+        this.refreshAllocations.reset();
+    }
+
+    /**
+     * Read the user plus system CPU time of this process so far
+     *
+     * @return CPU time in milliseconds, or -1 if /proc/self/stat cannot be read
+     */
+    public synchronized long readProcessCpuTimeMillis() {
+        try {
+            long ticks = parseCpuTicks(this.procSelfStat.read());
+            return ticks < 0 ? -1 : ticks * 1000 / ClockTicksPerSecond;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return utime plus stime in clock ticks, or -1 if content is cut short
+     */
+    static long parseCpuTicks(ByteBuffer content) {
+        int end = content.limit();
+        // the command name may hold blanks and parentheses, it ends at the last ')'
+        int index = end - 1;
+        while (index >= content.position() && content.get(index) != ')') {
+            index--;
+        }
+        if (index < content.position()) {
+            return -1;
+        }
+        index++;
+
+        long ticks = 0;
+        int field = FirstFieldAfterCommand - 1;
+        while (index < end && field <= UtimeField + 1) {
+            byte b = content.get(index);
+            if (b == ' ') {
+                field++;
+                index++;
+                continue;
+            }
+            if (field == UtimeField || field == UtimeField + 1) {
+                long number = 0;
+                while (index < end && (b = content.get(index)) >= '0' && b <= '9') {
+                    number = number * 10 + (b - '0');
+                    index++;
+                }
+                ticks += number;
+                if (field == UtimeField + 1) {
+                    return ticks;
+                }
+                continue;
+            }
+            index++;
+        }
+        return -1;
+    }
+
+    /**
+     * Append one line per stage that ran, with its count and its p50, p99
+     * and largest latency, followed by the allocations per refresh if counted,
+     * labelled as process allocations where other threads are counted too
+     */
+    public void appendSummary(StringBuilder out) {
+        for (int stage = 0; stage < StageCount; stage++) {
+            Log2Histogram histogram = this.stages[stage];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            out.append(StageNames[stage]).append(": n=").append(histogram.getCount());
+            appendMicros(out.append(" p50 "), histogram.getPercentile(50));
+            appendMicros(out.append(" p99 "), histogram.getPercentile(99));
+            appendMicros(out.append(" max "), histogram.getMax());
+            out.append('\n');
+        }
+        Log2Histogram allocations = this.refreshAllocations;
+        if (allocations.getCount() > 0) {
+            out.append(isCountingThreadAllocations()
+                    ? "refresh allocations: p50 " : "process allocations during refresh: p50 ")
+                    .append(allocations.getPercentile(50))
+                    .append(" B, p99 ").append(allocations.getPercentile(99))
+                    .append(" B, max ").append(allocations.getMax()).append(" B\n");
+        }
+    }
+
+    private static void appendMicros(StringBuilder out, long nanos) {
+        long tenths = nanos / 100;
+        out.append(tenths / 10).append('.').append(tenths % 10).append("us");
+    }
+
+    synchronized void close() {
+        this.procSelfStat.close();
+    }
+}
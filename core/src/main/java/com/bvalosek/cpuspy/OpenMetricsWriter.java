@@ -0,0 +1,132 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OpenMetricsWriter appends ASCII text straight into a growable byte array
+ * that is kept between uses, formatting numbers digit by digit, so writing a
+ * response creates no Strings, boxed numbers or builders once the array has
+ * grown to the size of the largest one
+ */
+class OpenMetricsWriter {
+
+    private byte[] bytes = new byte[16 * 1024];
+    private int size = 0;
+
+    /**
+     * Scratch space for the digits of a number, written backwards
+     */
+    private final byte[] digits = new byte[20];
+
+    void reset() {
+        this.size = 0;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(this.bytes, 0, this.size);
+    }
+
+    OpenMetricsWriter ascii(String text) {
+        int length = text.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            this.bytes[this.size++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    OpenMetricsWriter ascii(char c) {
+        ensureCapacity(1);
+        this.bytes[this.size++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Append text as the inside of a quoted label value, escaping quotes,
+     * backslashes and newlines and replacing anything outside ASCII
+     */
+    OpenMetricsWriter labelValue(String text) {
+        int length = text.length();
+        ensureCapacity(length * 2);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                this.bytes[this.size++] = '\\';
+                this.bytes[this.size++] = (byte) c;
+            } else if (c == '\n') {
+                this.bytes[this.size++] = '\\';
+                this.bytes[this.size++] = 'n';
+            } else {
+                this.bytes[this.size++] = c < 0x20 || c > 0x7e ? (byte) '_' : (byte) c;
+            }
+        }
+        return this;
+    }
+
+    OpenMetricsWriter decimal(long value) {
+        ensureCapacity(21);
+        if (value < 0) {
+            this.bytes[this.size++] = '-';
+            if (value == Long.MIN_VALUE) {
+                // cannot be negated, never happens for counters
+                value = Long.MAX_VALUE;
+            } else {
+                value = -value;
+            }
+        }
+        int count = 0;
+        do {
+            this.digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (count > 0) {
+            this.bytes[this.size++] = this.digits[--count];
+        }
+        return this;
+    }
+
+    /**
+     * Append value / 10^decimals with exactly that many decimals, such as
+     * 1234 with 2 decimals as "12.34"
+     */
+    OpenMetricsWriter fixed(long value, int decimals) {
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        if (value < 0) {
+            ascii('-');
+            value = -value;
+        }
+        decimal(value / scale);
+        if (decimals > 0) {
+            ascii('.');
+            long fraction = value % scale;
+            for (long digit = scale / 10; digit > 0; digit /= 10) {
+                ascii((char) ('0' + fraction / digit % 10));
+            }
+        }
+        return this;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (this.size + extra > this.bytes.length) {
+            byte[] larger = new byte[Math.max(this.bytes.length * 2, this.size + extra)];
+            System.arraycopy(this.bytes, 0, larger, 0, this.size);
+            this.bytes = larger;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.util.Arrays;
+
+/**
+ * SamplingGovernor picks the interval of a subscription after every refresh
+ * from what the refresh showed. It compares each policy's frequency mix over
+ * the last interval with the mix over the one before: when the mix jumps the
+ * interval drops straight to the minimum to catch the burst, and while the
+ * mix holds still, or the cores hardly leave their lowest frequency and deep
+ * sleep, it doubles up to the maximum.
+ * <p>
+ * Every interval is a power-of-two multiple of the minimum, so the refreshes
+ * of differently paced subscribers line up, and governed subscriptions let
+ * the dispatcher serve them early on another subscriber's refresh instead of
+ * waking the device up on their own. The interval is never short enough for
+ * the monitor's refreshes, timed by the monitor itself, to take more than
+ * the CPU budget. Each decision and its reason are kept for display and can
+ * be handed to a DecisionListener
+ */
+public class SamplingGovernor {
+
+    public static final int ReasonStart = 0;
+    public static final int ReasonBurst = 1;
+    public static final int ReasonSteady = 2;
+    public static final int ReasonStable = 3;
+    public static final int ReasonIdle = 4;
+    public static final int ReasonBudget = 5;
+
+    private static final String[] ReasonNames = {
+            "start", "burst", "steady", "stable", "idle", "cpu budget"
+    };
+
+    /**
+     * Half the L1 distance between two frequency mixes, from 0 for the same
+     * mix to 1 for disjoint ones, above which the mix counts as changed
+     * quickly and below which it counts as stable
+     */
+    private static final double BurstChange = 0.25;
+    private static final double StableChange = 0.05;
+
+    /**
+     * Share of the time at any but the lowest frequency below which a policy
+     * counts as idle
+     */
+    private static final double IdleActiveShare = 0.05;
+
+    /**
+     * Receives every decision, on the monitor's sampling thread
+     */
+    public interface DecisionListener {
+        void onDecision(long intervalMillis, int reason, double changeScore, double overheadPercent);
+    }
+
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final double cpuBudgetPercent;
+
+    private long intervalMillis;
+    private int reason = ReasonStart;
+    private double changeScore = 0;
+    private double overheadPercent = 0;
+    private long decisionCount = 0;
+    private final long[] reasonCounts = new long[ReasonNames.length];
+    private volatile DecisionListener decisionListener = null;
+
+    /**
+     * The refresh the last decision was based on and the frequency mix of
+     * each policy over the interval before it
+     */
+    private CpuTimeInStateSnapshot previous = null;
+    private double[][] previousShares = new double[0][];
+    private boolean hasPreviousShares = false;
+    private double[] shares = new double[32];
+    private long previousRefreshCount = 0;
+    private long previousRefreshNanos = 0;
+
+    /**
+     * @param minIntervalMillis shortest interval, also the unit of all others
+     * @param maxIntervalMillis longest interval
+     * @param cpuBudgetPercent  largest share of one core the refreshes may take
+     */
+    public SamplingGovernor(long minIntervalMillis, long maxIntervalMillis, double cpuBudgetPercent) {
+        this.minIntervalMillis = Math.max(1, minIntervalMillis);
+        this.maxIntervalMillis = Math.max(this.minIntervalMillis, maxIntervalMillis);
+        this.cpuBudgetPercent = cpuBudgetPercent;
+        this.intervalMillis = this.minIntervalMillis;
+    }
+
+    public void setDecisionListener(DecisionListener decisionListener) {
+        this.decisionListener = decisionListener;
+    }
+
+    /**
+     * @return the interval chosen by the last decision
+     */
+    public synchronized long getIntervalMillis() {
+        return this.intervalMillis;
+    }
+
+    /**
+     * @return why the last decision chose its interval, one of the Reason constants
+     */
+    public synchronized int getReason() {
+        return this.reason;
+    }
+
+    public static String getReasonName(int reason) {
+        return ReasonNames[reason];
+    }
+
+    /**
+     * @return the largest change of any policy's frequency mix seen by the
+     * last decision, between 0 and 1
+     */
+    public synchronized double getChangeScore() {
+        return this.changeScore;
+    }
+
+    /**
+     * @return share of one core the refreshes took over the last interval, in percent
+     */
+    public synchronized double getOverheadPercent() {
+        return this.overheadPercent;
+    }
+
+    public synchronized long getDecisionCount() {
+        return this.decisionCount;
+    }
+
+    /**
+     * @return number of decisions made for reason
+     */
+    public synchronized long getDecisionCount(int reason) {
+        return this.reasonCounts[reason];
+    }
+
+    /**
+     * Decide the interval until the next refresh from snapshot, the one just
+     * read by monitor
+     */
+    long onRefresh(CpuTimeInStateSnapshot snapshot, CpuTimeInStateMonitor monitor) {
+        long interval;
+        int reason;
+        double change;
+        double overhead;
+        synchronized (this) {
+            CpuTopology topology = monitor.getTopology();
+            int policyCount = topology.getPolicyCount();
+            if (this.previousShares.length != policyCount) {
+                this.previousShares = new double[policyCount][];
+                this.hasPreviousShares = false;
+            }
+
+            change = 0;
+            boolean idle = true;
+            boolean comparable = this.previous != null && this.hasPreviousShares;
+            boolean measured = this.previous != null;
+            for (int policyIndex = 0; policyIndex < policyCount && measured; policyIndex++) {
+                int cpuIndex = topology.getPolicyFirstCpu(policyIndex);
+                if (snapshot.frequencyRow(cpuIndex) != this.previous.frequencyRow(cpuIndex)) {
+                    // the states changed underneath us, start over
+                    measured = false;
+                    break;
+                }
+                int stateCount = snapshot.getStateCount(cpuIndex);
+                if (this.shares.length < stateCount) {
+                    this.shares = new double[stateCount];
+                }
+                long total = 0;
+                for (int i = 0; i < stateCount; i++) {
+                    total += Math.max(0, snapshot.getRawDuration(cpuIndex, i)
+                            - this.previous.getRawDuration(cpuIndex, i));
+                }
+                if (total == 0) {
+                    Arrays.fill(this.shares, 0, stateCount, 0);
+                } else {
+                    for (int i = 0; i < stateCount; i++) {
+                        this.shares[i] = (double) Math.max(0, snapshot.getRawDuration(cpuIndex, i)
+                                - this.previous.getRawDuration(cpuIndex, i)) / total;
+                    }
+                }
+                idle &= activeShare(snapshot, cpuIndex, this.shares, stateCount) < IdleActiveShare;
+
+                double[] before = this.previousShares[policyIndex];
+                if (before == null || before.length != stateCount) {
+                    before = new double[stateCount];
+                    this.previousShares[policyIndex] = before;
+                    comparable = false;
+                }
+                if (comparable && total > 0) {
+                    double distance = 0;
+                    for (int i = 0; i < stateCount; i++) {
+                        distance += Math.abs(this.shares[i] - before[i]);
+                    }
+                    change = Math.max(change, distance / 2);
+                }
+                System.arraycopy(this.shares, 0, before, 0, stateCount);
+            }
+            this.hasPreviousShares = measured;
+            this.previous = snapshot;
+
+            if (!measured || !comparable) {
+                interval = this.minIntervalMillis;
+                reason = ReasonStart;
+            } else if (change > BurstChange) {
+                interval = this.minIntervalMillis;
+                reason = ReasonBurst;
+            } else if (idle) {
+                interval = Math.min(this.intervalMillis * 2, this.maxIntervalMillis);
+                reason = ReasonIdle;
+            } else if (change < StableChange) {
+                interval = Math.min(this.intervalMillis * 2, this.maxIntervalMillis);
+                reason = ReasonStable;
+            } else {
+                interval = this.intervalMillis;
+                reason = ReasonSteady;
+            }
+
+            // refreshes are single threaded reads, their wall time stands in for their CPU time
+            long refreshCount = monitor.getRefreshCount();
+            long refreshNanos = monitor.getRefreshNanos();
+            long refreshes = refreshCount - this.previousRefreshCount;
+            overhead = 0;
+            if (refreshes > 0 && this.previousRefreshCount > 0) {
+                double refreshMillis = (refreshNanos - this.previousRefreshNanos) / 1e6 / refreshes;
+                overhead = 100 * refreshMillis / this.intervalMillis;
+                long budgetInterval = (long) Math.ceil(100 * refreshMillis / this.cpuBudgetPercent);
+                if (interval < budgetInterval) {
+                    interval = this.minIntervalMillis;
+                    while (interval < budgetInterval && interval < this.maxIntervalMillis) {
+                        interval *= 2;
+                    }
+                    interval = Math.min(interval, this.maxIntervalMillis);
+                    reason = ReasonBudget;
+                }
+            }
+            this.previousRefreshCount = refreshCount;
+            this.previousRefreshNanos = refreshNanos;
+
+            this.intervalMillis = interval;
+            this.reason = reason;
+            this.changeScore = change;
+            this.overheadPercent = overhead;
+            this.decisionCount++;
+            this.reasonCounts[reason]++;
+        }
+
+        DecisionListener listener = this.decisionListener;
+        if (listener != null) {
+            listener.onDecision(interval, reason, change, overhead);
+        }
+        return interval;
+    }
+
+    /**
+     * @return share of the interval spent above the lowest real frequency
+     */
+    private static double activeShare(CpuTimeInStateSnapshot snapshot, int cpuIndex,
+                                      double[] shares, int stateCount) {
+        // rows are sorted descending with deep sleep last, find the lowest real frequency
+        int lowest = stateCount - 1;
+        while (lowest >= 0 && snapshot.getFrequency(cpuIndex, lowest) == 0) {
+            lowest--;
+        }
+        double active = 0;
+        for (int i = 0; i < lowest; i++) {
+            active += shares[i];
+        }
+        return active;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.nio.ByteOrder;
+
+/**
+ * SharedSnapshotLayout documents the fixed layout of the shared memory region
+ * SharedSnapshotWriter publishes snapshots into and SharedSnapshotReader reads
+ * them from. All numbers are little-endian and every field is aligned to its
+ * size. Version 1 is:
+ * <pre>
+ * header, HeaderSize bytes
+ *   0  int   magic, "CPSM"
+ *   4  int   layout version
+ *   8  long  sequence, odd while a snapshot is being written
+ *  16  int   size of the whole region in bytes
+ *  20  int   core count
+ *  24  int   frequency slots per core
+ *  28  int   idle state slots per core
+ *  32  long  elapsedRealtime in ms at which the snapshot was read
+ *  40  long  number of snapshots published since the region was created
+ *  48  16 reserved bytes, zero
+ * then per core, coreSize(maxStates, maxIdleStates) bytes each
+ *   0  int   frequency count, at most the slot count
+ *   4  int   idle state count, at most the slot count
+ *   8  int   epoch of the core's counters
+ *  12  int   1 if the durations have a baseline, 0 otherwise
+ *  16  per frequency slot: long frequency in kHz, long duration since boot
+ *      in 10ms units, long baseline duration or 0, sorted by descending
+ *      frequency with deep sleep, if estimated, last as frequency 0
+ *  ..  per idle state slot: long time since boot in microseconds, long
+ *      number of entries
+ * </pre>
+ * The writer makes the sequence odd, writes everything else and makes the
+ * sequence even again, the next value up. A reader remembers the sequence,
+ * reads what it needs and then checks that the sequence is still the same
+ * even value; otherwise the writer got in between and the read must be
+ * retried. Slots past the counts hold stale data. Idle state names are not
+ * in the region, they never change and can be read once from sysfs
+ */
+public final class SharedSnapshotLayout {
+
+    public static final int Magic = 0x4d535043;
+    public static final int Version = 1;
+    public static final ByteOrder Order = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int MagicOffset = 0;
+    public static final int VersionOffset = 4;
+    public static final int SequenceOffset = 8;
+    public static final int SizeOffset = 16;
+    public static final int CpuCountOffset = 20;
+    public static final int MaxStatesOffset = 24;
+    public static final int MaxIdleStatesOffset = 28;
+    public static final int TimestampOffset = 32;
+    public static final int PublishCountOffset = 40;
+    public static final int HeaderSize = 64;
+
+    public static final int CoreStateCountOffset = 0;
+    public static final int CoreIdleStateCountOffset = 4;
+    public static final int CoreEpochOffset = 8;
+    public static final int CoreHasBaselineOffset = 12;
+    public static final int CoreHeaderSize = 16;
+    public static final int StateSize = 24;
+    public static final int IdleStateSize = 16;
+
+    /**
+     * Slot counts used by the app, enough for any SoC shipped so far
+     */
+    public static final int DefaultMaxStates = 64;
+    public static final int DefaultMaxIdleStates = 16;
+
+    /**
+     * Full fences around the region's accesses. Java 7 has no explicit
+     * fences, but both HotSpot and ART compile a volatile write followed by a
+     * volatile read into full barriers the compiler does not move memory
+     * accesses across, which is all a seqlock needs
+     */
+    private static volatile int fence;
+
+    private SharedSnapshotLayout() {
+    }
+
+    static void fullFence() {
+        fence = 0;
+        if (fence != 0) {
+            throw new AssertionError();
+        }
+    }
+
+    /**
+     * @return bytes taken by each core
+     */
+    public static int coreSize(int maxStates, int maxIdleStates) {
+        return CoreHeaderSize + maxStates * StateSize + maxIdleStates * IdleStateSize;
+    }
+
+    /**
+     * @return bytes taken by a region of cpuCount cores
+     */
+    public static int regionSize(int cpuCount, int maxStates, int maxIdleStates) {
+        return HeaderSize + cpuCount * coreSize(maxStates, maxIdleStates);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * SharedSnapshotReader reads the snapshots SharedSnapshotWriter publishes,
+ * straight out of the shared region with no copies. It runs on any JVM, so
+ * tests and tools outside the app can map the same region. Reads follow the
+ * seqlock of SharedSnapshotLayout:
+ * <pre>
+ * long stamp;
+ * do {
+ *     stamp = reader.beginRead();
+ *     // read whatever is needed with the getters
+ * } while (!reader.validate(stamp));
+ * </pre>
+ * Values read before validate succeeds may be torn and must not be acted on,
+ * though the getters never read outside the region
+ */
+public class SharedSnapshotReader {
+
+    private final ByteBuffer region;
+    private final int cpuCount;
+    private final int maxStates;
+    private final int maxIdleStates;
+    private final int coreSize;
+
+    /**
+     * @throws IOException if region does not hold a laid out region of a
+     *                     known version
+     */
+    public SharedSnapshotReader(ByteBuffer region) throws IOException {
+        ByteBuffer buffer = region.duplicate().order(SharedSnapshotLayout.Order);
+        if (buffer.capacity() < SharedSnapshotLayout.HeaderSize
+                || buffer.getInt(SharedSnapshotLayout.MagicOffset) != SharedSnapshotLayout.Magic) {
+            throw new IOException("Not a shared snapshot region");
+        }
+        int version = buffer.getInt(SharedSnapshotLayout.VersionOffset);
+        if (version != SharedSnapshotLayout.Version) {
+            throw new IOException("Unsupported shared snapshot layout version " + version);
+        }
+        this.cpuCount = buffer.getInt(SharedSnapshotLayout.CpuCountOffset);
+        this.maxStates = buffer.getInt(SharedSnapshotLayout.MaxStatesOffset);
+        this.maxIdleStates = buffer.getInt(SharedSnapshotLayout.MaxIdleStatesOffset);
+        this.coreSize = SharedSnapshotLayout.coreSize(this.maxStates, this.maxIdleStates);
+        if (this.cpuCount < 0 || this.maxStates < 0 || this.maxIdleStates < 0
+                || buffer.capacity() < SharedSnapshotLayout.regionSize(this.cpuCount, this.maxStates, this.maxIdleStates)) {
+            throw new IOException("Shared snapshot region is cut short");
+        }
+        this.region = buffer;
+    }
+
+    /**
+     * Map file read-only
+     */
+    public static SharedSnapshotReader open(File file) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = access.getChannel();
+            return new SharedSnapshotReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            // the mapping stays valid once the file is closed
+            access.close();
+        }
+    }
+
+    /**
+     * Wait for the writer to be done and start a read
+     *
+     * @return the stamp to validate the read with
+     */
+    public long beginRead() {
+        while (true) {
+            long sequence = this.region.getLong(SharedSnapshotLayout.SequenceOffset);
+            if ((sequence & 1) == 0) {
+                SharedSnapshotLayout.fullFence();
+                return sequence;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * @return true if nothing was published since beginRead returned stamp,
+     * so everything read in between is consistent
+     */
+    public boolean validate(long stamp) {
+        SharedSnapshotLayout.fullFence();
+        return this.region.getLong(SharedSnapshotLayout.SequenceOffset) == stamp;
+    }
+
+    public int getCpuCount() {
+        return this.cpuCount;
+    }
+
+    /**
+     * @return elapsedRealtime in ms at which the snapshot was read, 0 before the first one
+     */
+    public long getTimestamp() {
+        return this.region.getLong(SharedSnapshotLayout.TimestampOffset);
+    }
+
+    /**
+     * @return number of snapshots the current writer published
+     */
+    public long getPublishCount() {
+        return this.region.getLong(SharedSnapshotLayout.PublishCountOffset);
+    }
+
+    public int getStateCount(int cpuIndex) {
+        return clamp(this.region.getInt(core(cpuIndex) + SharedSnapshotLayout.CoreStateCountOffset),
+                this.maxStates);
+    }
+
+    public int getIdleStateCount(int cpuIndex) {
+        return clamp(this.region.getInt(core(cpuIndex) + SharedSnapshotLayout.CoreIdleStateCountOffset),
+                this.maxIdleStates);
+    }
+
+    public int getEpoch(int cpuIndex) {
+        return this.region.getInt(core(cpuIndex) + SharedSnapshotLayout.CoreEpochOffset);
+    }
+
+    public boolean hasBaseline(int cpuIndex) {
+        return this.region.getInt(core(cpuIndex) + SharedSnapshotLayout.CoreHasBaselineOffset) != 0;
+    }
+
+    /**
+     * @return frequency in kHz of stateIndex of cpuIndex, descending
+     */
+    public int getFrequency(int cpuIndex, int stateIndex) {
+        return (int) this.region.getLong(state(cpuIndex, stateIndex));
+    }
+
+    /**
+     * @return duration in 10ms units of stateIndex of cpuIndex since boot
+     */
+    public long getRawDuration(int cpuIndex, int stateIndex) {
+        return this.region.getLong(state(cpuIndex, stateIndex) + 8);
+    }
+
+    public long getBaseline(int cpuIndex, int stateIndex) {
+        return this.region.getLong(state(cpuIndex, stateIndex) + 16);
+    }
+
+    /**
+     * @return duration in 10ms units of stateIndex of cpuIndex since its baseline
+     */
+    public long getDuration(int cpuIndex, int stateIndex) {
+        return getRawDuration(cpuIndex, stateIndex) - getBaseline(cpuIndex, stateIndex);
+    }
+
+    /**
+     * @return microseconds cpuIndex spent in idle state stateIndex since boot
+     */
+    public long getIdleTime(int cpuIndex, int stateIndex) {
+        return this.region.getLong(idleState(cpuIndex, stateIndex));
+    }
+
+    public long getIdleUsage(int cpuIndex, int stateIndex) {
+        return this.region.getLong(idleState(cpuIndex, stateIndex) + 8);
+    }
+
+    private int core(int cpuIndex) {
+        if (cpuIndex < 0 || cpuIndex >= this.cpuCount) {
+            throw new IndexOutOfBoundsException("No core " + cpuIndex);
+        }
+        return SharedSnapshotLayout.HeaderSize + cpuIndex * this.coreSize;
+    }
+
+    private int state(int cpuIndex, int stateIndex) {
+        if (stateIndex < 0 || stateIndex >= this.maxStates) {
+            throw new IndexOutOfBoundsException("No state " + stateIndex);
+        }
+        return core(cpuIndex) + SharedSnapshotLayout.CoreHeaderSize + stateIndex * SharedSnapshotLayout.StateSize;
+    }
+
+    private int idleState(int cpuIndex, int stateIndex) {
+        if (stateIndex < 0 || stateIndex >= this.maxIdleStates) {
+            throw new IndexOutOfBoundsException("No idle state " + stateIndex);
+        }
+        return core(cpuIndex) + SharedSnapshotLayout.CoreHeaderSize
+                + this.maxStates * SharedSnapshotLayout.StateSize + stateIndex * SharedSnapshotLayout.IdleStateSize;
+    }
+
+    private static int clamp(int count, int max) {
+        return Math.max(0, Math.min(count, max));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * SharedSnapshotWriter publishes snapshots into a shared memory region laid
+ * out as described by SharedSnapshotLayout, such as a memory-mapped file or
+ * an android.os.SharedMemory, so other processes can map the region
+ * read-only and read the latest snapshot without any copies, parsing or IPC.
+ * <p>
+ * Durations are published raw, since boot, with their baselines alongside,
+ * and idle counters raw without baselines, so readers can take deltas across
+ * a reset. Cores with more states than the region has slots only publish the
+ * highest frequencies. There must be a single writer per region; the monitor publishes while
+ * holding its update lock
+ */
+public class SharedSnapshotWriter {
+
+    private final ByteBuffer region;
+    private final int cpuCount;
+    private final int maxStates;
+    private final int maxIdleStates;
+    private final int coreSize;
+    private long sequence;
+    private long publishCount = 0;
+
+    /**
+     * Lay out region for cpuCount cores, overwriting whatever it held
+     *
+     * @throws IllegalArgumentException if region is smaller than
+     *                                  SharedSnapshotLayout.regionSize
+     */
+    public SharedSnapshotWriter(ByteBuffer region, int cpuCount, int maxStates, int maxIdleStates) {
+        int size = SharedSnapshotLayout.regionSize(cpuCount, maxStates, maxIdleStates);
+        if (region.capacity() < size) {
+            throw new IllegalArgumentException("Region of " + region.capacity()
+                    + " bytes is smaller than the " + size + " needed");
+        }
+        this.region = region.duplicate().order(SharedSnapshotLayout.Order);
+        this.cpuCount = cpuCount;
+        this.maxStates = maxStates;
+        this.maxIdleStates = maxIdleStates;
+        this.coreSize = SharedSnapshotLayout.coreSize(maxStates, maxIdleStates);
+
+        // keep counting from a previous writer so a reader never sees a sequence repeat
+        ByteBuffer buffer = this.region;
+        long previous = buffer.getInt(SharedSnapshotLayout.MagicOffset) == SharedSnapshotLayout.Magic
+                ? buffer.getLong(SharedSnapshotLayout.SequenceOffset) : 0;
+        this.sequence = (previous + 1) | 1;
+        buffer.putLong(SharedSnapshotLayout.SequenceOffset, this.sequence);
+        SharedSnapshotLayout.fullFence();
+        for (int i = 0; i < size; i++) {
+            if (i < SharedSnapshotLayout.SequenceOffset || i >= SharedSnapshotLayout.SequenceOffset + 8) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+        buffer.putInt(SharedSnapshotLayout.VersionOffset, SharedSnapshotLayout.Version);
+        buffer.putInt(SharedSnapshotLayout.SizeOffset, size);
+        buffer.putInt(SharedSnapshotLayout.CpuCountOffset, cpuCount);
+        buffer.putInt(SharedSnapshotLayout.MaxStatesOffset, maxStates);
+        buffer.putInt(SharedSnapshotLayout.MaxIdleStatesOffset, maxIdleStates);
+        buffer.putInt(SharedSnapshotLayout.MagicOffset, SharedSnapshotLayout.Magic);
+        SharedSnapshotLayout.fullFence();
+        this.sequence++;
+        buffer.putLong(SharedSnapshotLayout.SequenceOffset, this.sequence);
+    }
+
+    /**
+     * Map file, creating it if needed, and lay it out for cpuCount cores
+     */
+    public static SharedSnapshotWriter create(File file, int cpuCount, int maxStates, int maxIdleStates)
+            throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            int size = SharedSnapshotLayout.regionSize(cpuCount, maxStates, maxIdleStates);
+            access.setLength(size);
+            ByteBuffer region = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new SharedSnapshotWriter(region, cpuCount, maxStates, maxIdleStates);
+        } finally {
+            // the mapping stays valid once the file is closed
+            access.close();
+        }
+    }
+
+    /**
+     * @return number of snapshots published by this writer
+     */
+    public synchronized long getPublishCount() {
+        return this.publishCount;
+    }
+
+    /**
+     * Write snapshot into the region. Readers retry while this runs
+     */
+    public synchronized void publish(CpuTimeInStateSnapshot snapshot) {
+        ByteBuffer buffer = this.region;
+        this.sequence++;
+        buffer.putLong(SharedSnapshotLayout.SequenceOffset, this.sequence);
+        SharedSnapshotLayout.fullFence();
+
+        this.publishCount++;
+        buffer.putLong(SharedSnapshotLayout.TimestampOffset, snapshot.getTimestamp());
+        buffer.putLong(SharedSnapshotLayout.PublishCountOffset, this.publishCount);
+        CpuIdleStates idle = snapshot.idleStates();
+        int cpuCount = Math.min(this.cpuCount, snapshot.getCpuCount());
+        for (int cpuIndex = 0; cpuIndex < this.cpuCount; cpuIndex++) {
+            int core = SharedSnapshotLayout.HeaderSize + cpuIndex * this.coreSize;
+            if (cpuIndex >= cpuCount) {
+                buffer.putInt(core + SharedSnapshotLayout.CoreStateCountOffset, 0);
+                buffer.putInt(core + SharedSnapshotLayout.CoreIdleStateCountOffset, 0);
+                continue;
+            }
+            int stateCount = Math.min(this.maxStates, snapshot.getStateCount(cpuIndex));
+            int idleStateCount = Math.min(this.maxIdleStates, idle.getStateCount(cpuIndex));
+            boolean hasBaseline = snapshot.hasBaseline(cpuIndex);
+            buffer.putInt(core + SharedSnapshotLayout.CoreStateCountOffset, stateCount);
+            buffer.putInt(core + SharedSnapshotLayout.CoreIdleStateCountOffset, idleStateCount);
+            buffer.putInt(core + SharedSnapshotLayout.CoreEpochOffset, snapshot.getEpoch(cpuIndex));
+            buffer.putInt(core + SharedSnapshotLayout.CoreHasBaselineOffset, hasBaseline ? 1 : 0);
+
+            int state = core + SharedSnapshotLayout.CoreHeaderSize;
+            for (int i = 0; i < stateCount; i++, state += SharedSnapshotLayout.StateSize) {
+                buffer.putLong(state, snapshot.getFrequency(cpuIndex, i));
+                buffer.putLong(state + 8, snapshot.getRawDuration(cpuIndex, i));
+                buffer.putLong(state + 16, hasBaseline ? snapshot.getBaseline(cpuIndex, i) : 0);
+            }
+            int idleState = core + SharedSnapshotLayout.CoreHeaderSize
+                    + this.maxStates * SharedSnapshotLayout.StateSize;
+            for (int i = 0; i < idleStateCount; i++, idleState += SharedSnapshotLayout.IdleStateSize) {
+                buffer.putLong(idleState, idle.getTime(cpuIndex, i));
+                buffer.putLong(idleState + 8, idle.getUsage(cpuIndex, i));
+            }
+        }
+
+        SharedSnapshotLayout.fullFence();
+        this.sequence++;
+        buffer.putLong(SharedSnapshotLayout.SequenceOffset, this.sequence);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import com.bvalosek.cpuspy.CpuTimeInStateMonitor.CpuStateMonitorException;
+import com.bvalosek.cpuspy.CpuTimeInStateMonitor.SnapshotListener;
+import com.bvalosek.cpuspy.CpuTimeInStateMonitor.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * SnapshotDispatcher drives the refreshes of a CpuTimeInStateMonitor on behalf
+ * of its subscribers. One sampling thread wakes up when the earliest
+ * subscriber is due, reads sysfs once and hands the resulting snapshot to
+ * every subscriber that is due at that time, so subscribers with different
+ * rates share their reads. The thread only exists while there are
+ * subscribers or tasks handed to execute.
+ * <p>
+ * Each subscriber holds at most one undelivered snapshot. When a new one is
+ * published before the subscriber's executor got around to the previous one,
+ * the pending snapshot is replaced instead of queued, so a slow subscriber
+ * always receives the latest state and never a backlog.
+ * <p>
+ * Governors and subscriber executors are called without holding the lock of
+ * the dispatcher, so a listener that runs inline may subscribe, cancel or
+ * request a refresh. Cancelling the last subscriber lets a refresh already
+ * reading sysfs finish rather than interrupting it, since an interrupt
+ * closes the open sysfs handles halfway through the read
+ */
+class SnapshotDispatcher {
+
+    /**
+     * Subscribers due within this fraction of their interval of a refresh
+     * are served by it rather than waking the thread up again shortly after
+     */
+    private static final int DueSlackDivisor = 8;
+
+    /**
+     * Governed subscribers accept a wider slack, so they ride along on the
+     * refreshes of others instead of waking the thread up on their own
+     */
+    private static final int GovernedSlackDivisor = 4;
+
+    /**
+     * How long the sampling thread outlives its last task when nothing is
+     * scheduled, as after running a task without any subscribers
+     */
+    private static final long IdleThreadMillis = 10000;
+
+    private final CpuTimeInStateMonitor monitor;
+
+    private final List<SubscriptionEntry> subscriptions = new ArrayList<>();
+    private ScheduledThreadPoolExecutor executor = null;
+    private ScheduledFuture<?> nextRefresh = null;
+    private long nextRefreshAt = Long.MAX_VALUE;
+
+    private final Runnable refreshTask = new Runnable() {
+        public void run() {
+            refresh(false);
+        }
+    };
+
+    private final Runnable forcedRefreshTask = new Runnable() {
+        public void run() {
+            refresh(true);
+        }
+    };
+
+    SnapshotDispatcher(CpuTimeInStateMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    synchronized Subscription subscribe(SnapshotListener listener, long intervalMillis,
+                                        Executor deliveryExecutor) {
+        return subscribe(listener, intervalMillis, null, deliveryExecutor);
+    }
+
+    synchronized Subscription subscribe(SnapshotListener listener, SamplingGovernor governor,
+                                        Executor deliveryExecutor) {
+        return subscribe(listener, governor.getIntervalMillis(), governor, deliveryExecutor);
+    }
+
+    private Subscription subscribe(SnapshotListener listener, long intervalMillis,
+                                   SamplingGovernor governor, Executor deliveryExecutor) {
+        SubscriptionEntry entry = new SubscriptionEntry(listener, intervalMillis, governor, deliveryExecutor);
+        this.subscriptions.add(entry);
+        startExecutor();
+        scheduleAt(now());
+        return entry;
+    }
+
+    /**
+     * Run task on the sampling thread after the refresh in progress, if any,
+     * starting the thread if there are no subscribers
+     */
+    synchronized void execute(Runnable task) {
+        startExecutor();
+        this.executor.execute(task);
+    }
+
+    /**
+     * Create the sampling thread if it does not exist, must hold the lock
+     */
+    private void startExecutor() {
+        if (this.executor != null) {
+            return;
+        }
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CpuTimeInStateMonitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // refreshes not yet due are dropped on shutdown, a running one and due tasks finish
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // a thread started for a task alone goes away again, a scheduled refresh keeps it
+        this.executor.setKeepAliveTime(IdleThreadMillis, TimeUnit.MILLISECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    synchronized void unsubscribe(SubscriptionEntry entry) {
+        if (!this.subscriptions.remove(entry) || !this.subscriptions.isEmpty()) {
+            return;
+        }
+        this.executor.shutdown();
+        this.executor = null;
+        this.nextRefresh = null;
+        this.nextRefreshAt = Long.MAX_VALUE;
+    }
+
+    /**
+     * Refresh as soon as possible and deliver to every subscriber, due or
+     * not. Without subscribers the thread may still be up for a task, but
+     * nobody would get the snapshot
+     */
+    synchronized void requestRefresh() {
+        if (this.executor != null && !this.subscriptions.isEmpty()) {
+            this.executor.execute(this.forcedRefreshTask);
+        }
+    }
+
+    synchronized int getSubscriberCount() {
+        return this.subscriptions.size();
+    }
+
+    /**
+     * Read sysfs once and hand the snapshot to the due subscribers, then
+     * sleep until the next one is due. Runs on the sampling thread
+     */
+    private void refresh(boolean deliverToAll) {
+        CpuTimeInStateSnapshot snapshot = null;
+        CpuStateMonitorException error = null;
+        try {
+            this.monitor.updateAllCpuTimeInState();
+            snapshot = this.monitor.getSnapshot();
+        } catch (CpuStateMonitorException e) {
+            error = e;
+        }
+
+        // the thread of a cancelled executor may still be finishing its refresh
+        // while a new one starts, so the due subscribers are not kept in a field
+        List<SubscriptionEntry> due;
+        long now;
+        synchronized (this) {
+            if (this.executor == null) {
+                return;
+            }
+            due = new ArrayList<>(this.subscriptions.size());
+            now = now();
+            for (SubscriptionEntry entry : this.subscriptions) {
+                if (deliverToAll || now - entry.nextDueAt >= -entry.getSlackMillis()) {
+                    due.add(entry);
+                }
+            }
+        }
+
+        // governors and delivery executors may call back into the dispatcher
+        for (SubscriptionEntry entry : due) {
+            if (snapshot != null) {
+                if (entry.governor != null) {
+                    entry.intervalMillis = entry.governor.onRefresh(snapshot, this.monitor);
+                }
+                entry.publish(snapshot);
+            } else {
+                entry.fail(error);
+            }
+        }
+
+        synchronized (this) {
+            for (SubscriptionEntry entry : due) {
+                entry.nextDueAt = now + entry.intervalMillis;
+            }
+            if (this.executor == null) {
+                return;
+            }
+            long earliest = Long.MAX_VALUE;
+            for (SubscriptionEntry entry : this.subscriptions) {
+                earliest = Math.min(earliest, entry.nextDueAt);
+            }
+            this.nextRefreshAt = Long.MAX_VALUE;
+            scheduleAt(earliest);
+        }
+    }
+
+    /**
+     * Make sure a refresh happens no later than time, must hold the lock
+     */
+    private void scheduleAt(long time) {
+        if (this.executor == null || time >= this.nextRefreshAt) {
+            return;
+        }
+        if (this.nextRefresh != null) {
+            this.nextRefresh.cancel(false);
+        }
+        this.nextRefreshAt = time;
+        this.nextRefresh = this.executor.schedule(this.refreshTask,
+                Math.max(0, time - now()), TimeUnit.MILLISECONDS);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * One subscriber with its rate and its single pending snapshot
+     */
+    private class SubscriptionEntry implements Subscription {
+        private final SnapshotListener listener;
+        private final SamplingGovernor governor;
+        private final Executor deliveryExecutor;
+        private volatile long intervalMillis;
+        private long nextDueAt = now();
+        private volatile boolean cancelled = false;
+
+        private final AtomicReference<CpuTimeInStateSnapshot> pending = new AtomicReference<>();
+
+        private final Runnable deliverTask = new Runnable() {
+            public void run() {
+                CpuTimeInStateSnapshot snapshot = pending.getAndSet(null);
+                if (snapshot != null && !cancelled) {
+                    listener.onSnapshot(snapshot);
+                }
+            }
+        };
+
+        SubscriptionEntry(SnapshotListener listener, long intervalMillis, SamplingGovernor governor,
+                          Executor deliveryExecutor) {
+            this.listener = listener;
+            this.governor = governor;
+            this.intervalMillis = Math.max(1, intervalMillis);
+            this.deliveryExecutor = deliveryExecutor;
+        }
+
+        void publish(CpuTimeInStateSnapshot snapshot) {
+            // only schedule a delivery if none is pending, otherwise just replace its snapshot
+            if (this.pending.getAndSet(snapshot) == null) {
+                this.deliveryExecutor.execute(this.deliverTask);
+            }
+        }
+
+        void fail(final CpuStateMonitorException error) {
+            this.deliveryExecutor.execute(new Runnable() {
+                public void run() {
+                    if (!cancelled) {
+                        listener.onError(error);
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return the current interval, which a governor changes after every refresh
+         */
+        public long getIntervalMillis() {
+            return this.intervalMillis;
+        }
+
+        long getSlackMillis() {
+            return this.intervalMillis / (this.governor != null ? GovernedSlackDivisor : DueSlackDivisor);
+        }
+
+        public void cancel() {
+            this.cancelled = true;
+            unsubscribe(this);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * SysfsFile keeps a sysfs attribute open and re-reads it with a positional
+ * read at offset 0, which makes the kernel regenerate its content, into a
+ * reused direct buffer. The kernel hands out a whole attribute, at most a
+ * page, in one read, as it does the single line procfs files, so a read
+ * that leaves the buffer short of full is taken as the end of the file.
+ * Repeated reads therefore cost a single read syscall and no allocation,
+ * instead of an open, a read and a close.
+ * <p>
+ * When a read fails, as it does once the file's core goes offline, the handle
+ * is dropped and reopened, so the file picks up again when the core comes back.
+ * <p>
+ * Files too large to be worth holding in memory, such as the per-UID tables in
+ * procfs, can be streamed through the same buffer chunk by chunk instead
+ */
+public class SysfsFile {
+
+    private static final int InitialBufferSize = 4096;
+
+    private final String path;
+    private FileChannel channel = null;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(InitialBufferSize);
+
+    public SysfsFile(String path) {
+        this.path = path;
+    }
+
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Read the whole file
+     *
+     * @return the content between position 0 and the limit of a buffer that
+     * is reused by the next read
+     */
+    public ByteBuffer read() throws IOException {
+        if (this.channel != null) {
+            try {
+                return readOpenChannel();
+            } catch (IOException e) {
+                // the attribute went away underneath us, try a fresh handle
+                close();
+            }
+        }
+        open();
+        try {
+            return readOpenChannel();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Handed one chunk of the file at a time by stream
+     */
+    public interface ChunkHandler {
+        /**
+         * @param chunk the bytes between position 0 and the limit, only valid
+         *              until this returns
+         */
+        void onChunk(ByteBuffer chunk);
+    }
+
+    /**
+     * Read the whole file in chunks of at most the buffer's capacity, so the
+     * file is never held in memory at once. Only a failure of the first read
+     * reopens the handle, since the handler already saw the earlier chunks of
+     * a failure past it
+     */
+    public void stream(ChunkHandler handler) throws IOException {
+        if (this.channel != null) {
+            try {
+                streamOpenChannel(handler, true);
+                return;
+            } catch (IOException e) {
+                close();
+                if (!(e instanceof FirstReadFailedException)) {
+                    throw e;
+                }
+            }
+        }
+        open();
+        try {
+            streamOpenChannel(handler, false);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the handle is held, so the next read does not open it
+     */
+    public boolean isOpen() {
+        return this.channel != null;
+    }
+
+    /**
+     * Open the handle unless it is already held. Reads do this themselves,
+     * opening ahead only separates the cost of the open from the read
+     */
+    public void open() throws IOException {
+        if (this.channel == null) {
+            this.channel = new FileInputStream(this.path).getChannel();
+        }
+    }
+
+    /**
+     * Release the handle, the next read opens it again
+     */
+    public void close() {
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+            this.channel = null;
+        }
+    }
+
+    private ByteBuffer readOpenChannel() throws IOException {
+        ByteBuffer target = this.buffer;
+        target.clear();
+        while (true) {
+            if (!target.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(target.capacity() * 2);
+                target.flip();
+                larger.put(target);
+                this.buffer = larger;
+                target = larger;
+            }
+            int count = this.channel.read(target, target.position());
+            if (count <= 0 || target.hasRemaining()) {
+                break;
+            }
+        }
+        target.flip();
+        return target;
+    }
+
+    private void streamOpenChannel(ChunkHandler handler, boolean retryable) throws IOException {
+        ByteBuffer target = this.buffer;
+        long position = 0;
+        while (true) {
+            target.clear();
+            int count;
+            try {
+                count = this.channel.read(target, position);
+            } catch (IOException e) {
+                if (retryable && position == 0) {
+                    throw new FirstReadFailedException(e);
+                }
+                throw e;
+            }
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+            target.flip();
+            handler.onChunk(target);
+        }
+    }
+
+    /**
+     * The stale handle failed before any chunk was handed out
+     */
+    private static class FirstReadFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FirstReadFailedException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MonitorClock of a plain JVM. /proc/uptime, which counts from boot like
+ * CLOCK_BOOTTIME, is read once to find how far System.nanoTime is from boot,
+ * and both clocks advance with System.nanoTime from there, so timestamps
+ * count from boot as they do on Android. Where /proc/uptime cannot be read
+ * they count from an arbitrary origin instead, and only differences between
+ * them mean anything. No time is ever counted as deep sleep, which suits
+ * hosts that do not suspend
+ */
+public class SystemMonitorClock implements MonitorClock {
+
+    public static final String DefaultProcUptimePath = "/proc/uptime";
+
+    /**
+     * Milliseconds to add to System.nanoTime to get the time since boot
+     */
+    private final long offsetMillis;
+    private final boolean countsFromBoot;
+
+    public SystemMonitorClock() {
+        this(DefaultProcUptimePath);
+    }
+
+    public SystemMonitorClock(String procUptimePath) {
+        long uptimeMillis = readUptimeMillis(procUptimePath);
+        this.countsFromBoot = uptimeMillis >= 0;
+        this.offsetMillis = this.countsFromBoot
+                ? uptimeMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) : 0;
+    }
+
+    /**
+     * @return true if the clocks count from boot, false if their origin is arbitrary
+     */
+    public boolean countsFromBoot() {
+        return this.countsFromBoot;
+    }
+
+    public long elapsedRealtime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) + this.offsetMillis;
+    }
+
+    public long uptimeMillis() {
+        return elapsedRealtime();
+    }
+
+    private static long readUptimeMillis(String path) {
+        SysfsFile file = new SysfsFile(path);
+        try {
+            return parseUptimeMillis(file.read());
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the first field of /proc/uptime, seconds since boot with a
+     * fraction, in milliseconds, or -1 if content does not start with one
+     */
+    static long parseUptimeMillis(ByteBuffer content) {
+        int index = content.position();
+        int end = content.limit();
+        long seconds = 0;
+        int digits = 0;
+        for (; index < end && isDigit(content.get(index)); index++, digits++) {
+            seconds = seconds * 10 + (content.get(index) - '0');
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        long millis = seconds * 1000;
+        if (index < end && content.get(index) == '.') {
+            index++;
+            for (long scale = 100; scale > 0 && index < end && isDigit(content.get(index)); scale /= 10) {
+                millis += (content.get(index++) - '0') * scale;
+            }
+        }
+        return millis;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
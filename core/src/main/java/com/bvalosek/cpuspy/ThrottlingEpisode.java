@@ -0,0 +1,90 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+/**
+ * ThrottlingEpisode is a stretch of time during which a policy's
+ * scaling_max_freq was held below its cpuinfo_max_freq, normally by thermal
+ * mitigation, as seen by the CpuFrequencyTracer. Immutable; an episode still
+ * going on is replaced by a new instance when it deepens or ends
+ */
+public final class ThrottlingEpisode {
+
+    private final int policyIndex;
+    private final long startMillis;
+    private final long endMillis;
+    private final int hardwareMaxFrequency;
+    private final int lowestMaxFrequency;
+    private final int peakTemperature;
+
+    ThrottlingEpisode(int policyIndex, long startMillis, long endMillis, int hardwareMaxFrequency,
+                      int lowestMaxFrequency, int peakTemperature) {
+        this.policyIndex = policyIndex;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.hardwareMaxFrequency = hardwareMaxFrequency;
+        this.lowestMaxFrequency = lowestMaxFrequency;
+        this.peakTemperature = peakTemperature;
+    }
+
+    public int getPolicyIndex() {
+        return this.policyIndex;
+    }
+
+    /**
+     * @return elapsedRealtime of the first sample that saw the cap
+     */
+    public long getStartMillis() {
+        return this.startMillis;
+    }
+
+    /**
+     * @return elapsedRealtime of the first sample without the cap, or -1
+     * while the episode is still going on
+     */
+    public long getEndMillis() {
+        return this.endMillis;
+    }
+
+    public boolean isOngoing() {
+        return this.endMillis < 0;
+    }
+
+    /**
+     * @return cpuinfo_max_freq of the policy in kHz
+     */
+    public int getHardwareMaxFrequency() {
+        return this.hardwareMaxFrequency;
+    }
+
+    /**
+     * @return the deepest scaling_max_freq seen during the episode, in kHz
+     */
+    public int getLowestMaxFrequency() {
+        return this.lowestMaxFrequency;
+    }
+
+    /**
+     * @return the hottest thermal zone reading during the episode in
+     * millidegrees Celsius, or Integer.MIN_VALUE without thermal zones
+     */
+    public int getPeakTemperature() {
+        return this.peakTemperature;
+    }
+
+    ThrottlingEpisode deepened(int maxFrequency, int temperature) {
+        return new ThrottlingEpisode(this.policyIndex, this.startMillis, this.endMillis, this.hardwareMaxFrequency,
+                Math.min(this.lowestMaxFrequency, maxFrequency), Math.max(this.peakTemperature, temperature));
+    }
+
+    ThrottlingEpisode ended(long endMillis) {
+        return new ThrottlingEpisode(this.policyIndex, this.startMillis, endMillis, this.hardwareMaxFrequency,
+                this.lowestMaxFrequency, this.peakTemperature);
+    }
+}
@@ -0,0 +1,356 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * TimeInStateBatchAnalyzer reads the time_in_state captures of a device fleet
+ * and merges them into a FleetResidency. Every tar archive under the root is
+ * one capture, compressed with gzip or not, as is every direct subdirectory
+ * of the root that holds no archive. Within a capture, every file named
+ * time_in_state whose path has a cpuN or policyN component is the residency
+ * of core N, and a file named soc, or the machine file of soc0 as found in
+ * sysfs, names the SoC; captures without one count as UnknownSoc.
+ * <p>
+ * Captures are split between the workers of a fork-join pool, each parsing
+ * its share with TimeInStateParser straight out of memory-mapped files into
+ * reused buffers and merging into its own FleetResidency, which are then
+ * merged pairwise. Only gzip archives are inflated onto the heap first
+ */
+public class TimeInStateBatchAnalyzer {
+
+    /**
+     * Captures a single task parses without splitting further
+     */
+    private static final int CapturesPerTask = 16;
+
+    private static final String TimeInStateFileName = "time_in_state";
+    private static final String SocFileName = "soc";
+    private static final String SocMachinePath = "soc0/machine";
+    private static final int TarBlockSize = 512;
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    private final ForkJoinPool pool;
+
+    public TimeInStateBatchAnalyzer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Find and parse every capture under root
+     */
+    public FleetResidency analyze(File root) {
+        List<File> captures = new ArrayList<>();
+        File[] children = root.listFiles();
+        if (children != null) {
+            Arrays.sort(children);
+            for (File child : children) {
+                if (isArchive(child)) {
+                    captures.add(child);
+                } else if (child.isDirectory()) {
+                    int archives = captures.size();
+                    findArchives(child, captures);
+                    if (captures.size() == archives) {
+                        captures.add(child);
+                    }
+                }
+            }
+        }
+        return analyze(captures);
+    }
+
+    /**
+     * Parse captures, each a directory or a tar archive
+     */
+    public FleetResidency analyze(List<File> captures) {
+        return this.pool.invoke(new Task(captures, 0, captures.size()));
+    }
+
+    private static void findArchives(File directory, List<File> captures) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                findArchives(child, captures);
+            } else if (isArchive(child)) {
+                captures.add(child);
+            }
+        }
+    }
+
+    private static boolean isArchive(File file) {
+        String name = file.getName();
+        return file.isFile() && (name.endsWith(".tar") || isGzip(name));
+    }
+
+    private static boolean isGzip(String name) {
+        return name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    private static final class Task extends RecursiveTask<FleetResidency> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> captures;
+        private final int from;
+        private final int to;
+
+        Task(List<File> captures, int from, int to) {
+            this.captures = captures;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected FleetResidency compute() {
+            if (this.to - this.from <= CapturesPerTask) {
+                CaptureReader reader = new CaptureReader();
+                for (int i = this.from; i < this.to; i++) {
+                    reader.read(this.captures.get(i));
+                }
+                return reader.result;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            Task left = new Task(this.captures, this.from, middle);
+            left.fork();
+            FleetResidency right = new Task(this.captures, middle, this.to).compute();
+            FleetResidency merged = left.join();
+            merged.merge(right);
+            return merged;
+        }
+    }
+
+    /**
+     * Parses captures one at a time into result, reusing one buffer per core
+     * between captures. Only used by a single task
+     */
+    private static final class CaptureReader {
+        final FleetResidency result = new FleetResidency();
+
+        private TimeInStateBuffer[] cores = new TimeInStateBuffer[8];
+        private boolean[] present = new boolean[8];
+        private String soc = null;
+
+        void read(File capture) {
+            Arrays.fill(this.present, false);
+            this.soc = null;
+            try {
+                if (capture.isDirectory()) {
+                    readDirectory(capture, capture.getName());
+                } else if (isGzip(capture.getName())) {
+                    readTar(ByteBuffer.wrap(inflate(capture)));
+                } else {
+                    readTar(map(capture));
+                }
+            } catch (IOException e) {
+                this.result.addFailedCapture();
+                return;
+            }
+
+            boolean any = false;
+            for (boolean core : this.present) {
+                any |= core;
+            }
+            if (!any) {
+                this.result.addFailedCapture();
+                return;
+            }
+            String soc = this.soc != null && !this.soc.isEmpty() ? this.soc : FleetResidency.UnknownSoc;
+            this.result.addCapture(soc);
+            for (int cpuIndex = 0; cpuIndex < this.present.length; cpuIndex++) {
+                if (this.present[cpuIndex]) {
+                    this.result.add(soc, cpuIndex, this.cores[cpuIndex]);
+                }
+            }
+        }
+
+        private void readDirectory(File directory, String path) throws IOException {
+            File[] children = directory.listFiles();
+            if (children == null) {
+                return;
+            }
+            for (File child : children) {
+                String childPath = path + "/" + child.getName();
+                if (child.isDirectory()) {
+                    readDirectory(child, childPath);
+                } else if (isTimeInState(childPath) || isSoc(childPath)) {
+                    readEntry(childPath, map(child));
+                }
+            }
+        }
+
+        /**
+         * Walk the entries of a ustar or GNU tar archive. Long GNU names are
+         * followed, pax headers are skipped
+         */
+        private void readTar(ByteBuffer archive) throws IOException {
+            String longName = null;
+            int offset = 0;
+            while (offset + TarBlockSize <= archive.limit()) {
+                if (archive.get(offset) == 0) {
+                    // the end of archive marker
+                    return;
+                }
+                String name = longName != null ? longName : tarString(archive, offset, 100);
+                longName = null;
+                if (archive.get(offset + 257) == 'u' && archive.get(offset + 345) != 0) {
+                    name = tarString(archive, offset + 345, 155) + "/" + name;
+                }
+                long size = tarOctal(archive, offset + 124, 12);
+                byte type = archive.get(offset + 156);
+                int data = offset + TarBlockSize;
+                if (size < 0 || data + size > archive.limit()) {
+                    throw new IOException("Truncated tar entry " + name);
+                }
+                if (type == 'L') {
+                    longName = tarString(archive, data, (int) size);
+                } else if ((type == '0' || type == 0) && (isTimeInState(name) || isSoc(name))) {
+                    ByteBuffer entry = archive.duplicate();
+                    entry.limit(data + (int) size);
+                    entry.position(data);
+                    readEntry(name, entry);
+                }
+                offset = data + (int) ((size + TarBlockSize - 1) / TarBlockSize * TarBlockSize);
+            }
+        }
+
+        private void readEntry(String path, ByteBuffer content) {
+            if (isSoc(path)) {
+                byte[] bytes = new byte[content.remaining()];
+                content.duplicate().get(bytes);
+                this.soc = new String(bytes, Ascii).trim();
+                return;
+            }
+            int cpuIndex = coreOf(path);
+            if (cpuIndex < 0) {
+                return;
+            }
+            if (cpuIndex >= this.cores.length) {
+                int capacity = Math.max(cpuIndex + 1, this.cores.length * 2);
+                this.cores = Arrays.copyOf(this.cores, capacity);
+                this.present = Arrays.copyOf(this.present, capacity);
+            }
+            if (this.cores[cpuIndex] == null) {
+                this.cores[cpuIndex] = new TimeInStateBuffer();
+            }
+            TimeInStateParser.parse(content, this.cores[cpuIndex]);
+            this.present[cpuIndex] = this.cores[cpuIndex].size() > 0;
+        }
+    }
+
+    private static boolean isTimeInState(String path) {
+        return path.equals(TimeInStateFileName) || path.endsWith("/" + TimeInStateFileName);
+    }
+
+    private static boolean isSoc(String path) {
+        return path.equals(SocFileName) || path.endsWith("/" + SocFileName)
+                || path.endsWith("/" + SocMachinePath);
+    }
+
+    /**
+     * @return N of the last cpuN or policyN component of path, or -1
+     */
+    static int coreOf(String path) {
+        String[] components = path.split("/");
+        for (int i = components.length - 1; i >= 0; i--) {
+            String component = components[i];
+            String digits = component.startsWith("policy") ? component.substring("policy".length())
+                    : component.startsWith("cpu") ? component.substring("cpu".length()) : null;
+            if (digits == null || digits.isEmpty()) {
+                continue;
+            }
+            boolean number = true;
+            for (int j = 0; j < digits.length(); j++) {
+                number &= digits.charAt(j) >= '0' && digits.charAt(j) <= '9';
+            }
+            if (number && digits.length() < 6) {
+                return Integer.parseInt(digits);
+            }
+        }
+        return -1;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = access.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid once the file is closed
+            access.close();
+        }
+    }
+
+    private static byte[] inflate(File file) throws IOException {
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(chunk)) > 0) {
+                out.write(chunk, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the NUL terminated ASCII string of at most length bytes at offset
+     */
+    private static String tarString(ByteBuffer archive, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && archive.get(end) != 0) {
+            end++;
+        }
+        byte[] bytes = new byte[end - offset];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = archive.get(offset + i);
+        }
+        return new String(bytes, Ascii);
+    }
+
+    /**
+     * @return the octal number of a tar header field, or -1 if it is not one
+     */
+    private static long tarOctal(ByteBuffer archive, int offset, int length) {
+        long value = 0;
+        boolean digits = false;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = archive.get(i);
+            if (b >= '0' && b <= '7') {
+                value = value * 8 + (b - '0');
+                digits = true;
+            } else if (b == ' ' && !digits) {
+                continue;
+            } else {
+                break;
+            }
+        }
+        return digits ? value : -1;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+/**
+ * TimeInStateBuffer holds the parsed states of a single time_in_state file as
+ * parallel primitive arrays. The arrays are only grown, never shrunk, so a
+ * buffer that is refilled on every refresh stops allocating once it has seen
+ * the largest state count of its core
+ */
+public class TimeInStateBuffer {
+
+    private static final int InitialCapacity = 32;
+
+    private int[] frequencies = new int[InitialCapacity];
+    private long[] durations = new long[InitialCapacity];
+    private int size = 0;
+
+    /**
+     * @return number of states currently held
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return frequency in kHz of the state at index
+     */
+    public int frequencyAt(int index) {
+        return this.frequencies[index];
+    }
+
+    /**
+     * @return duration in 10ms units of the state at index
+     */
+    public long durationAt(int index) {
+        return this.durations[index];
+    }
+
+    /**
+     * Forget all states, keeping the backing arrays for reuse
+     */
+    public void clear() {
+        this.size = 0;
+    }
+
+    /**
+     * Append a state, growing the backing arrays if needed
+     */
+    public void add(int frequency, long duration) {
+        if (this.size == this.frequencies.length) {
+            int[] newFrequencies = new int[this.size * 2];
+            long[] newDurations = new long[this.size * 2];
+            System.arraycopy(this.frequencies, 0, newFrequencies, 0, this.size);
+            System.arraycopy(this.durations, 0, newDurations, 0, this.size);
+            this.frequencies = newFrequencies;
+            this.durations = newDurations;
+        }
+        this.frequencies[this.size] = frequency;
+        this.durations[this.size] = duration;
+        this.size++;
+    }
+
+    /**
+     * Sort the states by descending frequency in place. The kernel already
+     * emits the states sorted, so an insertion sort is close to a single pass
+     */
+    public void sortByFrequencyDescending() {
+        for (int i = 1; i < this.size; i++) {
+            int frequency = this.frequencies[i];
+            long duration = this.durations[i];
+            int j = i - 1;
+            while (j >= 0 && this.frequencies[j] < frequency) {
+                this.frequencies[j + 1] = this.frequencies[j];
+                this.durations[j + 1] = this.durations[j];
+                j--;
+            }
+            this.frequencies[j + 1] = frequency;
+            this.durations[j + 1] = duration;
+        }
+    }
+}
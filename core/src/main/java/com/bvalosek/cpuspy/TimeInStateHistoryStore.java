@@ -0,0 +1,706 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * TimeInStateHistoryStore is an append-only log of time-in-state samples and
+ * baselines, kept in fixed size segment files that are written through a
+ * memory-mapped FileChannel. Once the store holds maxSegments segments the
+ * oldest one is deleted, capping its size on disk.
+ * <p>
+ * Every record is a type byte, a varint payload length, the payload and a
+ * CRC32 of all three. Durations are stored once per cpufreq policy, as the
+ * difference from the previous sample of the same segment, and only for the
+ * states that changed. A segment starts with a layout record holding the
+ * frequency table of every policy and, if any, the current baselines along
+ * with the cpuidle baselines of every core, so each segment can be read on
+ * its own and the oldest can be dropped at any time.
+ * <p>
+ * A record cut short by a crash fails its checksum; opening the store stops
+ * reading at that record, clears the rest of the segment and resumes writing
+ * there
+ */
+public class TimeInStateHistoryStore {
+
+    /**
+     * Receives the samples of the store in order
+     */
+    public interface SampleVisitor {
+        /**
+         * @param wallTimeMillis    System.currentTimeMillis() when the sample was appended
+         * @param policyFrequencies frequency row of every policy
+         * @param durations         durations of all policies one after another,
+         *                          in policy order; reused between calls
+         */
+        void onSample(long wallTimeMillis, int[][] policyFrequencies, long[] durations);
+    }
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    private static final String SegmentFormatterString = "history-%08d.seg";
+    private static final String SegmentPrefix = "history-";
+    private static final String SegmentSuffix = ".seg";
+
+    private static final byte RecordEnd = 0;
+    private static final byte RecordLayout = 1;
+    private static final byte RecordSample = 2;
+    private static final byte RecordBaselines = 3;
+
+    /**
+     * Largest header of a record: the type byte and a five byte varint length,
+     * followed after the payload by the four byte checksum
+     */
+    private static final int RecordOverhead = 1 + 5 + 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer payload = ByteBuffer.allocate(1024);
+
+    private long segmentNumber;
+    private RandomAccessFile segmentFile = null;
+    private MappedByteBuffer segment = null;
+
+    /**
+     * Decoder state of the segment being written
+     */
+    private final SegmentState state = new SegmentState();
+
+    /**
+     * @param directory   where the segment files are kept, created if missing
+     * @param segmentSize size of each segment file in bytes
+     * @param maxSegments number of segments kept before the oldest is deleted
+     */
+    public TimeInStateHistoryStore(File directory, int segmentSize, int maxSegments)
+            throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create history directory " + directory);
+        }
+
+        long[] segments = listSegments();
+        if (segments.length == 0) {
+            openSegment(0);
+            return;
+        }
+
+        this.segmentNumber = segments[segments.length - 1];
+        SegmentState baselineState = new SegmentState();
+        for (long number : segments) {
+            SegmentState segmentState = new SegmentState();
+            ByteBuffer buffer = mapSegment(number);
+            int end = readSegment(buffer, segmentState, null);
+            if (segmentState.baselines != null) {
+                baselineState = segmentState;
+            }
+            if (number == this.segmentNumber) {
+                openSegment(number);
+                clearFrom(end);
+                this.segment.position(end);
+                this.state.copyFrom(segmentState);
+            }
+        }
+        this.state.baselineLayout = baselineState.baselineLayout;
+        this.state.baselines = baselineState.baselines;
+        this.state.baselineBootId = baselineState.baselineBootId;
+        this.state.idleBaselineTimes = baselineState.idleBaselineTimes;
+        this.state.idleBaselineUsages = baselineState.idleBaselineUsages;
+    }
+
+    /**
+     * @return frequency rows of the baselines loaded on open or last appended,
+     * one per policy, or null if no baselines are stored
+     */
+    public synchronized int[][] getBaselineFrequencies() {
+        return this.state.baselines == null ? null : this.state.baselineLayout;
+    }
+
+    /**
+     * @return the baselines loaded on open or last appended, one row per
+     * policy with null for policies without a baseline, or null if no
+     * baselines are stored
+     */
+    public synchronized long[][] getBaselines() {
+        return this.state.baselines;
+    }
+
+    /**
+     * @return the boot id stored with the baselines, or null if there are no
+     * baselines or they were appended without one
+     */
+    public synchronized String getBaselineBootId() {
+        return this.state.baselines == null ? null : this.state.baselineBootId;
+    }
+
+    /**
+     * @return microseconds in every idle state of every core at the baseline,
+     * one row per core with null for cores without one, or null if no
+     * baselines or no idle baselines are stored
+     */
+    public synchronized long[][] getIdleBaselineTimes() {
+        return this.state.baselines == null ? null : this.state.idleBaselineTimes;
+    }
+
+    /**
+     * @return entries into every idle state of every core at the baseline,
+     * aligned with getIdleBaselineTimes
+     */
+    public synchronized long[][] getIdleBaselineUsages() {
+        return this.state.baselines == null ? null : this.state.idleBaselineUsages;
+    }
+
+    /**
+     * Append the durations of every policy of snapshot
+     */
+    public synchronized void appendSample(long wallTimeMillis, CpuTimeInStateSnapshot snapshot,
+                                          CpuTopology topology) throws IOException {
+        if (!matchesLayout(snapshot, topology)) {
+            appendLayout(snapshot, topology);
+        }
+        ByteBuffer out = beginPayload(15 + this.state.values.length * 15);
+
+        long[] values = this.state.values;
+        int changed = 0;
+        int index = 0;
+        for (int policyIndex = 0; policyIndex < topology.getPolicyCount(); policyIndex++) {
+            int cpuIndex = topology.getPolicyFirstCpu(policyIndex);
+            int stateCount = snapshot.getStateCount(cpuIndex);
+            for (int i = 0; i < stateCount; i++) {
+                if (snapshot.getRawDuration(cpuIndex, i) != values[index++]) {
+                    changed++;
+                }
+            }
+        }
+
+        putVarint(out, zigzag(wallTimeMillis - this.state.wallTime));
+        putVarint(out, changed);
+        index = 0;
+        int lastChanged = -1;
+        for (int policyIndex = 0; policyIndex < topology.getPolicyCount(); policyIndex++) {
+            int cpuIndex = topology.getPolicyFirstCpu(policyIndex);
+            int stateCount = snapshot.getStateCount(cpuIndex);
+            for (int i = 0; i < stateCount; i++, index++) {
+                long duration = snapshot.getRawDuration(cpuIndex, i);
+                if (duration != values[index]) {
+                    putVarint(out, index - lastChanged - 1);
+                    putVarint(out, zigzag(duration - values[index]));
+                    values[index] = duration;
+                    lastChanged = index;
+                }
+            }
+        }
+        this.state.wallTime = wallTimeMillis;
+        writeRecord(RecordSample);
+    }
+
+    /**
+     * Append the baselines of every policy and the cpuidle baselines of every
+     * core of snapshot, replacing the baselines returned by getBaselines, and
+     * flush the segment to disk
+     *
+     * @param bootId id of the boot the baselines were taken in, or null
+     */
+    public synchronized void appendBaselines(CpuTimeInStateSnapshot snapshot, CpuTopology topology,
+                                             String bootId) throws IOException {
+        if (!matchesLayout(snapshot, topology)) {
+            appendLayout(snapshot, topology);
+        }
+
+        int policyCount = topology.getPolicyCount();
+        long[][] baselines = new long[policyCount][];
+        for (int policyIndex = 0; policyIndex < policyCount; policyIndex++) {
+            int cpuIndex = topology.getPolicyFirstCpu(policyIndex);
+            if (snapshot.hasBaseline(cpuIndex)) {
+                baselines[policyIndex] = snapshot.baselineRow(cpuIndex);
+            }
+        }
+        long[][] idleTimes = null;
+        long[][] idleUsages = null;
+        CpuIdleStates idleBaseline = snapshot.idleBaseline();
+        if (idleBaseline != null) {
+            idleTimes = new long[idleBaseline.getCpuCount()][];
+            idleUsages = new long[idleBaseline.getCpuCount()][];
+            for (int cpuIndex = 0; cpuIndex < idleTimes.length; cpuIndex++) {
+                if (idleBaseline.getStateCount(cpuIndex) > 0) {
+                    idleTimes[cpuIndex] = idleBaseline.timeRow(cpuIndex);
+                    idleUsages[cpuIndex] = idleBaseline.usageRow(cpuIndex);
+                }
+            }
+        }
+        this.state.baselineLayout = this.state.layout;
+        this.state.baselines = baselines;
+        this.state.baselineBootId = bootId;
+        this.state.idleBaselineTimes = idleTimes;
+        this.state.idleBaselineUsages = idleUsages;
+        writeBaselines();
+        // samples can be lost to a crash, a reset the user asked for should not
+        this.segment.force();
+    }
+
+    /**
+     * Visit every sample still held by the store, oldest first
+     */
+    public synchronized void read(SampleVisitor visitor) throws IOException {
+        for (long number : listSegments()) {
+            ByteBuffer buffer = number == this.segmentNumber
+                    ? this.segment.duplicate() : mapSegment(number);
+            readSegment(buffer, new SegmentState(), visitor);
+        }
+    }
+
+    /**
+     * Flush the current segment to disk and release it
+     */
+    public synchronized void close() throws IOException {
+        if (this.segment != null) {
+            this.segment.force();
+            this.segment = null;
+        }
+        if (this.segmentFile != null) {
+            this.segmentFile.close();
+            this.segmentFile = null;
+        }
+    }
+
+    private boolean matchesLayout(CpuTimeInStateSnapshot snapshot, CpuTopology topology) {
+        int[][] layout = this.state.layout;
+        if (layout == null || layout.length != topology.getPolicyCount()) {
+            return false;
+        }
+        for (int policyIndex = 0; policyIndex < layout.length; policyIndex++) {
+            int[] frequencies = snapshot.frequencyRow(topology.getPolicyFirstCpu(policyIndex));
+            if (frequencies != layout[policyIndex] && !Arrays.equals(frequencies, layout[policyIndex])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a layout record for the frequency tables of snapshot, which
+     * restarts the sample deltas from zero
+     */
+    private void appendLayout(CpuTimeInStateSnapshot snapshot, CpuTopology topology)
+            throws IOException {
+        int policyCount = topology.getPolicyCount();
+        int[][] layout = new int[policyCount][];
+        for (int policyIndex = 0; policyIndex < policyCount; policyIndex++) {
+            layout[policyIndex] = snapshot.frequencyRow(topology.getPolicyFirstCpu(policyIndex));
+        }
+        this.state.setLayout(layout);
+        writeLayout();
+    }
+
+    private void writeLayout() throws IOException {
+        int[][] layout = this.state.layout;
+        ByteBuffer out = beginPayload(5 + this.state.values.length * 5 + layout.length * 5);
+        putVarint(out, layout.length);
+        for (int[] frequencies : layout) {
+            putVarint(out, frequencies.length);
+            for (int frequency : frequencies) {
+                putVarint(out, frequency);
+            }
+        }
+        writeRecord(RecordLayout);
+    }
+
+    /**
+     * Write the current baselines, which must be aligned with the current
+     * layout, followed by their boot id, empty if there is none, and the
+     * idle baselines of every core, if any
+     */
+    private void writeBaselines() throws IOException {
+        long[][] baselines = this.state.baselines;
+        byte[] bootId = this.state.baselineBootId == null
+                ? new byte[0] : this.state.baselineBootId.getBytes(Ascii);
+        long[][] idleTimes = this.state.idleBaselineTimes;
+        long[][] idleUsages = this.state.idleBaselineUsages;
+        int idleSize = 5;
+        if (idleTimes != null) {
+            for (long[] row : idleTimes) {
+                idleSize += 5 + (row == null ? 0 : row.length * 20);
+            }
+        }
+        ByteBuffer out = beginPayload(5 + baselines.length + this.state.values.length * 10
+                + 5 + bootId.length + idleSize);
+        putVarint(out, baselines.length);
+        for (long[] baseline : baselines) {
+            out.put((byte) (baseline == null ? 0 : 1));
+            if (baseline != null) {
+                for (long value : baseline) {
+                    putVarint(out, value);
+                }
+            }
+        }
+        putVarint(out, bootId.length);
+        out.put(bootId);
+        putVarint(out, idleTimes == null ? 0 : idleTimes.length);
+        if (idleTimes != null) {
+            for (int cpuIndex = 0; cpuIndex < idleTimes.length; cpuIndex++) {
+                long[] times = idleTimes[cpuIndex];
+                putVarint(out, times == null ? 0 : times.length);
+                for (int i = 0; times != null && i < times.length; i++) {
+                    putVarint(out, times[i]);
+                    putVarint(out, idleUsages[cpuIndex][i]);
+                }
+            }
+        }
+        writeRecord(RecordBaselines);
+    }
+
+    /**
+     * Prepare the payload buffer for a record of at most maximumSize bytes,
+     * first moving to a new segment if such a record would not fit. Callers
+     * must encode against the segment state only after this returns
+     */
+    private ByteBuffer beginPayload(int maximumSize) throws IOException {
+        if (maximumSize + RecordOverhead > this.segmentSize) {
+            throw new IOException("History record of " + maximumSize + " bytes exceeds the segment size");
+        }
+        if (this.segment.remaining() < maximumSize + RecordOverhead) {
+            rotate();
+        }
+        if (this.payload.capacity() < maximumSize) {
+            this.payload = ByteBuffer.allocate(maximumSize);
+        }
+        this.payload.clear();
+        return this.payload;
+    }
+
+    /**
+     * Frame the pending payload as a record of type and append it
+     */
+    private void writeRecord(byte type) {
+        this.payload.flip();
+        int start = this.segment.position();
+        this.segment.put(type);
+        putVarint(this.segment, this.payload.remaining());
+        this.segment.put(this.payload);
+        int end = this.segment.position();
+
+        this.crc.reset();
+        ByteBuffer record = this.segment.duplicate();
+        record.position(start);
+        record.limit(end);
+        updateCrc(this.crc, record);
+        this.segment.putInt((int) this.crc.getValue());
+    }
+
+    /**
+     * Close the current segment and start the next one with the current
+     * layout and baselines, deleting the oldest segments over the cap
+     */
+    private void rotate() throws IOException {
+        int[][] layout = this.state.layout;
+        int[][] baselineLayout = this.state.baselineLayout;
+        long[][] baselines = this.state.baselines;
+        String baselineBootId = this.state.baselineBootId;
+        long[][] idleBaselineTimes = this.state.idleBaselineTimes;
+        long[][] idleBaselineUsages = this.state.idleBaselineUsages;
+        long number = this.segmentNumber + 1;
+        close();
+
+        long[] segments = listSegments();
+        for (int i = 0; i <= segments.length - this.maxSegments; i++) {
+            new File(this.directory, segmentName(segments[i])).delete();
+        }
+
+        openSegment(number);
+        this.state.reset();
+        this.state.baselineLayout = baselineLayout;
+        this.state.baselines = baselines;
+        this.state.baselineBootId = baselineBootId;
+        this.state.idleBaselineTimes = idleBaselineTimes;
+        this.state.idleBaselineUsages = idleBaselineUsages;
+        if (layout != null) {
+            this.state.setLayout(layout);
+            writeLayout();
+            if (baselines != null && baselineLayout == layout) {
+                writeBaselines();
+            }
+        }
+    }
+
+    private void openSegment(long number) throws IOException {
+        this.segmentNumber = number;
+        this.segmentFile = new RandomAccessFile(new File(this.directory, segmentName(number)), "rw");
+        this.segment = this.segmentFile.getChannel()
+                .map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+    }
+
+    private ByteBuffer mapSegment(long number) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(this.directory, segmentName(number)), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Zero the current segment from position to its end, removing whatever a
+     * torn record left behind
+     */
+    private void clearFrom(int position) {
+        for (int i = position; i < this.segment.limit(); i++) {
+            if (this.segment.get(i) != 0) {
+                this.segment.put(i, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Decode the records of one segment into state, passing samples to
+     * visitor if it is not null
+     *
+     * @return position just after the last valid record
+     */
+    private int readSegment(ByteBuffer buffer, SegmentState state, SampleVisitor visitor) {
+        CRC32 checksum = new CRC32();
+        int position = 0;
+        while (position + RecordOverhead <= buffer.limit()) {
+            buffer.position(position);
+            byte type = buffer.get();
+            if (type == RecordEnd) {
+                break;
+            }
+            long length = getVarint(buffer);
+            if (length < 0 || buffer.position() + length + 4 > buffer.limit()) {
+                break;
+            }
+            int payloadStart = buffer.position();
+            int payloadEnd = payloadStart + (int) length;
+
+            ByteBuffer record = buffer.duplicate();
+            record.position(position);
+            record.limit(payloadEnd);
+            checksum.reset();
+            updateCrc(checksum, record);
+            if (buffer.getInt(payloadEnd) != (int) checksum.getValue()) {
+                break;
+            }
+
+            ByteBuffer content = buffer.duplicate();
+            content.position(payloadStart);
+            content.limit(payloadEnd);
+            if (!decode(type, content, state, visitor)) {
+                break;
+            }
+            position = payloadEnd + 4;
+        }
+        return position;
+    }
+
+    private static boolean decode(byte type, ByteBuffer content, SegmentState state,
+                                  SampleVisitor visitor) {
+        try {
+            switch (type) {
+                case RecordLayout: {
+                    int[][] layout = new int[(int) getVarint(content)][];
+                    for (int p = 0; p < layout.length; p++) {
+                        layout[p] = new int[(int) getVarint(content)];
+                        for (int i = 0; i < layout[p].length; i++) {
+                            layout[p][i] = (int) getVarint(content);
+                        }
+                    }
+                    state.setLayout(layout);
+                    return true;
+                }
+                case RecordSample: {
+                    if (state.layout == null) {
+                        return false;
+                    }
+                    state.wallTime += unzigzag(getVarint(content));
+                    long changed = getVarint(content);
+                    int index = -1;
+                    for (long n = 0; n < changed; n++) {
+                        index += (int) getVarint(content) + 1;
+                        state.values[index] += unzigzag(getVarint(content));
+                    }
+                    if (visitor != null) {
+                        visitor.onSample(state.wallTime, state.layout, state.values);
+                    }
+                    return true;
+                }
+                case RecordBaselines: {
+                    if (state.layout == null) {
+                        return false;
+                    }
+                    long[][] baselines = new long[(int) getVarint(content)][];
+                    for (int p = 0; p < baselines.length; p++) {
+                        if (content.get() != 0) {
+                            baselines[p] = new long[state.layout[p].length];
+                            for (int i = 0; i < baselines[p].length; i++) {
+                                baselines[p][i] = getVarint(content);
+                            }
+                        }
+                    }
+                    // records written before boot ids and idle baselines were stored end here
+                    String bootId = null;
+                    if (content.hasRemaining()) {
+                        byte[] bytes = new byte[(int) getVarint(content)];
+                        content.get(bytes);
+                        bootId = bytes.length > 0 ? new String(bytes, Ascii) : null;
+                    }
+                    long[][] idleTimes = null;
+                    long[][] idleUsages = null;
+                    if (content.hasRemaining()) {
+                        int cpuCount = (int) getVarint(content);
+                        if (cpuCount > 0) {
+                            idleTimes = new long[cpuCount][];
+                            idleUsages = new long[cpuCount][];
+                        }
+                        for (int cpuIndex = 0; cpuIndex < cpuCount; cpuIndex++) {
+                            int stateCount = (int) getVarint(content);
+                            if (stateCount == 0) {
+                                continue;
+                            }
+                            idleTimes[cpuIndex] = new long[stateCount];
+                            idleUsages[cpuIndex] = new long[stateCount];
+                            for (int i = 0; i < stateCount; i++) {
+                                idleTimes[cpuIndex][i] = getVarint(content);
+                                idleUsages[cpuIndex][i] = getVarint(content);
+                            }
+                        }
+                    }
+                    state.baselineLayout = state.layout;
+                    state.baselines = baselines;
+                    state.baselineBootId = bootId;
+                    state.idleBaselineTimes = idleTimes;
+                    state.idleBaselineUsages = idleUsages;
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        } catch (RuntimeException e) {
+            // a record with a valid checksum but impossible content
+            return false;
+        }
+    }
+
+    private long[] listSegments() {
+        String[] names = this.directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SegmentPrefix) && name.endsWith(SegmentSuffix);
+            }
+        });
+        if (names == null) {
+            return new long[0];
+        }
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                numbers[count] = Long.parseLong(name.substring(
+                        SegmentPrefix.length(), name.length() - SegmentSuffix.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    private static String segmentName(long number) {
+        return String.format(Locale.US, SegmentFormatterString, number);
+    }
+
+    private static void updateCrc(CRC32 crc, ByteBuffer data) {
+        while (data.hasRemaining()) {
+            crc.update(data.get());
+        }
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * @return the next varint of in, or -1 if it is longer than a long can hold
+     */
+    private static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * What a reader knows after the records of a segment read so far
+     */
+    private static class SegmentState {
+        int[][] layout = null;
+        long[] values = new long[0];
+        long wallTime = 0;
+        int[][] baselineLayout = null;
+        long[][] baselines = null;
+        String baselineBootId = null;
+        long[][] idleBaselineTimes = null;
+        long[][] idleBaselineUsages = null;
+
+        void setLayout(int[][] layout) {
+            int width = 0;
+            for (int[] frequencies : layout) {
+                width += frequencies.length;
+            }
+            this.layout = layout;
+            this.values = new long[width];
+        }
+
+        void reset() {
+            this.layout = null;
+            this.values = new long[0];
+            this.wallTime = 0;
+        }
+
+        void copyFrom(SegmentState other) {
+            this.layout = other.layout;
+            this.values = other.values;
+            this.wallTime = other.wallTime;
+        }
+    }
+}
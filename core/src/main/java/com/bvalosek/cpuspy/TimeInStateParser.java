@@ -0,0 +1,96 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * TimeInStateParser scans the raw bytes of a time_in_state file, which is made
+ * of "frequency duration" lines, straight into a TimeInStateBuffer without
+ * creating any intermediate Strings or boxed numbers. The bytes come from a
+ * SysfsFile or a memory-mapped capture, so parsing into a reused buffer
+ * allocates nothing once the buffer has grown to the largest state count
+ */
+public final class TimeInStateParser {
+
+    private TimeInStateParser() {
+    }
+
+    /**
+     * Parse the bytes between the position and the limit of content into
+     * states, replacing whatever states held before. Lines that do not hold two
+     * numbers are skipped. The position of content is left untouched
+     */
+    public static void parse(ByteBuffer content, TimeInStateBuffer states) {
+        states.clear();
+        int index = content.position();
+        int end = content.limit();
+
+        while (index < end) {
+            index = skipBlanks(content, index, end);
+            int frequencyStart = index;
+            long frequency = 0;
+            while (index < end && isDigit(content.get(index))) {
+                frequency = frequency * 10 + (content.get(index) - '0');
+                index++;
+            }
+            boolean hasFrequency = index > frequencyStart;
+
+            index = skipBlanks(content, index, end);
+            int durationStart = index;
+            long duration = 0;
+            while (index < end && isDigit(content.get(index))) {
+                duration = duration * 10 + (content.get(index) - '0');
+                index++;
+            }
+            boolean hasDuration = index > durationStart;
+
+            while (index < end && content.get(index) != '\n') {
+                index++;
+            }
+            index++;
+
+            if (hasFrequency && hasDuration) {
+                states.add((int) frequency, duration);
+            }
+        }
+    }
+
+    /**
+     * @return the leading decimal number of content, as found in single value
+     * sysfs attributes, or 0 if there is none
+     */
+    static long parseNumber(ByteBuffer content) {
+        long number = 0;
+        int end = content.limit();
+        for (int index = content.position(); index < end; index++) {
+            byte b = content.get(index);
+            if (!isDigit(b)) {
+                break;
+            }
+            number = number * 10 + (b - '0');
+        }
+        return number;
+    }
+
+    private static int skipBlanks(ByteBuffer content, int index, int end) {
+        while (index < end) {
+            byte b = content.get(index);
+            if (b != ' ' && b != '\t' && b != '\r') {
+                break;
+            }
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
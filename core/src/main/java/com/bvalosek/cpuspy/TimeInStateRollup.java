@@ -0,0 +1,124 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.util.Arrays;
+
+/**
+ * TimeInStateRollup is one downsampled tier of the sampler's history: a ring
+ * of buckets of bucketMillis each, aligned to multiples of bucketMillis of
+ * elapsedRealtime, holding the summed deltas of every sample whose interval
+ * ended within the bucket. The newest bucket is open and grows with every
+ * sample, so the tier is always up to date without a pass over the raw
+ * samples. Only touched while holding the sampler's lock
+ */
+class TimeInStateRollup {
+
+    private final long bucketMillis;
+    private final int capacity;
+
+    private int slotWidth = 0;
+    private long[] sums = new long[0];
+    private final long[] indices;
+    private final long[] lengths;
+    private int head = 0;
+    private int count = 0;
+
+    TimeInStateRollup(long bucketMillis, int capacity) {
+        this.bucketMillis = bucketMillis;
+        this.capacity = capacity;
+        this.indices = new long[capacity];
+        this.lengths = new long[capacity];
+    }
+
+    long getBucketMillis() {
+        return this.bucketMillis;
+    }
+
+    /**
+     * Drop every bucket and size them for slotWidth deltas
+     */
+    void reset(int slotWidth) {
+        if (slotWidth != this.slotWidth) {
+            this.slotWidth = slotWidth;
+            this.sums = new long[slotWidth * this.capacity];
+        }
+        this.head = 0;
+        this.count = 0;
+    }
+
+    /**
+     * Add one sample, slotWidth deltas starting at offset of deltas, to the
+     * bucket its interval ended in, opening that bucket if needed
+     */
+    void add(long timestamp, long length, int[] deltas, int offset) {
+        long index = timestamp / this.bucketMillis;
+        int newest = (this.head - 1 + this.capacity) % this.capacity;
+        int slot;
+        if (this.count > 0 && this.indices[newest] == index) {
+            slot = newest;
+        } else {
+            slot = this.head;
+            Arrays.fill(this.sums, slot * this.slotWidth, (slot + 1) * this.slotWidth, 0);
+            this.indices[slot] = index;
+            this.lengths[slot] = 0;
+            this.head = (slot + 1) % this.capacity;
+            if (this.count < this.capacity) {
+                this.count++;
+            }
+        }
+        int base = slot * this.slotWidth;
+        for (int i = 0; i < this.slotWidth; i++) {
+            this.sums[base + i] += deltas[offset + i];
+        }
+        this.lengths[slot] += length;
+    }
+
+    /**
+     * @return start of the oldest bucket held, after which the tier has every
+     * sample, or Long.MIN_VALUE if no bucket was dropped since the last reset
+     */
+    long getReach() {
+        if (this.count < this.capacity) {
+            return Long.MIN_VALUE;
+        }
+        return this.indices[this.head] * this.bucketMillis;
+    }
+
+    /**
+     * Add the buckets that start after cutoffMillis and before
+     * endMillis to residency, for the stateCount states at offset within a slot
+     *
+     * @param widen   also add the bucket holding cutoffMillis, for when no
+     *                finer source reaches back to it
+     * @param covered receives the time covered by the added buckets at index 0
+     * @return start of the oldest bucket added, or endMillis if none was
+     */
+    long sum(long cutoffMillis, long endMillis, boolean widen, int offset, int stateCount,
+             long[] residency, long[] covered) {
+        long oldestStart = endMillis;
+        for (int n = 0; n < this.count; n++) {
+            int slot = (this.head - 1 - n + 2 * this.capacity) % this.capacity;
+            long start = this.indices[slot] * this.bucketMillis;
+            if (start >= endMillis) {
+                continue;
+            }
+            if (start <= cutoffMillis && !(widen && start + this.bucketMillis > cutoffMillis)) {
+                break;
+            }
+            int base = slot * this.slotWidth + offset;
+            for (int i = 0; i < stateCount; i++) {
+                residency[i] += this.sums[base + i];
+            }
+            covered[0] += this.lengths[slot];
+            oldestStart = start;
+        }
+        return oldestStart;
+    }
+}
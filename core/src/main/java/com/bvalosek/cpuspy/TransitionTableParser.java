@@ -0,0 +1,223 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * TransitionTableParser scans the raw bytes of a cpufreq trans_table file into
+ * a dense square matrix of transition counts. The file lists the frequencies
+ * once in a "   : f1 f2 ..." header and then one "from: count count ..." row
+ * per frequency; the matrix is reordered so its indexes follow the frequency
+ * rows of the time-in-state data, sorted descending.
+ * <p>
+ * All buffers are kept between calls and the sort order is only recomputed
+ * when the header changes, so a parser reused for every refresh of a policy
+ * allocates nothing. Rows cut short, as happens when the kernel truncates a
+ * large table to one page, are left at 0
+ */
+public class TransitionTableParser {
+
+    private static final int InitialStateCount = 32;
+
+    /**
+     * Frequencies in the order of the file, and where each one goes in the
+     * descending order
+     */
+    private int[] fileFrequencies = new int[InitialStateCount];
+    private int fileStateCount = 0;
+    private int[] sortedIndexOfFile = new int[InitialStateCount];
+
+    /**
+     * The matrix, stateCount * stateCount counts with rows for the from and
+     * columns for the to frequencies, both descending
+     */
+    private int[] frequencies = new int[0];
+    private long[] counts = new long[0];
+
+    private long[] rowValues = new long[InitialStateCount];
+    private int rowValueCount = 0;
+
+    /**
+     * Parse the bytes between the position and the limit of content, replacing
+     * the previous matrix. The position of content is left untouched
+     *
+     * @return false if content holds no header, which leaves an empty matrix
+     */
+    public boolean parse(ByteBuffer content) {
+        int index = content.position();
+        int end = content.limit();
+        boolean hasHeader = false;
+        int fileRow = 0;
+
+        while (index < end) {
+            int lineEnd = index;
+            while (lineEnd < end && content.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            boolean complete = lineEnd < end;
+
+            // every line of interest is an optional frequency, a colon and numbers
+            int position = skipBlanks(content, index, lineEnd);
+            int keyStart = position;
+            long key = 0;
+            while (position < lineEnd && isDigit(content.get(position))) {
+                key = key * 10 + (content.get(position) - '0');
+                position++;
+            }
+            boolean hasKey = position > keyStart;
+            position = skipBlanks(content, position, lineEnd);
+            if (position < lineEnd && content.get(position) == ':') {
+                readValues(content, position + 1, lineEnd);
+                if (!hasKey && !hasHeader) {
+                    useHeader();
+                    hasHeader = true;
+                } else if (hasKey && hasHeader && complete) {
+                    addRow((int) key, fileRow++);
+                }
+            }
+            index = lineEnd + 1;
+        }
+
+        if (!hasHeader) {
+            this.fileStateCount = 0;
+            this.frequencies = new int[0];
+            this.counts = new long[0];
+        }
+        return hasHeader;
+    }
+
+    /**
+     * @return number of frequencies, the matrix is this many rows and columns
+     */
+    public int getStateCount() {
+        return this.frequencies.length;
+    }
+
+    /**
+     * @return the frequencies sorted descending, the same array until the
+     * header changes, must not be written to
+     */
+    public int[] getFrequencies() {
+        return this.frequencies;
+    }
+
+    /**
+     * @return the row major matrix of the last parse, reused by the next one
+     */
+    public long[] getCounts() {
+        return this.counts;
+    }
+
+    /**
+     * Take the values just read as the header, reordering only if it changed
+     */
+    private void useHeader() {
+        int stateCount = this.rowValueCount;
+        boolean same = stateCount == this.fileStateCount;
+        for (int i = 0; same && i < stateCount; i++) {
+            same = this.fileFrequencies[i] == this.rowValues[i];
+        }
+        if (same) {
+            Arrays.fill(this.counts, 0);
+            return;
+        }
+
+        if (stateCount > this.fileFrequencies.length) {
+            this.fileFrequencies = new int[stateCount];
+            this.sortedIndexOfFile = new int[stateCount];
+        }
+        int[] sorted = new int[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            this.fileFrequencies[i] = (int) this.rowValues[i];
+            sorted[i] = (int) this.rowValues[i];
+        }
+        this.fileStateCount = stateCount;
+
+        Arrays.sort(sorted);
+        for (int i = 0; i < stateCount / 2; i++) {
+            int swap = sorted[i];
+            sorted[i] = sorted[stateCount - 1 - i];
+            sorted[stateCount - 1 - i] = swap;
+        }
+        for (int i = 0; i < stateCount; i++) {
+            this.sortedIndexOfFile[i] = indexOf(sorted, this.fileFrequencies[i]);
+        }
+        this.frequencies = sorted;
+        this.counts = new long[stateCount * stateCount];
+    }
+
+    /**
+     * Store the values just read as the row of from, expected at fileRow
+     */
+    private void addRow(int from, int fileRow) {
+        int stateCount = this.fileStateCount;
+        if (this.rowValueCount != stateCount) {
+            return;
+        }
+        if (fileRow >= stateCount || this.fileFrequencies[fileRow] != from) {
+            fileRow = indexOf(this.fileFrequencies, stateCount, from);
+            if (fileRow < 0) {
+                return;
+            }
+        }
+        int rowBase = this.sortedIndexOfFile[fileRow] * stateCount;
+        for (int column = 0; column < stateCount; column++) {
+            this.counts[rowBase + this.sortedIndexOfFile[column]] = this.rowValues[column];
+        }
+    }
+
+    private void readValues(ByteBuffer content, int index, int end) {
+        this.rowValueCount = 0;
+        while (true) {
+            index = skipBlanks(content, index, end);
+            if (index >= end || !isDigit(content.get(index))) {
+                return;
+            }
+            long value = 0;
+            while (index < end && isDigit(content.get(index))) {
+                value = value * 10 + (content.get(index) - '0');
+                index++;
+            }
+            if (this.rowValueCount == this.rowValues.length) {
+                this.rowValues = Arrays.copyOf(this.rowValues, this.rowValues.length * 2);
+            }
+            this.rowValues[this.rowValueCount++] = value;
+        }
+    }
+
+    private static int indexOf(int[] values, int value) {
+        return indexOf(values, values.length, value);
+    }
+
+    private static int indexOf(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipBlanks(ByteBuffer content, int index, int end) {
+        while (index < end) {
+            byte b = content.get(index);
+            if (b != ' ' && b != '\t' && b != '\r') {
+                break;
+            }
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
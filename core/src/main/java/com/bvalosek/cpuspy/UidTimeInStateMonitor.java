@@ -0,0 +1,172 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * UidTimeInStateMonitor attributes the time spent at each frequency to the
+ * UIDs that ran, from /proc/uid_time_in_state. The file is streamed through a
+ * fixed size buffer on every update and only the counters of each UID are
+ * kept, so an update costs one pass over the file and allocates nothing once
+ * the table has grown to the number of UIDs.
+ * <p>
+ * Like the per-core counters, the per-UID ones count from boot until the
+ * baselines are reset, after which everything is reported relative to them.
+ * The columns follow the header of the file, which lists the frequencies of
+ * every policy one after the other, so a frequency may appear more than once
+ */
+public class UidTimeInStateMonitor {
+
+    public static final String DefaultUidTimeInStatePath = "/proc/uid_time_in_state";
+
+    private final SysfsFile file;
+    private final UidTimeInStateParser parser = new UidTimeInStateParser();
+
+    private int[] frequencies = new int[0];
+    private UidTimeTable table = new UidTimeTable(0);
+
+    /**
+     * Which columns count as high frequency for the last minFrequency ranked by
+     */
+    private int rankedMinFrequency = -1;
+    private boolean[] rankedColumns = new boolean[0];
+
+    private final UidTimeInStateParser.LineHandler lineHandler = new UidTimeInStateParser.LineHandler() {
+        public void onHeader(long[] values, int count) {
+            if (sameFrequencies(values, count)) {
+                return;
+            }
+            // a new frequency table makes the old counters meaningless
+            frequencies = new int[count];
+            for (int i = 0; i < count; i++) {
+                frequencies[i] = (int) values[i];
+            }
+            table = new UidTimeTable(count);
+            rankedMinFrequency = -1;
+        }
+
+        public void onRow(int uid, long[] values, int count) {
+            table.put(uid, values, count);
+        }
+    };
+
+    public UidTimeInStateMonitor(File uidTimeInStateFile) {
+        this.file = new SysfsFile(uidTimeInStateFile.getPath());
+    }
+
+    /**
+     * Read the latest counters of every UID
+     */
+    public synchronized void update() throws IOException {
+        this.parser.begin(this.lineHandler);
+        this.file.stream(this.parser);
+        this.parser.end();
+    }
+
+    /**
+     * @return the frequency of every column, in kHz
+     */
+    public synchronized int[] getFrequencies() {
+        return this.frequencies.clone();
+    }
+
+    /**
+     * @return number of UIDs seen since the frequency table last changed
+     */
+    public synchronized int getUidCount() {
+        return this.table.getSize();
+    }
+
+    /**
+     * Count every UID from its current counters onwards
+     */
+    public synchronized void resetBaselines() {
+        this.table.resetBaselines();
+    }
+
+    /**
+     * Count every UID from boot again
+     */
+    public synchronized void clearBaselines() {
+        this.table.clearBaselines();
+    }
+
+    /**
+     * Rank the UIDs by the time they spent at or above minFrequency since the
+     * baseline, keeping the uids.length busiest. Costs one pass over the table
+     *
+     * @param uids      receives the UIDs, busiest first
+     * @param durations receives their time in 10ms units, at least as long as uids
+     * @return the number of entries filled in, UIDs with no such time are left out
+     */
+    public synchronized int getTopUids(int minFrequency, int[] uids, long[] durations) {
+        int limit = uids.length;
+        if (limit == 0) {
+            return 0;
+        }
+        boolean[] columns = columnsAtOrAbove(minFrequency);
+        UidTimeTable table = this.table;
+        int count = 0;
+        for (int slot = 0; slot < table.getCapacity(); slot++) {
+            int uid = table.getUidAt(slot);
+            if (uid < 0) {
+                continue;
+            }
+            long duration = 0;
+            for (int column = 0; column < columns.length; column++) {
+                if (columns[column]) {
+                    duration += table.getDeltaAt(slot, column);
+                }
+            }
+            if (duration <= 0 || (count == limit && duration <= durations[count - 1])) {
+                continue;
+            }
+
+            // insert into the sorted top list, dropping its last entry if full
+            int index = count < limit ? count++ : count - 1;
+            while (index > 0 && durations[index - 1] < duration) {
+                uids[index] = uids[index - 1];
+                durations[index] = durations[index - 1];
+                index--;
+            }
+            uids[index] = uid;
+            durations[index] = duration;
+        }
+        return count;
+    }
+
+    public synchronized void close() {
+        this.file.close();
+    }
+
+    private boolean[] columnsAtOrAbove(int minFrequency) {
+        if (minFrequency != this.rankedMinFrequency || this.rankedColumns.length != this.frequencies.length) {
+            this.rankedColumns = new boolean[this.frequencies.length];
+            for (int column = 0; column < this.frequencies.length; column++) {
+                this.rankedColumns[column] = this.frequencies[column] >= minFrequency;
+            }
+            this.rankedMinFrequency = minFrequency;
+        }
+        return this.rankedColumns;
+    }
+
+    private boolean sameFrequencies(long[] values, int count) {
+        if (count != this.frequencies.length) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (values[i] != this.frequencies[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
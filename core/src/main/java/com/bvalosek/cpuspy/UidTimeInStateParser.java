@@ -0,0 +1,162 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * UidTimeInStateParser is a streaming parser for the per-UID tables in procfs,
+ * such as /proc/uid_time_in_state and /proc/uid_concurrent_active_time. These
+ * are made of a header line followed by one "uid: value value ..." line per
+ * UID, and run to thousands of lines on a busy device, so the parser is fed
+ * one chunk at a time and keeps only the line it is in the middle of.
+ * <p>
+ * Tokens of the header ending in a colon, like "uid:" or "policy0:", are
+ * labels and skipped, its numbers are handed over as they are. Data lines that
+ * do not start with a UID or hold anything but numbers after it are skipped
+ */
+public class UidTimeInStateParser implements SysfsFile.ChunkHandler {
+
+    private static final int InitialValueCount = 64;
+
+    /**
+     * Receives the parsed lines, the values array is reused by the next line
+     */
+    public interface LineHandler {
+        void onHeader(long[] values, int count);
+
+        void onRow(int uid, long[] values, int count);
+    }
+
+    private LineHandler handler = null;
+
+    /**
+     * The line being parsed
+     */
+    private long[] values = new long[InitialValueCount];
+    private int valueCount = 0;
+    private boolean inHeader = true;
+    private boolean hasUid = false;
+    private int uid = 0;
+    private boolean lineInvalid = false;
+
+    /**
+     * The token being parsed
+     */
+    private long number = 0;
+    private int digits = 0;
+    private boolean tokenHasColon = false;
+    private boolean tokenInvalid = false;
+
+    /**
+     * Start a new file, whose lines go to handler
+     */
+    public void begin(LineHandler handler) {
+        this.handler = handler;
+        this.inHeader = true;
+        resetLine();
+    }
+
+    /**
+     * Parse the bytes between the position and the limit of chunk, a line may
+     * continue into the next chunk. The position of chunk is left untouched
+     */
+    public void onChunk(ByteBuffer chunk) {
+        int end = chunk.limit();
+        for (int index = chunk.position(); index < end; index++) {
+            byte b = chunk.get(index);
+            if (b >= '0' && b <= '9') {
+                if (this.tokenHasColon) {
+                    this.tokenInvalid = true;
+                }
+                this.number = this.number * 10 + (b - '0');
+                this.digits++;
+            } else if (b == ':') {
+                if (this.tokenHasColon) {
+                    this.tokenInvalid = true;
+                }
+                this.tokenHasColon = true;
+            } else if (b == ' ' || b == '\t' || b == '\r') {
+                endToken();
+            } else if (b == '\n') {
+                endToken();
+                endLine();
+            } else {
+                this.tokenInvalid = true;
+            }
+        }
+    }
+
+    /**
+     * Finish the file, handing over a last line that had no newline
+     */
+    public void end() {
+        endToken();
+        if (this.hasUid || this.valueCount > 0 || this.lineInvalid) {
+            endLine();
+        }
+        this.handler = null;
+    }
+
+    private void endToken() {
+        if (this.digits == 0 && !this.tokenHasColon && !this.tokenInvalid) {
+            return;
+        }
+        boolean isNumber = this.digits > 0 && !this.tokenHasColon && !this.tokenInvalid;
+        if (this.inHeader) {
+            if (isNumber) {
+                addValue(this.number);
+            }
+        } else if (!this.hasUid && this.valueCount == 0 && !this.lineInvalid) {
+            if (this.digits > 0 && this.tokenHasColon && !this.tokenInvalid && this.number <= Integer.MAX_VALUE) {
+                this.uid = (int) this.number;
+                this.hasUid = true;
+            } else {
+                this.lineInvalid = true;
+            }
+        } else if (isNumber) {
+            addValue(this.number);
+        } else {
+            this.lineInvalid = true;
+        }
+        this.number = 0;
+        this.digits = 0;
+        this.tokenHasColon = false;
+        this.tokenInvalid = false;
+    }
+
+    private void endLine() {
+        if (this.inHeader) {
+            this.handler.onHeader(this.values, this.valueCount);
+            this.inHeader = false;
+        } else if (this.hasUid && !this.lineInvalid) {
+            this.handler.onRow(this.uid, this.values, this.valueCount);
+        }
+        resetLine();
+    }
+
+    private void resetLine() {
+        this.valueCount = 0;
+        this.hasUid = false;
+        this.lineInvalid = false;
+        this.number = 0;
+        this.digits = 0;
+        this.tokenHasColon = false;
+        this.tokenInvalid = false;
+    }
+
+    private void addValue(long value) {
+        if (this.valueCount == this.values.length) {
+            long[] larger = new long[this.values.length * 2];
+            System.arraycopy(this.values, 0, larger, 0, this.valueCount);
+            this.values = larger;
+        }
+        this.values[this.valueCount++] = value;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.util.Arrays;
+
+/**
+ * UidTimeTable is an open-addressing hash table from UID to a fixed width row
+ * of counters and their baselines, held in flat primitive arrays so that
+ * updating thousands of UIDs allocates nothing and boxes nothing. Slots are
+ * never removed, a UID that goes away keeps its last counters
+ */
+class UidTimeTable {
+
+    private static final int EmptyKey = -1;
+    private static final int InitialCapacity = 256;
+
+    private final int width;
+
+    private int[] keys;
+    private long[] totals;
+    private long[] baselines;
+    private int size = 0;
+
+    /**
+     * @param width number of counters per UID
+     */
+    UidTimeTable(int width) {
+        this.width = width;
+        allocate(InitialCapacity);
+    }
+
+    int getWidth() {
+        return this.width;
+    }
+
+    int getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return number of slots, for iterating with getUidAt
+     */
+    int getCapacity() {
+        return this.keys.length;
+    }
+
+    /**
+     * @return the UID held in slot, or a negative value if it is free
+     */
+    int getUidAt(int slot) {
+        return this.keys[slot];
+    }
+
+    /**
+     * @return the counter of state in slot minus its baseline
+     */
+    long getDeltaAt(int slot, int state) {
+        int index = slot * this.width + state;
+        return this.totals[index] - this.baselines[index];
+    }
+
+    /**
+     * Store the latest counters of uid, values beyond the width are ignored.
+     * Counters that went backwards, as when a UID is reused after an
+     * uninstall, drop the baseline of that UID
+     */
+    void put(int uid, long[] values, int count) {
+        if ((this.size + 1) * 2 > this.keys.length) {
+            allocate(this.keys.length * 2);
+        }
+        int slot = findSlot(this.keys, uid);
+        if (this.keys[slot] == EmptyKey) {
+            this.keys[slot] = uid;
+            this.size++;
+        }
+        int base = slot * this.width;
+        int length = Math.min(count, this.width);
+        boolean wentBack = false;
+        for (int i = 0; i < length; i++) {
+            if (values[i] < this.baselines[base + i]) {
+                wentBack = true;
+            }
+            this.totals[base + i] = values[i];
+        }
+        if (wentBack) {
+            Arrays.fill(this.baselines, base, base + this.width, 0);
+        }
+    }
+
+    /**
+     * Make the current counters the baseline of every UID
+     */
+    void resetBaselines() {
+        System.arraycopy(this.totals, 0, this.baselines, 0, this.totals.length);
+    }
+
+    /**
+     * Go back to counting every UID from zero
+     */
+    void clearBaselines() {
+        Arrays.fill(this.baselines, 0);
+    }
+
+    /**
+     * Rehash into capacity slots, capacity must be a power of two
+     */
+    private void allocate(int capacity) {
+        int[] oldKeys = this.keys;
+        long[] oldTotals = this.totals;
+        long[] oldBaselines = this.baselines;
+
+        this.keys = new int[capacity];
+        Arrays.fill(this.keys, EmptyKey);
+        this.totals = new long[capacity * this.width];
+        this.baselines = new long[capacity * this.width];
+        if (oldKeys == null) {
+            return;
+        }
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldKeys[oldSlot] == EmptyKey) {
+                continue;
+            }
+            int slot = findSlot(this.keys, oldKeys[oldSlot]);
+            this.keys[slot] = oldKeys[oldSlot];
+            System.arraycopy(oldTotals, oldSlot * this.width, this.totals, slot * this.width, this.width);
+            System.arraycopy(oldBaselines, oldSlot * this.width, this.baselines, slot * this.width, this.width);
+        }
+    }
+
+    /**
+     * @return the slot holding uid, or the free slot where it belongs
+     */
+    private static int findSlot(int[] keys, int uid) {
+        int mask = keys.length - 1;
+        int hash = uid * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (keys[slot] != EmptyKey && keys[slot] != uid) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,574 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy.cli;
+
+import com.bvalosek.cpuspy.CpuFrequencyTracer;
+import com.bvalosek.cpuspy.CpuTimeInStateMonitor;
+import com.bvalosek.cpuspy.CpuTimeInStateSnapshot;
+import com.bvalosek.cpuspy.CpuTopology;
+import com.bvalosek.cpuspy.CpuTransitionMonitor;
+import com.bvalosek.cpuspy.CpuTransitionSnapshot;
+import com.bvalosek.cpuspy.EnergyEstimator;
+import com.bvalosek.cpuspy.EnergyModel;
+import com.bvalosek.cpuspy.FleetResidency;
+import com.bvalosek.cpuspy.FrequencyDistribution;
+import com.bvalosek.cpuspy.MonitorInstrumentation;
+import com.bvalosek.cpuspy.SharedSnapshotLayout;
+import com.bvalosek.cpuspy.SharedSnapshotReader;
+import com.bvalosek.cpuspy.SharedSnapshotWriter;
+import com.bvalosek.cpuspy.SystemMonitorClock;
+import com.bvalosek.cpuspy.ThrottlingEpisode;
+import com.bvalosek.cpuspy.TimeInStateBatchAnalyzer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * CpuSpyCli samples the cpufreq and cpuidle counters of a Linux host at a
+ * fixed interval and streams them to stdout, so the same tooling as the app
+ * runs headless on any machine with a JVM.
+ * <p>
+ * The csv format has one line per state and sample:
+ * elapsed_ms,kind,index,state,value,delta where kind is "freq" (index is the
+ * policy, state the frequency in kHz, value in 10ms units) or "idle" (index
+ * is the core, state the idle state name, value in microseconds). The delta
+ * column is empty for the first sample and after the states changed.
+ * elapsed_ms is the time since boot as found by SystemMonitorClock, with an
+ * arbitrary origin where /proc/uptime cannot be read.
+ * <p>
+ * The binary format is big-endian: the magic "CPSY" and a version int, then
+ * per sample the elapsed milliseconds as a long, the policy count as a short
+ * followed by a short state count and an int frequency and long duration per
+ * state of each policy, and the core count as a short followed by a short
+ * idle state count and a long time and long usage per idle state of each core.
+ * <p>
+ * With --trace HZ, the csv instead holds the instantaneous frequencies and
+ * temperatures sampled HZ times a second, drained every interval: kind
+ * "cur_freq" or "max_freq" (index is the policy, value in kHz), "temp" (index
+ * is the thermal zone, state its type, value in millidegrees Celsius) and
+ * "throttle" for every ended throttling episode (elapsed_ms is its start,
+ * index the policy, state its end, value its lowest scaling_max_freq).
+ * <p>
+ * With --energy-model, the csv also has a line of kind "energy" per policy
+ * and sample, value being the energy its cores used since the first sample
+ * in millijoules and delta the energy of the interval. The model is
+ * "kernel" for the kernel's energy model, "capacity" for relative costs
+ * derived from cpu_capacity, in which case the values are relative units,
+ * or the path of a table as read by EnergyModel.fromTable.
+ * <p>
+ * With --transitions, the csv also has a line of kind "total_trans" per
+ * policy and sample, value being its frequency switches as counted by
+ * total_trans, and a line of kind "trans" per policy, sample and pair of
+ * frequencies switched between at least once, state being "FROM-TO" in kHz
+ * and value the number of such switches. Values count since the policy's
+ * stats were last reset, deltas since the previous sample or that reset.
+ * <p>
+ * With --batch DIR, nothing is sampled: the time_in_state captures under DIR
+ * are analyzed as described by TimeInStateBatchAnalyzer and the csv holds
+ * soc,core,kind,state,value lines. Kind "captures" has the number of
+ * captures of the SoC, "devices" the number of them with the core and
+ * "residency" the time in 10ms units all of them spent at frequency state.
+ * Kinds "p50", "p90" and "p99" are percentiles of that pooled time, and
+ * "device_p50", "device_p90" and "device_p99" the state-th percentile across
+ * devices of every device's own percentile; all of them have the frequency
+ * in kHz as value.
+ * <p>
+ * With --shared FILE, every sample is also published into FILE mapped as a
+ * region laid out as described by SharedSnapshotLayout, for other processes
+ * to read while sampling goes on. With --read-shared FILE, nothing is sampled:
+ * the latest snapshot in such a region is read once and the csv holds
+ * core,kind,state,value lines. Kind "epoch" has the epoch of the core's
+ * counters, "freq" the duration since boot at frequency state in 10ms units,
+ * "baseline" its baseline if the core has one, "idle" the time since boot in
+ * idle state number state in microseconds and "idle_usage" its entry count.
+ * <p>
+ * With --stats, the monitor's own latency histograms, allocations and CPU
+ * time are printed to stderr once sampling ends
+ */
+public class CpuSpyCli {
+
+    private static final String Usage =
+            "usage: cpuspy [--root DIR] [--interval MILLIS] [--count N] [--format csv|binary] [--stats]\n"
+                    + "       [--trace HZ] [--thermal-root DIR] [--energy-model kernel|capacity|FILE]\n"
+                    + "       [--transitions] [--shared FILE]\n"
+                    + "       cpuspy --batch DIR\n"
+                    + "       cpuspy --read-shared FILE";
+
+    private static final int BinaryMagic = 0x43505359;
+    private static final int BinaryVersion = 1;
+
+    private final CpuTimeInStateMonitor monitor;
+    private final CpuTopology topology;
+    private CpuTimeInStateSnapshot previous = null;
+
+    /**
+     * Prices every csv sample, null without --energy-model
+     */
+    private EnergyEstimator energy = null;
+
+    /**
+     * Counts frequency switches for every csv sample, null without --transitions
+     */
+    private CpuTransitionMonitor transitions = null;
+    private CpuTransitionSnapshot previousTransitions = null;
+
+    private CpuSpyCli(CpuTimeInStateMonitor monitor) {
+        this.monitor = monitor;
+        this.topology = monitor.getTopology();
+    }
+
+    public static void main(String[] args) {
+        String root = CpuTimeInStateMonitor.DefaultSysfsCpuRoot;
+        long intervalMillis = 1000;
+        long count = -1;
+        boolean binary = false;
+        boolean stats = false;
+        int traceRateHz = 0;
+        String thermalRoot = CpuFrequencyTracer.DefaultThermalRoot;
+        String energyModel = null;
+        boolean transitions = false;
+        String batchRoot = null;
+        String sharedPath = null;
+        String readSharedPath = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--root") && i + 1 < args.length) {
+                    root = args[++i];
+                } else if (arg.equals("--interval") && i + 1 < args.length) {
+                    intervalMillis = Long.parseLong(args[++i]);
+                } else if (arg.equals("--count") && i + 1 < args.length) {
+                    count = Long.parseLong(args[++i]);
+                } else if (arg.equals("--format") && i + 1 < args.length) {
+                    String format = args[++i];
+                    if (!format.equals("csv") && !format.equals("binary")) {
+                        exitWithUsage();
+                    }
+                    binary = format.equals("binary");
+                } else if (arg.equals("--stats")) {
+                    stats = true;
+                } else if (arg.equals("--trace") && i + 1 < args.length) {
+                    traceRateHz = Integer.parseInt(args[++i]);
+                    if (traceRateHz <= 0 || traceRateHz > CpuFrequencyTracer.MaxRateHz) {
+                        exitWithUsage();
+                    }
+                } else if (arg.equals("--thermal-root") && i + 1 < args.length) {
+                    thermalRoot = args[++i];
+                } else if (arg.equals("--energy-model") && i + 1 < args.length) {
+                    energyModel = args[++i];
+                } else if (arg.equals("--transitions")) {
+                    transitions = true;
+                } else if (arg.equals("--batch") && i + 1 < args.length) {
+                    batchRoot = args[++i];
+                } else if (arg.equals("--shared") && i + 1 < args.length) {
+                    sharedPath = args[++i];
+                } else if (arg.equals("--read-shared") && i + 1 < args.length) {
+                    readSharedPath = args[++i];
+                } else {
+                    exitWithUsage();
+                }
+            }
+        } catch (NumberFormatException e) {
+            exitWithUsage();
+        }
+        if (intervalMillis <= 0 || (traceRateHz > 0 && binary)
+                || ((energyModel != null || transitions) && (binary || traceRateHz > 0))
+                || (sharedPath != null && traceRateHz > 0)) {
+            exitWithUsage();
+        }
+
+        if (readSharedPath != null) {
+            try {
+                SharedSnapshotReader reader = SharedSnapshotReader.open(new File(readSharedPath));
+                runReadShared(new BufferedOutputStream(System.out), reader);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        if (batchRoot != null) {
+            try {
+                runBatch(new BufferedOutputStream(System.out), new File(batchRoot));
+            } catch (IOException e) {
+                // stdout went away
+            }
+            return;
+        }
+
+        CpuTimeInStateMonitor monitor = new CpuTimeInStateMonitor(new File(root), new SystemMonitorClock());
+        if (stats) {
+            monitor.getInstrumentation().setAllocationCounter(ThreadAllocationCounter.create());
+        }
+        CpuSpyCli cli = new CpuSpyCli(monitor);
+        if (energyModel != null) {
+            try {
+                cli.energy = new EnergyEstimator(loadEnergyModel(monitor, energyModel), monitor.getTopology());
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (transitions) {
+            cli.transitions = new CpuTransitionMonitor(monitor.getTopology(), new SystemMonitorClock());
+        }
+        if (sharedPath != null) {
+            try {
+                monitor.setSharedSnapshotWriter(SharedSnapshotWriter.create(new File(sharedPath),
+                        monitor.getCpuCount(), SharedSnapshotLayout.DefaultMaxStates,
+                        SharedSnapshotLayout.DefaultMaxIdleStates));
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        try {
+            if (traceRateHz > 0) {
+                CpuFrequencyTracer tracer = new CpuFrequencyTracer(monitor.getTopology(),
+                        new File(thermalRoot), new SystemMonitorClock(), traceRateHz * 10);
+                cli.runTrace(new BufferedOutputStream(System.out), tracer, traceRateHz, intervalMillis, count);
+            } else {
+                cli.run(new BufferedOutputStream(System.out), intervalMillis, count, binary);
+            }
+        } catch (IOException e) {
+            // stdout went away, as when piped into head
+        } catch (CpuTimeInStateMonitor.CpuStateMonitorException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (stats) {
+            printStats(monitor.getInstrumentation());
+        }
+    }
+
+    /**
+     * @throws IOException if the model named cannot be read
+     */
+    private static EnergyModel loadEnergyModel(CpuTimeInStateMonitor monitor, String name) throws IOException {
+        CpuTopology topology = monitor.getTopology();
+        if (name.equals("capacity")) {
+            return EnergyModel.fromCapacity(topology, monitor.getSysfsCpuRoot());
+        }
+        if (name.equals("kernel")) {
+            EnergyModel model = EnergyModel.fromKernel(topology, new File(EnergyModel.DefaultEnergyModelRoot));
+            if (model == null) {
+                throw new IOException("No energy model under " + EnergyModel.DefaultEnergyModelRoot);
+            }
+            return model;
+        }
+        return EnergyModel.fromTable(topology, new File(name));
+    }
+
+    private static void runBatch(OutputStream out, File root) throws IOException {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool();
+        FleetResidency fleet;
+        try {
+            fleet = new TimeInStateBatchAnalyzer(pool).analyze(root);
+        } finally {
+            pool.shutdown();
+        }
+
+        Writer csvOut = new OutputStreamWriter(out, Charset.forName("UTF-8"));
+        csvOut.write("soc,core,kind,state,value\n");
+        long captures = 0;
+        int[] percentiles = {50, 90, 99};
+        for (String soc : fleet.getSocs()) {
+            String name = soc.replace(',', '_');
+            captures += fleet.getCaptureCount(soc);
+            csvOut.write(name + ",,captures,," + fleet.getCaptureCount(soc) + "\n");
+            for (int cpuIndex = 0; cpuIndex < fleet.getCoreCount(soc); cpuIndex++) {
+                FrequencyDistribution distribution = fleet.getDistribution(soc, cpuIndex);
+                if (distribution == null) {
+                    continue;
+                }
+                String prefix = name + "," + cpuIndex + ",";
+                csvOut.write(prefix + "devices,," + distribution.getDeviceCount() + "\n");
+                for (int i = 0; i < distribution.getStateCount(); i++) {
+                    csvOut.write(prefix + "residency," + distribution.getFrequency(i) + ","
+                            + distribution.getDuration(i) + "\n");
+                }
+                for (int percentile : percentiles) {
+                    csvOut.write(prefix + "p" + percentile + ",,"
+                            + distribution.getPercentileFrequency(percentile) + "\n");
+                }
+                for (int devicePercentile : percentiles) {
+                    for (int percentile : percentiles) {
+                        csvOut.write(prefix + "device_p" + devicePercentile + "," + percentile + ","
+                                + distribution.getDevicePercentileFrequency(devicePercentile, percentile) + "\n");
+                    }
+                }
+            }
+        }
+        csvOut.flush();
+        System.err.println(captures + " captures, " + fleet.getFailedCaptureCount() + " failed, "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Print the latest snapshot of reader's region, retrying until it was
+     * not published over while being read
+     */
+    private static void runReadShared(OutputStream out, SharedSnapshotReader reader) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        long stamp;
+        do {
+            lines.setLength(0);
+            stamp = reader.beginRead();
+            for (int cpuIndex = 0; cpuIndex < reader.getCpuCount(); cpuIndex++) {
+                lines.append(cpuIndex).append(",epoch,,").append(reader.getEpoch(cpuIndex)).append('\n');
+                boolean hasBaseline = reader.hasBaseline(cpuIndex);
+                for (int i = 0; i < reader.getStateCount(cpuIndex); i++) {
+                    int frequency = reader.getFrequency(cpuIndex, i);
+                    lines.append(cpuIndex).append(",freq,").append(frequency).append(',')
+                            .append(reader.getRawDuration(cpuIndex, i)).append('\n');
+                    if (hasBaseline) {
+                        lines.append(cpuIndex).append(",baseline,").append(frequency).append(',')
+                                .append(reader.getBaseline(cpuIndex, i)).append('\n');
+                    }
+                }
+                for (int i = 0; i < reader.getIdleStateCount(cpuIndex); i++) {
+                    lines.append(cpuIndex).append(",idle,").append(i).append(',')
+                            .append(reader.getIdleTime(cpuIndex, i)).append('\n');
+                    lines.append(cpuIndex).append(",idle_usage,").append(i).append(',')
+                            .append(reader.getIdleUsage(cpuIndex, i)).append('\n');
+                }
+            }
+        } while (!reader.validate(stamp));
+
+        Writer csvOut = new OutputStreamWriter(out, Charset.forName("UTF-8"));
+        csvOut.write("core,kind,state,value\n");
+        csvOut.write(lines.toString());
+        csvOut.flush();
+    }
+
+    private static void printStats(MonitorInstrumentation instrumentation) {
+        StringBuilder out = new StringBuilder();
+        instrumentation.appendSummary(out);
+        long cpuTimeMillis = instrumentation.readProcessCpuTimeMillis();
+        if (cpuTimeMillis >= 0) {
+            out.append("process cpu time: ").append(cpuTimeMillis).append(" ms\n");
+        }
+        System.err.print(out);
+    }
+
+    /**
+     * Sample count times, or forever if count is negative, at a fixed rate
+     */
+    private void run(OutputStream out, long intervalMillis, long count, boolean binary)
+            throws IOException, CpuTimeInStateMonitor.CpuStateMonitorException, InterruptedException {
+        DataOutputStream binaryOut = null;
+        Writer csvOut = null;
+        if (binary) {
+            binaryOut = new DataOutputStream(out);
+            binaryOut.writeInt(BinaryMagic);
+            binaryOut.writeInt(BinaryVersion);
+        } else {
+            csvOut = new OutputStreamWriter(out, Charset.forName("UTF-8"));
+            csvOut.write("elapsed_ms,kind,index,state,value,delta\n");
+        }
+
+        long nextSampleAt = System.nanoTime();
+        for (long n = 0; count < 0 || n < count; n++) {
+            this.monitor.updateAllCpuTimeInState();
+            CpuTimeInStateSnapshot snapshot = this.monitor.getSnapshot();
+            if (binary) {
+                writeBinary(binaryOut, snapshot);
+                binaryOut.flush();
+            } else {
+                writeCsv(csvOut, snapshot);
+                if (this.energy != null) {
+                    this.energy.update(snapshot);
+                    writeEnergy(csvOut, snapshot.getTimestamp(), n > 0);
+                }
+                if (this.transitions != null) {
+                    writeTransitions(csvOut, snapshot.getTimestamp());
+                }
+                csvOut.flush();
+            }
+            this.previous = snapshot;
+
+            // fixed rate rather than fixed delay, so the samples do not drift
+            nextSampleAt += intervalMillis * 1000000L;
+            long sleepNanos = nextSampleAt - System.nanoTime();
+            if (sleepNanos > 0) {
+                Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+            }
+        }
+    }
+
+    /**
+     * Trace at rateHz and drain the samples every intervalMillis, count times
+     * or forever if count is negative
+     */
+    private void runTrace(OutputStream out, CpuFrequencyTracer tracer, int rateHz, long intervalMillis,
+                          long count) throws IOException, InterruptedException {
+        final Writer csvOut = new OutputStreamWriter(out, Charset.forName("UTF-8"));
+        csvOut.write("elapsed_ms,kind,index,state,value,delta\n");
+        final String[] zoneTypes = new String[tracer.getZoneCount()];
+        for (int i = 0; i < zoneTypes.length; i++) {
+            zoneTypes[i] = tracer.getZoneType(i);
+        }
+        final IOException[] writeError = new IOException[1];
+        CpuFrequencyTracer.SampleHandler handler = new CpuFrequencyTracer.SampleHandler() {
+            public void onSample(long timestampMillis, int[] curFrequencies, int[] maxFrequencies,
+                                 int[] temperatures) {
+                try {
+                    for (int i = 0; i < curFrequencies.length; i++) {
+                        csvOut.write(timestampMillis + ",cur_freq," + i + ",," + curFrequencies[i] + ",\n");
+                        csvOut.write(timestampMillis + ",max_freq," + i + ",," + maxFrequencies[i] + ",\n");
+                    }
+                    for (int i = 0; i < temperatures.length; i++) {
+                        csvOut.write(timestampMillis + ",temp," + i + "," + zoneTypes[i] + ","
+                                + temperatures[i] + ",\n");
+                    }
+                } catch (IOException e) {
+                    writeError[0] = e;
+                }
+            }
+        };
+
+        Set<ThrottlingEpisode> written = Collections.newSetFromMap(new IdentityHashMap<ThrottlingEpisode, Boolean>());
+        CpuFrequencyTracer.Cursor cursor = tracer.newCursor();
+        tracer.start(rateHz);
+        try {
+            for (long n = 0; count < 0 || n < count; n++) {
+                Thread.sleep(intervalMillis);
+                tracer.drain(cursor, handler);
+                if (writeError[0] != null) {
+                    throw writeError[0];
+                }
+                for (ThrottlingEpisode episode : tracer.getEpisodes()) {
+                    if (!episode.isOngoing() && written.add(episode)) {
+                        csvOut.write(episode.getStartMillis() + ",throttle," + episode.getPolicyIndex() + ","
+                                + episode.getEndMillis() + "," + episode.getLowestMaxFrequency() + ",\n");
+                    }
+                }
+                csvOut.flush();
+            }
+        } finally {
+            tracer.stop();
+            tracer.close();
+        }
+    }
+
+    private void writeCsv(Writer out, CpuTimeInStateSnapshot snapshot) throws IOException {
+        long timestamp = snapshot.getTimestamp();
+        CpuTimeInStateSnapshot before = this.previous;
+        for (int policyIndex = 0; policyIndex < this.topology.getPolicyCount(); policyIndex++) {
+            int cpuIndex = this.topology.getPolicyFirstCpu(policyIndex);
+            boolean hasDelta = before != null && sameFrequencies(before, snapshot, cpuIndex);
+            for (int i = 0; i < snapshot.getStateCount(cpuIndex); i++) {
+                long duration = snapshot.getRawDuration(cpuIndex, i);
+                out.write(timestamp + ",freq," + policyIndex + "," + snapshot.getFrequency(cpuIndex, i)
+                        + "," + duration + ","
+                        + (hasDelta ? String.valueOf(duration - before.getRawDuration(cpuIndex, i)) : "")
+                        + "\n");
+            }
+        }
+        for (int cpuIndex = 0; cpuIndex < snapshot.getCpuCount(); cpuIndex++) {
+            boolean hasDelta = before != null
+                    && before.getIdleStateCount(cpuIndex) == snapshot.getIdleStateCount(cpuIndex);
+            for (int i = 0; i < snapshot.getIdleStateCount(cpuIndex); i++) {
+                long time = snapshot.getIdleTime(cpuIndex, i);
+                out.write(timestamp + ",idle," + cpuIndex + "," + snapshot.getIdleStateName(cpuIndex, i)
+                        + "," + time + ","
+                        + (hasDelta ? String.valueOf(time - before.getIdleTime(cpuIndex, i)) : "")
+                        + "\n");
+            }
+        }
+    }
+
+    private void writeEnergy(Writer out, long timestamp, boolean hasDelta) throws IOException {
+        for (int policyIndex = 0; policyIndex < this.topology.getPolicyCount(); policyIndex++) {
+            int scope = this.energy.getClusterScope(policyIndex);
+            out.write(timestamp + ",energy," + policyIndex + ","
+                    + "," + String.format(Locale.US, "%.3f", this.energy.getTotalEnergy(scope)) + ","
+                    + (hasDelta ? String.format(Locale.US, "%.3f", this.energy.getIntervalEnergy(scope)) : "")
+                    + "\n");
+        }
+    }
+
+    private void writeTransitions(Writer out, long timestamp) throws IOException {
+        CpuTransitionSnapshot current = this.transitions.update();
+        CpuTransitionSnapshot delta = this.previousTransitions != null
+                ? current.since(this.previousTransitions) : null;
+        for (int policyIndex = 0; policyIndex < current.getPolicyCount(); policyIndex++) {
+            out.write(timestamp + ",total_trans," + policyIndex + ",," + current.getTotalTransitions(policyIndex)
+                    + "," + (delta != null ? String.valueOf(delta.getTotalTransitions(policyIndex)) : "") + "\n");
+            int stateCount = current.getStateCount(policyIndex);
+            for (int from = 0; from < stateCount; from++) {
+                for (int to = 0; to < stateCount; to++) {
+                    long count = current.getCount(policyIndex, from, to);
+                    if (count == 0) {
+                        continue;
+                    }
+                    out.write(timestamp + ",trans," + policyIndex + "," + current.getFrequency(policyIndex, from)
+                            + "-" + current.getFrequency(policyIndex, to) + "," + count + ","
+                            + (delta != null ? String.valueOf(delta.getCount(policyIndex, from, to)) : "")
+                            + "\n");
+                }
+            }
+        }
+        this.previousTransitions = current;
+    }
+
+    private void writeBinary(DataOutputStream out, CpuTimeInStateSnapshot snapshot) throws IOException {
+        out.writeLong(snapshot.getTimestamp());
+        out.writeShort(this.topology.getPolicyCount());
+        for (int policyIndex = 0; policyIndex < this.topology.getPolicyCount(); policyIndex++) {
+            int cpuIndex = this.topology.getPolicyFirstCpu(policyIndex);
+            out.writeShort(snapshot.getStateCount(cpuIndex));
+            for (int i = 0; i < snapshot.getStateCount(cpuIndex); i++) {
+                out.writeInt(snapshot.getFrequency(cpuIndex, i));
+                out.writeLong(snapshot.getRawDuration(cpuIndex, i));
+            }
+        }
+        out.writeShort(snapshot.getCpuCount());
+        for (int cpuIndex = 0; cpuIndex < snapshot.getCpuCount(); cpuIndex++) {
+            out.writeShort(snapshot.getIdleStateCount(cpuIndex));
+            for (int i = 0; i < snapshot.getIdleStateCount(cpuIndex); i++) {
+                out.writeLong(snapshot.getIdleTime(cpuIndex, i));
+                out.writeLong(snapshot.getIdleUsage(cpuIndex, i));
+            }
+        }
+    }
+
+    private static boolean sameFrequencies(CpuTimeInStateSnapshot a, CpuTimeInStateSnapshot b, int cpuIndex) {
+        if (a.getStateCount(cpuIndex) != b.getStateCount(cpuIndex)) {
+            return false;
+        }
+        for (int i = 0; i < a.getStateCount(cpuIndex); i++) {
+            if (a.getFrequency(cpuIndex, i) != b.getFrequency(cpuIndex, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void exitWithUsage() {
+        System.err.println(Usage);
+        System.exit(2);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy.cli;
+
+import com.bvalosek.cpuspy.MonitorInstrumentation;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * AllocationCounter of HotSpot and the JVMs sharing its management
+ * extensions, which count the bytes allocated by every thread
+ */
+class ThreadAllocationCounter implements MonitorInstrumentation.AllocationCounter {
+
+    private final com.sun.management.ThreadMXBean threads;
+
+    private ThreadAllocationCounter(com.sun.management.ThreadMXBean threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return a counter for this JVM, or null if it does not count allocations
+     */
+    static ThreadAllocationCounter create() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean extended = (com.sun.management.ThreadMXBean) threads;
+        if (!extended.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        extended.setThreadAllocatedMemoryEnabled(true);
+        return new ThreadAllocationCounter(extended);
+    }
+
+    public long getAllocatedBytes() {
+        return this.threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public boolean isThreadLocal() {
+        return true;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CpuFrequencyTracerTest {
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    private static final int Capacity = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CpuTopology topology;
+    private File thermalRoot;
+    private ManualMonitorClock clock;
+    private CpuFrequencyTracer tracer;
+
+    /**
+     * Keeps the timestamp, the current frequency of policy 0 and the
+     * temperature of zone 0 of every sample
+     */
+    private static final class Recorder implements CpuFrequencyTracer.SampleHandler {
+        final List<long[]> samples = new ArrayList<>();
+
+        public void onSample(long timestampMillis, int[] curFrequencies, int[] maxFrequencies, int[] temperatures) {
+            this.samples.add(new long[]{timestampMillis, curFrequencies[0], temperatures[0]});
+        }
+
+        long[] timestamps() {
+            long[] timestamps = new long[this.samples.size()];
+            for (int i = 0; i < timestamps.length; i++) {
+                timestamps[i] = this.samples.get(i)[0];
+            }
+            return timestamps;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // policy 0 tops out at 600 MHz, policy 2 at 800 MHz
+        FakeSysfs.create(this.folder.getRoot(), 2, 2, 4, 0);
+        this.topology = CpuTopology.discover(this.folder.getRoot());
+        this.thermalRoot = this.folder.newFolder("thermal");
+        write(new File(this.thermalRoot, "thermal_zone0/type"), "cpu-0-0-usr");
+        write(new File(this.thermalRoot, "thermal_zone0/temp"), "40000");
+        write(new File(this.thermalRoot, "cooling_device0/type"), "thermal-cpufreq-0");
+        this.clock = new ManualMonitorClock(10000);
+        this.tracer = new CpuFrequencyTracer(this.topology, this.thermalRoot, this.clock, Capacity);
+    }
+
+    @After
+    public void tearDown() {
+        this.tracer.close();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write((content + "\n").getBytes(Ascii));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void setMaxFrequency(int policyIndex, int frequency) throws IOException {
+        write(new File(this.topology.getPolicyPath(policyIndex), "scaling_max_freq"), Integer.toString(frequency));
+    }
+
+    private void setTemperature(int millidegrees) throws IOException {
+        write(new File(this.thermalRoot, "thermal_zone0/temp"), Integer.toString(millidegrees));
+    }
+
+    private void sampleAfter(long millis) {
+        this.clock.advance(millis);
+        this.tracer.sample();
+    }
+
+    @Test
+    public void readsTheFilesOnceASample() throws Exception {
+        assertEquals(2, this.tracer.getPolicyCount());
+        assertEquals(1, this.tracer.getZoneCount());
+        assertEquals("cpu-0-0-usr", this.tracer.getZoneType(0));
+        assertEquals(600000, this.tracer.getHardwareMaxFrequency(0));
+        assertEquals(800000, this.tracer.getHardwareMaxFrequency(1));
+
+        CpuFrequencyTracer.Cursor cursor = this.tracer.newCursor();
+        sampleAfter(10);
+        write(new File(this.topology.getPolicyPath(0), "scaling_cur_freq"), "500000");
+        setTemperature(-5000);
+        sampleAfter(10);
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, this.tracer.drain(cursor, recorder));
+        assertArrayEquals(new long[]{10010, 300000, 40000}, recorder.samples.get(0));
+        assertArrayEquals(new long[]{10020, 500000, -5000}, recorder.samples.get(1));
+        assertEquals(0, this.tracer.drain(cursor, recorder));
+        assertEquals(0, cursor.getDroppedCount());
+    }
+
+    @Test
+    public void countsTheSamplesOfALappedCursor() {
+        CpuFrequencyTracer.Cursor cursor = this.tracer.newCursor();
+        for (int i = 0; i < 10; i++) {
+            sampleAfter(10);
+        }
+
+        Recorder recorder = new Recorder();
+        assertEquals(Capacity, this.tracer.drain(cursor, recorder));
+        assertArrayEquals(new long[]{10070, 10080, 10090, 10100}, recorder.timestamps());
+        assertEquals(10 - Capacity, cursor.getDroppedCount());
+
+        sampleAfter(10);
+        sampleAfter(10);
+        recorder = new Recorder();
+        assertEquals(2, this.tracer.drain(cursor, recorder));
+        assertArrayEquals(new long[]{10110, 10120}, recorder.timestamps());
+        assertEquals(10 - Capacity, cursor.getDroppedCount());
+    }
+
+    @Test
+    public void drainsEachCursorOnItsOwn() {
+        CpuFrequencyTracer.Cursor early = this.tracer.newCursor();
+        sampleAfter(10);
+        sampleAfter(10);
+        CpuFrequencyTracer.Cursor late = this.tracer.newCursor();
+        sampleAfter(10);
+
+        Recorder recorder = new Recorder();
+        assertEquals(1, this.tracer.drain(late, recorder));
+        assertEquals(3, this.tracer.drain(early, recorder));
+        assertArrayEquals(new long[]{10030, 10010, 10020, 10030}, recorder.timestamps());
+    }
+
+    @Test
+    public void opensDeepensAndEndsAThrottlingEpisode() throws Exception {
+        sampleAfter(10);
+        assertEquals(0, this.tracer.getEpisodes().length);
+
+        setMaxFrequency(0, 500000);
+        setTemperature(60000);
+        sampleAfter(10);
+        ThrottlingEpisode[] episodes = this.tracer.getEpisodes();
+        assertEquals(1, episodes.length);
+        assertTrue(episodes[0].isOngoing());
+        assertEquals(0, episodes[0].getPolicyIndex());
+        assertEquals(10020, episodes[0].getStartMillis());
+        assertEquals(600000, episodes[0].getHardwareMaxFrequency());
+        assertEquals(500000, episodes[0].getLowestMaxFrequency());
+        assertEquals(60000, episodes[0].getPeakTemperature());
+
+        setMaxFrequency(0, 400000);
+        setTemperature(70000);
+        sampleAfter(10);
+        // easing the cap or cooling down keeps the deepest point
+        setMaxFrequency(0, 450000);
+        setTemperature(50000);
+        sampleAfter(10);
+        episodes = this.tracer.getEpisodes();
+        assertEquals(1, episodes.length);
+        assertTrue(episodes[0].isOngoing());
+        assertEquals(10020, episodes[0].getStartMillis());
+        assertEquals(400000, episodes[0].getLowestMaxFrequency());
+        assertEquals(70000, episodes[0].getPeakTemperature());
+
+        setMaxFrequency(1, 700000);
+        setMaxFrequency(0, 600000);
+        sampleAfter(10);
+        episodes = this.tracer.getEpisodes();
+        assertEquals(2, episodes.length);
+        assertFalse(episodes[0].isOngoing());
+        assertEquals(10050, episodes[0].getEndMillis());
+        assertEquals(400000, episodes[0].getLowestMaxFrequency());
+        assertEquals(1, episodes[1].getPolicyIndex());
+        assertTrue(episodes[1].isOngoing());
+        assertEquals(700000, episodes[1].getLowestMaxFrequency());
+    }
+
+    @Test
+    public void endsAnEpisodeWhenTheCapCannotBeRead() throws Exception {
+        setMaxFrequency(0, 300000);
+        sampleAfter(10);
+        assertTrue(this.tracer.getEpisodes()[0].isOngoing());
+
+        // hotplug took the policy offline
+        write(new File(this.topology.getPolicyPath(0), "scaling_max_freq"), "");
+        sampleAfter(10);
+        ThrottlingEpisode[] episodes = this.tracer.getEpisodes();
+        assertEquals(1, episodes.length);
+        assertEquals(10020, episodes[0].getEndMillis());
+    }
+}
@@ -0,0 +1,245 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CpuTimeInStateMonitorTest {
+
+    private static final String BootId = "0b4ad1f6-3c5e-4f7a-9d41-6a0e2b8c7f15";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSysfs sysfs;
+    private ManualMonitorClock clock;
+    private CpuTimeInStateMonitor monitor;
+
+    @Before
+    public void setUp() throws Exception {
+        this.sysfs = FakeSysfs.create(this.folder.getRoot(), 2, 4, 5, 2);
+        this.sysfs.advance(100);
+        this.clock = new ManualMonitorClock(10000);
+        File bootId = this.folder.newFile("boot_id");
+        FileOutputStream out = new FileOutputStream(bootId);
+        try {
+            out.write((BootId + "\n").getBytes(Charset.forName("US-ASCII")));
+        } finally {
+            out.close();
+        }
+        this.monitor = new CpuTimeInStateMonitor(this.sysfs.getRoot(), this.clock, bootId.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.close();
+    }
+
+    @Test
+    public void discoversCoresAndPolicies() {
+        assertEquals(8, (int) this.monitor.getCpuCount());
+        CpuTopology topology = this.monitor.getTopology();
+        assertEquals(2, topology.getPolicyCount());
+        assertEquals(0, topology.getPolicyOfCpu(3));
+        assertEquals(1, topology.getPolicyOfCpu(4));
+    }
+
+    @Test
+    public void readsEveryPolicySortedDescending() throws Exception {
+        this.monitor.updateAllCpuTimeInState();
+        CpuTimeInStateSnapshot snapshot = this.monitor.getSnapshot();
+
+        assertEquals(10000, snapshot.getTimestamp());
+        for (int cpuIndex = 0; cpuIndex < 8; cpuIndex++) {
+            int cluster = cpuIndex / 4;
+            assertEquals(5, snapshot.getStateCount(cpuIndex));
+            for (int i = 0; i < 5; i++) {
+                assertEquals(this.sysfs.getFrequency(cluster, 4 - i), snapshot.getFrequency(cpuIndex, i));
+                assertEquals(this.sysfs.getDuration(cluster, 4 - i), snapshot.getDuration(cpuIndex, i));
+            }
+            assertEquals(2, snapshot.getIdleStateCount(cpuIndex));
+        }
+        // the cores of a policy share one row
+        assertSame(snapshot.durationRow(0), snapshot.durationRow(3));
+    }
+
+    @Test
+    public void keepsFrequencyRowWhileTableIsUnchanged() throws Exception {
+        this.monitor.updateAllCpuTimeInState();
+        CpuTimeInStateSnapshot first = this.monitor.getSnapshot();
+        this.sysfs.advance(10);
+        this.monitor.updateAllCpuTimeInState();
+        CpuTimeInStateSnapshot second = this.monitor.getSnapshot();
+
+        assertSame(first.frequencyRow(0), second.frequencyRow(0));
+        assertEquals(first.getEpoch(0), second.getEpoch(0));
+        assertEquals(first.getRawDuration(0, 0) + 50, second.getRawDuration(0, 0));
+    }
+
+    @Test
+    public void resetSubtractsBaselineUntilRemoved() throws Exception {
+        this.monitor.updateAllCpuTimeInState();
+        this.monitor.resetAllCpuIgnoredTimeInStates();
+        assertEquals(0, this.monitor.getSnapshot().getTotalDuration(0));
+
+        this.sysfs.advance(10);
+        this.monitor.updateAllCpuTimeInState();
+        CpuTimeInStateSnapshot snapshot = this.monitor.getSnapshot();
+        assertTrue(snapshot.hasBaseline(0));
+        // advance adds 10 ticks times the position of each of the 5 ascending states
+        assertEquals(10 * (1 + 2 + 3 + 4 + 5), snapshot.getTotalDuration(0));
+        assertEquals(50, snapshot.getDuration(0, 0));
+
+        this.monitor.removeAllCpuIgnoredTimeInState();
+        assertFalse(this.monitor.getSnapshot().hasBaseline(0));
+        assertEquals(this.sysfs.getDuration(0, 4), this.monitor.getSnapshot().getDuration(0, 0));
+    }
+
+    @Test
+    public void countersGoingBackwardsStartNewEpoch() throws Exception {
+        this.monitor.updateAllCpuTimeInState();
+        this.monitor.resetAllCpuIgnoredTimeInStates();
+        int epoch = this.monitor.getSnapshot().getEpoch(4);
+
+        this.sysfs.setDuration(1, 0, 0);
+        this.monitor.updateAllCpuTimeInState();
+        CpuTimeInStateSnapshot snapshot = this.monitor.getSnapshot();
+
+        assertNotEquals(epoch, snapshot.getEpoch(4));
+        assertFalse(snapshot.hasBaseline(4));
+        // the other policy keeps its epoch and baseline
+        assertTrue(snapshot.hasBaseline(0));
+    }
+
+    @Test
+    public void offlinePolicyKeepsItsCountersAndEpoch() throws Exception {
+        this.monitor.updateAllCpuTimeInState();
+        this.monitor.resetAllCpuIgnoredTimeInStates();
+        CpuTimeInStateSnapshot before = this.monitor.getSnapshot();
+
+        // an open handle still reads a deleted file, unlike one of a sysfs attribute
+        this.sysfs.removeTimeInState(1);
+        this.monitor.close();
+        this.monitor.updateAllCpuTimeInState();
+        CpuTimeInStateSnapshot offline = this.monitor.getSnapshot();
+        assertSame(before.frequencyRow(4), offline.frequencyRow(4));
+        assertSame(before.durationRow(4), offline.durationRow(4));
+        assertEquals(before.getEpoch(4), offline.getEpoch(4));
+        assertTrue(offline.hasBaseline(4));
+
+        this.sysfs.advance(10);
+        this.sysfs.restoreTimeInState(1);
+        this.monitor.updateAllCpuTimeInState();
+        CpuTimeInStateSnapshot online = this.monitor.getSnapshot();
+        assertEquals(before.getEpoch(4), online.getEpoch(4));
+        assertEquals(10 * (1 + 2 + 3 + 4 + 5), online.getTotalDuration(4));
+    }
+
+    @Test
+    public void offlineCoreKeepsItsIdleCounters() throws Exception {
+        this.sysfs.setIdle(5, 1, 7000, 3);
+        this.monitor.updateAllCpuTimeInState();
+        new File(this.sysfs.getRoot(), "cpu5/cpuidle/state1/time").delete();
+        this.monitor.close();
+        this.monitor.updateAllCpuTimeInState();
+
+        CpuTimeInStateSnapshot snapshot = this.monitor.getSnapshot();
+        assertEquals(2, snapshot.getIdleStateCount(5));
+        assertEquals(7000, snapshot.idleStates().getTime(5, 1));
+    }
+
+    @Test
+    public void readsTheBootId() {
+        assertEquals(BootId, this.monitor.getBootId());
+        CpuTimeInStateMonitor unknown = new CpuTimeInStateMonitor(this.sysfs.getRoot(), this.clock,
+                new File(this.folder.getRoot(), "missing").getPath());
+        assertNull(unknown.getBootId());
+        unknown.close();
+    }
+
+    @Test
+    public void restoresBaselinesOfTheSameBootOnly() throws Exception {
+        this.monitor.updateAllCpuTimeInState();
+        int[][] frequencies = {this.monitor.getSnapshot().frequencyRow(0), this.monitor.getSnapshot().frequencyRow(4)};
+        long[][] baselines = {this.monitor.getSnapshot().durationRow(0), null};
+
+        this.monitor.restoreBaselines(frequencies, baselines, null, null, "another boot");
+        assertFalse(this.monitor.getSnapshot().hasBaseline(0));
+
+        this.monitor.restoreBaselines(frequencies, baselines, null, null, BootId);
+        assertTrue(this.monitor.getSnapshot().hasBaseline(0));
+        assertFalse(this.monitor.getSnapshot().hasBaseline(4));
+        assertEquals(0, this.monitor.getSnapshot().getTotalDuration(0));
+    }
+
+    @Test
+    public void restoresIdleBaselinesBeforeTheFirstRefresh() throws Exception {
+        this.sysfs.setIdle(1, 0, 5000, 40);
+        this.sysfs.setIdle(1, 1, 9000, 7);
+        int[][] frequencies = new int[2][5];
+        for (int i = 0; i < 5; i++) {
+            frequencies[0][i] = this.sysfs.getFrequency(0, 4 - i);
+            frequencies[1][i] = this.sysfs.getFrequency(1, 4 - i);
+        }
+        long[][] idleTimes = new long[8][];
+        long[][] idleUsages = new long[8][];
+        idleTimes[1] = new long[]{4000, 8000};
+        idleUsages[1] = new long[]{30, 5};
+        // a row that does not match the states of its core is not applied
+        idleTimes[2] = new long[]{1};
+        idleUsages[2] = new long[]{1};
+
+        this.monitor.restoreBaselines(frequencies, new long[2][], idleTimes, idleUsages, BootId);
+        this.monitor.updateAllCpuTimeInState();
+        CpuTimeInStateSnapshot snapshot = this.monitor.getSnapshot();
+
+        assertEquals(1000, snapshot.getIdleTime(1, 0));
+        assertEquals(10, snapshot.getIdleUsage(1, 0));
+        assertEquals(1000, snapshot.getIdleTime(1, 1));
+        assertEquals(2, snapshot.getIdleUsage(1, 1));
+        assertEquals(0, snapshot.getIdleTime(0, 0));
+        assertEquals(2, snapshot.getIdleStateCount(2));
+    }
+
+    @Test(expected = CpuTimeInStateMonitor.CpuStateMonitorException.class)
+    public void failsWhenNoPolicyCanBeRead() throws Exception {
+        this.sysfs.removeTimeInState(0);
+        this.sysfs.removeTimeInState(1);
+        this.monitor.updateAllCpuTimeInState();
+    }
+
+    @Test
+    public void checkpointsMeasureBetweenRefreshes() throws Exception {
+        this.monitor.updateAllCpuTimeInState();
+        CpuTimeInStateCheckpoint start = this.monitor.mark("start");
+        this.sysfs.advance(3);
+        this.clock.advance(1000);
+        this.monitor.updateAllCpuTimeInState();
+        CpuTimeInStateCheckpoint end = this.monitor.mark("end");
+
+        assertTrue(end.isComparable(start, 5));
+        assertEquals(3 * (1 + 2 + 3 + 4 + 5), end.getTotalDurationSince(start, 5));
+        assertEquals(2, this.monitor.getCheckpointNames().size());
+    }
+}
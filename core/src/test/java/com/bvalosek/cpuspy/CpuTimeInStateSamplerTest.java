@@ -0,0 +1,170 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CpuTimeInStateSamplerTest {
+
+    private static final int ClusterCount = 2;
+    private static final int ClusterSize = 2;
+    private static final int StateCount = 4;
+
+    /**
+     * Raw slots the sampler keeps, about an hour of samples
+     */
+    private static final int Capacity = 100;
+
+    /**
+     * Three days of samples, 37 to 41 seconds apart so that they never line
+     * up with the minute or hour buckets
+     */
+    private static final int SampleCount = 3 * 24 * 3600 / 39;
+
+    private static final long Minute = 60 * 1000;
+    private static final long Hour = 60 * Minute;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CpuTimeInStateMonitor monitor;
+    private CpuTimeInStateSampler sampler;
+
+    /**
+     * Every sample recorded: when its interval ended, how long it was and
+     * the delta of every state of every policy
+     */
+    private final long[] timestamps = new long[SampleCount];
+    private final long[] lengths = new long[SampleCount];
+    private final long[][][] deltas = new long[SampleCount][ClusterCount][StateCount];
+
+    @Before
+    public void setUp() throws Exception {
+        FakeSysfs.create(this.folder.getRoot(), ClusterCount, ClusterSize, StateCount, 0);
+        this.monitor = new CpuTimeInStateMonitor(this.folder.getRoot(), new ManualMonitorClock(10000));
+        this.sampler = new CpuTimeInStateSampler(this.monitor, 39000, Capacity);
+
+        int cpuCount = ClusterCount * ClusterSize;
+        int[][] frequencyRows = new int[ClusterCount][StateCount];
+        for (int cluster = 0; cluster < ClusterCount; cluster++) {
+            for (int i = 0; i < StateCount; i++) {
+                frequencyRows[cluster][i] = 2000000 - 100000 * i;
+            }
+        }
+        long[] totals = new long[ClusterCount * StateCount];
+        long timestamp = 12345;
+        this.sampler.record(snapshot(timestamp, frequencyRows, totals, cpuCount));
+        for (int n = 0; n < SampleCount; n++) {
+            long length = 37000 + (n % 5) * 1000;
+            timestamp += length;
+            this.timestamps[n] = timestamp;
+            this.lengths[n] = length;
+            for (int cluster = 0; cluster < ClusterCount; cluster++) {
+                for (int i = 0; i < StateCount; i++) {
+                    long delta = (n * 7 + cluster * 5 + i * 13) % 11;
+                    this.deltas[n][cluster][i] = delta;
+                    totals[cluster * StateCount + i] += delta;
+                }
+            }
+            this.sampler.record(snapshot(timestamp, frequencyRows, totals, cpuCount));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.close();
+    }
+
+    private static CpuTimeInStateSnapshot snapshot(long timestamp, int[][] frequencyRows, long[] totals,
+                                                   int cpuCount) {
+        int[][] frequencies = new int[cpuCount][];
+        long[][] durations = new long[cpuCount][];
+        for (int cluster = 0; cluster < ClusterCount; cluster++) {
+            long[] row = new long[StateCount];
+            System.arraycopy(totals, cluster * StateCount, row, 0, StateCount);
+            for (int cpuIndex = cluster * ClusterSize; cpuIndex < (cluster + 1) * ClusterSize; cpuIndex++) {
+                // the sampler keeps its layout as long as the rows stay the same
+                frequencies[cpuIndex] = frequencyRows[cluster];
+                durations[cpuIndex] = row;
+            }
+        }
+        return new CpuTimeInStateSnapshot(timestamp, frequencies, durations, new long[cpuCount][],
+                new int[cpuCount], CpuIdleStates.empty(cpuCount), null);
+    }
+
+    /**
+     * Sum every sample that ended at or after fromMillis, the way the sampler
+     * should once its window is widened to start there
+     *
+     * @return the time covered by those samples
+     */
+    private long bruteForce(int cluster, long fromMillis, long[] residency) {
+        long covered = 0;
+        for (int n = 0; n < SampleCount; n++) {
+            if (this.timestamps[n] >= fromMillis) {
+                for (int i = 0; i < StateCount; i++) {
+                    residency[i] += this.deltas[n][cluster][i];
+                }
+                covered += this.lengths[n];
+            }
+        }
+        return covered;
+    }
+
+    private void assertWindow(long windowMillis, long fromMillis) {
+        for (int cluster = 0; cluster < ClusterCount; cluster++) {
+            long[] expected = new long[StateCount];
+            long expectedCovered = bruteForce(cluster, fromMillis, expected);
+            long[] residency = new long[StateCount];
+            long covered = this.sampler.getResidency(cluster * ClusterSize, windowMillis, residency);
+            assertArrayEquals("window of " + windowMillis, expected, residency);
+            assertEquals("window of " + windowMillis, expectedCovered, covered);
+            assertTrue(covered >= windowMillis);
+
+            // the cached answer is the same
+            long[] again = new long[StateCount];
+            assertEquals(covered, this.sampler.getResidency(cluster * ClusterSize + 1, windowMillis, again));
+            assertArrayEquals(residency, again);
+        }
+    }
+
+    private long cutoff(long windowMillis) {
+        return this.timestamps[SampleCount - 1] - windowMillis;
+    }
+
+    @Test
+    public void sumsWindowsWithinTheRawRingExactly() {
+        assertEquals(Capacity, this.sampler.getSampleCount());
+        for (long window : new long[]{39000, 10 * Minute, 45 * Minute, 60 * Minute}) {
+            assertWindow(window, cutoff(window) + 1);
+        }
+    }
+
+    @Test
+    public void widensWindowsWithinTheMinuteTierToTheMinute() {
+        for (long window : new long[]{90 * Minute + 17000, 150 * Minute, 170 * Minute + 3000}) {
+            assertWindow(window, cutoff(window) / Minute * Minute);
+        }
+    }
+
+    @Test
+    public void widensWindowsWithinTheHourTierToTheHour() {
+        for (long window : new long[]{4 * Hour, 7 * Hour + 59 * Minute, 30 * Hour + 1234, 60 * Hour}) {
+            assertWindow(window, cutoff(window) / Hour * Hour);
+        }
+    }
+}
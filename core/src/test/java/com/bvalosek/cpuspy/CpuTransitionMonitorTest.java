@@ -0,0 +1,149 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+public class CpuTransitionMonitorTest {
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CpuTopology topology;
+    private ManualMonitorClock clock;
+    private CpuTransitionMonitor monitor;
+
+    @Before
+    public void setUp() throws Exception {
+        FakeSysfs.create(this.folder.getRoot(), 2, 2, 2, 0);
+        this.topology = CpuTopology.discover(this.folder.getRoot());
+        this.clock = new ManualMonitorClock(10000);
+        writeTable(0, new int[]{300000, 400000}, new long[][]{{0, 3}, {2, 0}});
+        writeTable(1, new int[]{500000, 600000}, new long[][]{{0, 1}, {1, 0}});
+        this.monitor = new CpuTransitionMonitor(this.topology, this.clock);
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.close();
+    }
+
+    /**
+     * Write the trans_table and total_trans of policyIndex the way the
+     * kernel prints them, frequencies in the given order
+     */
+    private void writeTable(int policyIndex, int[] frequencies, long[][] counts) throws IOException {
+        StringBuilder table = new StringBuilder("   From  :    To\n         : ");
+        for (int frequency : frequencies) {
+            table.append(String.format("%9d ", frequency));
+        }
+        table.append('\n');
+        long total = 0;
+        for (int from = 0; from < frequencies.length; from++) {
+            table.append(String.format("%9d: ", frequencies[from]));
+            for (int to = 0; to < frequencies.length; to++) {
+                table.append(String.format("%9d ", counts[from][to]));
+                total += counts[from][to];
+            }
+            table.append('\n');
+        }
+        File stats = new File(this.topology.getPolicyStatsPath(policyIndex));
+        write(new File(stats, "trans_table"), table.toString());
+        write(new File(stats, "total_trans"), total + "\n");
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(Ascii));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void readsEveryPolicy() {
+        CpuTransitionSnapshot snapshot = this.monitor.update();
+        assertEquals(2, snapshot.getPolicyCount());
+        assertEquals(400000, snapshot.getFrequency(0, 0));
+        assertEquals(3, snapshot.getCount(0, snapshot.indexOf(0, 300000), snapshot.indexOf(0, 400000)));
+        assertEquals(5, snapshot.getTotalTransitions(0));
+        assertEquals(2, snapshot.getTotalTransitions(1));
+    }
+
+    @Test
+    public void takesDeltasBetweenSnapshots() throws Exception {
+        CpuTransitionSnapshot first = this.monitor.update();
+        this.clock.advance(2000);
+        writeTable(0, new int[]{300000, 400000}, new long[][]{{0, 7}, {6, 0}});
+        CpuTransitionSnapshot second = this.monitor.update();
+
+        CpuTransitionSnapshot delta = second.since(first);
+        assertEquals(2000, delta.getIntervalMillis());
+        assertEquals(4, delta.getCount(0, delta.indexOf(0, 300000), delta.indexOf(0, 400000)));
+        assertEquals(4, delta.getCount(0, delta.indexOf(0, 400000), delta.indexOf(0, 300000)));
+        assertEquals(8, delta.getTotalTransitions(0));
+        assertEquals(4.0, delta.getTransitionsPerSecond(0), 0);
+        assertEquals(0, delta.getTotalTransitions(1));
+
+        int[] from = new int[1];
+        int[] to = new int[1];
+        long[] transitions = new long[1];
+        assertEquals(1, delta.getHottestTransitions(0, from, to, transitions));
+        assertEquals(4, transitions[0]);
+    }
+
+    @Test
+    public void keepsTheCountsSinceAStatsReset() throws Exception {
+        CpuTransitionSnapshot first = this.monitor.update();
+        // hotplug reset the stats of policy 0 and then it switched once
+        writeTable(0, new int[]{300000, 400000}, new long[][]{{0, 1}, {0, 0}});
+        CpuTransitionSnapshot delta = this.monitor.update().since(first);
+
+        assertEquals(1, delta.getTotalTransitions(0));
+        assertEquals(1, delta.getCount(0, delta.indexOf(0, 300000), delta.indexOf(0, 400000)));
+        assertEquals(0, delta.getCount(0, delta.indexOf(0, 400000), delta.indexOf(0, 300000)));
+    }
+
+    @Test
+    public void keepsTheCountsOfAChangedTable() throws Exception {
+        CpuTransitionSnapshot first = this.monitor.update();
+        writeTable(1, new int[]{500000, 600000, 700000}, new long[][]{{0, 1, 0}, {0, 0, 1}, {1, 0, 0}});
+        CpuTransitionSnapshot delta = this.monitor.update().since(first);
+
+        assertEquals(3, delta.getStateCount(1));
+        assertEquals(3, delta.getTotalTransitions(1));
+        assertEquals(1, delta.getCount(1, delta.indexOf(1, 700000), delta.indexOf(1, 500000)));
+        assertEquals(0, delta.getTotalTransitions(0));
+    }
+
+    @Test
+    public void leavesUnreadablePoliciesWithoutStates() {
+        new File(this.topology.getPolicyStatsPath(1), "trans_table").delete();
+        this.monitor.close();
+        this.monitor = new CpuTransitionMonitor(this.topology, this.clock);
+
+        CpuTransitionSnapshot snapshot = this.monitor.update();
+        assertEquals(2, snapshot.getStateCount(0));
+        assertEquals(0, snapshot.getStateCount(1));
+    }
+}
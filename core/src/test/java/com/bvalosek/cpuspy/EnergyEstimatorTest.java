@@ -0,0 +1,196 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EnergyEstimatorTest {
+
+    /**
+     * 40 and 100 mW for the little cores at 300 and 600 MHz, 50 and 200 mW
+     * for the big ones at 500 and 800 MHz
+     */
+    private static final String Table = "# transcribed from power_profile.xml\n"
+            + "voltage 4.0\n"
+            + "policy0 300000 10mA\n"
+            + "policy0 600000 100mW\n"
+            + "\n"
+            + "cpu3 800000 200\n"
+            + "cpu2 500000 50mw\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSysfs sysfs;
+    private ManualMonitorClock clock;
+    private CpuTimeInStateMonitor monitor;
+    private CpuTopology topology;
+    private EnergyEstimator estimator;
+
+    @Before
+    public void setUp() throws Exception {
+        // cluster 0 runs 300-600 MHz, cluster 1 500-800 MHz, one idle state
+        this.sysfs = FakeSysfs.create(this.folder.getRoot(), 2, 2, 4, 1);
+        this.clock = new ManualMonitorClock(10000);
+        this.monitor = new CpuTimeInStateMonitor(this.sysfs.getRoot(), this.clock);
+        this.topology = this.monitor.getTopology();
+        this.estimator = new EnergyEstimator(EnergyModel.fromTable(this.topology, new StringReader(Table)),
+                this.topology);
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.close();
+    }
+
+    /**
+     * Let a second pass, with each cluster's cores at its top and bottom
+     * frequency for ticks more, and price the new snapshot
+     */
+    private void run(long littleTicks, long bigTicks) throws Exception {
+        this.clock.advance(1000);
+        this.sysfs.setDuration(0, 3, this.sysfs.getDuration(0, 3) + littleTicks);
+        this.sysfs.setDuration(1, 0, this.sysfs.getDuration(1, 0) + bigTicks);
+        update();
+    }
+
+    private void update() throws Exception {
+        this.monitor.updateAllCpuTimeInState();
+        this.estimator.update(this.monitor.getSnapshot());
+    }
+
+    @Test
+    public void parsesMilliwattsAndMilliamps() throws IOException {
+        EnergyModel model = this.estimator.getModel();
+        assertEquals(EnergyModel.Source.Table, model.getSource());
+        assertTrue(model.isAbsolute());
+        assertEquals(2, model.getOppCount(0));
+        assertEquals(300000, model.getOppFrequency(0, 0));
+        assertEquals(40, model.getPower(0, 300000), 1e-9);
+        assertEquals(100, model.getPower(0, 600000), 1e-9);
+        // sorted, and cpu3 named the policy of cores 2 and 3
+        assertEquals(500000, model.getOppFrequency(1, 0));
+        assertEquals(200, model.getPower(1, 800000), 1e-9);
+
+        // interpolated between OPPs, clamped outside them, nothing in deep sleep
+        assertEquals(60, model.getPower(0, 400000), 1e-9);
+        assertEquals(100, model.getPower(1, 600000), 1e-9);
+        assertEquals(40, model.getPower(0, 200000), 1e-9);
+        assertEquals(200, model.getPower(1, 900000), 1e-9);
+        assertEquals(0, model.getPower(0, 0), 0);
+
+        model = EnergyModel.fromTable(this.topology, new StringReader(
+                "policy2 500000 100mA\npolicy2 500000 10MA\n"));
+        assertEquals(0, model.getOppCount(0));
+        assertEquals(1, model.getOppCount(1));
+        assertEquals(10 * EnergyModel.DefaultVoltage, model.getPower(1, 500000), 1e-9);
+    }
+
+    @Test
+    public void rejectsMalformedTables() {
+        String[] tables = {"policy1 300000 10\n", "cpu4 300000 10\n", "policy0 300000\n",
+                "policy0 300000 10mJ\n", "voltage high\n"};
+        for (String table : tables) {
+            try {
+                EnergyModel.fromTable(this.topology, new StringReader(table));
+                fail(table);
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("line 1: "));
+            }
+        }
+    }
+
+    @Test
+    public void pricesOnlyTheTimeSinceThePreviousSnapshot() throws Exception {
+        update();
+        assertEquals(1, this.estimator.getUpdateCount());
+        assertEquals(0, this.estimator.getIntervalMillis());
+        assertEquals(0, this.estimator.getTotalEnergy(this.estimator.getDeviceScope()), 0);
+
+        // a second at 600 MHz is 100 mJ a little core, at 500 MHz 50 mJ a big one
+        run(100, 100);
+        assertEquals(1000, this.estimator.getIntervalMillis());
+        assertEquals(100, this.estimator.getIntervalEnergy(this.estimator.getCpuScope(1)), 1e-9);
+        assertEquals(100, this.estimator.getIntervalPower(this.estimator.getCpuScope(1)), 1e-9);
+        assertEquals(50, this.estimator.getIntervalEnergy(this.estimator.getCpuScope(2)), 1e-9);
+        assertEquals(200, this.estimator.getIntervalEnergy(this.estimator.getClusterScope(0)), 1e-9);
+        assertEquals(100, this.estimator.getIntervalEnergy(this.estimator.getClusterScope(1)), 1e-9);
+        assertEquals(300, this.estimator.getTotalEnergy(this.estimator.getDeviceScope()), 1e-9);
+
+        run(50, 0);
+        assertEquals(100, this.estimator.getIntervalEnergy(this.estimator.getDeviceScope()), 1e-9);
+        assertEquals(400, this.estimator.getTotalEnergy(this.estimator.getDeviceScope()), 1e-9);
+        assertEquals(150, this.estimator.getTotalEnergy(this.estimator.getCpuScope(0)), 1e-9);
+        assertEquals(100, this.estimator.getTotalEnergy(this.estimator.getClusterScope(1)), 1e-9);
+
+        this.estimator.reset();
+        assertEquals(0, this.estimator.getTotalEnergy(this.estimator.getDeviceScope()), 0);
+        run(0, 100);
+        assertEquals(100, this.estimator.getTotalEnergy(this.estimator.getDeviceScope()), 1e-9);
+        assertEquals(4, this.estimator.getUpdateCount());
+    }
+
+    @Test
+    public void ignoresOlderSnapshots() throws Exception {
+        update();
+        CpuTimeInStateSnapshot first = this.monitor.getSnapshot();
+        run(100, 100);
+        this.estimator.update(first);
+        assertEquals(2, this.estimator.getUpdateCount());
+        assertEquals(300, this.estimator.getTotalEnergy(this.estimator.getDeviceScope()), 1e-9);
+    }
+
+    @Test
+    public void skipsCoresWhoseCountersWereReset() throws Exception {
+        update();
+        run(100, 100);
+
+        // the little cluster's counters start over, after which its 300 MHz
+        // counter reads higher than before, which is not time spent since
+        this.clock.advance(1000);
+        this.sysfs.setDuration(0, 3, 0);
+        this.sysfs.setDuration(0, 0, 500);
+        this.sysfs.setDuration(1, 0, this.sysfs.getDuration(1, 0) + 100);
+        update();
+        assertEquals(0, this.estimator.getIntervalEnergy(this.estimator.getClusterScope(0)), 0);
+        assertEquals(100, this.estimator.getIntervalEnergy(this.estimator.getDeviceScope()), 1e-9);
+
+        // the new epoch is priced from its first snapshot on
+        run(100, 0);
+        assertEquals(200, this.estimator.getIntervalEnergy(this.estimator.getClusterScope(0)), 1e-9);
+        assertEquals(400, this.estimator.getTotalEnergy(this.estimator.getClusterScope(0)), 1e-9);
+    }
+
+    @Test
+    public void takesTheIdleShareOffEachCore() throws Exception {
+        update();
+        // core 0 idled for 400 of the 1000 ms its policy spent at 600 MHz
+        this.sysfs.setIdle(0, 0, 400000, 20);
+        // core 2 reports more idle time than the interval, so costs nothing
+        this.sysfs.setIdle(2, 0, 2000000, 20);
+        run(100, 100);
+
+        assertEquals(60, this.estimator.getIntervalEnergy(this.estimator.getCpuScope(0)), 1e-9);
+        assertEquals(100, this.estimator.getIntervalEnergy(this.estimator.getCpuScope(1)), 1e-9);
+        assertEquals(0, this.estimator.getIntervalEnergy(this.estimator.getCpuScope(2)), 1e-9);
+        assertEquals(50, this.estimator.getIntervalEnergy(this.estimator.getCpuScope(3)), 1e-9);
+        assertEquals(210, this.estimator.getIntervalEnergy(this.estimator.getDeviceScope()), 1e-9);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * FakeSysfs lays out a tree like /sys/devices/system/cpu in a directory, so
+ * the monitor can be run against it on a plain JVM. Every cluster is a
+ * cpufreq policy of clusterSize cores with its own frequency table, and
+ * every core has the same cpuidle states. The counters start at zero and
+ * only change when the test writes them. The benchmarks lay out their trees
+ * with it too
+ */
+class FakeSysfs {
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    private final File root;
+    private final int clusterSize;
+    private final int[][] frequencies;
+    private final long[][] durations;
+    private final int idleStateCount;
+
+    /**
+     * @param frequencies frequency table of every cluster in kHz, ascending as
+     *                    the kernel lists them
+     */
+    FakeSysfs(File root, int clusterSize, int[][] frequencies, int idleStateCount) throws IOException {
+        this.root = root;
+        this.clusterSize = clusterSize;
+        this.frequencies = frequencies;
+        this.durations = new long[frequencies.length][];
+        this.idleStateCount = idleStateCount;
+
+        int cpuCount = getCpuCount();
+        write("possible", "0-" + (cpuCount - 1));
+        write("online", "0-" + (cpuCount - 1));
+        for (int cluster = 0; cluster < frequencies.length; cluster++) {
+            int firstCpu = cluster * clusterSize;
+            StringBuilder related = new StringBuilder();
+            for (int cpu = firstCpu; cpu < firstCpu + clusterSize; cpu++) {
+                related.append(cpu == firstCpu ? "" : " ").append(cpu);
+            }
+            String policy = "cpufreq/policy" + firstCpu + "/";
+            int[] table = frequencies[cluster];
+            write(policy + "related_cpus", related.toString());
+            write(policy + "cpuinfo_max_freq", Integer.toString(table[table.length - 1]));
+            write(policy + "scaling_max_freq", Integer.toString(table[table.length - 1]));
+            write(policy + "scaling_cur_freq", Integer.toString(table[0]));
+            this.durations[cluster] = new long[table.length];
+            writeTimeInState(cluster);
+        }
+        for (int cpu = 0; cpu < cpuCount; cpu++) {
+            write("cpu" + cpu + "/cpu_capacity", Integer.toString(1024 * (cpu / clusterSize + 1) / frequencies.length));
+            for (int state = 0; state < idleStateCount; state++) {
+                String directory = "cpu" + cpu + "/cpuidle/state" + state + "/";
+                write(directory + "name", "C" + state);
+                write(directory + "disable", "0");
+                setIdle(cpu, state, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * @return a tree of clusterCount clusters of clusterSize cores, each with
+     * stateCount frequencies from 300 MHz up in steps of 100 MHz
+     */
+    static FakeSysfs create(File root, int clusterCount, int clusterSize, int stateCount,
+                            int idleStateCount) throws IOException {
+        int[][] frequencies = new int[clusterCount][stateCount];
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            for (int i = 0; i < stateCount; i++) {
+                frequencies[cluster][i] = 300000 + 100000 * i + 200000 * cluster;
+            }
+        }
+        return new FakeSysfs(root, clusterSize, frequencies, idleStateCount);
+    }
+
+    File getRoot() {
+        return this.root;
+    }
+
+    int getCpuCount() {
+        return this.frequencies.length * this.clusterSize;
+    }
+
+    int getClusterCount() {
+        return this.frequencies.length;
+    }
+
+    int getFrequency(int cluster, int stateIndex) {
+        return this.frequencies[cluster][stateIndex];
+    }
+
+    /**
+     * Add ticks in 10ms units to every state of every cluster, more to the
+     * higher frequencies, and write the time_in_state files
+     */
+    void advance(long ticks) throws IOException {
+        for (int cluster = 0; cluster < this.frequencies.length; cluster++) {
+            for (int i = 0; i < this.durations[cluster].length; i++) {
+                this.durations[cluster][i] += ticks * (i + 1);
+            }
+            writeTimeInState(cluster);
+        }
+    }
+
+    void setDuration(int cluster, int stateIndex, long duration) throws IOException {
+        this.durations[cluster][stateIndex] = duration;
+        writeTimeInState(cluster);
+    }
+
+    long getDuration(int cluster, int stateIndex) {
+        return this.durations[cluster][stateIndex];
+    }
+
+    File timeInStateFile(int cluster) {
+        return new File(this.root, "cpufreq/policy" + cluster * this.clusterSize + "/stats/time_in_state");
+    }
+
+    /**
+     * Take the time_in_state file of cluster away, as when its cores go offline
+     */
+    void removeTimeInState(int cluster) {
+        timeInStateFile(cluster).delete();
+    }
+
+    /**
+     * Put the time_in_state file of cluster back with its last counters
+     */
+    void restoreTimeInState(int cluster) throws IOException {
+        writeTimeInState(cluster);
+    }
+
+    void setIdle(int cpu, int state, long timeMicros, long usage) throws IOException {
+        String directory = "cpu" + cpu + "/cpuidle/state" + state + "/";
+        write(directory + "time", Long.toString(timeMicros));
+        write(directory + "usage", Long.toString(usage));
+    }
+
+    int getIdleStateCount() {
+        return this.idleStateCount;
+    }
+
+    /**
+     * @return the content of the time_in_state file of cluster
+     */
+    String timeInState(int cluster) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < this.frequencies[cluster].length; i++) {
+            content.append(this.frequencies[cluster][i]).append(' ')
+                    .append(this.durations[cluster][i]).append('\n');
+        }
+        return content.toString();
+    }
+
+    /**
+     * Delete the whole tree, for users without a temporary folder rule
+     */
+    void delete() {
+        delete(this.root);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void writeTimeInState(int cluster) throws IOException {
+        write("cpufreq/policy" + cluster * this.clusterSize + "/stats/time_in_state", timeInState(cluster));
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(this.root, path);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write((content + (content.endsWith("\n") ? "" : "\n")).getBytes(Ascii));
+        } finally {
+            out.close();
+        }
+    }
+}
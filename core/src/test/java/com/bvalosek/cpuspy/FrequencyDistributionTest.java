@@ -0,0 +1,152 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FrequencyDistributionTest {
+
+    /**
+     * More frequencies than a distribution starts out with room for
+     */
+    private static final int StateCount = 20;
+
+    /**
+     * @return states from 300 MHz up in steps of step MHz, count of them, each
+     * with duration, listed descending as they are after sorting
+     */
+    private static TimeInStateBuffer states(int count, int step, long duration) {
+        TimeInStateBuffer states = new TimeInStateBuffer();
+        for (int i = count - 1; i >= 0; i--) {
+            states.add(300000 + step * 1000 * i, duration);
+        }
+        return states;
+    }
+
+    private static void assertSameDistribution(FrequencyDistribution expected, FrequencyDistribution actual) {
+        assertEquals(expected.getStateCount(), actual.getStateCount());
+        assertEquals(expected.getDeviceCount(), actual.getDeviceCount());
+        for (int i = 0; i < expected.getStateCount(); i++) {
+            assertEquals(expected.getFrequency(i), actual.getFrequency(i));
+            assertEquals(expected.getDuration(i), actual.getDuration(i));
+        }
+        for (int devicePercentile : new int[]{50, 90, 99}) {
+            for (int percent : new int[]{1, 50, 100}) {
+                assertEquals(expected.getDevicePercentileFrequency(devicePercentile, percent),
+                        actual.getDevicePercentileFrequency(devicePercentile, percent));
+            }
+        }
+    }
+
+    @Test
+    public void keepsEveryDurationPastTheInitialCapacity() {
+        FrequencyDistribution distribution = new FrequencyDistribution();
+        distribution.add(states(StateCount, 100, 100));
+
+        assertEquals(StateCount, distribution.getStateCount());
+        assertEquals(StateCount * 100, distribution.getTotalDuration());
+        for (int i = 0; i < StateCount; i++) {
+            assertEquals(300000 + 100000 * i, distribution.getFrequency(i));
+            assertEquals(100, distribution.getDuration(i));
+        }
+        // 1000 of 2000 units are reached at the tenth frequency from the bottom
+        assertEquals(1200000, distribution.getPercentileFrequency(50));
+        assertEquals(1200000, distribution.getDevicePercentileFrequency(50, 50));
+        assertEquals(2000000, distribution.getDevicePercentileFrequency(90, 50));
+        assertEquals(2200000, distribution.getDevicePercentileFrequency(99, 50));
+    }
+
+    @Test
+    public void countsDevicePercentilesOfGrownStates() {
+        FrequencyDistribution distribution = new FrequencyDistribution();
+        for (int device = 0; device < StateCount; device++) {
+            // every device spends all its time at a different frequency
+            TimeInStateBuffer states = new TimeInStateBuffer();
+            for (int i = StateCount - 1; i >= 0; i--) {
+                states.add(300000 + 100000 * i, i == device ? 10 : 0);
+            }
+            distribution.add(states);
+        }
+        assertEquals(StateCount, distribution.getDeviceCount());
+        assertEquals(300000, distribution.getDevicePercentileFrequency(50, 1));
+        assertEquals(1200000, distribution.getDevicePercentileFrequency(50, 50));
+        assertEquals(2200000, distribution.getDevicePercentileFrequency(99, 100));
+    }
+
+    @Test
+    public void mergesTheSameInEitherOrder() {
+        // interleaved tables, so merging inserts frequencies between and past the existing ones
+        FrequencyDistribution a = new FrequencyDistribution();
+        a.add(states(StateCount, 100, 7));
+        FrequencyDistribution b = new FrequencyDistribution();
+        b.add(states(StateCount, 50, 3));
+        b.add(states(3, 25, 11));
+        a.merge(b);
+
+        FrequencyDistribution c = new FrequencyDistribution();
+        c.add(states(StateCount, 50, 3));
+        c.add(states(3, 25, 11));
+        FrequencyDistribution d = new FrequencyDistribution();
+        d.add(states(StateCount, 100, 7));
+        c.merge(d);
+
+        FrequencyDistribution direct = new FrequencyDistribution();
+        direct.add(states(StateCount, 100, 7));
+        direct.add(states(StateCount, 50, 3));
+        direct.add(states(3, 25, 11));
+
+        assertSameDistribution(direct, a);
+        assertSameDistribution(direct, c);
+        assertEquals(3, a.getDeviceCount());
+        assertEquals(StateCount * 7 + StateCount * 3 + 3 * 11, a.getTotalDuration());
+    }
+
+    @Test
+    public void mergesFleetResidenciesTheSameInEitherOrder() {
+        FleetResidency a = new FleetResidency();
+        a.addCapture("soc-a");
+        a.add("soc-a", 0, states(StateCount, 100, 5));
+        a.add("soc-a", 3, states(StateCount, 50, 5));
+        a.addFailedCapture();
+        FleetResidency b = new FleetResidency();
+        b.addCapture("soc-a");
+        b.add("soc-a", 1, states(StateCount, 100, 2));
+        b.add("soc-a", 3, states(StateCount, 100, 2));
+        b.addCapture("soc-b");
+        b.add("soc-b", 0, states(4, 100, 1));
+
+        FleetResidency ab = new FleetResidency();
+        ab.merge(a);
+        ab.merge(b);
+        FleetResidency ba = new FleetResidency();
+        ba.merge(b);
+        ba.merge(a);
+
+        for (FleetResidency merged : new FleetResidency[]{ab, ba}) {
+            assertEquals(2, merged.getSocs().size());
+            assertEquals(2, merged.getCaptureCount("soc-a"));
+            assertEquals(1, merged.getCaptureCount("soc-b"));
+            assertEquals(1, merged.getFailedCaptureCount());
+            assertEquals(4, merged.getCoreCount("soc-a"));
+            assertNull(merged.getDistribution("soc-a", 2));
+            FrequencyDistribution core3 = merged.getDistribution("soc-a", 3);
+            assertEquals(StateCount * 5 + StateCount * 2, core3.getTotalDuration());
+            assertEquals(2, core3.getDeviceCount());
+        }
+        for (int cpuIndex = 0; cpuIndex < 4; cpuIndex++) {
+            FrequencyDistribution expected = ab.getDistribution("soc-a", cpuIndex);
+            if (expected != null) {
+                assertSameDistribution(expected, ba.getDistribution("soc-a", cpuIndex));
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrequencyStatisticsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSysfs sysfs;
+    private ManualMonitorClock clock;
+    private CpuTimeInStateMonitor monitor;
+    private CpuTopology topology;
+    private FrequencyStatistics statistics;
+
+    @Before
+    public void setUp() throws Exception {
+        // cluster 0 runs 300-600 MHz, cluster 1 500-800 MHz, no cpuidle
+        this.sysfs = FakeSysfs.create(this.folder.getRoot(), 2, 2, 4, 0);
+        this.sysfs.setDuration(0, 0, 50);
+        this.sysfs.setDuration(0, 1, 30);
+        this.sysfs.setDuration(0, 2, 15);
+        this.sysfs.setDuration(0, 3, 5);
+        this.sysfs.setDuration(1, 3, 100);
+        this.clock = new ManualMonitorClock(10000);
+        this.monitor = new CpuTimeInStateMonitor(this.sysfs.getRoot(), this.clock);
+        this.topology = this.monitor.getTopology();
+        this.statistics = new FrequencyStatistics(this.topology);
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.close();
+    }
+
+    private CpuTimeInStateSnapshot read() throws Exception {
+        this.monitor.updateAllCpuTimeInState();
+        return this.monitor.getSnapshot();
+    }
+
+    @Test
+    public void summarizesEveryCore() throws Exception {
+        this.statistics.update(read());
+
+        for (int cpuIndex = 0; cpuIndex < 2; cpuIndex++) {
+            int scope = this.statistics.getCpuScope(cpuIndex);
+            assertEquals(100, this.statistics.getActiveDuration(scope));
+            assertEquals(375000, this.statistics.getMeanFrequency(scope), 1e-6);
+            assertEquals(300000, this.statistics.getP50Frequency(scope));
+            assertEquals(500000, this.statistics.getP90Frequency(scope));
+            assertEquals(600000, this.statistics.getP99Frequency(scope));
+            assertEquals(0.05, this.statistics.getMaxShare(scope), 1e-9);
+        }
+        int scope = this.statistics.getCpuScope(3);
+        assertEquals(800000, this.statistics.getMeanFrequency(scope), 1e-6);
+        assertEquals(800000, this.statistics.getP50Frequency(scope));
+        assertEquals(800000, this.statistics.getP99Frequency(scope));
+        assertEquals(1.0, this.statistics.getMaxShare(scope), 1e-9);
+    }
+
+    @Test
+    public void weighsEveryCoreOfAClusterAndTheDevice() throws Exception {
+        this.statistics.update(read());
+
+        int cluster = this.statistics.getClusterScope(0);
+        assertEquals(200, this.statistics.getActiveDuration(cluster));
+        assertEquals(375000, this.statistics.getMeanFrequency(cluster), 1e-6);
+        assertEquals(300000, this.statistics.getP50Frequency(cluster));
+        assertEquals(500000, this.statistics.getP90Frequency(cluster));
+        assertEquals(600000, this.statistics.getP99Frequency(cluster));
+        assertEquals(0.05, this.statistics.getMaxShare(cluster), 1e-9);
+
+        // 100 ticks at 300, 60 at 400, 30 at 500, 10 at 600 and 200 at 800 MHz
+        int device = this.statistics.getDeviceScope();
+        assertEquals(400, this.statistics.getActiveDuration(device));
+        assertEquals(587500, this.statistics.getMeanFrequency(device), 1e-6);
+        assertEquals(600000, this.statistics.getP50Frequency(device));
+        assertEquals(800000, this.statistics.getP90Frequency(device));
+        assertEquals(800000, this.statistics.getP99Frequency(device));
+        // each core's own highest frequency: 600 MHz for 10 ticks, 800 MHz for 200
+        assertEquals(210.0 / 400, this.statistics.getMaxShare(device), 1e-9);
+
+        // the estimated deep sleep is there from the start, still empty
+        assertEquals(7, this.statistics.getDeviceStateCount());
+        assertEquals(800000, this.statistics.getDeviceFrequency(0));
+        assertEquals(200, this.statistics.getDeviceDuration(0));
+        assertEquals(300000, this.statistics.getDeviceFrequency(5));
+        assertEquals(100, this.statistics.getDeviceDuration(5));
+        assertEquals(0, this.statistics.getDeviceFrequency(6));
+        assertEquals(0, this.statistics.getDeviceDuration(6));
+    }
+
+    @Test
+    public void leavesDeepSleepOutOfTheFigures() throws Exception {
+        this.clock.suspend(10000);
+        CpuTimeInStateSnapshot snapshot = read();
+        assertEquals(0, snapshot.getFrequency(0, snapshot.getStateCount(0) - 1));
+        this.statistics.update(snapshot);
+
+        int cpu = this.statistics.getCpuScope(0);
+        assertEquals(100, this.statistics.getActiveDuration(cpu));
+        assertEquals(375000, this.statistics.getMeanFrequency(cpu), 1e-6);
+        assertEquals(300000, this.statistics.getP50Frequency(cpu));
+        assertEquals(0.05, this.statistics.getMaxShare(cpu), 1e-9);
+        assertEquals(200, this.statistics.getActiveDuration(this.statistics.getClusterScope(0)));
+
+        int device = this.statistics.getDeviceScope();
+        assertEquals(400, this.statistics.getActiveDuration(device));
+        assertEquals(587500, this.statistics.getMeanFrequency(device), 1e-6);
+        assertEquals(600000, this.statistics.getP50Frequency(device));
+        // kept in the histogram though, 1000 ticks on each of the four cores
+        assertEquals(7, this.statistics.getDeviceStateCount());
+        assertEquals(0, this.statistics.getDeviceFrequency(6));
+        assertEquals(4000, this.statistics.getDeviceDuration(6));
+    }
+
+    @Test
+    public void leavesACoreWithItsOwnRowOutOfItsCluster() throws Exception {
+        CpuTimeInStateSnapshot read = read();
+        int cpuCount = read.getCpuCount();
+        int[][] frequencies = new int[cpuCount][];
+        long[][] durations = new long[cpuCount][];
+        for (int cpuIndex = 0; cpuIndex < cpuCount; cpuIndex++) {
+            frequencies[cpuIndex] = read.frequencyRow(cpuIndex);
+            durations[cpuIndex] = read.durationRow(cpuIndex);
+        }
+        // core 1 came back online with a table of its own
+        frequencies[1] = new int[]{900000, 300000};
+        durations[1] = new long[]{40, 60};
+        this.statistics.update(new CpuTimeInStateSnapshot(read.getTimestamp(), frequencies, durations,
+                new long[cpuCount][], new int[cpuCount], CpuIdleStates.empty(cpuCount), null));
+
+        int core = this.statistics.getCpuScope(1);
+        assertEquals(100, this.statistics.getActiveDuration(core));
+        assertEquals(540000, this.statistics.getMeanFrequency(core), 1e-6);
+        assertEquals(300000, this.statistics.getP50Frequency(core));
+        assertEquals(900000, this.statistics.getP90Frequency(core));
+        assertEquals(0.4, this.statistics.getMaxShare(core), 1e-9);
+
+        // its cluster is its first core alone
+        int cluster = this.statistics.getClusterScope(0);
+        assertEquals(100, this.statistics.getActiveDuration(cluster));
+        assertEquals(375000, this.statistics.getMeanFrequency(cluster), 1e-6);
+        assertEquals(0.05, this.statistics.getMaxShare(cluster), 1e-9);
+
+        // the device still counts it
+        int device = this.statistics.getDeviceScope();
+        assertEquals(400, this.statistics.getActiveDuration(device));
+        assertEquals(900000, this.statistics.getDeviceFrequency(0));
+        assertEquals(40, this.statistics.getDeviceDuration(0));
+        assertEquals(245.0 / 400, this.statistics.getMaxShare(device), 1e-9);
+    }
+}
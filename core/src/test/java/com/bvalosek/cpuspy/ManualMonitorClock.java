@@ -0,0 +1,43 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+/**
+ * MonitorClock that only moves when the test moves it
+ */
+class ManualMonitorClock implements MonitorClock {
+
+    private long elapsedRealtime;
+    private long uptimeMillis;
+
+    ManualMonitorClock(long millis) {
+        this.elapsedRealtime = millis;
+        this.uptimeMillis = millis;
+    }
+
+    void advance(long millis) {
+        this.elapsedRealtime += millis;
+        this.uptimeMillis += millis;
+    }
+
+    /**
+     * Let millis pass in suspend, which uptime does not count
+     */
+    void suspend(long millis) {
+        this.elapsedRealtime += millis;
+    }
+
+    public long elapsedRealtime() {
+        return this.elapsedRealtime;
+    }
+
+    public long uptimeMillis() {
+        return this.uptimeMillis;
+    }
+}
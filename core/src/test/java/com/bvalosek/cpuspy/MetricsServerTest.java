@@ -0,0 +1,163 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CpuTimeInStateMonitor monitor;
+    private MetricsServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        FakeSysfs sysfs = FakeSysfs.create(this.folder.getRoot(), 2, 2, 3, 2);
+        sysfs.advance(100);
+        sysfs.setIdle(0, 1, 2500000, 12);
+        this.monitor = new CpuTimeInStateMonitor(sysfs.getRoot(), new ManualMonitorClock(10000));
+        this.monitor.updateAllCpuTimeInState();
+        this.server = new MetricsServer(this.monitor, InetAddress.getLoopbackAddress(), 0);
+        this.server.start();
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop();
+        this.monitor.close();
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(),
+                this.server.getPort(), path);
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        try {
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void servesOpenMetricsOnAnEphemeralPort() throws Exception {
+        assertTrue(this.server.getPort() > 0);
+        HttpURLConnection connection = get("/metrics");
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("application/openmetrics-text"));
+        String body = read(connection.getInputStream());
+
+        assertTrue(body.endsWith("# EOF\n"));
+        assertEquals(body.length() - "# EOF\n".length(), body.indexOf("# EOF"));
+        assertTrue(body.contains("cpuspy_cpu_frequency_residency_seconds_total{cpu=\"0\""));
+        assertTrue(body.contains("cpuspy_cpu_idle_entries_total{cpu=\"0\""));
+        assertTrue(body.contains("cpuspy_monitor_refreshes_total 1\n"));
+    }
+
+    @Test
+    public void describesEveryFamilyAndSuffixesCounters() throws Exception {
+        String body = read(get("/metrics?name=ignored").getInputStream());
+
+        Map<String, String> types = new HashMap<>();
+        Set<String> helps = new HashSet<>();
+        for (String line : body.split("\n")) {
+            if (line.startsWith("# TYPE ")) {
+                String[] fields = line.split(" ");
+                assertEquals(line, 4, fields.length);
+                types.put(fields[2], fields[3]);
+            } else if (line.startsWith("# HELP ")) {
+                String family = line.split(" ")[2];
+                assertTrue("HELP before TYPE: " + line, types.containsKey(family));
+                helps.add(family);
+            } else if (!line.startsWith("#")) {
+                String name = line.split("[{ ]")[0];
+                String family = name.endsWith("_total") ? name.substring(0, name.length() - 6) : name;
+                assertTrue("sample without TYPE: " + line, types.containsKey(family));
+                assertEquals(line, "counter".equals(types.get(family)), name.endsWith("_total"));
+            }
+        }
+        assertFalse(types.isEmpty());
+        assertEquals(types.keySet(), helps);
+    }
+
+    @Test
+    public void rejectsOtherPathsAndMethods() throws Exception {
+        assertEquals(404, get("/").getResponseCode());
+        assertEquals(404, get("/metricsx").getResponseCode());
+        HttpURLConnection delete = get("/metrics");
+        delete.setRequestMethod("DELETE");
+        assertEquals(405, delete.getResponseCode());
+    }
+
+    @Test
+    public void stopsListening() throws Exception {
+        int port = this.server.getPort();
+        this.server.stop();
+        assertEquals(-1, this.server.getPort());
+        assertFalse(this.server.isRunning());
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            // a client handed the freed ephemeral port connects to itself, and
+            // another process may take the port, but neither serves our metrics
+            assertFalse("still serving on " + port, scrape(socket).contains("cpuspy_"));
+        } catch (IOException e) {
+            // refused
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return whatever the peer of socket answers to a scrape within half a
+     * second
+     */
+    private static String scrape(Socket socket) throws IOException {
+        socket.setSoTimeout(500);
+        socket.getOutputStream().write("GET /metrics HTTP/1.0\r\n\r\n".getBytes("US-ASCII"));
+        try {
+            return read(socket.getInputStream());
+        } catch (SocketTimeoutException e) {
+            // a silent peer
+            return "";
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MonitorInstrumentationTest {
+
+    /**
+     * Counts 100 more bytes every time it is asked
+     */
+    private static class FakeAllocationCounter implements MonitorInstrumentation.AllocationCounter {
+        private final boolean threadLocal;
+        private long allocated = 0;
+
+        FakeAllocationCounter(boolean threadLocal) {
+            this.threadLocal = threadLocal;
+        }
+
+        public long getAllocatedBytes() {
+            this.allocated += 100;
+            return this.allocated;
+        }
+
+        public boolean isThreadLocal() {
+            return this.threadLocal;
+        }
+    }
+
+    private static String summaryAfterOneRefresh(MonitorInstrumentation.AllocationCounter counter) {
+        MonitorInstrumentation instrumentation = new MonitorInstrumentation(MonitorInstrumentation.DefaultProcSelfStatPath);
+        instrumentation.setAllocationCounter(counter);
+        instrumentation.recordRefreshAllocations(instrumentation.markAllocations());
+        StringBuilder summary = new StringBuilder();
+        instrumentation.appendSummary(summary);
+        instrumentation.close();
+        return summary.toString();
+    }
+
+    @Test
+    public void labelsThreadAllocationsAsTheRefreshes() {
+        String summary = summaryAfterOneRefresh(new FakeAllocationCounter(true));
+        assertTrue(summary, summary.startsWith("refresh allocations: p50 "));
+    }
+
+    @Test
+    public void labelsProcessWideCountsAsSuch() {
+        MonitorInstrumentation instrumentation = new MonitorInstrumentation(MonitorInstrumentation.DefaultProcSelfStatPath);
+        instrumentation.setAllocationCounter(new FakeAllocationCounter(false));
+        assertTrue(instrumentation.isCountingAllocations());
+        assertFalse(instrumentation.isCountingThreadAllocations());
+        instrumentation.close();
+
+        String summary = summaryAfterOneRefresh(new FakeAllocationCounter(false));
+        assertTrue(summary, summary.startsWith("process allocations during refresh: p50 "));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SamplingGovernorTest {
+
+    /**
+     * Ticks per interval at each frequency, lowest first: mostly at the top,
+     * mostly at the bottom, a little off the bottom mix, and only the bottom
+     */
+    private static final long[] Busy = {10, 10, 10, 70};
+    private static final long[] Light = {70, 10, 10, 10};
+    private static final long[] NearLight = {60, 20, 10, 10};
+    private static final long[] Lowest = {100, 0, 0, 0};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSysfs sysfs;
+    private ManualMonitorClock clock;
+    private CpuTimeInStateMonitor monitor;
+
+    @Before
+    public void setUp() throws Exception {
+        this.sysfs = FakeSysfs.create(this.folder.getRoot(), 2, 2, 4, 0);
+        this.clock = new ManualMonitorClock(10000);
+        this.monitor = new CpuTimeInStateMonitor(this.sysfs.getRoot(), this.clock);
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.close();
+    }
+
+    /**
+     * Run both clusters with the given mix for an interval, refresh and let
+     * governor decide
+     *
+     * @return the interval governor chose
+     */
+    private long refresh(SamplingGovernor governor, long[] mix) throws Exception {
+        for (int cluster = 0; cluster < 2; cluster++) {
+            for (int i = 0; i < mix.length; i++) {
+                this.sysfs.setDuration(cluster, i, this.sysfs.getDuration(cluster, i) + mix[i]);
+            }
+        }
+        this.clock.advance(1000);
+        this.monitor.updateAllCpuTimeInState();
+        return governor.onRefresh(this.monitor.getSnapshot(), this.monitor);
+    }
+
+    private static void assertDecision(SamplingGovernor governor, long interval, int reason, long decided) {
+        assertEquals(SamplingGovernor.getReasonName(reason), reason, governor.getReason());
+        assertEquals(interval, governor.getIntervalMillis());
+        assertEquals(interval, decided);
+    }
+
+    @Test
+    public void backsOffWhileTheMixHoldsAndDropsOnABurst() throws Exception {
+        SamplingGovernor governor = new SamplingGovernor(100, 800, 100);
+        final List<Long> intervals = new ArrayList<>();
+        governor.setDecisionListener(new SamplingGovernor.DecisionListener() {
+            public void onDecision(long intervalMillis, int reason, double changeScore, double overheadPercent) {
+                intervals.add(intervalMillis);
+            }
+        });
+
+        // a mix needs two refreshes, and comparing it a third
+        assertDecision(governor, 100, SamplingGovernor.ReasonStart, refresh(governor, Busy));
+        assertDecision(governor, 100, SamplingGovernor.ReasonStart, refresh(governor, Busy));
+        assertDecision(governor, 200, SamplingGovernor.ReasonStable, refresh(governor, Busy));
+        assertEquals(0, governor.getChangeScore(), 1e-9);
+        assertDecision(governor, 400, SamplingGovernor.ReasonStable, refresh(governor, Busy));
+        assertDecision(governor, 800, SamplingGovernor.ReasonStable, refresh(governor, Busy));
+        assertDecision(governor, 800, SamplingGovernor.ReasonStable, refresh(governor, Busy));
+
+        assertDecision(governor, 100, SamplingGovernor.ReasonBurst, refresh(governor, Light));
+        assertEquals(0.6, governor.getChangeScore(), 1e-9);
+        assertDecision(governor, 200, SamplingGovernor.ReasonStable, refresh(governor, Light));
+        // a change between stable and burst keeps the interval
+        assertDecision(governor, 200, SamplingGovernor.ReasonSteady, refresh(governor, NearLight));
+        assertEquals(0.1, governor.getChangeScore(), 1e-9);
+
+        assertEquals(9, governor.getDecisionCount());
+        assertEquals(2, governor.getDecisionCount(SamplingGovernor.ReasonStart));
+        assertEquals(5, governor.getDecisionCount(SamplingGovernor.ReasonStable));
+        assertEquals(1, governor.getDecisionCount(SamplingGovernor.ReasonBurst));
+        assertEquals(1, governor.getDecisionCount(SamplingGovernor.ReasonSteady));
+        assertEquals(9, intervals.size());
+        assertEquals(Long.valueOf(800), intervals.get(4));
+        assertEquals(Long.valueOf(200), intervals.get(8));
+    }
+
+    @Test
+    public void backsOffWhileTheCoresStayAtTheLowestFrequency() throws Exception {
+        SamplingGovernor governor = new SamplingGovernor(100, 800, 100);
+        refresh(governor, NearLight);
+        refresh(governor, NearLight);
+
+        // falling to the lowest frequency is a burst in itself
+        assertDecision(governor, 100, SamplingGovernor.ReasonBurst, refresh(governor, Lowest));
+        assertDecision(governor, 200, SamplingGovernor.ReasonIdle, refresh(governor, Lowest));
+        assertDecision(governor, 400, SamplingGovernor.ReasonIdle, refresh(governor, Lowest));
+        // a little time above it still counts as idle
+        assertDecision(governor, 800, SamplingGovernor.ReasonIdle, refresh(governor, new long[]{97, 3, 0, 0}));
+        assertDecision(governor, 100, SamplingGovernor.ReasonBurst, refresh(governor, Busy));
+    }
+
+    @Test
+    public void neverRefreshesFasterThanTheBudgetAllows() throws Exception {
+        // no refresh is quick enough for a budget of a billionth of a core
+        SamplingGovernor governor = new SamplingGovernor(100, 800, 1e-9);
+        assertDecision(governor, 100, SamplingGovernor.ReasonStart, refresh(governor, Busy));
+        assertEquals(0, governor.getOverheadPercent(), 0);
+
+        assertDecision(governor, 800, SamplingGovernor.ReasonBudget, refresh(governor, Busy));
+        assertTrue(governor.getOverheadPercent() > 0);
+        assertDecision(governor, 800, SamplingGovernor.ReasonBudget, refresh(governor, Light));
+        assertEquals(2, governor.getDecisionCount(SamplingGovernor.ReasonBudget));
+    }
+}
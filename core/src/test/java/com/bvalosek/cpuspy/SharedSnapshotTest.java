@@ -0,0 +1,187 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedSnapshotTest {
+
+    private static final int CpuCount = 4;
+    private static final int StateCount = 8;
+    private static final int IdleStateCount = 2;
+
+    /**
+     * Publishes the concurrent test keeps the writer busy for, and validated
+     * reads it waits for at least
+     */
+    private static final int Publishes = 20000;
+    private static final int MinValidatedReads = 100;
+
+    private static ByteBuffer region() {
+        return ByteBuffer.allocateDirect(SharedSnapshotLayout.regionSize(CpuCount, StateCount, IdleStateCount));
+    }
+
+    /**
+     * @return a snapshot whose timestamp, durations and idle counters all equal
+     * generation, so a read mixing two snapshots is easy to tell
+     */
+    private static CpuTimeInStateSnapshot snapshot(long generation) {
+        int[][] frequencies = new int[CpuCount][StateCount];
+        long[][] durations = new long[CpuCount][StateCount];
+        String[][] names = new String[CpuCount][IdleStateCount];
+        long[][] times = new long[CpuCount][IdleStateCount];
+        long[][] usages = new long[CpuCount][IdleStateCount];
+        boolean[][] disabled = new boolean[CpuCount][IdleStateCount];
+        for (int cpuIndex = 0; cpuIndex < CpuCount; cpuIndex++) {
+            for (int i = 0; i < StateCount; i++) {
+                frequencies[cpuIndex][i] = 2000000 - 100000 * i;
+                durations[cpuIndex][i] = generation;
+            }
+            for (int i = 0; i < IdleStateCount; i++) {
+                names[cpuIndex][i] = "C" + i;
+                times[cpuIndex][i] = generation;
+                usages[cpuIndex][i] = generation;
+            }
+        }
+        return new CpuTimeInStateSnapshot(generation, frequencies, durations, new long[CpuCount][],
+                new int[CpuCount], new CpuIdleStates(names, times, usages, disabled), null);
+    }
+
+    /**
+     * @return null if everything read between beginRead and validate belongs
+     * to the snapshot of the read timestamp, otherwise what did not
+     */
+    private static String checkConsistent(SharedSnapshotReader reader) {
+        long generation = reader.getTimestamp();
+        for (int cpuIndex = 0; cpuIndex < CpuCount; cpuIndex++) {
+            for (int i = 0; i < reader.getStateCount(cpuIndex); i++) {
+                if (reader.getRawDuration(cpuIndex, i) != generation) {
+                    return "duration " + cpuIndex + "/" + i + " of generation " + generation;
+                }
+            }
+            for (int i = 0; i < reader.getIdleStateCount(cpuIndex); i++) {
+                if (reader.getIdleTime(cpuIndex, i) != generation
+                        || reader.getIdleUsage(cpuIndex, i) != generation) {
+                    return "idle state " + cpuIndex + "/" + i + " of generation " + generation;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void validatedReadsAreNeverTorn() throws Exception {
+        ByteBuffer region = region();
+        final SharedSnapshotWriter writer = new SharedSnapshotWriter(region, CpuCount, StateCount, IdleStateCount);
+        final CpuTimeInStateSnapshot[] snapshots = {snapshot(1), snapshot(2), snapshot(3)};
+        writer.publish(snapshots[0]);
+        SharedSnapshotReader reader = new SharedSnapshotReader(region.duplicate());
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread writerThread = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < Publishes; i++) {
+                    writer.publish(snapshots[i % snapshots.length]);
+                }
+                done.set(true);
+            }
+        }, "SharedSnapshotWriter");
+
+        long validated = 0;
+        String torn = null;
+        writerThread.start();
+        try {
+            while ((!done.get() || validated < MinValidatedReads) && torn == null) {
+                long stamp = reader.beginRead();
+                String inconsistency = checkConsistent(reader);
+                if (reader.validate(stamp)) {
+                    validated++;
+                    torn = inconsistency;
+                }
+            }
+        } finally {
+            writerThread.join();
+        }
+
+        assertNull(torn);
+        assertTrue(validated >= MinValidatedReads);
+        assertEquals(Publishes + 1, writer.getPublishCount());
+    }
+
+    @Test
+    public void sequenceKeepsIncreasingAcrossWriters() throws Exception {
+        ByteBuffer region = region();
+        SharedSnapshotWriter first = new SharedSnapshotWriter(region, CpuCount, StateCount, IdleStateCount);
+        first.publish(snapshot(1));
+        first.publish(snapshot(2));
+        SharedSnapshotReader reader = new SharedSnapshotReader(region.duplicate());
+        long before = reader.beginRead();
+        assertEquals(2, reader.getTimestamp());
+
+        SharedSnapshotWriter second = new SharedSnapshotWriter(region, CpuCount, StateCount, IdleStateCount);
+        // a read that began under the first writer must not validate under the second
+        assertFalse(reader.validate(before));
+        long laidOut = reader.beginRead();
+        assertTrue(laidOut > before);
+
+        second.publish(snapshot(3));
+        long after = reader.beginRead();
+        assertTrue(after > laidOut);
+        assertEquals(3, reader.getTimestamp());
+        assertTrue(reader.validate(after));
+    }
+
+    @Test
+    public void readerWaitsOutAConcurrentWriterConstruction() throws Exception {
+        final ByteBuffer region = region();
+        new SharedSnapshotWriter(region, CpuCount, StateCount, IdleStateCount).publish(snapshot(5));
+        SharedSnapshotReader reader = new SharedSnapshotReader(region.duplicate());
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writers = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        new SharedSnapshotWriter(region, CpuCount, StateCount, IdleStateCount)
+                                .publish(snapshot(5));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        }, "SharedSnapshotWriters");
+
+        long last = 0;
+        writers.start();
+        try {
+            while (writers.isAlive()) {
+                long stamp = reader.beginRead();
+                assertTrue(stamp >= last);
+                last = stamp;
+                long timestamp = reader.getTimestamp();
+                if (reader.validate(stamp)) {
+                    // a freshly laid out region reads as zero, never as a mix
+                    assertTrue(timestamp == 5 || timestamp == 0);
+                }
+            }
+        } finally {
+            writers.join();
+        }
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import com.bvalosek.cpuspy.CpuTimeInStateMonitor.CpuStateMonitorException;
+import com.bvalosek.cpuspy.CpuTimeInStateMonitor.SnapshotListener;
+import com.bvalosek.cpuspy.CpuTimeInStateMonitor.Subscription;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotDispatcherTest {
+
+    private static final Executor Inline = new Executor() {
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSysfs sysfs;
+    private CpuTimeInStateMonitor monitor;
+
+    @Before
+    public void setUp() throws Exception {
+        this.sysfs = FakeSysfs.create(this.folder.getRoot(), 2, 2, 4, 0);
+        this.sysfs.advance(100);
+        this.monitor = new CpuTimeInStateMonitor(this.sysfs.getRoot(), new ManualMonitorClock(10000));
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.close();
+    }
+
+    @Test
+    public void cancellingTheLastSubscriberDoesNotInterruptTheSamplingThread() throws Exception {
+        final AtomicReference<Subscription> subscription = new AtomicReference<>();
+        final AtomicBoolean interrupted = new AtomicBoolean(true);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        subscription.set(this.monitor.subscribe(new SnapshotListener() {
+            public void onSnapshot(CpuTimeInStateSnapshot snapshot) {
+                try {
+                    subscribed.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                subscription.get().cancel();
+                interrupted.set(Thread.currentThread().isInterrupted());
+                cancelled.countDown();
+            }
+
+            public void onError(CpuStateMonitorException error) {
+            }
+        }, 10, Inline));
+        subscribed.countDown();
+
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        assertFalse(interrupted.get());
+        int epoch = this.monitor.getSnapshot().getEpoch(0);
+        this.sysfs.advance(1);
+        this.monitor.updateAllCpuTimeInState();
+        assertEquals(epoch, this.monitor.getSnapshot().getEpoch(0));
+    }
+
+    @Test
+    public void runsTasksOnTheSamplingThreadWithOrWithoutSubscribers() throws Exception {
+        final AtomicReference<String> threadName = new AtomicReference<>();
+        final CountDownLatch ran = new CountDownLatch(1);
+        this.monitor.execute(new Runnable() {
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals("CpuTimeInStateMonitor", threadName.get());
+
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        final CountDownLatch reset = new CountDownLatch(1);
+        Subscription subscription = this.monitor.subscribe(new SnapshotListener() {
+            public void onSnapshot(CpuTimeInStateSnapshot snapshot) {
+                refreshed.countDown();
+            }
+
+            public void onError(CpuStateMonitorException error) {
+            }
+        }, 10, Inline);
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        this.monitor.execute(new Runnable() {
+            public void run() {
+                try {
+                    monitor.resetAllCpuIgnoredTimeInStates();
+                    reset.countDown();
+                } catch (CpuStateMonitorException e) {
+                    // reset stays open and the test fails
+                }
+            }
+        });
+        assertTrue(reset.await(5, TimeUnit.SECONDS));
+        assertTrue(this.monitor.getSnapshot().hasBaseline(0));
+        subscription.cancel();
+    }
+
+    @Test
+    public void requestedRefreshesNeedSubscribers() throws Exception {
+        // a task brings the sampling thread up without anyone to deliver to
+        runOnSamplingThread();
+        this.monitor.requestRefresh();
+        runOnSamplingThread();
+        assertEquals(0, this.monitor.getRefreshCount());
+
+        final CountDownLatch refreshed = new CountDownLatch(2);
+        Subscription subscription = this.monitor.subscribe(new SnapshotListener() {
+            public void onSnapshot(CpuTimeInStateSnapshot snapshot) {
+                refreshed.countDown();
+            }
+
+            public void onError(CpuStateMonitorException error) {
+            }
+        }, 3600000, Inline);
+        this.monitor.requestRefresh();
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        subscription.cancel();
+    }
+
+    /**
+     * Wait until a task queued on the sampling thread now has run
+     */
+    private void runOnSamplingThread() throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(1);
+        this.monitor.execute(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void listenersMaySubscribeFromTheSamplingThread() throws Exception {
+        final CountDownLatch nested = new CountDownLatch(1);
+        final AtomicReference<Subscription> inner = new AtomicReference<>();
+        final SnapshotListener nestedListener = new SnapshotListener() {
+            public void onSnapshot(CpuTimeInStateSnapshot snapshot) {
+                nested.countDown();
+            }
+
+            public void onError(CpuStateMonitorException error) {
+            }
+        };
+        final AtomicBoolean first = new AtomicBoolean(true);
+        Subscription outer = this.monitor.subscribe(new SnapshotListener() {
+            public void onSnapshot(CpuTimeInStateSnapshot snapshot) {
+                if (first.getAndSet(false)) {
+                    inner.set(monitor.subscribe(nestedListener, 10, Inline));
+                }
+            }
+
+            public void onError(CpuStateMonitorException error) {
+            }
+        }, 10, Inline);
+
+        assertTrue(nested.await(5, TimeUnit.SECONDS));
+        inner.get().cancel();
+        outer.cancel();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SysfsFileTest {
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(Ascii));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String string(ByteBuffer content) {
+        byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return new String(bytes, Ascii);
+    }
+
+    @Test
+    public void rereadsTheOpenHandle() throws IOException {
+        File attribute = this.folder.newFile("scaling_cur_freq");
+        write(attribute, "300000\n");
+        SysfsFile file = new SysfsFile(attribute.getPath());
+        try {
+            assertEquals("300000\n", string(file.read()));
+            assertTrue(file.isOpen());
+            write(attribute, "1800000\n");
+            assertEquals("1800000\n", string(file.read()));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void growsPastTheInitialBuffer() throws IOException {
+        char[] line = new char[10000];
+        Arrays.fill(line, '7');
+        String content = new String(line);
+        File attribute = this.folder.newFile("trans_table");
+        write(attribute, content);
+        SysfsFile file = new SysfsFile(attribute.getPath());
+        try {
+            assertEquals(content, string(file.read()));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void reopensOnceTheFileComesBack() throws IOException {
+        File attribute = this.folder.newFile("time");
+        write(attribute, "1\n");
+        SysfsFile file = new SysfsFile(attribute.getPath());
+        try {
+            file.read();
+            file.close();
+            assertTrue(attribute.delete());
+            try {
+                file.read();
+                fail();
+            } catch (IOException e) {
+                assertFalse(file.isOpen());
+            }
+            write(attribute, "2\n");
+            assertEquals("2\n", string(file.read()));
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SystemMonitorClockTest {
+
+    private static ByteBuffer bytes(String content) {
+        return ByteBuffer.wrap(content.getBytes(Charset.forName("US-ASCII")));
+    }
+
+    @Test
+    public void parsesUptime() {
+        assertEquals(350735470, SystemMonitorClock.parseUptimeMillis(bytes("350735.47 234388.90\n")));
+        assertEquals(12000, SystemMonitorClock.parseUptimeMillis(bytes("12 3\n")));
+        assertEquals(-1, SystemMonitorClock.parseUptimeMillis(bytes("\n")));
+    }
+
+    @Test
+    public void countsFromBootWhereUptimeIsReadable() {
+        SystemMonitorClock clock = new SystemMonitorClock();
+        if (new File(SystemMonitorClock.DefaultProcUptimePath).canRead()) {
+            assertTrue(clock.countsFromBoot());
+            assertTrue(clock.elapsedRealtime() > 0);
+        }
+        assertFalse(new SystemMonitorClock("/nonexistent/uptime").countsFromBoot());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimeInStateBatchAnalyzerTest {
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+    private static final int TarBlockSize = 512;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ForkJoinPool pool = new ForkJoinPool(2);
+    private final TimeInStateBatchAnalyzer analyzer = new TimeInStateBatchAnalyzer(this.pool);
+
+    @After
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    /**
+     * Builds a tar archive in memory one entry at a time
+     */
+    private static final class Tar {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        /**
+         * Add a regular file as a ustar entry, its path split at the last
+         * slash into prefix and name when it does not fit the name field
+         */
+        Tar ustar(String path, String content) {
+            String prefix = "";
+            String name = path;
+            if (path.length() > 100) {
+                int slash = path.lastIndexOf('/');
+                prefix = path.substring(0, slash);
+                name = path.substring(slash + 1);
+            }
+            return entry(name, prefix, '0', content.getBytes(Ascii), content.length());
+        }
+
+        /**
+         * Add a regular file behind a GNU long name entry, with only the
+         * first 100 characters of its path in its own header
+         */
+        Tar gnuLongName(String path, String content) {
+            byte[] longName = (path + "\0").getBytes(Ascii);
+            entry("././@LongLink", null, 'L', longName, longName.length);
+            return entry(path.substring(0, Math.min(100, path.length())), null, '0',
+                    content.getBytes(Ascii), content.length());
+        }
+
+        /**
+         * Add a regular file whose header claims size bytes but that holds
+         * only content
+         */
+        Tar truncated(String path, String content, int size) {
+            return entry(path, "", '0', content.getBytes(Ascii), size);
+        }
+
+        /**
+         * @param prefix ustar prefix, or null for a GNU header
+         */
+        private Tar entry(String name, String prefix, char type, byte[] content, long size) {
+            byte[] header = new byte[TarBlockSize];
+            put(header, 0, name);
+            put(header, 100, "0000644");
+            put(header, 124, String.format("%011o", size));
+            put(header, 136, "00000000000");
+            header[156] = (byte) type;
+            put(header, 257, prefix != null ? "ustar" : "ustar  ");
+            if (prefix != null) {
+                put(header, 263, "00");
+                put(header, 345, prefix);
+            }
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            int checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xff;
+            }
+            put(header, 148, String.format("%06o", checksum));
+            this.out.write(header, 0, header.length);
+            this.out.write(content, 0, content.length);
+            int padding = (TarBlockSize - content.length % TarBlockSize) % TarBlockSize;
+            this.out.write(new byte[padding], 0, padding);
+            return this;
+        }
+
+        private static void put(byte[] header, int offset, String value) {
+            byte[] bytes = value.getBytes(Ascii);
+            System.arraycopy(bytes, 0, header, offset, bytes.length);
+        }
+
+        byte[] finish() {
+            this.out.write(new byte[2 * TarBlockSize], 0, 2 * TarBlockSize);
+            return this.out.toByteArray();
+        }
+    }
+
+    private File write(String name, byte[] bytes, boolean gzip) throws IOException {
+        File file = new File(this.folder.getRoot(), name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (gzip) {
+                out = new GZIPOutputStream(out);
+            }
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String longPath(String leaf) {
+        StringBuilder path = new StringBuilder("capture");
+        while (path.length() < 60) {
+            path.append("/deeply-nested-directory");
+        }
+        return path.append("/sys/devices/system/cpu/").append(leaf).toString();
+    }
+
+    @Test
+    public void followsUstarPrefixes() throws Exception {
+        byte[] tar = new Tar()
+                .ustar("capture/soc", "sm8150\n")
+                .ustar(longPath("cpufreq/policy4/stats/time_in_state"), "300000 10\n600000 30\n")
+                .ustar("capture/sys/devices/system/cpu/cpu0/cpufreq/stats/time_in_state", "300000 5\n")
+                .finish();
+        FleetResidency fleet = this.analyzer.analyze(Collections.singletonList(write("a.tar", tar, false)));
+
+        assertEquals(Collections.singleton("sm8150"), fleet.getSocs());
+        assertEquals(1, fleet.getCaptureCount("sm8150"));
+        assertEquals(5, fleet.getCoreCount("sm8150"));
+        FrequencyDistribution policy4 = fleet.getDistribution("sm8150", 4);
+        assertNotNull(policy4);
+        assertEquals(40, policy4.getTotalDuration());
+        assertEquals(600000, policy4.getFrequency(1));
+        assertEquals(5, fleet.getDistribution("sm8150", 0).getTotalDuration());
+        assertNull(fleet.getDistribution("sm8150", 1));
+    }
+
+    @Test
+    public void followsGnuLongNames() throws Exception {
+        byte[] tar = new Tar()
+                .gnuLongName(longPath("cpu7/cpufreq/stats/time_in_state"), "1000000 12\n2000000 8\n")
+                .gnuLongName(longPath("soc0/machine"), "SM8250\n")
+                .finish();
+        File gzip = write("b.tar.gz", tar, true);
+        FleetResidency fleet = this.analyzer.analyze(Collections.singletonList(gzip));
+
+        assertEquals(0, fleet.getFailedCaptureCount());
+        assertEquals(Collections.singleton("SM8250"), fleet.getSocs());
+        assertEquals(20, fleet.getDistribution("SM8250", 7).getTotalDuration());
+    }
+
+    @Test
+    public void countsTruncatedArchivesAsFailed() throws Exception {
+        byte[] whole = new Tar()
+                .ustar("capture/cpu0/time_in_state", "300000 10\n")
+                .truncated("capture/cpu1/time_in_state", "300000 10\n", 4096)
+                .finish();
+        // cut the archive inside the second entry
+        byte[] tar = Arrays.copyOf(whole, 3 * TarBlockSize);
+        File truncated = write("c.tar", tar, false);
+        File good = write("d.tar", new Tar().ustar("capture/cpu0/time_in_state", "300000 10\n").finish(), false);
+
+        FleetResidency fleet = this.analyzer.analyze(Arrays.asList(truncated, good));
+        assertEquals(1, fleet.getFailedCaptureCount());
+        assertEquals(1, fleet.getCaptureCount(FleetResidency.UnknownSoc));
+        assertEquals(10, fleet.getDistribution(FleetResidency.UnknownSoc, 0).getTotalDuration());
+    }
+
+    @Test
+    public void findsArchivesAndDirectoriesUnderTheRoot() throws Exception {
+        File root = this.folder.newFolder("fleet");
+        File directory = new File(root, "device1/sys/devices/system/cpu/cpu2/cpufreq/stats");
+        assertTrue(directory.mkdirs());
+        OutputStream out = new FileOutputStream(new File(directory, "time_in_state"));
+        out.write("300000 3\n".getBytes(Ascii));
+        out.close();
+        File archive = new File(root, "device2.tar");
+        OutputStream tar = new FileOutputStream(archive);
+        tar.write(new Tar().ustar("cpu2/time_in_state", "300000 4\n").finish());
+        tar.close();
+
+        FleetResidency fleet = this.analyzer.analyze(root);
+        assertEquals(2, fleet.getCaptureCount(FleetResidency.UnknownSoc));
+        assertEquals(7, fleet.getDistribution(FleetResidency.UnknownSoc, 2).getTotalDuration());
+    }
+}
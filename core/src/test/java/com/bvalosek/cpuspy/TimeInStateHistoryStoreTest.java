@@ -0,0 +1,113 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TimeInStateHistoryStoreTest {
+
+    private static final int SegmentSize = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSysfs sysfs;
+    private CpuTimeInStateMonitor monitor;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        this.sysfs = FakeSysfs.create(this.folder.newFolder("sys"), 2, 2, 4, 2);
+        this.sysfs.advance(100);
+        this.monitor = new CpuTimeInStateMonitor(this.sysfs.getRoot(), new ManualMonitorClock(10000));
+        this.monitor.updateAllCpuTimeInState();
+        this.directory = new File(this.folder.getRoot(), "history");
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.close();
+    }
+
+    @Test
+    public void reopensWithTheLastBaselinesAndTheirBootId() throws Exception {
+        this.monitor.resetAllCpuIgnoredTimeInStates();
+        CpuTimeInStateSnapshot snapshot = this.monitor.getSnapshot();
+        TimeInStateHistoryStore store = new TimeInStateHistoryStore(this.directory, SegmentSize, 2);
+        store.appendSample(1000, snapshot, this.monitor.getTopology());
+        store.appendBaselines(snapshot, this.monitor.getTopology(), "first boot");
+        store.close();
+
+        store = new TimeInStateHistoryStore(this.directory, SegmentSize, 2);
+        assertArrayEquals(snapshot.frequencyRow(2), store.getBaselineFrequencies()[1]);
+        assertArrayEquals(snapshot.baselineRow(2), store.getBaselines()[1]);
+        assertEquals("first boot", store.getBaselineBootId());
+        store.close();
+    }
+
+    @Test
+    public void reopensWithTheIdleBaselines() throws Exception {
+        this.sysfs.setIdle(3, 1, 123456, 789);
+        this.monitor.updateAllCpuTimeInState();
+        this.monitor.resetAllCpuIgnoredTimeInStates();
+        TimeInStateHistoryStore store = new TimeInStateHistoryStore(this.directory, SegmentSize, 2);
+        store.appendBaselines(this.monitor.getSnapshot(), this.monitor.getTopology(), "first boot");
+        store.close();
+
+        store = new TimeInStateHistoryStore(this.directory, SegmentSize, 2);
+        assertEquals(4, store.getIdleBaselineTimes().length);
+        assertArrayEquals(new long[]{0, 123456}, store.getIdleBaselineTimes()[3]);
+        assertArrayEquals(new long[]{0, 789}, store.getIdleBaselineUsages()[3]);
+        store.close();
+    }
+
+    @Test
+    public void keepsTheBootIdAcrossSegments() throws Exception {
+        this.monitor.resetAllCpuIgnoredTimeInStates();
+        TimeInStateHistoryStore store = new TimeInStateHistoryStore(this.directory, SegmentSize, 2);
+        store.appendBaselines(this.monitor.getSnapshot(), this.monitor.getTopology(), "first boot");
+        for (int i = 0; i < 1000; i++) {
+            this.sysfs.advance(1);
+            this.monitor.updateAllCpuTimeInState();
+            store.appendSample(1000 + i, this.monitor.getSnapshot(), this.monitor.getTopology());
+        }
+        store.close();
+
+        // the segment holding the baselines record is gone, its rotated copy is not
+        assertFalse(new File(this.directory, "history-00000000.seg").exists());
+        store = new TimeInStateHistoryStore(this.directory, SegmentSize, 2);
+        assertEquals("first boot", store.getBaselineBootId());
+        assertEquals(4, store.getIdleBaselineTimes().length);
+        store.close();
+    }
+
+    @Test
+    public void storesBaselinesWithoutBootId() throws Exception {
+        this.monitor.resetAllCpuIgnoredTimeInStates();
+        TimeInStateHistoryStore store = new TimeInStateHistoryStore(this.directory, SegmentSize, 2);
+        store.appendBaselines(this.monitor.getSnapshot(), this.monitor.getTopology(), null);
+        store.close();
+
+        store = new TimeInStateHistoryStore(this.directory, SegmentSize, 2);
+        assertNull(store.getBaselineBootId());
+        assertArrayEquals(this.monitor.getSnapshot().baselineRow(0), store.getBaselines()[0]);
+        store.close();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimeInStateParserTest {
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    /**
+     * Reads and parses per measured round, and rounds tried before giving up
+     * on reaching a steady state; the first rounds also count class loading
+     * and compilation
+     */
+    private static final int ParsesPerRound = 10000;
+    private static final int MaxRounds = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer bytes(String content) {
+        return ByteBuffer.wrap(content.getBytes(Ascii));
+    }
+
+    @Test
+    public void parsesEveryLine() {
+        TimeInStateBuffer states = new TimeInStateBuffer();
+        TimeInStateParser.parse(bytes("300000 10\n600000 20\n1800000 12345678901\n"), states);
+
+        assertEquals(3, states.size());
+        assertEquals(300000, states.frequencyAt(0));
+        assertEquals(10, states.durationAt(0));
+        assertEquals(600000, states.frequencyAt(1));
+        assertEquals(20, states.durationAt(1));
+        assertEquals(1800000, states.frequencyAt(2));
+        assertEquals(12345678901L, states.durationAt(2));
+    }
+
+    @Test
+    public void toleratesBlanksAndMissingTrailingNewline() {
+        TimeInStateBuffer states = new TimeInStateBuffer();
+        TimeInStateParser.parse(bytes("  300000\t10\r\n600000   20"), states);
+
+        assertEquals(2, states.size());
+        assertEquals(300000, states.frequencyAt(0));
+        assertEquals(10, states.durationAt(0));
+        assertEquals(600000, states.frequencyAt(1));
+        assertEquals(20, states.durationAt(1));
+    }
+
+    @Test
+    public void skipsLinesWithoutTwoNumbers() {
+        TimeInStateBuffer states = new TimeInStateBuffer();
+        TimeInStateParser.parse(bytes("freq time\n\n300000\n600000 20\nxyz 1\n"), states);
+
+        assertEquals(1, states.size());
+        assertEquals(600000, states.frequencyAt(0));
+        assertEquals(20, states.durationAt(0));
+    }
+
+    @Test
+    public void replacesPreviousStatesAndKeepsPosition() {
+        TimeInStateBuffer states = new TimeInStateBuffer();
+        TimeInStateParser.parse(bytes("300000 10\n600000 20\n"), states);
+        ByteBuffer content = bytes("skipped\n900000 30\n");
+        content.position("skipped\n".length());
+        TimeInStateParser.parse(content, states);
+
+        assertEquals(1, states.size());
+        assertEquals(900000, states.frequencyAt(0));
+        assertEquals("skipped\n".length(), content.position());
+    }
+
+    @Test
+    public void readAndParseAllocateNothingOnceWarm() throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        FakeSysfs sysfs = FakeSysfs.create(this.folder.getRoot(), 1, 1, 30, 0);
+        sysfs.advance(123456);
+        SysfsFile file = new SysfsFile(sysfs.timeInStateFile(0).getPath());
+        TimeInStateBuffer states = new TimeInStateBuffer();
+        long allocated = -1;
+        try {
+            for (int round = 0; round < MaxRounds && allocated != 0; round++) {
+                long start = allocations.getThreadAllocatedBytes(thread);
+                for (int i = 0; i < ParsesPerRound; i++) {
+                    TimeInStateParser.parse(file.read(), states);
+                    states.sortByFrequencyDescending();
+                }
+                allocated = allocations.getThreadAllocatedBytes(thread) - start;
+            }
+        } finally {
+            file.close();
+        }
+
+        assertEquals(30, states.size());
+        assertEquals(0, allocated);
+    }
+
+    @Test
+    public void parsesLeadingNumberOfAttribute() {
+        assertEquals(1800000, TimeInStateParser.parseNumber(bytes("1800000\n")));
+        assertEquals(0, TimeInStateParser.parseNumber(bytes("\n")));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TransitionTableParserTest {
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    /**
+     * A trans_table as cpufreq_stats prints it, frequencies ascending in the
+     * order of the driver's table, every number right aligned to 9 columns
+     * and followed by a blank
+     */
+    private static final String KernelTable =
+            "   From  :    To\n"
+                    + "         :    300000    576000    768000   1017600 \n"
+                    + "   300000:         0        10         2         1 \n"
+                    + "   576000:         8         0         4         3 \n"
+                    + "   768000:         3         5         0         7 \n"
+                    + "  1017600:         2         0         9         0 \n";
+
+    private static ByteBuffer bytes(String content) {
+        return ByteBuffer.wrap(content.getBytes(Ascii));
+    }
+
+    /**
+     * @return the count of the parsed matrix from one frequency to another
+     */
+    private static long count(TransitionTableParser parser, int from, int to) {
+        int[] frequencies = parser.getFrequencies();
+        int fromIndex = -1;
+        int toIndex = -1;
+        for (int i = 0; i < frequencies.length; i++) {
+            fromIndex = frequencies[i] == from ? i : fromIndex;
+            toIndex = frequencies[i] == to ? i : toIndex;
+        }
+        return parser.getCounts()[fromIndex * frequencies.length + toIndex];
+    }
+
+    @Test
+    public void reordersAnAscendingKernelTableDescending() {
+        TransitionTableParser parser = new TransitionTableParser();
+        ByteBuffer content = bytes(KernelTable);
+        assertTrue(parser.parse(content));
+
+        assertEquals(0, content.position());
+        assertEquals(4, parser.getStateCount());
+        assertArrayEquals(new int[]{1017600, 768000, 576000, 300000}, parser.getFrequencies());
+        assertEquals(10, count(parser, 300000, 576000));
+        assertEquals(8, count(parser, 576000, 300000));
+        assertEquals(7, count(parser, 768000, 1017600));
+        assertEquals(9, count(parser, 1017600, 768000));
+        assertEquals(0, count(parser, 1017600, 1017600));
+        // the row of the highest frequency comes first, its columns descending too
+        assertArrayEquals(new long[]{0, 9, 0, 2}, Arrays.copyOfRange(parser.getCounts(), 0, 4));
+    }
+
+    @Test
+    public void leavesRowsCutShortAtZero() {
+        // the kernel stops at one page, here in the middle of the 768000 row
+        String truncated = KernelTable.substring(0, KernelTable.indexOf("   768000:") + 25);
+        TransitionTableParser parser = new TransitionTableParser();
+        assertTrue(parser.parse(bytes(truncated)));
+
+        assertEquals(4, parser.getStateCount());
+        assertEquals(10, count(parser, 300000, 576000));
+        assertEquals(3, count(parser, 576000, 1017600));
+        assertEquals(0, count(parser, 768000, 300000));
+        assertEquals(0, count(parser, 768000, 576000));
+        assertEquals(0, count(parser, 1017600, 768000));
+    }
+
+    @Test
+    public void keepsTheFrequencyRowUntilTheHeaderChanges() {
+        TransitionTableParser parser = new TransitionTableParser();
+        assertTrue(parser.parse(bytes(KernelTable)));
+        int[] frequencies = parser.getFrequencies();
+        long[] counts = parser.getCounts();
+
+        assertTrue(parser.parse(bytes(KernelTable.replace("        10 ", "        11 "))));
+        assertSame(frequencies, parser.getFrequencies());
+        assertSame(counts, parser.getCounts());
+        assertEquals(11, count(parser, 300000, 576000));
+
+        assertTrue(parser.parse(bytes("   From  :    To\n"
+                + "         :    300000    576000 \n"
+                + "   300000:         0         4 \n"
+                + "   576000:         5         0 \n")));
+        assertArrayEquals(new int[]{576000, 300000}, parser.getFrequencies());
+        assertEquals(4, count(parser, 300000, 576000));
+        assertEquals(5, count(parser, 576000, 300000));
+    }
+
+    @Test
+    public void rejectsContentWithoutHeader() {
+        TransitionTableParser parser = new TransitionTableParser();
+        assertTrue(parser.parse(bytes(KernelTable)));
+        assertFalse(parser.parse(bytes("   From  :    To\n")));
+        assertEquals(0, parser.getStateCount());
+        assertFalse(parser.parse(bytes("")));
+    }
+}
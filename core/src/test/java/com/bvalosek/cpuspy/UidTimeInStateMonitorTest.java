@@ -0,0 +1,103 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UidTimeInStateMonitorTest {
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    /**
+     * Enough UIDs for the file to take several chunks and the table to grow
+     */
+    private static final int UidCount = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private UidTimeInStateMonitor monitor;
+
+    @Before
+    public void setUp() throws Exception {
+        this.file = new File(this.folder.getRoot(), "uid_time_in_state");
+        write(0, 0);
+        this.monitor = new UidTimeInStateMonitor(this.file);
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.close();
+    }
+
+    /**
+     * Write a table in which UID 10000 + i spent i ticks at every frequency,
+     * plus extra ticks at 1401600 for UID 10000 + busyIndex
+     */
+    private void write(int busyIndex, long extra) throws IOException {
+        StringBuilder content = new StringBuilder("uid: 300000 576000 1017600 1401600\n");
+        for (int i = 0; i < UidCount; i++) {
+            content.append(10000 + i).append(": ").append(i).append(' ').append(i).append(' ')
+                    .append(i).append(' ').append(i + (i == busyIndex ? extra : 0)).append('\n');
+        }
+        FileOutputStream out = new FileOutputStream(this.file);
+        try {
+            out.write(content.toString().getBytes(Ascii));
+        } finally {
+            out.close();
+        }
+        assertTrue(this.file.length() > 4096);
+    }
+
+    @Test
+    public void ranksEveryUidOfAFileLongerThanAChunk() throws Exception {
+        this.monitor.update();
+        assertEquals(UidCount, this.monitor.getUidCount());
+        assertArrayEquals(new int[]{300000, 576000, 1017600, 1401600}, this.monitor.getFrequencies());
+
+        int[] uids = new int[3];
+        long[] durations = new long[3];
+        assertEquals(3, this.monitor.getTopUids(1000000, uids, durations));
+        assertArrayEquals(new int[]{10299, 10298, 10297}, uids);
+        assertArrayEquals(new long[]{2 * 299, 2 * 298, 2 * 297}, durations);
+    }
+
+    @Test
+    public void ranksFromTheBaseline() throws Exception {
+        this.monitor.update();
+        this.monitor.resetBaselines();
+        write(42, 500);
+        this.monitor.update();
+
+        int[] uids = new int[3];
+        long[] durations = new long[3];
+        assertEquals(1, this.monitor.getTopUids(0, uids, durations));
+        assertEquals(10042, uids[0]);
+        assertEquals(500, durations[0]);
+
+        this.monitor.clearBaselines();
+        assertEquals(3, this.monitor.getTopUids(1401600, uids, durations));
+        assertEquals(10042, uids[0]);
+        assertEquals(542, durations[0]);
+    }
+}
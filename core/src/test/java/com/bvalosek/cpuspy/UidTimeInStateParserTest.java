@@ -0,0 +1,106 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class UidTimeInStateParserTest {
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+
+    private static final String UidTimeInState =
+            "uid: 300000 576000 1017600 1401600\n"
+                    + "0: 12 0 3 4\n"
+                    + "1000: 120 40 30 0\n"
+                    + "10057: 0 0 0 9876543210\n";
+
+    /**
+     * Writes every line it is handed as text, header first
+     */
+    private static final class Recorder implements UidTimeInStateParser.LineHandler {
+        final List<String> lines = new ArrayList<>();
+
+        public void onHeader(long[] values, int count) {
+            this.lines.add("header " + Arrays.toString(Arrays.copyOf(values, count)));
+        }
+
+        public void onRow(int uid, long[] values, int count) {
+            this.lines.add(uid + " " + Arrays.toString(Arrays.copyOf(values, count)));
+        }
+    }
+
+    /**
+     * @return the lines parsed from content, handed over chunkSize bytes at a time
+     */
+    private static List<String> parse(String content, int chunkSize) {
+        byte[] bytes = content.getBytes(Ascii);
+        UidTimeInStateParser parser = new UidTimeInStateParser();
+        Recorder recorder = new Recorder();
+        parser.begin(recorder);
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            ByteBuffer chunk = ByteBuffer.wrap(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+            parser.onChunk(chunk);
+        }
+        parser.end();
+        return recorder.lines;
+    }
+
+    @Test
+    public void parsesTheHeaderAndEveryUid() {
+        assertEquals(Arrays.asList(
+                "header [300000, 576000, 1017600, 1401600]",
+                "0 [12, 0, 3, 4]",
+                "1000 [120, 40, 30, 0]",
+                "10057 [0, 0, 0, 9876543210]"), parse(UidTimeInState, 4096));
+    }
+
+    @Test
+    public void joinsLinesSplitAcrossChunks() {
+        List<String> whole = parse(UidTimeInState, 4096);
+        for (int chunkSize = 1; chunkSize < 16; chunkSize++) {
+            assertEquals("chunks of " + chunkSize, whole, parse(UidTimeInState, chunkSize));
+        }
+    }
+
+    @Test
+    public void parsesTheConcurrentTimeFormats() {
+        assertEquals(Arrays.asList(
+                "header [8]",
+                "0 [1, 2, 3, 4, 5, 6, 7, 8]",
+                "1000 [10, 0, 0, 0, 0, 0, 0, 1]"),
+                parse("cpus: 8\n0: 1 2 3 4 5 6 7 8\n1000: 10 0 0 0 0 0 0 1\n", 5));
+        assertEquals(Arrays.asList(
+                "header [4, 4]",
+                "0 [1, 2, 3, 4, 5, 6, 7, 8]"),
+                parse("policy0: 4 policy4: 4\n0: 1 2 3 4 5 6 7 8\n", 7));
+    }
+
+    @Test
+    public void skipsMalformedLinesAndFinishesALastLineWithoutNewline() {
+        assertEquals(Arrays.asList(
+                "header [300000, 576000]",
+                "1000 [1, 2]",
+                "1001 [3, 4]"),
+                parse("uid: 300000 576000\r\n"
+                        + "garbage: 1 2\n"
+                        + "1000: 1 2\n"
+                        + "1002 1 2\n"
+                        + "1003: 1 x2\n"
+                        + "\n"
+                        + "1001:\t3  4", 3));
+    }
+}
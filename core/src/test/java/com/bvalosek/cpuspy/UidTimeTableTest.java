@@ -0,0 +1,97 @@
+/*
+  -----------------------------------------------------------------------------
+
+  (C) Brandon Valosek, 2011 <bvalosek@gmail.com>
+
+  -----------------------------------------------------------------------------
+ */
+
+package com.bvalosek.cpuspy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UidTimeTableTest {
+
+    /**
+     * @return the slot of uid, failing if the table does not hold it
+     */
+    private static int slotOf(UidTimeTable table, int uid) {
+        for (int slot = 0; slot < table.getCapacity(); slot++) {
+            if (table.getUidAt(slot) == uid) {
+                return slot;
+            }
+        }
+        throw new AssertionError("no uid " + uid);
+    }
+
+    @Test
+    public void keepsEveryUidAcrossRehashes() {
+        UidTimeTable table = new UidTimeTable(2);
+        int initialCapacity = table.getCapacity();
+        // app UIDs are dense from 10000 on, which a weak hash would pile up
+        for (int i = 0; i < 1000; i++) {
+            table.put(10000 + i, new long[]{i, 2 * i}, 2);
+        }
+
+        assertEquals(1000, table.getSize());
+        assertTrue(table.getCapacity() > initialCapacity);
+        assertTrue(table.getSize() * 2 <= table.getCapacity());
+        for (int i = 0; i < 1000; i += 7) {
+            int slot = slotOf(table, 10000 + i);
+            assertEquals(i, table.getDeltaAt(slot, 0));
+            assertEquals(2 * i, table.getDeltaAt(slot, 1));
+        }
+    }
+
+    @Test
+    public void growsPastHalfOfTheInitialCapacity() {
+        UidTimeTable table = new UidTimeTable(1);
+        int initialCapacity = table.getCapacity();
+        for (int uid = 0; uid < initialCapacity / 2; uid++) {
+            table.put(uid, new long[]{uid}, 1);
+        }
+        assertEquals(initialCapacity, table.getCapacity());
+        table.put(initialCapacity, new long[]{7}, 1);
+        assertEquals(2 * initialCapacity, table.getCapacity());
+        assertEquals(initialCapacity / 2 + 1, table.getSize());
+        assertEquals(7, table.getDeltaAt(slotOf(table, initialCapacity), 0));
+        assertEquals(100, table.getDeltaAt(slotOf(table, 100), 0));
+    }
+
+    @Test
+    public void countsFromTheBaselineUntilAReusedUidGoesBackwards() {
+        UidTimeTable table = new UidTimeTable(3);
+        table.put(10001, new long[]{100, 200, 300}, 3);
+        table.put(10002, new long[]{5, 5, 5}, 3);
+        table.resetBaselines();
+        table.put(10001, new long[]{110, 200, 330}, 3);
+
+        int slot = slotOf(table, 10001);
+        assertEquals(10, table.getDeltaAt(slot, 0));
+        assertEquals(0, table.getDeltaAt(slot, 1));
+        assertEquals(30, table.getDeltaAt(slot, 2));
+
+        // the app was uninstalled and its UID handed to a new one
+        table.put(10001, new long[]{4, 300, 1}, 3);
+        assertEquals(4, table.getDeltaAt(slot, 0));
+        assertEquals(300, table.getDeltaAt(slot, 1));
+        assertEquals(1, table.getDeltaAt(slot, 2));
+        assertEquals(0, table.getDeltaAt(slotOf(table, 10002), 0));
+
+        table.clearBaselines();
+        assertEquals(5, table.getDeltaAt(slotOf(table, 10002), 0));
+    }
+
+    @Test
+    public void ignoresValuesBeyondTheWidth() {
+        UidTimeTable table = new UidTimeTable(2);
+        table.put(0, new long[]{1, 2, 3, 4}, 4);
+        table.put(1, new long[]{9}, 1);
+        assertEquals(2, table.getDeltaAt(slotOf(table, 0), 1));
+        assertEquals(9, table.getDeltaAt(slotOf(table, 1), 0));
+        assertEquals(0, table.getDeltaAt(slotOf(table, 1), 1));
+    }
+}